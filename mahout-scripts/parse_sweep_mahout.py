@@ -0,0 +1,50 @@
+#! python
+# Averages over folds the result rows of a `sweep` run (see README), one line per configuration.
+# Rows are found by the header line the sweep prints first; other lines (LOADING, TRAINING, LSH, logs) are skipped.
+import sys
+
+if len(sys.argv) < 2:
+	print('you need to pass file name to parse as parameter')
+	exit(1)
+
+# values measured per fold which the sweep prints in the parameters column
+MEASURED_PARAMETERS = ['validationMAE']
+
+header = None
+configurations = {}
+for line in open(sys.argv[1]).read().split('\n'):
+	line = line.strip()
+	if line.startswith('fold;algorithm;parameters;'):
+		header = line.split(';')
+		continue
+	fields = line.split(';')
+	if header is None or len(fields) != len(header) or not fields[0].isdigit():
+		continue
+	parameters = []
+	measured = {}
+	for parameter in fields[2].split(' '):
+		name, _, value = parameter.partition('=')
+		if name in MEASURED_PARAMETERS:
+			measured[name] = float(value)
+		else:
+			parameters.append(parameter)
+	key = (fields[1], ' '.join(parameters))
+	values = dict(zip(header[3:], [float(value) for value in fields[3:]]))
+	values.update(measured)
+	configurations.setdefault(key, []).append(values)
+
+if header is None:
+	print('WARNING - file contains no sweep header line')
+	exit(1)
+
+columns = header[3:] + MEASURED_PARAMETERS
+print(';'.join(['algorithm', 'parameters', 'folds'] + columns))
+for (algorithm, parameters), rows in configurations.items():
+	print(algorithm, parameters, len(rows), sep=';', end=';')
+	means = []
+	for column in columns:
+		values = [row[column] for row in rows if column in row]
+		mean = sum(values) / len(values) if values else None
+		# NaN (e.g. latencies of SVD rows) is printed as Java prints it
+		means.append('' if mean is None else 'NaN' if mean != mean else str(mean).replace('.', ','))
+	print(';'.join(means))
@@ -3,8 +3,6 @@ package org.mraczynska.recommender.lenskit;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.AbstractIterator;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
-import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.grouplens.lenskit.transform.threshold.Threshold;
 import org.grouplens.lenskit.vectors.ImmutableSparseVector;
@@ -18,6 +16,8 @@ import org.lenskit.knn.user.NeighborFinder;
 import org.lenskit.knn.user.UserSimilarity;
 import org.lenskit.knn.user.UserSimilarityThreshold;
 import org.lenskit.transform.normalize.UserVectorNormalizer;
+import org.lenskit.util.keys.KeyIndex;
+import org.lenskit.util.keys.SortedKeyIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +33,7 @@ public class MyLiveNeighborFinder implements NeighborFinder {
     private final DataAccessObject dao;
     private final UserVectorNormalizer normalizer;
     private final Threshold threshold;
+    private final KeyIndex users;
 
     /**
      * Construct a new user neighborhood finder.
@@ -53,6 +54,8 @@ public class MyLiveNeighborFinder implements NeighborFinder {
         rvDAO = rvd;
         this.dao = dao;
         threshold = thresh;
+        // dense indices of all users, so that candidates are visited by index instead of copying IDs into a set
+        users = SortedKeyIndex.fromCollection(dao.getEntityIds(CommonTypes.USER));
 
         Preconditions.checkArgument(sim.isSparse(), "user similarity function is not sparse");
     }
@@ -67,34 +70,17 @@ public class MyLiveNeighborFinder implements NeighborFinder {
         SparseVector urs = ImmutableSparseVector.create(ratings);
         final ImmutableSparseVector nratings = normalizer.normalize(user, urs, null)
                 .freeze();
-        final LongSet candidates = findCandidateNeighbors(user, nratings/*, items*/);
-        logger.debug("found {} candidate neighbors for {}", candidates.size(), user);
+        // every other user is a candidate neighbor
+        final int userIndex = users.tryGetIndex(user);
+        logger.debug("found {} candidate neighbors for {}", users.size() - (userIndex >= 0 ? 1 : 0), user);
         return new Iterable<Neighbor>() {
             @Override
             public Iterator<Neighbor> iterator() {
-                return new MyLiveNeighborFinder.NeighborIterator(user, nratings, candidates);
+                return new MyLiveNeighborFinder.NeighborIterator(user, nratings, userIndex);
             }
         };
     }
 
-    /**
-     * Get the IDs of the candidate neighbors for a user.
-     * @param user The user.
-     * @param uvec The user's normalized preference vector.
-//     * @param itemSet The set of target items.
-     * @return The set of IDs of candidate neighbors.
-     */
-    private LongSet findCandidateNeighbors(long user, SparseVector uvec) {
-        LongSet users = new LongOpenHashSet(100);
-
-        LongSet iusers = dao.getEntityIds(CommonTypes.USER);
-            users.addAll(iusers);
-
-        users.remove(user);
-
-        return users;
-    }
-
     /**
      * Check if a similarity is acceptable.
      *
@@ -118,17 +104,26 @@ public class MyLiveNeighborFinder implements NeighborFinder {
     private class NeighborIterator extends AbstractIterator<Neighbor> {
         private final long user;
         private final SparseVector userVector;
-        private final LongIterator neighborIter;
+        private final int userIndex;
+        private int next;
 
-        public NeighborIterator(long uid, SparseVector uvec, LongSet nbrs) {
+        /**
+         * @param uidx index of the user in {@code users}, negative if the user is not there
+         */
+        public NeighborIterator(long uid, SparseVector uvec, int uidx) {
             user = uid;
             userVector = uvec;
-            neighborIter = nbrs.iterator();
+            userIndex = uidx;
+            next = users.getLowerBound();
         }
         @Override
         protected Neighbor computeNext() {
-            while (neighborIter.hasNext()) {
-                final long neighbor = neighborIter.nextLong();
+            while (next < users.getUpperBound()) {
+                int index = next++;
+                if (index == userIndex) {
+                    continue;
+                }
+                final long neighbor = users.getKey(index);
                 MutableSparseVector nbrRatings = getUserRatingVector(neighbor);
                 if (nbrRatings != null) {
                     ImmutableSparseVector rawRatings = nbrRatings.immutable();
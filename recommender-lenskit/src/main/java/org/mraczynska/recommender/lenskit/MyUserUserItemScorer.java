@@ -1,7 +1,6 @@
 package org.mraczynska.recommender.lenskit;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Iterables;
 import it.unimi.dsi.fastutil.longs.*;
 import org.grouplens.lenskit.transform.threshold.Threshold;
 import org.grouplens.lenskit.vectors.ImmutableSparseVector;
@@ -60,20 +59,19 @@ public class MyUserUserItemScorer extends AbstractItemScorer {
     }
 
     /**
-     * Normalize all neighbor rating vectors, taking care to normalize each one
-     * only once.
+     * Normalize all neighbor rating vectors. The neighborhood is shared by all
+     * items, so each vector is normalized only once.
      *
      * FIXME: MDE does not like this method.
      *
-     * @param neighborhoods
+     * @param neighbors
+     * @return normalized vectors, indexed as {@code neighbors}
      */
-    protected Long2ObjectMap<SparseVector> normalizeNeighborRatings(Collection<? extends Collection<Neighbor>> neighborhoods) {
-        Long2ObjectMap<SparseVector> normedVectors =
-                new Long2ObjectOpenHashMap<>();
-        for (Neighbor n : Iterables.concat(neighborhoods)) {
-            if (!normedVectors.containsKey(n.user)) {
-                normedVectors.put(n.user, normalizer.normalize(n.user, n.vector, null));
-            }
+    protected SparseVector[] normalizeNeighborRatings(List<Neighbor> neighbors) {
+        SparseVector[] normedVectors = new SparseVector[neighbors.size()];
+        for (int i = 0; i < normedVectors.length; i++) {
+            Neighbor n = neighbors.get(i);
+            normedVectors[i] = normalizer.normalize(n.user, n.vector, null);
         }
         return normedVectors;
     }
@@ -87,10 +85,8 @@ public class MyUserUserItemScorer extends AbstractItemScorer {
                 items.size(), user, history.size());
 
         LongSortedSet itemSet = LongUtils.packedSet(items);
-        Long2ObjectMap<? extends Collection<Neighbor>> neighborhoods =
-                findNeighbors(user, itemSet);
-        Long2ObjectMap<SparseVector> normedUsers =
-                normalizeNeighborRatings(neighborhoods.values());
+        List<Neighbor> neighbors = findNeighbors(user, itemSet);
+        SparseVector[] normedUsers = normalizeNeighborRatings(neighbors);
 
         // Make the normalizing transform to reverse
         SparseVector urv = ImmutableSparseVector.create(history);
@@ -104,15 +100,13 @@ public class MyUserUserItemScorer extends AbstractItemScorer {
             double sum = 0;
             double weight = 0;
             int count = 0;
-            Collection<Neighbor> nbrs = neighborhoods.get(item);
-            if (nbrs != null) {
-                for (Neighbor n : nbrs) {
-                    SparseVector vectorEntries = normedUsers.get(n.user);
-                    if(vectorEntries.containsKey(item)){
-                        weight += abs(n.similarity);
-                        sum += n.similarity * vectorEntries.get(item);
-                        count += 1;
-                    }
+            for (int i = 0; i < normedUsers.length; i++) {
+                Neighbor n = neighbors.get(i);
+                SparseVector vectorEntries = normedUsers[i];
+                if(vectorEntries.containsKey(item)){
+                    weight += abs(n.similarity);
+                    sum += n.similarity * vectorEntries.get(item);
+                    count += 1;
                 }
             }
 
@@ -188,8 +182,12 @@ public class MyUserUserItemScorer extends AbstractItemScorer {
     }*/
 
 
-//    @Override
-    protected Long2ObjectMap<? extends Collection<Neighbor>> findNeighbors(long user, @Nonnull LongSet items) {
+    /**
+     * Find the {@code neighborhoodSize} users closest to the user, shared by all items.
+     *
+     * @return the neighbors, in no particular order
+     */
+    protected List<Neighbor> findNeighbors(long user, @Nonnull LongSet items) {
         Preconditions.checkNotNull(user, "user profile");
         Preconditions.checkNotNull(user, "item set");
 
@@ -208,12 +206,8 @@ public class MyUserUserItemScorer extends AbstractItemScorer {
             }
         }
 
-        Long2ObjectMap<PriorityQueue<Neighbor>> heaps = new Long2ObjectOpenHashMap<>(items.size());
-        for (LongIterator iter = items.iterator(); iter.hasNext();) {
-            long item = iter.nextLong();
-            heaps.put(item, heap);
-        }
-        return heaps;
+        // one list indexed by neighbor instead of a map from every item to the same heap
+        return new ArrayList<>(heap);
     }
 
     private static class ResultBuilder {
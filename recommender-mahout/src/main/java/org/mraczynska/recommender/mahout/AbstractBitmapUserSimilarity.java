@@ -0,0 +1,90 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.util.Collection;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Base of user similarities computed from sizes of two item sets and of their intersection only, counted on
+ * {@link UserItemBitmaps}. Preference values are never read, so boolean data models work as well; the bitmaps of a
+ * {@link BitmapBooleanDataModel} are used as they are.
+ */
+public abstract class AbstractBitmapUserSimilarity implements UserSimilarity {
+
+    private final DataModel dataModel;
+    private volatile UserItemBitmaps bitmaps;
+
+    protected AbstractBitmapUserSimilarity(DataModel dataModel) throws TasteException {
+        this.dataModel = Preconditions.checkNotNull(dataModel);
+        this.bitmaps = bitmapsOf(dataModel);
+    }
+
+    private static UserItemBitmaps bitmapsOf(DataModel dataModel) throws TasteException {
+        return dataModel instanceof BitmapBooleanDataModel
+                ? ((BitmapBooleanDataModel) dataModel).getUserItemBitmaps()
+                : new UserItemBitmaps(dataModel);
+    }
+
+    /**
+     * Shares already built bitmaps, e.g. between several similarities of one fold.
+     */
+    protected AbstractBitmapUserSimilarity(UserItemBitmaps bitmaps) {
+        this.dataModel = null;
+        this.bitmaps = Preconditions.checkNotNull(bitmaps);
+    }
+
+    public UserItemBitmaps getBitmaps() {
+        return bitmaps;
+    }
+
+    /**
+     * @param size1 number of items of the first user
+     * @param size2 number of items of the second user
+     * @param intersectionSize number of items of both users
+     * @param numItems number of all items in the data model
+     */
+    protected abstract double computeResult(int size1, int size2, int intersectionSize, int numItems);
+
+    @Override
+    public double userSimilarity(long userID1, long userID2) throws TasteException {
+        UserItemBitmaps bitmaps = this.bitmaps;
+        int user1 = bitmaps.userIndex(userID1);
+        int user2 = bitmaps.userIndex(userID2);
+        int intersectionSize = bitmaps.getSize(user1) == 0 || bitmaps.getSize(user2) == 0
+                ? 0
+                : bitmaps.intersectionSize(user1, user2);
+        return computeResult(bitmaps.getSize(user1), bitmaps.getSize(user2), intersectionSize, bitmaps.getNumItems());
+    }
+
+    @Override
+    public void setPreferenceInferrer(PreferenceInferrer inferrer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        if (dataModel == null) {
+            return;
+        }
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, dataModel);
+        try {
+            bitmaps = bitmapsOf(dataModel);
+        } catch (TasteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[users:" + bitmaps.getNumUsers() + ']';
+    }
+}
@@ -0,0 +1,189 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.util.Collection;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Base of user similarities computed as a merge-join of two {@link UserRatingVectors} rows. Sums are collected
+ * over co-rated items in the same order and with the same formulas as Mahout's {@code AbstractSimilarity}
+ * (unweighted, without preference inferrer), so results are the same, but nothing is allocated or boxed per call.
+ */
+public abstract class AbstractPrimitiveUserSimilarity implements UserSimilarity {
+
+    private static final int GALLOP_RATIO = 16;
+
+    private final DataModel dataModel;
+    private final boolean centerData;
+    private volatile UserRatingVectors vectors;
+
+    protected AbstractPrimitiveUserSimilarity(DataModel dataModel, boolean centerData) throws TasteException {
+        this.dataModel = Preconditions.checkNotNull(dataModel);
+        this.centerData = centerData;
+        this.vectors = new UserRatingVectors(dataModel);
+    }
+
+    /**
+     * Shares already built vectors, e.g. between several similarities of one fold.
+     */
+    protected AbstractPrimitiveUserSimilarity(UserRatingVectors vectors, boolean centerData) {
+        this.dataModel = null;
+        this.centerData = centerData;
+        this.vectors = Preconditions.checkNotNull(vectors);
+    }
+
+    public UserRatingVectors getVectors() {
+        return vectors;
+    }
+
+    /**
+     * @see org.apache.mahout.cf.taste.impl.similarity.AbstractSimilarity
+     */
+    protected abstract double computeResult(int n, double sumXY, double sumX2, double sumY2, double sumXYdiff2);
+
+    /**
+     * Allows subclasses to skip the merge-join when per-user statistics already show the similarity is undefined.
+     */
+    protected boolean isUndefinedFor(UserRatingVectors vectors, int user) {
+        return false;
+    }
+
+    @Override
+    public double userSimilarity(long userID1, long userID2) throws TasteException {
+        UserRatingVectors vectors = this.vectors;
+        int user1 = vectors.userIndex(userID1);
+        int user2 = vectors.userIndex(userID2);
+        int[] xItems = vectors.getItems(user1);
+        int[] yItems = vectors.getItems(user2);
+        int xLength = xItems.length;
+        int yLength = yItems.length;
+        if (xLength == 0 || yLength == 0 || isUndefinedFor(vectors, user1) || isUndefinedFor(vectors, user2)) {
+            return Double.NaN;
+        }
+        float[] xValues = vectors.getValues(user1);
+        float[] yValues = vectors.getValues(user2);
+
+        // rows much longer than the other one are skipped through by exponential search instead of merging
+        boolean gallop = xLength > GALLOP_RATIO * yLength || yLength > GALLOP_RATIO * xLength;
+        double sumX = 0.0;
+        double sumX2 = 0.0;
+        double sumY = 0.0;
+        double sumY2 = 0.0;
+        double sumXY = 0.0;
+        double sumXYdiff2 = 0.0;
+        int count = 0;
+        int xIndex = 0;
+        int yIndex = 0;
+        while (xIndex < xLength && yIndex < yLength) {
+            int xItem = xItems[xIndex];
+            int yItem = yItems[yIndex];
+            if (xItem == yItem) {
+                double x = xValues[xIndex++];
+                double y = yValues[yIndex++];
+                sumXY += x * y;
+                sumX += x;
+                sumX2 += x * x;
+                sumY += y;
+                sumY2 += y * y;
+                double diff = x - y;
+                sumXYdiff2 += diff * diff;
+                count++;
+            } else if (gallop) {
+                if (xItem < yItem) {
+                    xIndex = lowerBound(xItems, xIndex, yItem);
+                } else {
+                    yIndex = lowerBound(yItems, yIndex, xItem);
+                }
+            } else {
+                // branch-free advance of the side with the smaller item
+                xIndex += xItem < yItem ? 1 : 0;
+                yIndex += xItem > yItem ? 1 : 0;
+            }
+        }
+
+        return similarityFromSums(count, sumX, sumX2, sumY, sumY2, sumXY, sumXYdiff2);
+    }
+
+    /**
+     * Similarity of two users from sums over their co-rated items, collected in ascending item order.
+     */
+    final double similarityFromSums(int count,
+                                    double sumX,
+                                    double sumX2,
+                                    double sumY,
+                                    double sumY2,
+                                    double sumXY,
+                                    double sumXYdiff2) {
+        double result;
+        if (centerData) {
+            double meanX = sumX / count;
+            double meanY = sumY / count;
+            double centeredSumXY = sumXY - meanY * sumX;
+            double centeredSumX2 = sumX2 - meanX * sumX;
+            double centeredSumY2 = sumY2 - meanY * sumY;
+            result = computeResult(count, centeredSumXY, centeredSumX2, centeredSumY2, sumXYdiff2);
+        } else {
+            result = computeResult(count, sumXY, sumX2, sumY2, sumXYdiff2);
+        }
+        // Make sure the result is not accidentally a little outside [-1.0, 1.0] due to rounding
+        if (result < -1.0) {
+            result = -1.0;
+        } else if (result > 1.0) {
+            result = 1.0;
+        }
+        return result;
+    }
+
+    /**
+     * @return first index at or after {@code from} whose item is not smaller than {@code item}
+     */
+    static int lowerBound(int[] items, int from, int item) {
+        int bound = 1;
+        while (from + bound < items.length && items[from + bound] < item) {
+            bound <<= 1;
+        }
+        int low = from + (bound >>> 1);
+        int high = Math.min(from + bound, items.length);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (items[middle] < item) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void setPreferenceInferrer(PreferenceInferrer inferrer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        if (dataModel == null) {
+            return;
+        }
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, dataModel);
+        try {
+            vectors = new UserRatingVectors(dataModel);
+        } catch (TasteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[users:" + vectors.getNumUsers() + ']';
+    }
+}
@@ -0,0 +1,466 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Computes top-k similarity lists of all users in one parallel job.
+ * <p>
+ * For {@link AbstractPrimitiveUserSimilarity} subclasses it is a sparse product of the rating matrix with its
+ * transpose, both kept as CSR: a row of users is multiplied by item columns of the transpose, one block of
+ * {@value #BLOCK_USERS} users at a time so that accumulators stay in cache. Instead of a dot product every cell
+ * accumulates the sums Mahout's similarities are computed from (count, sums, sums of squares and of products), in
+ * ascending item order, so similarities are exactly the ones of pairwise computation. Each row keeps only its top-k
+ * neighbors. Rows are processed in parallel on the fork-join pool.
+ * <p>
+ * Every unordered pair is accumulated twice, once in the row of each user, although the similarities are symmetric.
+ * Reusing the sums of the upper half would mean offering each value to the top-k of the other user too, which
+ * belongs to a row another thread may be working on, so every offer would need a lock of that row, or keeping the
+ * values of all pairs until both rows are done, which is the memory the top-k lists avoid. Rows stay independent
+ * instead and the second accumulation is the price of lock-free rows.
+ * <p>
+ * Other similarities are computed pair by pair, for pairs of users sharing an item, as in
+ * {@link InvertedIndexUserNeighborhood}.
+ * <p>
+ * {@link #computeAll} computes several similarities of one fold. Primitive similarities built on the same
+ * {@link UserRatingVectors} share one product pass: sums of every pair are collected once and each similarity is
+ * derived from them, and a {@link PrimitiveSpearmanCorrelationSimilarity} on those vectors scores the pairs the pass
+ * finds, as its ranks depend on the whole intersection and cannot be summed up item by item.
+ */
+public final class AllPairsSimilarityEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(AllPairsSimilarityEngine.class);
+
+    /**
+     * Number of users whose accumulators (7 numbers each) are kept at a time.
+     */
+    static final int BLOCK_USERS = 4096;
+
+    /**
+     * Heap taken by a list entry (neighbor index, similarity and rank order) and by the row arrays of a user.
+     */
+    private static final long BYTES_PER_NEIGHBOR = 16L;
+    private static final long BYTES_PER_ROW = 3 * 16L;
+
+    private AllPairsSimilarityEngine() {
+    }
+
+    /**
+     * @param maxNeighbors length of the list of each user; capped at the number of other users
+     */
+    public static PrecomputedUserSimilarity compute(UserSimilarity similarity, DataModel dataModel, int maxNeighbors)
+            throws TasteException {
+        return compute(similarity, dataModel, maxNeighbors, BLOCK_USERS);
+    }
+
+    static PrecomputedUserSimilarity compute(UserSimilarity similarity,
+                                             DataModel dataModel,
+                                             int maxNeighbors,
+                                             int blockUsers) throws TasteException {
+        return computeAll(Collections.singletonList(similarity), dataModel, maxNeighbors, blockUsers).get(0);
+    }
+
+    /**
+     * @param similarities similarities of {@code dataModel}
+     * @return lists of every similarity, in the order of {@code similarities}
+     */
+    public static List<PrecomputedUserSimilarity> computeAll(List<? extends UserSimilarity> similarities,
+                                                             DataModel dataModel,
+                                                             int maxNeighbors) throws TasteException {
+        return computeAll(similarities, dataModel, maxNeighbors, BLOCK_USERS);
+    }
+
+    static List<PrecomputedUserSimilarity> computeAll(List<? extends UserSimilarity> similarities,
+                                                      DataModel dataModel,
+                                                      int maxNeighbors,
+                                                      int blockUsers) throws TasteException {
+        Preconditions.checkArgument(blockUsers >= 1, "blockUsers must be at least 1");
+        Preconditions.checkArgument(!similarities.isEmpty(), "no similarities given");
+        Preconditions.checkNotNull(dataModel);
+        Preconditions.checkArgument(maxNeighbors >= 1, "maxNeighbors must be at least 1");
+        int k = Math.max(1, Math.min(maxNeighbors, dataModel.getNumUsers() - 1));
+        checkHeap(dataModel.getNumUsers(), k, similarities.size());
+
+        long start = System.currentTimeMillis();
+        PrecomputedUserSimilarity.Lists[] lists = new PrecomputedUserSimilarity.Lists[similarities.size()];
+        // similarities of every set of vectors, in order of first appearance
+        Map<UserRatingVectors, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < similarities.size(); i++) {
+            UserSimilarity similarity = Preconditions.checkNotNull(similarities.get(i));
+            UserRatingVectors vectors = vectorsOf(similarity);
+            if (vectors != null) {
+                groups.computeIfAbsent(vectors, key -> new ArrayList<>()).add(i);
+            } else {
+                lists[i] = computePairwise(similarity, dataModel, k);
+            }
+        }
+        for (Map.Entry<UserRatingVectors, List<Integer>> group : groups.entrySet()) {
+            List<UserSimilarity> groupSimilarities = new ArrayList<>();
+            for (int i : group.getValue()) {
+                groupSimilarities.add(similarities.get(i));
+            }
+            PrecomputedUserSimilarity.Lists[] groupLists = computeProduct(groupSimilarities, group.getKey(), k, blockUsers);
+            for (int g = 0; g < groupLists.length; g++) {
+                lists[group.getValue().get(g)] = groupLists[g];
+            }
+        }
+        log.info("Computed top {} similar users of {} users for {} similarities in {} ms", k, dataModel.getNumUsers(),
+                similarities.size(), System.currentTimeMillis() - start);
+
+        List<PrecomputedUserSimilarity> result = new ArrayList<>(similarities.size());
+        for (int i = 0; i < lists.length; i++) {
+            result.add(new PrecomputedUserSimilarity(similarities.get(i), dataModel, k, lists[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Lists of all similarities are kept in the heap, so they are refused when they cannot fit in it and a warning is
+     * logged when they do not fit in what is free now.
+     */
+    private static void checkHeap(int numUsers, int k, int numSimilarities) throws TasteException {
+        long required = (BYTES_PER_NEIGHBOR * k + BYTES_PER_ROW) * numUsers * numSimilarities;
+        Runtime runtime = Runtime.getRuntime();
+        if (required > runtime.maxMemory()) {
+            throw new TasteException(String.format(
+                    "Top %d similar users of %d users for %d similarities take about %d MB, more than the heap of %d MB; "
+                            + "use fewer similarities or neighbors or a larger -Xmx",
+                    k, numUsers, numSimilarities, required >> 20, runtime.maxMemory() >> 20));
+        }
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (required > free) {
+            log.warn("Top {} similar users of {} users for {} similarities take about {} MB, {} MB of heap is free",
+                    k, numUsers, numSimilarities, required >> 20, free >> 20);
+        }
+    }
+
+    /**
+     * @return vectors the similarity can be computed in a product pass over, or null
+     */
+    private static UserRatingVectors vectorsOf(UserSimilarity similarity) {
+        if (similarity instanceof AbstractPrimitiveUserSimilarity) {
+            return ((AbstractPrimitiveUserSimilarity) similarity).getVectors();
+        } else if (similarity instanceof PrimitiveSpearmanCorrelationSimilarity) {
+            return ((PrimitiveSpearmanCorrelationSimilarity) similarity).getVectors();
+        }
+        return null;
+    }
+
+    private static PrecomputedUserSimilarity.Lists[] computeProduct(List<UserSimilarity> similarities,
+                                                                   UserRatingVectors vectors,
+                                                                   int k,
+                                                                   int blockUsers) throws TasteException {
+        int numUsers = vectors.getNumUsers();
+        int numSimilarities = similarities.size();
+        Transpose transpose = new Transpose(vectors);
+        IDDictionary users = vectors.getUserDictionary();
+        RowSimilarities rowSimilarities = new RowSimilarities(similarities, vectors);
+
+        int[][][] neighbors = new int[numSimilarities][numUsers][];
+        double[][][] similarityValues = new double[numSimilarities][numUsers][];
+        int[][][] rankOrders = new int[numSimilarities][numUsers][];
+        ThreadLocal<RowScratch> scratches = ThreadLocal.withInitial(
+                () -> new RowScratch(Math.min(numUsers, blockUsers), k, numSimilarities));
+        try {
+            IntStream.range(0, numUsers).parallel().forEach(user -> {
+                RowScratch scratch = scratches.get();
+                for (TopNeighbors top : scratch.tops) {
+                    top.clear();
+                }
+                try {
+                    multiplyRow(rowSimilarities, vectors, transpose, user, scratch);
+                } catch (TasteException e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int s = 0; s < numSimilarities; s++) {
+                    toList(scratch.tops[s].sort(), users, user, neighbors[s], similarityValues[s], rankOrders[s]);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof TasteException) {
+                throw (TasteException) e.getCause();
+            }
+            throw e;
+        }
+        PrecomputedUserSimilarity.Lists[] lists = new PrecomputedUserSimilarity.Lists[numSimilarities];
+        for (int s = 0; s < numSimilarities; s++) {
+            lists[s] = PrecomputedUserSimilarity.Lists.fromRows(users, neighbors[s], similarityValues[s], rankOrders[s]);
+            // nor are the emptied row arrays kept until the lists of the other similarities are built
+            neighbors[s] = null;
+            similarityValues[s] = null;
+            rankOrders[s] = null;
+        }
+        return lists;
+    }
+
+    /**
+     * Multiplies one row of the rating matrix by the transpose, block by block, and offers every defined similarity
+     * to the row's top-k of each similarity.
+     */
+    private static void multiplyRow(RowSimilarities similarities,
+                                    UserRatingVectors vectors,
+                                    Transpose transpose,
+                                    int user,
+                                    RowScratch scratch) throws TasteException {
+        int numSimilarities = similarities.similarities.size();
+        // similarities defined for the user, checked once per row rather than once per cell
+        int[] rowSimilarities = scratch.rowSimilarities;
+        int rowCount = 0;
+        for (int s = 0; s < numSimilarities; s++) {
+            if (!similarities.undefined[s][user]) {
+                rowSimilarities[rowCount++] = s;
+            }
+        }
+        if (rowCount == 0) {
+            return;
+        }
+        long userID = vectors.getUserID(user);
+        int[] items = vectors.getItems(user);
+        float[] values = vectors.getValues(user);
+        int[] cursors = scratch.cursors(items.length);
+        for (int i = 0; i < items.length; i++) {
+            cursors[i] = transpose.itemOffsets[items[i]];
+        }
+        int numUsers = vectors.getNumUsers();
+        int blockUsers = scratch.count.length;
+        for (int blockStart = 0; blockStart < numUsers; blockStart += blockUsers) {
+            int blockEnd = Math.min(numUsers, blockStart + blockUsers);
+            int touchedCount = 0;
+            for (int i = 0; i < items.length; i++) {
+                double x = values[i];
+                int end = transpose.itemOffsets[items[i] + 1];
+                int position = cursors[i];
+                // users of an item are in ascending order, so each block continues where the previous one ended
+                for (; position < end && transpose.itemUsers[position] < blockEnd; position++) {
+                    int cell = transpose.itemUsers[position] - blockStart;
+                    double y = transpose.itemValues[position];
+                    if (scratch.count[cell]++ == 0) {
+                        scratch.touched[touchedCount++] = cell;
+                    }
+                    scratch.sumXY[cell] += x * y;
+                    scratch.sumX[cell] += x;
+                    scratch.sumX2[cell] += x * x;
+                    scratch.sumY[cell] += y;
+                    scratch.sumY2[cell] += y * y;
+                    double diff = x - y;
+                    scratch.sumXYdiff2[cell] += diff * diff;
+                }
+                cursors[i] = position;
+            }
+            for (int t = 0; t < touchedCount; t++) {
+                int cell = scratch.touched[t];
+                int other = blockStart + cell;
+                if (other != user) {
+                    long otherID = vectors.getUserID(other);
+                    for (int r = 0; r < rowCount; r++) {
+                        int s = rowSimilarities[r];
+                        if (similarities.undefined[s][other]) {
+                            continue;
+                        }
+                        AbstractPrimitiveUserSimilarity primitive = similarities.primitives[s];
+                        double value;
+                        if (primitive != null) {
+                            value = primitive.similarityFromSums(scratch.count[cell],
+                                    scratch.sumX[cell], scratch.sumX2[cell], scratch.sumY[cell], scratch.sumY2[cell],
+                                    scratch.sumXY[cell], scratch.sumXYdiff2[cell]);
+                        } else {
+                            value = similarities.similarities.get(s).userSimilarity(userID, otherID);
+                        }
+                        scratch.tops[s].offer(otherID, value);
+                    }
+                }
+                scratch.clear(cell);
+            }
+        }
+    }
+
+    private static PrecomputedUserSimilarity.Lists computePairwise(UserSimilarity similarity,
+                                                                  DataModel dataModel,
+                                                                  int k) throws TasteException {
+        ItemUserIndex index = new ItemUserIndex(dataModel);
+        InvertedIndexUserNeighborhood neighborhood = new InvertedIndexUserNeighborhood(
+                k, Double.NEGATIVE_INFINITY, 1, similarity, dataModel, index);
+        IDDictionary users = IDDictionary.ofUsers(dataModel);
+        int numUsers = users.size();
+
+        int[][] neighbors = new int[numUsers][];
+        double[][] similarities = new double[numUsers][];
+        int[][] rankOrders = new int[numUsers][];
+        try {
+            IntStream.range(0, numUsers).parallel().forEach(user -> {
+                try {
+                    toList(neighborhood.rankNeighbors(users.id(user)), users, user, neighbors, similarities, rankOrders);
+                } catch (TasteException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof TasteException) {
+                throw (TasteException) e.getCause();
+            }
+            throw e;
+        }
+        return PrecomputedUserSimilarity.Lists.fromRows(users, neighbors, similarities, rankOrders);
+    }
+
+    /**
+     * Stores a ranking as the list of {@code user}, sorted by neighbor index.
+     */
+    private static void toList(TopNeighbors ranking,
+                               IDDictionary users,
+                               int user,
+                               int[][] neighbors,
+                               double[][] similarities,
+                               int[][] rankOrders) {
+        int size = ranking.size();
+        long[] keys = new long[size];
+        for (int rank = 0; rank < size; rank++) {
+            // neighbor index in the high bits, rank in the low bits
+            keys[rank] = ((long) users.index(ranking.getID(rank)) << 32) | rank;
+        }
+        Arrays.sort(keys);
+        int[] userNeighbors = new int[size];
+        double[] userSimilarities = new double[size];
+        int[] rankOrder = new int[size];
+        for (int position = 0; position < size; position++) {
+            int rank = (int) keys[position];
+            userNeighbors[position] = (int) (keys[position] >>> 32);
+            userSimilarities[position] = ranking.getSimilarity(rank);
+            rankOrder[rank] = position;
+        }
+        neighbors[user] = userNeighbors;
+        similarities[user] = userSimilarities;
+        rankOrders[user] = rankOrder;
+    }
+
+    /**
+     * Transpose of the rating matrix: users and ratings of every item, users in ascending order.
+     */
+    private static final class Transpose {
+
+        private final int[] itemOffsets;
+        private final int[] itemUsers;
+        private final float[] itemValues;
+
+        private Transpose(UserRatingVectors vectors) {
+            int numUsers = vectors.getNumUsers();
+            itemOffsets = new int[vectors.getNumItems() + 1];
+            for (int user = 0; user < numUsers; user++) {
+                for (int item : vectors.getItems(user)) {
+                    itemOffsets[item + 1]++;
+                }
+            }
+            for (int item = 0; item < vectors.getNumItems(); item++) {
+                itemOffsets[item + 1] += itemOffsets[item];
+            }
+            itemUsers = new int[itemOffsets[vectors.getNumItems()]];
+            itemValues = new float[itemUsers.length];
+            int[] next = Arrays.copyOf(itemOffsets, vectors.getNumItems());
+            for (int user = 0; user < numUsers; user++) {
+                int[] items = vectors.getItems(user);
+                float[] values = vectors.getValues(user);
+                for (int i = 0; i < items.length; i++) {
+                    int position = next[items[i]]++;
+                    itemUsers[position] = user;
+                    itemValues[position] = values[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Similarities of a product pass, with the primitive ones cast once and the users each of them is undefined for
+     * looked up once per user, not once per pair.
+     */
+    private static final class RowSimilarities {
+
+        private final List<UserSimilarity> similarities;
+        /**
+         * Null for similarities not computed from sums.
+         */
+        private final AbstractPrimitiveUserSimilarity[] primitives;
+        private final boolean[][] undefined;
+
+        private RowSimilarities(List<UserSimilarity> similarities, UserRatingVectors vectors) {
+            this.similarities = similarities;
+            int numUsers = vectors.getNumUsers();
+            primitives = new AbstractPrimitiveUserSimilarity[similarities.size()];
+            undefined = new boolean[similarities.size()][numUsers];
+            for (int s = 0; s < similarities.size(); s++) {
+                if (similarities.get(s) instanceof AbstractPrimitiveUserSimilarity) {
+                    AbstractPrimitiveUserSimilarity primitive = (AbstractPrimitiveUserSimilarity) similarities.get(s);
+                    primitives[s] = primitive;
+                    boolean[] userUndefined = undefined[s];
+                    IntStream.range(0, numUsers).parallel()
+                            .forEach(user -> userUndefined[user] = primitive.isUndefinedFor(vectors, user));
+                }
+            }
+        }
+    }
+
+    /**
+     * Accumulators of one block of a row and the top-k of the row for every similarity, reused by all rows processed
+     * in a thread.
+     */
+    private static final class RowScratch {
+
+        private final int[] count;
+        private final double[] sumX;
+        private final double[] sumX2;
+        private final double[] sumY;
+        private final double[] sumY2;
+        private final double[] sumXY;
+        private final double[] sumXYdiff2;
+        private final int[] touched;
+        private final int[] rowSimilarities;
+        private final TopNeighbors[] tops;
+        private int[] cursors = new int[0];
+
+        private RowScratch(int blockSize, int k, int numSimilarities) {
+            count = new int[blockSize];
+            sumX = new double[blockSize];
+            sumX2 = new double[blockSize];
+            sumY = new double[blockSize];
+            sumY2 = new double[blockSize];
+            sumXY = new double[blockSize];
+            sumXYdiff2 = new double[blockSize];
+            touched = new int[blockSize];
+            rowSimilarities = new int[numSimilarities];
+            tops = new TopNeighbors[numSimilarities];
+            for (int s = 0; s < numSimilarities; s++) {
+                tops[s] = new TopNeighbors(k);
+            }
+        }
+
+        private int[] cursors(int length) {
+            if (cursors.length < length) {
+                cursors = new int[length];
+            }
+            return cursors;
+        }
+
+        private void clear(int cell) {
+            count[cell] = 0;
+            sumX[cell] = 0.0;
+            sumX2[cell] = 0.0;
+            sumY[cell] = 0.0;
+            sumY2[cell] = 0.0;
+            sumXY[cell] = 0.0;
+            sumXYdiff2[cell] = 0.0;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Recommender which can estimate many preferences of one user at once, cheaper than one
+ * {@code estimatePreference} call per item.
+ */
+public interface BatchPreferenceEstimator {
+
+    /**
+     * @return estimated preferences in the order of {@code itemIDs}, {@code Float.NaN} where no estimate is possible
+     */
+    float[] estimatePreferences(long userID, long[] itemIDs) throws TasteException;
+}
@@ -0,0 +1,214 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Binary ratings format read by {@link MappedDataModel}. Ratings are stored twice, as rows by user and rows by
+ * item, with IDs remapped to dense indices (in ascending ID order). Little-endian layout, every section 8-byte
+ * aligned:
+ * <pre>
+ * header      magic, version, value type, users, items, preferences (int), min and max preference (float)
+ * userIDs     long[users], ascending
+ * itemIDs     long[items], ascending
+ * userOffsets int[users + 1]
+ * userItems   int[preferences], item indices of each user row, ascending
+ * userValues  byte[preferences] or float[preferences], absent for boolean data
+ * itemOffsets int[items + 1]
+ * itemUsers   int[preferences], user indices of each item row, ascending
+ * itemValues  as userValues
+ * </pre>
+ * Values are packed in bytes when every rating is an integer in the byte range (MovieLens, Book-Crossing).
+ *
+ * Usage: {@code BinaryRatingsFile MODEL_CLASS INPUT OUTPUT}; when INPUT is a directory, every {@code .csv} file in it
+ * is converted to a {@code .bin} file in the OUTPUT directory.
+ */
+public final class BinaryRatingsFile {
+
+    static final int MAGIC = 0x4252524D;
+    static final int VERSION = 1;
+
+    static final int VALUES_NONE = 0;
+    static final int VALUES_BYTE = 1;
+    static final int VALUES_FLOAT = 2;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int USER_IDS = 0;
+    static final int ITEM_IDS = 1;
+    static final int USER_OFFSETS = 2;
+    static final int USER_ITEMS = 3;
+    static final int USER_VALUES = 4;
+    static final int ITEM_OFFSETS = 5;
+    static final int ITEM_USERS = 6;
+    static final int ITEM_VALUES = 7;
+    static final int END = 8;
+
+    private BinaryRatingsFile() {
+    }
+
+    public static void main(String[] args) throws IOException, TasteException {
+        if (args.length != 3) {
+            System.out.println("Usage: BinaryRatingsFile MODEL_CLASS INPUT OUTPUT");
+            System.exit(-1);
+        }
+        File input = RecommenderEval.readDataFile(args[1]);
+        File output = new File(args[2]);
+        if (input.isDirectory()) {
+            File[] csvFiles = input.listFiles((dir, name) -> name.endsWith(".csv"));
+            if (!output.isDirectory() && !output.mkdirs()) {
+                throw new IOException("Cannot create directory " + output);
+            }
+            Arrays.sort(csvFiles);
+            for (File csvFile : csvFiles) {
+                String name = csvFile.getName();
+                convert(args[0], csvFile, new File(output, name.substring(0, name.length() - 4) + ".bin"));
+            }
+        } else {
+            convert(args[0], input, output);
+        }
+    }
+
+    private static void convert(String modelClassName, File input, File output) throws IOException, TasteException {
+        long start = System.currentTimeMillis();
+        DataModel dataModel = RecommenderEval.instantiateModel(modelClassName, input);
+        write(dataModel, output);
+        long end = System.currentTimeMillis();
+        System.out.println(String.format("CONVERTED %s -> %s time=%f", input, output, (end - start) / 1000.0));
+    }
+
+    /**
+     * @return offsets of all sections ({@link #USER_IDS} ... {@link #END}) in a file of the given shape
+     */
+    static long[] sectionOffsets(int numUsers, int numItems, int numPrefs, int valueType) {
+        long valuesSize = valueType == VALUES_NONE ? 0 : (long) numPrefs * (valueType == VALUES_BYTE ? 1 : 4);
+        long[] sizes = {
+                8L * numUsers,
+                8L * numItems,
+                4L * (numUsers + 1),
+                4L * numPrefs,
+                valuesSize,
+                4L * (numItems + 1),
+                4L * numPrefs,
+                valuesSize
+        };
+        long[] offsets = new long[END + 1];
+        long offset = HEADER_SIZE;
+        for (int i = 0; i < sizes.length; i++) {
+            offsets[i] = offset;
+            offset = align(offset + sizes[i]);
+        }
+        offsets[END] = offset;
+        return offsets;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    public static void write(DataModel dataModel, File output) throws IOException, TasteException {
+        IDDictionary users = IDDictionary.ofUsers(dataModel);
+        IDDictionary items = IDDictionary.ofItems(dataModel);
+        int numUsers = users.size();
+        int numItems = items.size();
+
+        int[] userOffsets = new int[numUsers + 1];
+        for (int user = 0; user < numUsers; user++) {
+            userOffsets[user + 1] = userOffsets[user] + dataModel.getPreferencesFromUser(users.id(user)).length();
+        }
+        int numPrefs = userOffsets[numUsers];
+        int[] userItems = new int[numPrefs];
+        float[] userValues = new float[numPrefs];
+        boolean bytes = true;
+        for (int user = 0; user < numUsers; user++) {
+            PreferenceArray prefs = dataModel.getPreferencesFromUser(users.id(user));
+            long[] keys = new long[prefs.length()];
+            for (int i = 0; i < keys.length; i++) {
+                // item index in the high bits, position in the low bits, so one sort orders items and values
+                keys[i] = ((long) items.index(prefs.getItemID(i)) << 32) | i;
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < keys.length; i++) {
+                float value = prefs.getValue((int) keys[i]);
+                userItems[userOffsets[user] + i] = (int) (keys[i] >>> 32);
+                userValues[userOffsets[user] + i] = value;
+                bytes &= value == (byte) value;
+            }
+        }
+
+        int[] itemOffsets = new int[numItems + 1];
+        for (int item : userItems) {
+            itemOffsets[item + 1]++;
+        }
+        for (int item = 0; item < numItems; item++) {
+            itemOffsets[item + 1] += itemOffsets[item];
+        }
+        int[] itemUsers = new int[numPrefs];
+        float[] itemValues = new float[numPrefs];
+        int[] next = Arrays.copyOf(itemOffsets, numItems);
+        for (int user = 0; user < numUsers; user++) {
+            for (int i = userOffsets[user]; i < userOffsets[user + 1]; i++) {
+                int slot = next[userItems[i]]++;
+                itemUsers[slot] = user;
+                itemValues[slot] = userValues[i];
+            }
+        }
+
+        int valueType = !dataModel.hasPreferenceValues() ? VALUES_NONE : bytes ? VALUES_BYTE : VALUES_FLOAT;
+        long[] offsets = sectionOffsets(numUsers, numItems, numPrefs, valueType);
+        if (offsets[END] > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Ratings too big for one mapped file: %d bytes", offsets[END]));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.setLength(0);
+            file.setLength(offsets[END]);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, offsets[END]);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(valueType)
+                    .putInt(numUsers)
+                    .putInt(numItems)
+                    .putInt(numPrefs)
+                    .putFloat(dataModel.getMinPreference())
+                    .putFloat(dataModel.getMaxPreference());
+            section(buffer, offsets[USER_IDS]).asLongBuffer().put(users.asBuffer());
+            section(buffer, offsets[ITEM_IDS]).asLongBuffer().put(items.asBuffer());
+            section(buffer, offsets[USER_OFFSETS]).asIntBuffer().put(userOffsets);
+            section(buffer, offsets[USER_ITEMS]).asIntBuffer().put(userItems);
+            putValues(section(buffer, offsets[USER_VALUES]), userValues, valueType);
+            section(buffer, offsets[ITEM_OFFSETS]).asIntBuffer().put(itemOffsets);
+            section(buffer, offsets[ITEM_USERS]).asIntBuffer().put(itemUsers);
+            putValues(section(buffer, offsets[ITEM_VALUES]), itemValues, valueType);
+            buffer.force();
+        }
+    }
+
+    static ByteBuffer section(ByteBuffer buffer, long offset) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position((int) offset);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void putValues(ByteBuffer buffer, float[] values, int valueType) {
+        if (valueType == VALUES_BYTE) {
+            for (float value : values) {
+                buffer.put((byte) value);
+            }
+        } else if (valueType == VALUES_FLOAT) {
+            buffer.asFloatBuffer().put(values);
+        }
+    }
+}
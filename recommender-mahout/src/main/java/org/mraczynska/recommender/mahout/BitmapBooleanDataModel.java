@@ -0,0 +1,189 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.BooleanItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.BooleanUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Read-only, boolean {@code DataModel} kept as compressed bitmaps: the items of every user in
+ * {@link UserItemBitmaps} and the users of every item in bitmaps of the same layout, so a preference takes about
+ * 4 bytes (2 per side) and no value is stored. Every known preference has value 1, as in Mahout's
+ * {@code GenericBooleanPrefDataModel}. {@link PrimitiveTanimotoCoefficientSimilarity} and
+ * {@link PrimitiveLogLikelihoodSimilarity} of this model count intersections on its own bitmaps instead of building
+ * a copy. Preference arrays are decoded when requested, in ascending ID order.
+ */
+public class BitmapBooleanDataModel extends AbstractDataModel {
+
+    private final UserItemBitmaps userItems;
+    private final IDDictionary users;
+    private final IDDictionary items;
+    private final UserItemBitmaps.Bitmap[] itemUsers;
+
+    /**
+     * Reads a ratings file with a header line; see {@link ParallelRatingsLoader}. Ratings are dropped whatever
+     * {@code ignoreRatings} says, which is kept for the constructor signature {@link RecommenderEval} instantiates.
+     */
+    public BitmapBooleanDataModel(File ratingsFile, boolean ignoreRatings) throws IOException, TasteException {
+        this(ParallelRatingsLoader.load(ratingsFile, true));
+    }
+
+    /**
+     * The source model is not referenced once its preferences are encoded.
+     */
+    public BitmapBooleanDataModel(DataModel dataModel) throws TasteException {
+        userItems = new UserItemBitmaps(dataModel);
+        users = userItems.getUserDictionary();
+        items = userItems.getItemDictionary();
+        itemUsers = userItems.transpose();
+    }
+
+    UserItemBitmaps getUserItemBitmaps() {
+        return userItems;
+    }
+
+    private int userIndex(long userID) throws NoSuchUserException {
+        int user = users.index(userID);
+        if (user < 0) {
+            throw new NoSuchUserException(userID);
+        }
+        return user;
+    }
+
+    private int itemIndex(long itemID) throws NoSuchItemException {
+        int item = items.index(itemID);
+        if (item < 0) {
+            throw new NoSuchItemException(itemID);
+        }
+        return item;
+    }
+
+    @Override
+    public LongPrimitiveIterator getUserIDs() {
+        return users.iterator();
+    }
+
+    @Override
+    public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+        UserItemBitmaps.Bitmap bitmap = userItems.getBitmap(userIndex(userID));
+        int[] rowItems = bitmap.decode(new int[bitmap.size()]);
+        PreferenceArray prefs = new BooleanUserPreferenceArray(rowItems.length);
+        prefs.setUserID(0, userID);
+        for (int i = 0; i < rowItems.length; i++) {
+            prefs.setItemID(i, items.id(rowItems[i]));
+        }
+        return prefs;
+    }
+
+    @Override
+    public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
+        UserItemBitmaps.Bitmap bitmap = userItems.getBitmap(userIndex(userID));
+        int[] rowItems = bitmap.decode(new int[bitmap.size()]);
+        FastIDSet result = new FastIDSet(rowItems.length);
+        for (int item : rowItems) {
+            result.add(items.id(item));
+        }
+        return result;
+    }
+
+    @Override
+    public LongPrimitiveIterator getItemIDs() {
+        return items.iterator();
+    }
+
+    @Override
+    public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+        UserItemBitmaps.Bitmap bitmap = itemUsers[itemIndex(itemID)];
+        int[] columnUsers = bitmap.decode(new int[bitmap.size()]);
+        PreferenceArray prefs = new BooleanItemPreferenceArray(columnUsers.length);
+        prefs.setItemID(0, itemID);
+        for (int i = 0; i < columnUsers.length; i++) {
+            prefs.setUserID(i, users.id(columnUsers[i]));
+        }
+        return prefs;
+    }
+
+    @Override
+    public Float getPreferenceValue(long userID, long itemID) throws TasteException {
+        int user = userIndex(userID);
+        int item = items.index(itemID);
+        return item >= 0 && userItems.getBitmap(user).contains(item) ? 1.0f : null;
+    }
+
+    @Override
+    public Long getPreferenceTime(long userID, long itemID) {
+        return null;
+    }
+
+    @Override
+    public int getNumItems() {
+        return items.size();
+    }
+
+    @Override
+    public int getNumUsers() {
+        return users.size();
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID) {
+        int item = items.index(itemID);
+        return item < 0 ? 0 : itemUsers[item].size();
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) {
+        int item1 = items.index(itemID1);
+        int item2 = items.index(itemID2);
+        return item1 < 0 || item2 < 0 ? 0 : itemUsers[item1].intersectionSize(itemUsers[item2]);
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasPreferenceValues() {
+        return false;
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        // nothing to reload
+    }
+
+    /**
+     * @return bytes taken by preferences, without the ID dictionaries
+     */
+    public long getPreferencesSizeInBytes() {
+        long size = userItems.sizeInBytes();
+        for (UserItemBitmaps.Bitmap bitmap : itemUsers) {
+            size += bitmap.sizeInBytes();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapBooleanDataModel[users:" + users.size() + ",items:" + items.size() + ']';
+    }
+}
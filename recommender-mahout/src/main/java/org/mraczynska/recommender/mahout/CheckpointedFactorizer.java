@@ -0,0 +1,37 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorizer;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Factorizer which can hand over copies of its factors at chosen iterations of one training run, so that several
+ * iteration counts are evaluated without training again from scratch.
+ */
+public interface CheckpointedFactorizer extends Factorizer {
+
+    /**
+     * @return number of iterations {@link #factorize()} runs
+     */
+    int getNumIterations();
+
+    /**
+     * Trains as {@link #factorize()}, passing a copy of the factors to {@code listener} after every iteration in
+     * {@code checkpoints}. Training continues after the listener returns, on other arrays than the copy.
+     *
+     * @param checkpoints iteration numbers, from 1, in ascending order
+     * @return factorization after the last iteration run
+     */
+    Factorization factorize(int[] checkpoints, Listener listener) throws TasteException;
+
+    interface Listener {
+
+        /**
+         * @param iteration number of iterations the factors were trained for
+         * @return false to stop training after this iteration
+         */
+        boolean checkpoint(int iteration, Factorization factorization) throws TasteException;
+    }
+}
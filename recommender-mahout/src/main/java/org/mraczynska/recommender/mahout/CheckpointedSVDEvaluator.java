@@ -0,0 +1,246 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.PersistenceStrategy;
+import org.apache.mahout.cf.taste.impl.recommender.svd.SVDRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Evaluates an SVD recommender for several iteration counts in one training run of a {@link CheckpointedFactorizer}.
+ * Factors copied at every checkpoint are evaluated by a {@link MAEAndRankRecommenderEvaluator} on a background thread
+ * while training goes on, one checkpoint at a time. Training time of a checkpoint excludes time spent waiting for
+ * validation, so training time plus evaluation time is what a separate run would take.
+ * <p>
+ * With early stopping, a validation split of {@link #VALIDATION_FRACTION} of every training profile of at least two
+ * ratings is held out and the factorizer is trained on the rest. Training stops at a checkpoint when the validation MAE
+ * of the previous checkpoint is not better than the best validation MAE before it; that MAE is awaited first, so the
+ * decision does not depend on timing. The test ratings of the fold are used for reported metrics only.
+ */
+public final class CheckpointedSVDEvaluator {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckpointedSVDEvaluator.class);
+
+    /**
+     * Metric with seconds of training up to the checkpoint, added to the metrics of every checkpoint.
+     */
+    public static final String TRAINING_TIME = "Time.Training";
+
+    /**
+     * Metric with seconds of evaluation of the checkpoint on the test ratings, added to the metrics of every
+     * checkpoint.
+     */
+    public static final String EVALUATION_TIME = "Time.Evaluation";
+
+    /**
+     * Metric with the validation MAE, added to the metrics of every checkpoint with early stopping.
+     */
+    public static final String VALIDATION_MAE = "MAE.Validation";
+
+    static final double VALIDATION_FRACTION = 0.1;
+
+    private static final long VALIDATION_SEED = 42L;
+
+    private final int[] checkpoints;
+    private final boolean earlyStopping;
+
+    /**
+     * @param checkpoints iteration counts in ascending order
+     */
+    public CheckpointedSVDEvaluator(int[] checkpoints, boolean earlyStopping) {
+        Preconditions.checkArgument(checkpoints.length > 0, "no checkpoints given");
+        for (int i = 0; i < checkpoints.length; i++) {
+            Preconditions.checkArgument(checkpoints[i] >= 1, "checkpoint must be at least 1");
+            Preconditions.checkArgument(i == 0 || checkpoints[i - 1] < checkpoints[i], "checkpoints must be ascending");
+        }
+        this.checkpoints = checkpoints.clone();
+        this.earlyStopping = earlyStopping;
+    }
+
+    /**
+     * @param factorizerBuilder builds a factorizer of the given training model, training for at least the last
+     *                          checkpoint
+     * @return metrics (as in {@link MAEAndRankRecommenderEvaluator#evaluateAllMetrics}, plus {@link #TRAINING_TIME},
+     * {@link #EVALUATION_TIME} and, with early stopping, {@link #VALIDATION_MAE}) for every checkpoint reached, by
+     * iteration count
+     */
+    public Map<Integer, Map<String, Double>> evaluate(FactorizerBuilder factorizerBuilder,
+                                                      EvaluationFold fold) throws TasteException {
+        EvaluationFold validationFold = earlyStopping ? validationFold(fold.getTrainingModel()) : null;
+        CheckpointedFactorizer factorizer = factorizerBuilder.buildFactorizer(
+                earlyStopping ? validationFold.getTrainingModel() : fold.getTrainingModel());
+        Preconditions.checkArgument(factorizer.getNumIterations() >= checkpoints[checkpoints.length - 1],
+                "factorizer trains for %s iterations, fewer than the last checkpoint", factorizer.getNumIterations());
+        Map<Integer, Map<String, Double>> result = new TreeMap<>();
+        List<Future<Double>> validations = new ArrayList<>();
+        List<Future<Map<String, Double>>> evaluations = new ArrayList<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // its own thread, so that stopping never waits for evaluations on the test ratings
+        ExecutorService validationExecutor = Executors.newSingleThreadExecutor();
+        long start = System.nanoTime();
+        long[] waitingNanos = new long[1];
+        try {
+            factorizer.factorize(checkpoints, (iteration, factorization) -> {
+                // time spent waiting for the validation MAE is not training
+                double trainingSeconds = (System.nanoTime() - start - waitingNanos[0]) / 1e9;
+                if (earlyStopping) {
+                    long waitStart = System.nanoTime();
+                    boolean improved = improved(validations);
+                    waitingNanos[0] += System.nanoTime() - waitStart;
+                    if (!improved) {
+                        log.info("Validation MAE did not improve at iteration {}, stopping at iteration {}",
+                                checkpoints[validations.size() - 1], iteration);
+                        return false;
+                    }
+                    validations.add(validationExecutor.submit(() -> new MAEAndRankRecommenderEvaluator()
+                            .evaluate(dataModel -> new SVDRecommender(dataModel, factorizer,
+                                    new GivenFactorization(factorization)), validationFold)));
+                }
+                evaluations.add(executor.submit(() -> {
+                    long evaluationStart = System.nanoTime();
+                    // the evaluator keeps metrics of its last evaluation, so each checkpoint gets its own
+                    Map<String, Double> metrics = new HashMap<>(new MAEAndRankRecommenderEvaluator()
+                            .evaluateAllMetrics(dataModel -> new SVDRecommender(dataModel, factorizer,
+                                    new GivenFactorization(factorization)), fold));
+                    metrics.put(TRAINING_TIME, trainingSeconds);
+                    metrics.put(EVALUATION_TIME, (System.nanoTime() - evaluationStart) / 1e9);
+                    return metrics;
+                }));
+                return true;
+            });
+            for (int i = 0; i < evaluations.size(); i++) {
+                Map<String, Double> metrics = get(evaluations.get(i));
+                if (earlyStopping) {
+                    metrics.put(VALIDATION_MAE, get(validations.get(i)));
+                }
+                result.put(checkpoints[i], metrics);
+            }
+        } finally {
+            executor.shutdownNow();
+            validationExecutor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Holds out a random {@link #VALIDATION_FRACTION} of every profile of at least two ratings, keeping at least one
+     * rating of every user for training.
+     *
+     * @return fold of the remaining training ratings and the held out ones
+     */
+    static EvaluationFold validationFold(DataModel trainingModel) throws TasteException {
+        Random random = new Random(VALIDATION_SEED);
+        FastByIDMap<PreferenceArray> remaining = new FastByIDMap<>(trainingModel.getNumUsers());
+        FastByIDMap<PreferenceArray> heldOut = new FastByIDMap<>();
+        LongPrimitiveIterator it = trainingModel.getUserIDs();
+        while (it.hasNext()) {
+            long userID = it.nextLong();
+            PreferenceArray prefs = trainingModel.getPreferencesFromUser(userID);
+            boolean[] validation = new boolean[prefs.length()];
+            int numValidation = 0;
+            for (int i = 0; i < validation.length; i++) {
+                if (numValidation < validation.length - 1 && random.nextDouble() < VALIDATION_FRACTION) {
+                    validation[i] = true;
+                    numValidation++;
+                }
+            }
+            remaining.put(userID, copy(userID, prefs, validation, false, validation.length - numValidation));
+            if (numValidation > 0) {
+                heldOut.put(userID, copy(userID, prefs, validation, true, numValidation));
+            }
+        }
+        return new MAEAndRankRecommenderEvaluator().prepareFold(new GenericDataModel(remaining),
+                new GenericDataModel(heldOut));
+    }
+
+    private static PreferenceArray copy(long userID, PreferenceArray prefs, boolean[] selected, boolean value, int size) {
+        PreferenceArray copy = new GenericUserPreferenceArray(size);
+        copy.setUserID(0, userID);
+        int position = 0;
+        for (int i = 0; i < selected.length; i++) {
+            if (selected[i] == value) {
+                copy.setItemID(position, prefs.getItemID(i));
+                copy.setValue(position, prefs.getValue(i));
+                position++;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return whether the last validation MAE is better than every one before it, true for fewer than two
+     */
+    private static boolean improved(List<Future<Double>> validations) throws TasteException {
+        if (validations.size() < 2) {
+            return true;
+        }
+        double last = get(validations.get(validations.size() - 1));
+        for (int i = 0; i < validations.size() - 1; i++) {
+            if (!(last < get(validations.get(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <T> T get(Future<T> evaluation) throws TasteException {
+        try {
+            return evaluation.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new TasteException(ie);
+        } catch (ExecutionException ee) {
+            throw new TasteException(ee.getCause());
+        }
+    }
+
+    /**
+     * Builds the factorizer of a training model: of the fold, or of what remains of it after the validation split.
+     */
+    public interface FactorizerBuilder {
+
+        CheckpointedFactorizer buildFactorizer(DataModel trainingModel) throws TasteException;
+    }
+
+    /**
+     * Gives {@code SVDRecommender} factors of a checkpoint instead of training.
+     */
+    private static final class GivenFactorization implements PersistenceStrategy {
+
+        private final Factorization factorization;
+
+        private GivenFactorization(Factorization factorization) {
+            this.factorization = factorization;
+        }
+
+        @Override
+        public Factorization load() {
+            return factorization;
+        }
+
+        @Override
+        public void maybePersist(Factorization factorization) {
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Alternating least squares with weighted-lambda regularization, the objective of Mahout's {@code ALSWRFactorizer},
+ * solved without building matrices. Ratings are kept twice in primitive arrays, by user (CSR) and by item (CSC), and
+ * factors in flat {@code double} arrays, row {@code i} at {@code i * numFeatures}. Every half-step solves
+ * {@code (Y_u' Y_u + lambda * n_u * I) x_u = Y_u' r_u} of all rows in parallel on the fork-join pool, with a few
+ * conjugate-gradient iterations started from the previous solution; products with {@code Y_u' Y_u} are computed from
+ * the rated rows of {@code Y}, so a solve costs {@code O(n_u * numFeatures)} per iteration and uses per-thread scratch
+ * vectors only. Wall time and training RMSE of every iteration are logged and kept for {@link #getIterationSeconds()}
+ * and {@link #getIterationRmse()}. A {@link #setInitialFactorization warm start} takes item factors and, as starting
+ * points of the first user solves, user factors of known users and items.
+ */
+public class ConjugateGradientALSFactorizer implements CheckpointedFactorizer, WarmStartFactorizer {
+
+    private static final Logger log = LoggerFactory.getLogger(ConjugateGradientALSFactorizer.class);
+
+    static final int DEFAULT_CG_ITERATIONS = 3;
+
+    private static final double RESIDUAL_EPSILON = 1e-12;
+
+    private final DataModel dataModel;
+    private final int numFeatures;
+    private final double lambda;
+    private final int numIterations;
+    private final int cgIterations;
+    private final long seed;
+
+    private volatile Factorization initial;
+    private volatile double[] iterationSeconds = new double[0];
+    private volatile double[] iterationRmse = new double[0];
+
+    public ConjugateGradientALSFactorizer(DataModel dataModel, int numFeatures, double lambda, int numIterations) {
+        this(dataModel, numFeatures, lambda, numIterations, DEFAULT_CG_ITERATIONS, 42L);
+    }
+
+    /**
+     * @param cgIterations conjugate-gradient iterations of every solve
+     * @param seed seed of initial item factors
+     */
+    public ConjugateGradientALSFactorizer(DataModel dataModel,
+                                          int numFeatures,
+                                          double lambda,
+                                          int numIterations,
+                                          int cgIterations,
+                                          long seed) {
+        Preconditions.checkArgument(numFeatures > 0, "numFeatures must be positive");
+        Preconditions.checkArgument(numIterations > 0, "numIterations must be positive");
+        Preconditions.checkArgument(cgIterations > 0, "cgIterations must be positive");
+        this.dataModel = dataModel;
+        this.numFeatures = numFeatures;
+        this.lambda = lambda;
+        this.numIterations = numIterations;
+        this.cgIterations = cgIterations;
+        this.seed = seed;
+    }
+
+    @Override
+    public int getNumIterations() {
+        return numIterations;
+    }
+
+    @Override
+    public Factorization factorize() throws TasteException {
+        return factorize(new int[0], null);
+    }
+
+    @Override
+    public Factorization factorize(int[] checkpoints, Listener listener) throws TasteException {
+        UserRatingVectors vectors = new UserRatingVectors(dataModel);
+        Ratings byUser = Ratings.byUser(vectors);
+        Ratings byItem = byUser.transpose(vectors.getNumItems());
+        double[] userFactors = new double[byUser.numRows() * numFeatures];
+        double[] itemFactors = new double[byItem.numRows() * numFeatures];
+        initializeItemFactors(byItem, itemFactors);
+        if (initial != null) {
+            copyFeatures(initial, vectors, userFactors, itemFactors);
+        }
+
+        ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(() -> new Scratch(numFeatures));
+        double[] seconds = new double[numIterations];
+        double[] rmse = new double[numIterations];
+        int iterations = numIterations;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            long start = System.nanoTime();
+            solveRows(byUser, itemFactors, userFactors, scratches);
+            solveRows(byItem, userFactors, itemFactors, scratches);
+            seconds[iteration] = (System.nanoTime() - start) / 1e9;
+            rmse[iteration] = trainingRmse(byUser, userFactors, itemFactors);
+            log.info("CG-ALS iteration {}/{}: {} s, training RMSE {}",
+                    iteration + 1, numIterations, seconds[iteration], rmse[iteration]);
+            if (Arrays.binarySearch(checkpoints, iteration + 1) >= 0
+                    && !listener.checkpoint(iteration + 1, toFactorization(vectors, userFactors, itemFactors))) {
+                iterations = iteration + 1;
+            }
+        }
+        iterationSeconds = Arrays.copyOf(seconds, iterations);
+        iterationRmse = Arrays.copyOf(rmse, iterations);
+        return toFactorization(vectors, userFactors, itemFactors);
+    }
+
+    private Factorization toFactorization(UserRatingVectors vectors, double[] userFactors, double[] itemFactors) {
+        return new Factorization(vectors.getUserDictionary().asMapping(), vectors.getItemDictionary().asMapping(),
+                rows(userFactors, vectors.getNumUsers()), rows(itemFactors, vectors.getNumItems()));
+    }
+
+    /**
+     * As in {@code ALSWRFactorizer}: the first feature is the mean rating of the item, the others small random values.
+     */
+    private void initializeItemFactors(Ratings byItem, double[] itemFactors) {
+        Random random = new Random(seed);
+        for (int item = 0; item < byItem.numRows(); item++) {
+            double sum = 0.0;
+            for (int r = byItem.starts[item]; r < byItem.starts[item + 1]; r++) {
+                sum += byItem.values[r];
+            }
+            int length = byItem.starts[item + 1] - byItem.starts[item];
+            itemFactors[item * numFeatures] = length == 0 ? 0.0 : sum / length;
+            for (int f = 1; f < numFeatures; f++) {
+                itemFactors[item * numFeatures + f] = random.nextDouble() * 0.1;
+            }
+        }
+    }
+
+    private void copyFeatures(Factorization initial, UserRatingVectors vectors, double[] userFactors, double[] itemFactors) {
+        int features = Math.min(numFeatures, initial.numFeatures());
+        for (int user = 0; user < vectors.getNumUsers(); user++) {
+            try {
+                System.arraycopy(initial.getUserFeatures(vectors.getUserID(user)), 0, userFactors, user * numFeatures, features);
+            } catch (NoSuchUserException nsue) {
+                // new user, solved from the item factors
+            }
+        }
+        for (int item = 0; item < vectors.getNumItems(); item++) {
+            try {
+                System.arraycopy(initial.getItemFeatures(vectors.getItemID(item)), 0, itemFactors, item * numFeatures, features);
+            } catch (NoSuchItemException nsie) {
+                // new item, keeps its cold-start factors
+            }
+        }
+    }
+
+    /**
+     * Solves every row of {@code solved} for fixed {@code fixed}, in parallel; rows are independent, so no row is
+     * written by two threads.
+     */
+    private void solveRows(Ratings ratings, double[] fixed, double[] solved, ThreadLocal<Scratch> scratches) {
+        IntStream.range(0, ratings.numRows()).parallel().forEach(row -> {
+            if (ratings.starts[row + 1] > ratings.starts[row]) {
+                solveRow(ratings, row, fixed, solved, scratches.get());
+            }
+        });
+    }
+
+    private void solveRow(Ratings ratings, int row, double[] fixed, double[] solved, Scratch scratch) {
+        int start = ratings.starts[row];
+        int end = ratings.starts[row + 1];
+        double regularization = lambda * (end - start);
+        int offset = row * numFeatures;
+        double[] residual = scratch.residual;
+        double[] direction = scratch.direction;
+        double[] product = scratch.product;
+
+        // residual = Y' r - (Y' Y + regularization * I) x
+        for (int f = 0; f < numFeatures; f++) {
+            residual[f] = -regularization * solved[offset + f];
+        }
+        for (int r = start; r < end; r++) {
+            int other = ratings.columns[r] * numFeatures;
+            double error = ratings.values[r];
+            for (int f = 0; f < numFeatures; f++) {
+                error -= fixed[other + f] * solved[offset + f];
+            }
+            for (int f = 0; f < numFeatures; f++) {
+                residual[f] += error * fixed[other + f];
+            }
+        }
+        System.arraycopy(residual, 0, direction, 0, numFeatures);
+        double residualNorm = dot(residual, residual);
+        for (int iteration = 0; iteration < cgIterations && residualNorm > RESIDUAL_EPSILON; iteration++) {
+            // product = (Y' Y + regularization * I) direction
+            for (int f = 0; f < numFeatures; f++) {
+                product[f] = regularization * direction[f];
+            }
+            for (int r = start; r < end; r++) {
+                int other = ratings.columns[r] * numFeatures;
+                double projection = 0.0;
+                for (int f = 0; f < numFeatures; f++) {
+                    projection += fixed[other + f] * direction[f];
+                }
+                for (int f = 0; f < numFeatures; f++) {
+                    product[f] += projection * fixed[other + f];
+                }
+            }
+            double step = residualNorm / dot(direction, product);
+            for (int f = 0; f < numFeatures; f++) {
+                solved[offset + f] += step * direction[f];
+                residual[f] -= step * product[f];
+            }
+            double nextResidualNorm = dot(residual, residual);
+            double beta = nextResidualNorm / residualNorm;
+            for (int f = 0; f < numFeatures; f++) {
+                direction[f] = residual[f] + beta * direction[f];
+            }
+            residualNorm = nextResidualNorm;
+        }
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private double trainingRmse(Ratings byUser, double[] userFactors, double[] itemFactors) {
+        double squaredErrors = IntStream.range(0, byUser.numRows()).parallel().mapToDouble(user -> {
+            double sum = 0.0;
+            for (int r = byUser.starts[user]; r < byUser.starts[user + 1]; r++) {
+                double error = byUser.values[r];
+                for (int f = 0; f < numFeatures; f++) {
+                    error -= userFactors[user * numFeatures + f] * itemFactors[byUser.columns[r] * numFeatures + f];
+                }
+                sum += error * error;
+            }
+            return sum;
+        }).sum();
+        return Math.sqrt(squaredErrors / Math.max(1, byUser.values.length));
+    }
+
+    private double[][] rows(double[] factors, int numRows) {
+        double[][] rows = new double[numRows][numFeatures];
+        for (int row = 0; row < numRows; row++) {
+            System.arraycopy(factors, row * numFeatures, rows[row], 0, numFeatures);
+        }
+        return rows;
+    }
+
+    @Override
+    public void setInitialFactorization(Factorization initial) {
+        this.initial = initial;
+    }
+
+    /**
+     * @return wall time of both half-steps of every iteration run by the last {@link #factorize()}, in seconds
+     */
+    @Override
+    public double[] getIterationSeconds() {
+        return iterationSeconds.clone();
+    }
+
+    /**
+     * @return training RMSE after every iteration run by the last {@link #factorize()}
+     */
+    @Override
+    public double[] getIterationRmse() {
+        return iterationRmse.clone();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        // ratings are read from the model on every factorize()
+    }
+
+    /**
+     * Ratings in compressed sparse row layout: columns and values of row {@code i} from {@code starts[i]} to
+     * {@code starts[i + 1] - 1}, columns ascending.
+     */
+    private static final class Ratings {
+
+        private final int[] starts;
+        private final int[] columns;
+        private final float[] values;
+
+        private Ratings(int[] starts, int[] columns, float[] values) {
+            this.starts = starts;
+            this.columns = columns;
+            this.values = values;
+        }
+
+        private static Ratings byUser(UserRatingVectors vectors) {
+            int numUsers = vectors.getNumUsers();
+            int[] starts = new int[numUsers + 1];
+            for (int user = 0; user < numUsers; user++) {
+                starts[user + 1] = starts[user] + vectors.getItems(user).length;
+            }
+            int[] columns = new int[starts[numUsers]];
+            float[] values = new float[starts[numUsers]];
+            for (int user = 0; user < numUsers; user++) {
+                System.arraycopy(vectors.getItems(user), 0, columns, starts[user], starts[user + 1] - starts[user]);
+                System.arraycopy(vectors.getValues(user), 0, values, starts[user], starts[user + 1] - starts[user]);
+            }
+            return new Ratings(starts, columns, values);
+        }
+
+        /**
+         * @return the same ratings by column, i.e. in compressed sparse column layout of this matrix
+         */
+        private Ratings transpose(int numColumns) {
+            int[] transposedStarts = new int[numColumns + 1];
+            for (int column : columns) {
+                transposedStarts[column + 1]++;
+            }
+            for (int column = 0; column < numColumns; column++) {
+                transposedStarts[column + 1] += transposedStarts[column];
+            }
+            int[] next = Arrays.copyOf(transposedStarts, numColumns);
+            int[] transposedColumns = new int[columns.length];
+            float[] transposedValues = new float[values.length];
+            for (int row = 0; row < numRows(); row++) {
+                for (int r = starts[row]; r < starts[row + 1]; r++) {
+                    int position = next[columns[r]]++;
+                    transposedColumns[position] = row;
+                    transposedValues[position] = values[r];
+                }
+            }
+            return new Ratings(transposedStarts, transposedColumns, transposedValues);
+        }
+
+        private int numRows() {
+            return starts.length - 1;
+        }
+    }
+
+    private static final class Scratch {
+
+        private final double[] residual;
+        private final double[] direction;
+        private final double[] product;
+
+        private Scratch(int numFeatures) {
+            residual = new double[numFeatures];
+            direction = new double[numFeatures];
+            product = new double[numFeatures];
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Runs evaluation tasks on a work-stealing pool. Tasks are taken from an iterator only when there is room for them,
+ * at most a few per thread at a time, and their results are handed over in the order of the iterator, so memory does
+ * not grow with the number of test users and results do not depend on scheduling.
+ * <p>
+ * Tasks report evaluated users through {@link #userEvaluated}, or users processed without estimates, e.g. given
+ * recommendations, through {@link #userProcessed}, which gives live throughput and ETA; progress is logged under the
+ * activity the executor was created for. Tasks should stop when {@link #isCancelled()}. {@link #cancel()} may be called
+ * from any thread and at any time: it is permanent, so an executor cancelled before or between runs refuses to run.
+ */
+public final class EvaluationExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(EvaluationExecutor.class);
+
+    private static final int TASKS_IN_FLIGHT_PER_THREAD = 4;
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final int parallelism;
+    private final String activity;
+    private volatile boolean cancelled;
+    /**
+     * Set when a run fails, to stop its other tasks; unlike {@link #cancelled} it is reset by every run.
+     */
+    private volatile boolean failed;
+    private volatile long startNanos;
+    private volatile long totalUsers;
+    private volatile long totalEstimates;
+    private final AtomicLong evaluatedUsers = new AtomicLong();
+    private final AtomicLong evaluatedEstimates = new AtomicLong();
+    private final AtomicLong noEstimates = new AtomicLong();
+    private final AtomicLong lastLogNanos = new AtomicLong();
+
+    public EvaluationExecutor() {
+        this("evaluation");
+    }
+
+    public EvaluationExecutor(int parallelism) {
+        this(parallelism, "evaluation");
+    }
+
+    /**
+     * @param activity what the tasks do, e.g. "recommendation", for progress logs
+     */
+    public EvaluationExecutor(String activity) {
+        this(Runtime.getRuntime().availableProcessors(), activity);
+    }
+
+    public EvaluationExecutor(int parallelism, String activity) {
+        Preconditions.checkArgument(parallelism >= 1, "parallelism must be at least 1");
+        this.parallelism = parallelism;
+        this.activity = Preconditions.checkNotNull(activity);
+    }
+
+    /**
+     * Runs all tasks and passes their results to {@code resultConsumer} in the order of {@code tasks}, from the
+     * calling thread.
+     *
+     * @param totalUsers number of users evaluated by all tasks, used for ETA
+     * @param totalEstimates number of preferences estimated by all tasks, used for ETA; 0 if tasks estimate none and
+     *                       report users through {@link #userProcessed}
+     * @throws CancellationException if {@link #cancel()} was called before all tasks were run, even before this run
+     */
+    public <T> void execute(Iterator<? extends Callable<T>> tasks,
+                            long totalUsers,
+                            long totalEstimates,
+                            Consumer<? super T> resultConsumer) throws TasteException {
+        if (cancelled) {
+            throw new CancellationException(String.format("Cancelled before %s of %d users", activity, totalUsers));
+        }
+        failed = false;
+        this.totalUsers = totalUsers;
+        this.totalEstimates = totalEstimates;
+        evaluatedUsers.set(0);
+        evaluatedEstimates.set(0);
+        noEstimates.set(0);
+        startNanos = System.nanoTime();
+        lastLogNanos.set(startNanos);
+
+        int maxTasksInFlight = TASKS_IN_FLIGHT_PER_THREAD * parallelism;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        CompletionService<T> completionService = new ExecutorCompletionService<>(pool);
+        Map<Future<T>, Integer> taskIndices = new HashMap<>();
+        Map<Integer, T> finishedResults = new HashMap<>();
+        int submitted = 0;
+        int consumed = 0;
+        log.info("Starting {} of {} users in {} threads", activity, totalUsers, parallelism);
+        try {
+            while (true) {
+                // tasks finished out of order wait for earlier ones, so count them as in flight too
+                while (!isCancelled() && submitted - consumed < maxTasksInFlight && tasks.hasNext()) {
+                    taskIndices.put(completionService.submit(tasks.next()), submitted++);
+                }
+                if (taskIndices.isEmpty()) {
+                    break;
+                }
+                Future<T> future = completionService.take();
+                finishedResults.put(taskIndices.remove(future), future.get());
+                while (finishedResults.containsKey(consumed)) {
+                    resultConsumer.accept(finishedResults.remove(consumed++));
+                }
+            }
+        } catch (InterruptedException ie) {
+            failed = true;
+            Thread.currentThread().interrupt();
+            throw new TasteException(ie);
+        } catch (ExecutionException ee) {
+            failed = true;
+            throw new TasteException(ee.getCause());
+        } finally {
+            shutdown(pool);
+        }
+        if (cancelled) {
+            throw new CancellationException(String.format("Cancelled %s after %d of %d users",
+                    activity, evaluatedUsers.get(), totalUsers));
+        }
+        logProgress();
+    }
+
+    private static void shutdown(ForkJoinPool pool) {
+        pool.shutdownNow();
+        try {
+            // running tasks finish their current user and see the cancellation
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Evaluation threads did not finish within a minute");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the running evaluation, if any, and every later one: no more tasks are started and running ones stop after
+     * their current user.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return whether tasks should stop, as the executor was cancelled or another task of the run failed
+     */
+    public boolean isCancelled() {
+        return cancelled || failed;
+    }
+
+    /**
+     * Called by tasks after each evaluated user.
+     */
+    public void userEvaluated(int numEstimates, int numNoEstimates) {
+        evaluatedEstimates.addAndGet(numEstimates);
+        noEstimates.addAndGet(numNoEstimates);
+        userProcessed();
+    }
+
+    /**
+     * Called by tasks which estimate no preferences after each user they processed.
+     */
+    public void userProcessed() {
+        evaluatedUsers.incrementAndGet();
+        long now = System.nanoTime();
+        long last = lastLogNanos.get();
+        if (now - last >= LOG_INTERVAL_NANOS && lastLogNanos.compareAndSet(last, now)) {
+            logProgress();
+        }
+    }
+
+    private void logProgress() {
+        Runtime runtime = Runtime.getRuntime();
+        long memory = runtime.totalMemory() - runtime.freeMemory();
+        if (totalEstimates == 0) {
+            log.info("Processed {}/{} users for {} ({} users/s, ETA {}s), memory {}MB / {}MB",
+                    evaluatedUsers.get(), totalUsers, activity, String.format("%.1f", getUsersPerSecond()),
+                    String.format("%.0f", getRemainingSeconds()), memory / 1000000L, runtime.totalMemory() / 1000000L);
+            return;
+        }
+        log.info("Evaluated {}/{} users, {}/{} estimates ({} users/s, {} estimates/s, ETA {}s), "
+                        + "unable to recommend in {} cases, memory {}MB / {}MB",
+                evaluatedUsers.get(), totalUsers, evaluatedEstimates.get(), totalEstimates,
+                String.format("%.1f", getUsersPerSecond()), String.format("%.1f", getEstimatesPerSecond()),
+                String.format("%.0f", getRemainingSeconds()), noEstimates.get(),
+                memory / 1000000L, runtime.totalMemory() / 1000000L);
+    }
+
+    public long getEvaluatedUsers() {
+        return evaluatedUsers.get();
+    }
+
+    public long getEvaluatedEstimates() {
+        return evaluatedEstimates.get();
+    }
+
+    private double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public double getUsersPerSecond() {
+        return evaluatedUsers.get() / getElapsedSeconds();
+    }
+
+    public double getEstimatesPerSecond() {
+        return evaluatedEstimates.get() / getElapsedSeconds();
+    }
+
+    /**
+     * @return estimated time to evaluate remaining users, based on estimates per second so far, or on users per second
+     * if tasks estimate no preferences; NaN before the first evaluated user
+     */
+    public double getRemainingSeconds() {
+        if (totalEstimates == 0) {
+            long users = evaluatedUsers.get();
+            return users == 0 ? Double.NaN : (totalUsers - users) / getUsersPerSecond();
+        }
+        long done = evaluatedEstimates.get();
+        if (done == 0) {
+            return Double.NaN;
+        }
+        return (totalEstimates - done) / getEstimatesPerSecond();
+    }
+}
@@ -0,0 +1,59 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Training model and test preferences of one fold, prepared once by {@link MAEAndRankRecommenderEvaluator}
+ * and shared by every recommender evaluated on that fold. Test users are numbered by an {@link IDDictionary}
+ * and their preferences are kept in an array indexed by that number.
+ */
+public final class EvaluationFold {
+
+    private final DataModel trainingModel;
+    private final IDDictionary testUsers;
+    private final PreferenceArray[] testPrefs;
+    private final long numTestPrefs;
+
+    /**
+     * @param testPrefs non-empty test preferences of every user of {@code testUsers}, in index order
+     */
+    EvaluationFold(DataModel trainingModel, IDDictionary testUsers, PreferenceArray[] testPrefs) {
+        this.trainingModel = trainingModel;
+        this.testUsers = testUsers;
+        this.testPrefs = testPrefs;
+        long count = 0;
+        for (PreferenceArray prefs : testPrefs) {
+            count += prefs.length();
+        }
+        this.numTestPrefs = count;
+    }
+
+    public DataModel getTrainingModel() {
+        return trainingModel;
+    }
+
+    /**
+     * @return users with test preferences
+     */
+    public IDDictionary getTestUsers() {
+        return testUsers;
+    }
+
+    public int getNumTestUsers() {
+        return testPrefs.length;
+    }
+
+    /**
+     * @param user index of the user in {@link #getTestUsers()}
+     */
+    public PreferenceArray getTestPrefs(int user) {
+        return testPrefs[user];
+    }
+
+    public long getNumTestPrefs() {
+        return numTestPrefs;
+    }
+}
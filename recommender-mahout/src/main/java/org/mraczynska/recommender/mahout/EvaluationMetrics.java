@@ -0,0 +1,22 @@
+package org.mraczynska.recommender.mahout;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Metrics collected by {@link MAEAndRankRecommenderEvaluator} for a group of test users: absolute errors of
+ * estimates (MAE and RMSE), DCG and nDCG of each user and the number of preferences which could not be estimated.
+ */
+final class EvaluationMetrics {
+
+    final MetricAccumulator absoluteErrors = new MetricAccumulator();
+    final MetricAccumulator dcg = new MetricAccumulator();
+    final MetricAccumulator ndcg = new MetricAccumulator();
+    int noEstimates;
+
+    void merge(EvaluationMetrics other) {
+        absoluteErrors.merge(other.absoluteErrors);
+        dcg.merge(other.dcg);
+        ndcg.merge(other.ndcg);
+        noEstimates += other.noEstimates;
+    }
+}
@@ -0,0 +1,292 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.PersistenceStrategy;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Directory of SVD factorizations kept between runs. A file is keyed by the factorizer with its hyperparameters and by
+ * a fingerprint of the training data; {@link #persistenceStrategy} plugs it into {@code SVDRecommender}, which then
+ * trains only when there is no file yet. Files of cold-started runs with other numbers of features can also seed a
+ * {@link WarmStartFactorizer} through {@link #warmStart}. Unlike Mahout's {@code FilePersistenceStrategy}, which
+ * deserializes every feature into a new object, files are memory-mapped read-only and served by a
+ * {@link MappedFactorization}.
+ * Little-endian layout, every section 8-byte aligned, as in {@link BinaryRatingsFile}:
+ * <pre>
+ * header       magic, version, users, items, features (int), fingerprint (long)
+ * userIDs      long[users], ascending
+ * itemIDs      long[items], ascending
+ * userFeatures double[users * features], row by row in user ID order
+ * itemFeatures double[items * features], row by row in item ID order
+ * </pre>
+ */
+public final class FactorStore {
+
+    static final int MAGIC = 0x53564446;
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int USER_IDS = 0;
+    static final int ITEM_IDS = 1;
+    static final int USER_FEATURES = 2;
+    static final int ITEM_FEATURES = 3;
+    static final int END = 4;
+
+    private static final Pattern FILE_NAME =
+            Pattern.compile("(.+?)-f(\\d+)-i(\\d+)(-w-f\\d+-i\\d+(?:-[0-9a-f]{8})?)?-([0-9a-f]{16})\\.svd");
+
+    private final File directory;
+    private DataModel lastDataModel;
+    private long lastFingerprint;
+
+    public FactorStore(File directory) {
+        this.directory = Preconditions.checkNotNull(directory);
+    }
+
+    /**
+     * Fingerprint of the model, remembered for the last model, as a fold's model is usually asked for several times.
+     */
+    private synchronized long fingerprint(DataModel dataModel) throws TasteException {
+        if (dataModel != lastDataModel) {
+            lastFingerprint = NeighborListStore.fingerprint(dataModel);
+            lastDataModel = dataModel;
+        }
+        return lastFingerprint;
+    }
+
+    /**
+     * @param configuration factorizer name with every hyperparameter the factorization depends on, part of the file
+     *                      name, e.g. "ALSWRFactorizer-f10-i20"
+     */
+    public PersistenceStrategy persistenceStrategy(DataModel dataModel, String configuration) throws TasteException {
+        long fingerprint = fingerprint(dataModel);
+        return new StoredFactorization(file(configuration, fingerprint), fingerprint);
+    }
+
+    /**
+     * @return whether a factorization of the configuration on this training data is stored
+     */
+    public boolean contains(DataModel dataModel, String configuration) throws TasteException {
+        return file(configuration, fingerprint(dataModel)).isFile();
+    }
+
+    private File file(String configuration, long fingerprint) {
+        return new File(directory, String.format("%s-%016x.svd", configuration, fingerprint));
+    }
+
+    /**
+     * Sets the stored factorization of the most related run as the starting point of {@code factorizer}: one of the
+     * same factorizer and training data with the nearest other number of features, then with the nearest number of
+     * iterations, fewer on a tie. Runs with the same number of features are not taken, as starting from them would
+     * only add to the number of iterations, and neither are warm-started runs, whose factors were trained for more
+     * iterations than their names say. Configurations are read from file names, as {@link RecommenderEval} builds
+     * them, "NAME-fFEATURES-iITERATIONS", with "-w-" and the seed appended for warm-started runs; store a
+     * warm-started run under {@link #warmStartConfiguration}, so that it is not mistaken for a cold one.
+     * <p>
+     * With {@code otherTrainingData}, runs on other training data are taken too when no run on the same data is as
+     * near in features. Such a start must not be evaluated: in k-fold cross-validation the training data of another
+     * fold holds the test ratings of this one, so the factors have already seen them.
+     *
+     * @return seed of the start, "fFEATURES-iITERATIONS" of the run it was taken from, followed by the first 8 digits
+     *         of the training data fingerprint if that run was trained on other data; null if no run was found
+     */
+    public String warmStart(WarmStartFactorizer factorizer,
+                            DataModel dataModel,
+                            String factorizerName,
+                            int numFeatures,
+                            int numIterations,
+                            boolean otherTrainingData) throws TasteException {
+        long fingerprint = fingerprint(dataModel);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        Arrays.sort(files);
+        Matcher best = null;
+        long bestScore = Long.MAX_VALUE;
+        for (File file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (!matcher.matches() || !matcher.group(1).equals(factorizerName) || matcher.group(4) != null) {
+                continue;
+            }
+            int fileFeatures = Integer.parseInt(matcher.group(2));
+            int fileIterations = Integer.parseInt(matcher.group(3));
+            long fileFingerprint = Long.parseUnsignedLong(matcher.group(5), 16);
+            if (fileFeatures == numFeatures || (fileFingerprint != fingerprint && !otherTrainingData)) {
+                continue;
+            }
+            // feature distance first, then other data, then iteration distance, then fewer iterations
+            long score = ((long) Math.abs(fileFeatures - numFeatures) << 32)
+                    + (fileFingerprint == fingerprint ? 0L : 1L << 31)
+                    + 2L * Math.min(Math.abs(fileIterations - numIterations), Integer.MAX_VALUE / 4)
+                    + (fileIterations > numIterations ? 1L : 0L);
+            if (score < bestScore) {
+                best = matcher;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        long seedFingerprint = Long.parseUnsignedLong(best.group(5), 16);
+        File seedFile = new File(directory, best.group());
+        try {
+            factorizer.setInitialFactorization(map(seedFile, seedFingerprint));
+        } catch (IOException ioe) {
+            throw new TasteException(String.format("Cannot map factorization from %s", seedFile), ioe);
+        }
+        String seed = String.format("f%s-i%s", best.group(2), best.group(3));
+        return seedFingerprint == fingerprint ? seed : seed + "-" + best.group(5).substring(0, 8);
+    }
+
+    /**
+     * @param configuration configuration of the run, see {@link #persistenceStrategy}
+     * @param seed          seed {@link #warmStart} returned for the run
+     * @return configuration to store the warm-started run under
+     */
+    public static String warmStartConfiguration(String configuration, String seed) {
+        return configuration + "-w-" + seed;
+    }
+
+    private final class StoredFactorization implements PersistenceStrategy {
+
+        private final File file;
+        private final long fingerprint;
+
+        private StoredFactorization(File file, long fingerprint) {
+            this.file = file;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * @return mapped factorization, or null if none is stored, so that {@code SVDRecommender} trains one
+         */
+        @Override
+        public Factorization load() throws IOException {
+            return file.isFile() ? map(file, fingerprint) : null;
+        }
+
+        @Override
+        public void maybePersist(Factorization factorization) throws IOException {
+            if (factorization instanceof MappedFactorization) {
+                return;
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create directory " + directory);
+            }
+            // written aside and moved, so runs sharing the directory never map a partly written file
+            File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+            try {
+                write(factorization, fingerprint, temporary);
+                Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary.toPath());
+            }
+        }
+    }
+
+    static long[] sectionOffsets(int numUsers, int numItems, int numFeatures) {
+        long[] sizes = {
+                8L * numUsers,
+                8L * numItems,
+                8L * numUsers * numFeatures,
+                8L * numItems * numFeatures
+        };
+        long[] offsets = new long[END + 1];
+        long offset = HEADER_SIZE;
+        for (int i = 0; i < sizes.length; i++) {
+            offsets[i] = offset;
+            offset = (offset + sizes[i] + 7) & ~7L;
+        }
+        offsets[END] = offset;
+        return offsets;
+    }
+
+    static void write(Factorization factorization, long fingerprint, File output) throws IOException {
+        IDDictionary users = IDDictionary.sorted(factorization.getUserIDMappingKeys(), factorization.numUsers());
+        IDDictionary items = IDDictionary.sorted(factorization.getItemIDMappingKeys(), factorization.numItems());
+        int numFeatures = factorization.numFeatures();
+        long[] offsets = sectionOffsets(users.size(), items.size(), numFeatures);
+        if (offsets[END] > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Factorization too big for one mapped file: %d bytes", offsets[END]));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.setLength(0);
+            file.setLength(offsets[END]);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, offsets[END]);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(users.size())
+                    .putInt(items.size())
+                    .putInt(numFeatures)
+                    .putInt(0)
+                    .putLong(fingerprint);
+            BinaryRatingsFile.section(buffer, offsets[USER_IDS]).asLongBuffer().put(users.asBuffer());
+            BinaryRatingsFile.section(buffer, offsets[ITEM_IDS]).asLongBuffer().put(items.asBuffer());
+            DoubleBuffer userFeatures = BinaryRatingsFile.section(buffer, offsets[USER_FEATURES]).asDoubleBuffer();
+            for (int user = 0; user < users.size(); user++) {
+                userFeatures.put(factorization.getUserFeatures(users.id(user)), 0, numFeatures);
+            }
+            DoubleBuffer itemFeatures = BinaryRatingsFile.section(buffer, offsets[ITEM_FEATURES]).asDoubleBuffer();
+            for (int item = 0; item < items.size(); item++) {
+                itemFeatures.put(factorization.getItemFeatures(items.id(item)), 0, numFeatures);
+            }
+            buffer.force();
+        } catch (TasteException te) {
+            throw new IOException(String.format("Factorization has no features of an ID it maps: %s", te.getMessage()), te);
+        }
+    }
+
+    static MappedFactorization map(File input, long fingerprint) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+            // the mapping stays valid after the file is closed
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException(String.format("%s is not a factorization file of version %d", input, VERSION));
+        }
+        int numUsers = buffer.getInt(8);
+        int numItems = buffer.getInt(12);
+        int numFeatures = buffer.getInt(16);
+        if (buffer.getLong(24) != fingerprint) {
+            throw new IOException(String.format("%s was computed for other data", input));
+        }
+        long[] offsets = sectionOffsets(numUsers, numItems, numFeatures);
+        if (buffer.limit() < offsets[END]) {
+            throw new IOException(String.format("%s is truncated", input));
+        }
+        LongBuffer userIDs = BinaryRatingsFile.section(buffer, offsets[USER_IDS]).asLongBuffer();
+        userIDs.limit(numUsers);
+        LongBuffer itemIDs = BinaryRatingsFile.section(buffer, offsets[ITEM_IDS]).asLongBuffer();
+        itemIDs.limit(numItems);
+        DoubleBuffer userFeatures = BinaryRatingsFile.section(buffer, offsets[USER_FEATURES]).asDoubleBuffer();
+        userFeatures.limit(numUsers * numFeatures);
+        DoubleBuffer itemFeatures = BinaryRatingsFile.section(buffer, offsets[ITEM_FEATURES]).asDoubleBuffer();
+        itemFeatures.limit(numItems * numFeatures);
+        return new MappedFactorization(IDDictionary.sorted(userIDs), IDDictionary.sorted(itemIDs),
+                userFeatures, itemFeatures, numFeatures);
+    }
+}
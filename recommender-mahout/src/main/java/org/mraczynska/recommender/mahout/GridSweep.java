@@ -0,0 +1,293 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorizer;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Runs every configuration of a {@link SweepGrid} inside one JVM. Folds are processed one after another: each fold
+ * is parsed and copied for evaluation once, and a similarity instance is shared by all neighborhood sizes. Primitive
+ * similarities of a fold share their rating vectors, and precomputed lists of all similarities of a fold are
+ * computed in one pass.
+ * One result row is printed per (fold, configuration).
+ */
+public final class GridSweep {
+
+    private static final String HEADER = "fold;algorithm;parameters;MAE;DCG;nDCG;NoEstimates;avgEstimateBaseOnCount;"
+            + "estimateBaseOnCountP50;estimateBaseOnCountP99;estimateMsP50;estimateMsP99;estimateMsP999;"
+            + "userEstimateMsP50;userEstimateMsP99;userEstimateMsP999;recommendMsP50;recommendMsP99;recommendMsP999;"
+            + "neighborhoodMsP50;neighborhoodMsP99;neighborhoodMsP999;time";
+
+    private final SweepGrid grid;
+    private final MAEAndRankRecommenderEvaluator evaluator;
+    private final NeighborListStore neighborListStore;
+    private final FactorStore factorStore;
+
+    private GridSweep(SweepGrid grid) {
+        this.grid = grid;
+        this.evaluator = new MAEAndRankRecommenderEvaluator();
+        this.neighborListStore = grid.getNeighborListStore() == null ? null : new NeighborListStore(grid.getNeighborListStore());
+        this.factorStore = grid.getFactorStore() == null ? null : new FactorStore(grid.getFactorStore());
+    }
+
+    public static void run(SweepGrid grid) throws TasteException {
+        System.out.println(new Date());
+        System.out.println(String.format("SWEEP folds=%d, configurations per fold=%d",
+                grid.getFolds().size(), grid.getConfigurationsPerFold()));
+        System.out.println(HEADER);
+        GridSweep sweep = new GridSweep(grid);
+        for (int fold : grid.getFolds()) {
+            sweep.runFold(fold);
+        }
+        System.out.println(new Date());
+    }
+
+    private void runFold(int fold) throws TasteException {
+        long start = System.currentTimeMillis();
+        DataModel trainingDataModel = RecommenderEval.instantiateModel(grid.getModelClassName(),
+                RecommenderEval.readDataFile(grid.getTrainingFile(fold)));
+        DataModel testDataModel = RecommenderEval.instantiateModel(grid.getModelClassName(),
+                RecommenderEval.readDataFile(grid.getTestFile(fold)));
+        EvaluationFold evaluationFold = evaluator.prepareFold(trainingDataModel, testDataModel);
+        long end = System.currentTimeMillis();
+        System.out.println(String.format("LOADING fold=%d time=%f", fold, (end - start) / 1000.0));
+
+        List<String> similarityClassNames = grid.getSimilarityClassNames();
+        // "lsh:..." similarities use approximate neighborhoods, which are never precomputed
+        List<LshUserNeighborhood.Parameters> lshParameters = new ArrayList<>();
+        List<String> baseClassNames = new ArrayList<>();
+        for (String similarityClassName : similarityClassNames) {
+            LshUserNeighborhood.Parameters lsh = LshUserNeighborhood.Parameters.parse(similarityClassName);
+            lshParameters.add(lsh);
+            baseClassNames.add(lsh == null ? similarityClassName : lsh.getSimilarityClassName());
+        }
+        List<UserSimilarity> similarities = RecommenderEval.instantiateUserSimilarities(baseClassNames,
+                evaluationFold.getTrainingModel());
+        if (grid.isPrecomputedSimilarities() && !grid.getNeighborhoodSizes().isEmpty()) {
+            precompute(fold, similarityClassNames, similarities, lshParameters, evaluationFold.getTrainingModel());
+        }
+
+        for (int s = 0; s < similarityClassNames.size(); s++) {
+            String similarityClassName = similarityClassNames.get(s);
+            LshUserNeighborhood.Parameters lsh = lshParameters.get(s);
+            if (lsh != null && !grid.getNeighborhoodSizes().isEmpty()) {
+                System.out.println(String.format("fold=%d %s", fold, RecommenderEval.lshRecallTask(lsh, similarities.get(s),
+                        evaluationFold.getTrainingModel(), Collections.max(grid.getNeighborhoodSizes()))));
+            }
+            UserSimilarity evaluatedSimilarity = similarities.get(s);
+            if (grid.isSinglePassNeighborhoods()) {
+                evaluateNeighborhoodSizes(fold, similarityClassName, evaluatedSimilarity, lsh, evaluationFold);
+            } else {
+                for (int neighborhoodSize : grid.getNeighborhoodSizes()) {
+                    RecommenderBuilder recBuilder = dataModel ->
+                            RecommenderEval.buildUserBasedRecommender(dataModel, evaluatedSimilarity, neighborhoodSize, lsh);
+                    evaluateConfiguration(fold, similarityClassName, "k=" + neighborhoodSize, recBuilder, evaluationFold);
+                }
+            }
+        }
+
+        for (String factorizerName : grid.getFactorizerNames()) {
+            for (int numFeatures : grid.getNumFeatures()) {
+                if (grid.isCheckpointedIterations()
+                        && evaluateIterations(fold, factorizerName, numFeatures, evaluationFold)) {
+                    continue;
+                }
+                for (int numIterations : grid.getNumIterations()) {
+                    evaluateFactorization(fold, factorizerName, numFeatures, numIterations, evaluationFold);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces exact similarities with their lists of all users for the largest neighborhood size, computed together
+     * or mapped from the store; the time is printed in its own row, not added to times of configurations.
+     */
+    private void precompute(int fold,
+                            List<String> similarityClassNames,
+                            List<UserSimilarity> similarities,
+                            List<LshUserNeighborhood.Parameters> lshParameters,
+                            DataModel trainingModel) throws TasteException {
+        List<Integer> exact = new ArrayList<>();
+        List<UserSimilarity> toPrecompute = new ArrayList<>();
+        for (int s = 0; s < similarities.size(); s++) {
+            if (lshParameters.get(s) == null) {
+                exact.add(s);
+                toPrecompute.add(similarities.get(s));
+            }
+        }
+        if (exact.isEmpty()) {
+            return;
+        }
+        int maxNeighborhoodSize = Collections.max(grid.getNeighborhoodSizes());
+        long start = System.currentTimeMillis();
+        List<PrecomputedUserSimilarity> precomputed = neighborListStore == null
+                ? AllPairsSimilarityEngine.computeAll(toPrecompute, trainingModel, maxNeighborhoodSize)
+                : neighborListStore.loadAll(toPrecompute, trainingModel, fold, maxNeighborhoodSize);
+        long end = System.currentTimeMillis();
+        List<String> names = new ArrayList<>();
+        for (int e = 0; e < exact.size(); e++) {
+            similarities.set(exact.get(e), precomputed.get(e));
+            names.add(similarityClassNames.get(exact.get(e)));
+        }
+        System.out.println(String.format("PRECOMPUTING fold=%d similarities=%s time=%f", fold, String.join(",", names),
+                (end - start) / 1000.0));
+    }
+
+    /**
+     * Evaluates all neighborhood sizes of one similarity in a single pass; the time reported in every row is the
+     * time of that whole pass.
+     */
+    private void evaluateNeighborhoodSizes(int fold,
+                                           String similarityClassName,
+                                           UserSimilarity similarity,
+                                           LshUserNeighborhood.Parameters lsh,
+                                           EvaluationFold evaluationFold) throws TasteException {
+        int[] neighborhoodSizes = grid.getNeighborhoodSizes().stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        if (neighborhoodSizes.length == 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Map<Integer, Map<String, Double>> metricsBySize =
+                new MultiNeighborhoodSizeEvaluator(neighborhoodSizes).evaluate(similarity, evaluationFold, lsh);
+        long end = System.currentTimeMillis();
+        for (Map.Entry<Integer, Map<String, Double>> entry : metricsBySize.entrySet()) {
+            printRow(fold, similarityClassName, "k=" + entry.getKey(), entry.getValue(), (end - start) / 1000.0);
+        }
+    }
+
+    /**
+     * Evaluates all numbers of iterations of one factorizer and number of features in one training run; the time
+     * reported in every row is, as in other rows, training time up to that number of iterations plus evaluation time.
+     * With early stopping, factors are trained without the validation split, whose MAE is printed with the parameters.
+     *
+     * @return false if the factorizer cannot be evaluated this way
+     */
+    private boolean evaluateIterations(int fold,
+                                       String factorizerName,
+                                       int numFeatures,
+                                       EvaluationFold evaluationFold) throws TasteException {
+        int[] iterationCounts = grid.getNumIterations().stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+        if (iterationCounts.length == 0) {
+            return true;
+        }
+        Factorizer factorizer = RecommenderEval.buildFactorizer(evaluationFold.getTrainingModel(), factorizerName,
+                numFeatures, iterationCounts[iterationCounts.length - 1]);
+        if (!(factorizer instanceof CheckpointedFactorizer)) {
+            return false;
+        }
+        int maxIterations = iterationCounts[iterationCounts.length - 1];
+        Map<Integer, Map<String, Double>> metricsByIterations = new CheckpointedSVDEvaluator(iterationCounts,
+                grid.isEarlyStopping()).evaluate(dataModel -> (CheckpointedFactorizer) RecommenderEval.buildFactorizer(
+                dataModel, factorizerName, numFeatures, maxIterations), evaluationFold);
+        for (Map.Entry<Integer, Map<String, Double>> entry : metricsByIterations.entrySet()) {
+            Map<String, Double> metrics = entry.getValue();
+            String parameters = String.format("features=%d iterations=%d", numFeatures, entry.getKey());
+            if (grid.isEarlyStopping()) {
+                parameters += String.format(" validationMAE=%s", metrics.get(CheckpointedSVDEvaluator.VALIDATION_MAE));
+            }
+            printRow(fold, "svd:" + factorizerName, parameters, metrics,
+                    metrics.get(CheckpointedSVDEvaluator.TRAINING_TIME) + metrics.get(CheckpointedSVDEvaluator.EVALUATION_TIME));
+        }
+        return true;
+    }
+
+    private void evaluateConfiguration(int fold,
+                                       String algorithm,
+                                       String parameters,
+                                       RecommenderBuilder recBuilder,
+                                       EvaluationFold evaluationFold) throws TasteException {
+        long start = System.currentTimeMillis();
+        Map<String, Double> metrics = evaluator.evaluateAllMetrics(recBuilder, evaluationFold);
+        long end = System.currentTimeMillis();
+        printRow(fold, algorithm, parameters, metrics, (end - start) / 1000.0);
+    }
+
+    /**
+     * Evaluates one SVD configuration, warm-started if the grid says so and no cold factorization of the configuration
+     * is stored; the parameters column names the seed, which is known only once the recommender is built.
+     */
+    private void evaluateFactorization(int fold,
+                                       String factorizerName,
+                                       int numFeatures,
+                                       int numIterations,
+                                       EvaluationFold evaluationFold) throws TasteException {
+        Factorizer[] factorizer = new Factorizer[1];
+        String[] seed = new String[1];
+        RecommenderBuilder recBuilder = dataModel -> {
+            factorizer[0] = RecommenderEval.buildFactorizer(dataModel, factorizerName, numFeatures, numIterations);
+            String configuration = RecommenderEval.svdConfiguration(factorizerName, numFeatures, numIterations);
+            seed[0] = grid.isWarmStart() && factorizer[0] instanceof WarmStartFactorizer
+                    && !factorStore.contains(dataModel, configuration)
+                    ? factorStore.warmStart((WarmStartFactorizer) factorizer[0], dataModel, factorizerName, numFeatures,
+                    numIterations, grid.isCrossFoldWarmStart())
+                    : null;
+            return RecommenderEval.buildSVDRecommender(dataModel, factorizer[0],
+                    seed[0] == null ? configuration : FactorStore.warmStartConfiguration(configuration, seed[0]),
+                    factorStore);
+        };
+        long start = System.currentTimeMillis();
+        Map<String, Double> metrics = evaluator.evaluateAllMetrics(recBuilder, evaluationFold);
+        long end = System.currentTimeMillis();
+        String parameters = String.format("features=%d iterations=%d", numFeatures, numIterations);
+        if (seed[0] != null) {
+            parameters += " warmStart=" + seed[0];
+        }
+        printRow(fold, "svd:" + factorizerName, parameters, metrics, (end - start) / 1000.0);
+        if (factorizer[0] instanceof WarmStartFactorizer) {
+            printTraining(fold, factorizerName, numFeatures, (WarmStartFactorizer) factorizer[0], seed[0]);
+        }
+    }
+
+    /**
+     * Prints wall time, final training RMSE and time to reach {@code targetRmse} of the grid of a factorization trained
+     * for a configuration; nothing if it was mapped from the factor store.
+     */
+    private void printTraining(int fold,
+                               String factorizerName,
+                               int numFeatures,
+                               WarmStartFactorizer factorizer,
+                               String seed) {
+        double[] seconds = factorizer.getIterationSeconds();
+        double[] rmse = factorizer.getIterationRmse();
+        if (seconds.length == 0) {
+            return;
+        }
+        double total = 0.0;
+        double timeToTarget = Double.NaN;
+        for (int i = 0; i < seconds.length; i++) {
+            total += seconds[i];
+            if (Double.isNaN(timeToTarget) && grid.getTargetRmse() != null && rmse[i] <= grid.getTargetRmse()) {
+                timeToTarget = total;
+            }
+        }
+        System.out.println(String.format("TRAINING fold=%d algorithm=svd:%s features=%d iterations=%d warmStart=%s time=%f rmse=%f targetRmse=%s timeToTargetRmse=%f",
+                fold, factorizerName, numFeatures, seconds.length, seed == null ? "none" : seed, total, rmse[rmse.length - 1],
+                grid.getTargetRmse(), timeToTarget));
+    }
+
+    static void printRow(int fold, String algorithm, String parameters, Map<String, Double> metrics, double time) {
+        System.out.println(String.format("%d;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s;%f",
+                fold, algorithm, parameters,
+                metrics.get("MAE.ByRating"), metrics.get("Predict.DCG"), metrics.get("Predict.nDCG"),
+                metrics.get("NoEstimates"), metrics.get("avgEstimateBaseOnCount"),
+                metrics.get("EstimateBaseOnCount.p50"), metrics.get("EstimateBaseOnCount.p99"),
+                metrics.get("Latency.Estimate.p50"), metrics.get("Latency.Estimate.p99"), metrics.get("Latency.Estimate.p999"),
+                metrics.get("Latency.UserEstimate.p50"), metrics.get("Latency.UserEstimate.p99"),
+                metrics.get("Latency.UserEstimate.p999"),
+                metrics.get("Latency.Recommend.p50"), metrics.get("Latency.Recommend.p99"),
+                metrics.get("Latency.Recommend.p999"),
+                metrics.get("Latency.Neighborhood.p50"), metrics.get("Latency.Neighborhood.p99"),
+                metrics.get("Latency.Neighborhood.p999"), time));
+    }
+}
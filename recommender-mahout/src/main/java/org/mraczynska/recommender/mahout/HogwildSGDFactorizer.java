@@ -0,0 +1,326 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Biased matrix factorization trained by Hogwild SGD: rating blocks are processed in parallel and update the shared
+ * factors without any locking, which is safe enough for sparse data, where two blocks rarely touch the same factors at
+ * the same moment. Factors and biases are kept in flat {@code float} arrays, row {@code i} at {@code i * numFeatures}.
+ * Ratings are laid out by user, and a block is {@link #BLOCK_SIZE} consecutive ratings, so a thread keeps working on a
+ * few user rows while item rows are read in ascending order; blocks are shuffled every epoch. The learning rate decays
+ * by a constant factor after every epoch.
+ * <p>
+ * The estimate is {@code mean + userBias + itemBias + userFactors . itemFactors}; as in Mahout's
+ * {@code RatingSGDFactorizer}, the mean and biases are folded into three leading features of the
+ * {@link Factorization}, so {@code SVDRecommender} computes it as a plain dot product. Wall time and training RMSE of
+ * every epoch are logged and kept for {@link #getEpochSeconds()} and {@link #getEpochRmse()}. A
+ * {@link #setInitialFactorization warm start} takes biases and factors of known users and items from a factorization
+ * of this class; the mean is always computed from the ratings.
+ */
+public class HogwildSGDFactorizer implements CheckpointedFactorizer, WarmStartFactorizer {
+
+    private static final Logger log = LoggerFactory.getLogger(HogwildSGDFactorizer.class);
+
+    static final int BLOCK_SIZE = 1024;
+
+    private static final int MEAN_INDEX = 0;
+    private static final int USER_BIAS_INDEX = 1;
+    private static final int ITEM_BIAS_INDEX = 2;
+    private static final int FEATURE_OFFSET = 3;
+
+    private final DataModel dataModel;
+    private final int numFeatures;
+    private final int numEpochs;
+    private final float learningRate;
+    private final float learningRateDecay;
+    private final float regularization;
+    private final float biasRegularization;
+    private final long seed;
+
+    private volatile Factorization initial;
+    private volatile double[] epochSeconds = new double[0];
+    private volatile double[] epochRmse = new double[0];
+
+    public HogwildSGDFactorizer(DataModel dataModel, int numFeatures, int numEpochs) {
+        this(dataModel, numFeatures, numEpochs, 0.01f, 0.95f, 0.02f, 0.005f, 42L);
+    }
+
+    /**
+     * @param learningRate learning rate of the first epoch
+     * @param learningRateDecay factor the learning rate is multiplied by after every epoch
+     * @param regularization L2 regularization of factors
+     * @param biasRegularization L2 regularization of biases
+     * @param seed seed of initial factors and block orders; with several threads results still vary between runs
+     */
+    public HogwildSGDFactorizer(DataModel dataModel,
+                                int numFeatures,
+                                int numEpochs,
+                                float learningRate,
+                                float learningRateDecay,
+                                float regularization,
+                                float biasRegularization,
+                                long seed) {
+        Preconditions.checkArgument(numFeatures > 0, "numFeatures must be positive");
+        Preconditions.checkArgument(numEpochs > 0, "numEpochs must be positive");
+        Preconditions.checkArgument(learningRate > 0, "learningRate must be positive");
+        this.dataModel = dataModel;
+        this.numFeatures = numFeatures;
+        this.numEpochs = numEpochs;
+        this.learningRate = learningRate;
+        this.learningRateDecay = learningRateDecay;
+        this.regularization = regularization;
+        this.biasRegularization = biasRegularization;
+        this.seed = seed;
+    }
+
+    @Override
+    public int getNumIterations() {
+        return numEpochs;
+    }
+
+    @Override
+    public Factorization factorize() throws TasteException {
+        return factorize(new int[0], null);
+    }
+
+    @Override
+    public Factorization factorize(int[] checkpoints, Listener listener) throws TasteException {
+        Model model = new Model(new UserRatingVectors(dataModel));
+        double[] seconds = new double[numEpochs];
+        double[] rmse = new double[numEpochs];
+        Random random = new Random(seed);
+        model.initialize(random);
+        if (initial != null) {
+            model.initialize(initial);
+        }
+        int[] blocks = new int[(model.ratingUsers.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        for (int b = 0; b < blocks.length; b++) {
+            blocks[b] = b;
+        }
+        float rate = learningRate;
+        int epochs = numEpochs;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            shuffle(blocks, random);
+            long start = System.nanoTime();
+            float epochRate = rate;
+            double squaredErrors = IntStream.of(blocks).parallel()
+                    .mapToDouble(block -> model.train(block, epochRate))
+                    .sum();
+            seconds[epoch] = (System.nanoTime() - start) / 1e9;
+            rmse[epoch] = Math.sqrt(squaredErrors / Math.max(1, model.ratingUsers.length));
+            log.info("Hogwild SGD epoch {}/{}: {} s, training RMSE {}, learning rate {}",
+                    epoch + 1, numEpochs, seconds[epoch], rmse[epoch], rate);
+            rate *= learningRateDecay;
+            if (Arrays.binarySearch(checkpoints, epoch + 1) >= 0 && !listener.checkpoint(epoch + 1, model.toFactorization())) {
+                epochs = epoch + 1;
+            }
+        }
+        epochSeconds = Arrays.copyOf(seconds, epochs);
+        epochRmse = Arrays.copyOf(rmse, epochs);
+        return model.toFactorization();
+    }
+
+    private static void shuffle(int[] array, Random random) {
+        for (int i = array.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+
+    @Override
+    public void setInitialFactorization(Factorization initial) {
+        this.initial = initial;
+    }
+
+    /**
+     * @return wall time of every epoch of the last {@link #factorize()}, in seconds
+     */
+    public double[] getEpochSeconds() {
+        return epochSeconds.clone();
+    }
+
+    /**
+     * @return training RMSE of every epoch of the last {@link #factorize()}, of estimates made before each update
+     */
+    public double[] getEpochRmse() {
+        return epochRmse.clone();
+    }
+
+    /**
+     * Same as {@link #getEpochSeconds()}: an iteration is an epoch.
+     */
+    @Override
+    public double[] getIterationSeconds() {
+        return getEpochSeconds();
+    }
+
+    /**
+     * Same as {@link #getEpochRmse()}: an iteration is an epoch.
+     */
+    @Override
+    public double[] getIterationRmse() {
+        return getEpochRmse();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        // ratings are read from the model on every factorize()
+    }
+
+    /**
+     * Ratings and factors of one {@link #factorize()}.
+     */
+    private final class Model {
+
+        private final IDDictionary users;
+        private final IDDictionary items;
+        private final int[] ratingUsers;
+        private final int[] ratingItems;
+        private final float[] ratingValues;
+        private final float mean;
+        private final float[] userFactors;
+        private final float[] itemFactors;
+        private final float[] userBiases;
+        private final float[] itemBiases;
+
+        private Model(UserRatingVectors vectors) {
+            users = vectors.getUserDictionary();
+            items = vectors.getItemDictionary();
+            int numRatings = 0;
+            for (int user = 0; user < users.size(); user++) {
+                numRatings += vectors.getItems(user).length;
+            }
+            ratingUsers = new int[numRatings];
+            ratingItems = new int[numRatings];
+            ratingValues = new float[numRatings];
+            double sum = 0.0;
+            int position = 0;
+            for (int user = 0; user < users.size(); user++) {
+                int[] userItems = vectors.getItems(user);
+                float[] userValues = vectors.getValues(user);
+                for (int i = 0; i < userItems.length; i++) {
+                    ratingUsers[position] = user;
+                    ratingItems[position] = userItems[i];
+                    ratingValues[position++] = userValues[i];
+                    sum += userValues[i];
+                }
+            }
+            mean = numRatings == 0 ? 0.0f : (float) (sum / numRatings);
+            userFactors = new float[users.size() * numFeatures];
+            itemFactors = new float[items.size() * numFeatures];
+            userBiases = new float[users.size()];
+            itemBiases = new float[items.size()];
+        }
+
+        private void initialize(Random random) {
+            for (int i = 0; i < userFactors.length; i++) {
+                userFactors[i] = (float) (random.nextGaussian() * 0.1);
+            }
+            for (int i = 0; i < itemFactors.length; i++) {
+                itemFactors[i] = (float) (random.nextGaussian() * 0.1);
+            }
+        }
+
+        /**
+         * Copies biases and factors of users and items known to {@code initial}, in its layout of
+         * {@link #toFactorization()}.
+         */
+        private void initialize(Factorization initial) {
+            int features = Math.min(numFeatures, initial.numFeatures() - FEATURE_OFFSET);
+            for (int user = 0; user < users.size(); user++) {
+                try {
+                    double[] row = initial.getUserFeatures(users.id(user));
+                    userBiases[user] = (float) row[USER_BIAS_INDEX];
+                    for (int f = 0; f < features; f++) {
+                        userFactors[user * numFeatures + f] = (float) row[FEATURE_OFFSET + f];
+                    }
+                } catch (NoSuchUserException nsue) {
+                    // new user, keeps its random factors
+                }
+            }
+            for (int item = 0; item < items.size(); item++) {
+                try {
+                    double[] row = initial.getItemFeatures(items.id(item));
+                    itemBiases[item] = (float) row[ITEM_BIAS_INDEX];
+                    for (int f = 0; f < features; f++) {
+                        itemFactors[item * numFeatures + f] = (float) row[FEATURE_OFFSET + f];
+                    }
+                } catch (NoSuchItemException nsie) {
+                    // new item, keeps its random factors
+                }
+            }
+        }
+
+        /**
+         * Runs one SGD step on every rating of the block, without synchronization.
+         *
+         * @return sum of squared errors of the estimates made before each step
+         */
+        private double train(int block, float rate) {
+            int end = Math.min(ratingUsers.length, (block + 1) * BLOCK_SIZE);
+            double squaredErrors = 0.0;
+            for (int r = block * BLOCK_SIZE; r < end; r++) {
+                int user = ratingUsers[r];
+                int item = ratingItems[r];
+                int userOffset = user * numFeatures;
+                int itemOffset = item * numFeatures;
+                float estimate = mean + userBiases[user] + itemBiases[item];
+                for (int f = 0; f < numFeatures; f++) {
+                    estimate += userFactors[userOffset + f] * itemFactors[itemOffset + f];
+                }
+                float error = ratingValues[r] - estimate;
+                squaredErrors += (double) error * error;
+                userBiases[user] += rate * (error - biasRegularization * userBiases[user]);
+                itemBiases[item] += rate * (error - biasRegularization * itemBiases[item]);
+                for (int f = 0; f < numFeatures; f++) {
+                    float userFactor = userFactors[userOffset + f];
+                    float itemFactor = itemFactors[itemOffset + f];
+                    userFactors[userOffset + f] += rate * (error * itemFactor - regularization * userFactor);
+                    itemFactors[itemOffset + f] += rate * (error * userFactor - regularization * itemFactor);
+                }
+            }
+            return squaredErrors;
+        }
+
+        private Factorization toFactorization() {
+            double[][] userFeatures = new double[users.size()][FEATURE_OFFSET + numFeatures];
+            for (int user = 0; user < users.size(); user++) {
+                double[] row = userFeatures[user];
+                row[MEAN_INDEX] = mean;
+                row[USER_BIAS_INDEX] = userBiases[user];
+                row[ITEM_BIAS_INDEX] = 1.0;
+                for (int f = 0; f < numFeatures; f++) {
+                    row[FEATURE_OFFSET + f] = userFactors[user * numFeatures + f];
+                }
+            }
+            double[][] itemFeatures = new double[items.size()][FEATURE_OFFSET + numFeatures];
+            for (int item = 0; item < items.size(); item++) {
+                double[] row = itemFeatures[item];
+                row[MEAN_INDEX] = 1.0;
+                row[USER_BIAS_INDEX] = 1.0;
+                row[ITEM_BIAS_INDEX] = itemBiases[item];
+                for (int f = 0; f < numFeatures; f++) {
+                    row[FEATURE_OFFSET + f] = itemFactors[item * numFeatures + f];
+                }
+            }
+            return new Factorization(users.asMapping(), items.asMapping(), userFeatures, itemFeatures);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.AbstractLongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Dictionary of external {@code long} IDs and dense {@code int} indices 0..size-1, built once when data is loaded,
+ * so that per-user and per-item state can be kept in plain arrays and IDs are translated back only at the output.
+ * IDs are looked up in an open addressing table of indices, without boxing; sparse IDs, such as Book-Crossing items
+ * numbered after their ISBNs, cost the same as consecutive ones. Dictionaries of a {@link DataModel} number IDs in
+ * ascending order, the order in which Mahout iterates them.
+ */
+public final class IDDictionary {
+
+    private static final int EMPTY = -1;
+
+    private final long[] ids;
+    private final int[] slots;
+    private final int mask;
+
+    /**
+     * @param ids distinct IDs, in index order; the array is kept, not copied
+     */
+    IDDictionary(long[] ids) {
+        this.ids = ids;
+        this.slots = new int[tableSize(ids.length)];
+        this.mask = slots.length - 1;
+        Arrays.fill(slots, EMPTY);
+        for (int index = 0; index < ids.length; index++) {
+            int slot = slot(ids[index]);
+            if (slots[slot] != EMPTY) {
+                throw new IllegalArgumentException(String.format("ID %d given more than once", ids[index]));
+            }
+            slots[slot] = index;
+        }
+    }
+
+    public static IDDictionary ofUsers(DataModel dataModel) throws TasteException {
+        return sorted(dataModel.getUserIDs(), dataModel.getNumUsers());
+    }
+
+    public static IDDictionary ofItems(DataModel dataModel) throws TasteException {
+        return sorted(dataModel.getItemIDs(), dataModel.getNumItems());
+    }
+
+    /**
+     * @param size expected number of IDs
+     * @return dictionary of distinct IDs in ascending order
+     */
+    public static IDDictionary sorted(LongPrimitiveIterator it, int size) {
+        long[] ids = new long[size];
+        int count = 0;
+        while (it.hasNext()) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(16, 2 * count));
+            }
+            ids[count++] = it.nextLong();
+        }
+        return sorted(ids, count);
+    }
+
+    /**
+     * @return dictionary of IDs stored in ascending order, e.g. in a memory-mapped file
+     */
+    public static IDDictionary sorted(LongBuffer ids) {
+        long[] copy = new long[ids.remaining()];
+        ids.duplicate().get(copy);
+        return new IDDictionary(copy);
+    }
+
+    private static IDDictionary sorted(long[] ids, int count) {
+        Arrays.sort(ids, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        return new IDDictionary(distinct == ids.length ? ids : Arrays.copyOf(ids, distinct));
+    }
+
+    private static int tableSize(int size) {
+        // load factor at most 1/2
+        return Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+    }
+
+    /**
+     * @return slot of the ID in the table: the slot holding it, or the empty slot where it would be added
+     */
+    private int slot(long id) {
+        int slot = (int) mix(id) & mask;
+        while (slots[slot] != EMPTY && ids[slots[slot]] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Finalizer of SplitMix64, so that IDs with equal low bits spread over the whole table.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return index of the ID, -1 if there is no such ID
+     */
+    public int index(long id) {
+        return slots[slot(id)];
+    }
+
+    public boolean contains(long id) {
+        return index(id) >= 0;
+    }
+
+    public long id(int index) {
+        return ids[index];
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return IDs in index order, as {@code DataModel.getUserIDs()} gives them
+     */
+    public LongPrimitiveIterator iterator() {
+        return new IDIterator(ids);
+    }
+
+    /**
+     * @return map of every ID to its index, as Mahout's {@code Factorization} takes it
+     */
+    FastByIDMap<Integer> asMapping() {
+        FastByIDMap<Integer> mapping = new FastByIDMap<>(ids.length);
+        for (int index = 0; index < ids.length; index++) {
+            mapping.put(ids[index], index);
+        }
+        return mapping;
+    }
+
+    /**
+     * @return read-only view of the IDs in index order
+     */
+    LongBuffer asBuffer() {
+        return LongBuffer.wrap(ids).asReadOnlyBuffer();
+    }
+
+    private static final class IDIterator extends AbstractLongPrimitiveIterator {
+
+        private final long[] ids;
+        private int next;
+
+        private IDIterator(long[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < ids.length;
+        }
+
+        @Override
+        public long nextLong() {
+            if (next >= ids.length) {
+                throw new NoSuchElementException();
+            }
+            return ids[next++];
+        }
+
+        @Override
+        public long peek() {
+            if (next >= ids.length) {
+                throw new NoSuchElementException();
+            }
+            return ids[next];
+        }
+
+        @Override
+        public void skip(int n) {
+            next = (int) Math.min((long) next + n, ids.length);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Assigns indices to IDs in the order they are first added, e.g. while a file is parsed.
+     */
+    public static final class Builder {
+
+        private long[] ids = new long[16];
+        private int[] slots = newSlots(32);
+        private int size;
+
+        private static int[] newSlots(int length) {
+            int[] slots = new int[length];
+            Arrays.fill(slots, EMPTY);
+            return slots;
+        }
+
+        /**
+         * @return index of the ID, a new one if it was not added before
+         */
+        public int add(long id) {
+            int mask = slots.length - 1;
+            int slot = (int) mix(id) & mask;
+            while (slots[slot] != EMPTY) {
+                if (ids[slots[slot]] == id) {
+                    return slots[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * size);
+            }
+            ids[size] = id;
+            slots[slot] = size;
+            if (++size * 2 > slots.length) {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        private void rehash() {
+            slots = newSlots(2 * slots.length);
+            int mask = slots.length - 1;
+            for (int index = 0; index < size; index++) {
+                int slot = (int) mix(ids[index]) & mask;
+                while (slots[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = index;
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public IDDictionary build() {
+            return new IDDictionary(Arrays.copyOf(ids, size));
+        }
+    }
+}
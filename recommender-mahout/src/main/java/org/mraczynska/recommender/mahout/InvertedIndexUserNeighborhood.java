@@ -0,0 +1,140 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.util.Collection;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Nearest n users neighborhood, which scores only users sharing at least {@code minOverlap} items with the given
+ * user, found through an {@link ItemUserIndex}. All similarities we use (Pearson, cosine, Euclidean, Tanimoto,
+ * Spearman, log-likelihood) are NaN for users with no co-rated items, so with {@code minOverlap = 1} the result is
+ * exactly the one of {@code NearestNUserNeighborhood}.
+ */
+public final class InvertedIndexUserNeighborhood implements UserNeighborhood {
+
+    private static final long[] NO_IDS = new long[0];
+
+    private final int n;
+    private final double minSimilarity;
+    private final int minOverlap;
+    private final UserSimilarity userSimilarity;
+    private final DataModel dataModel;
+    private final ItemUserIndex index;
+    private final ThreadLocal<Candidates> candidates;
+
+    public InvertedIndexUserNeighborhood(int n, UserSimilarity userSimilarity, DataModel dataModel) throws TasteException {
+        this(n, Double.NEGATIVE_INFINITY, 1, userSimilarity, dataModel, new ItemUserIndex(dataModel));
+    }
+
+    public InvertedIndexUserNeighborhood(int n,
+                                         double minSimilarity,
+                                         int minOverlap,
+                                         UserSimilarity userSimilarity,
+                                         DataModel dataModel) throws TasteException {
+        this(n, minSimilarity, minOverlap, userSimilarity, dataModel, new ItemUserIndex(dataModel));
+    }
+
+    /**
+     * @param n neighborhood size; capped at the number of users in the data model
+     * @param minSimilarity minimal similarity required for neighbors
+     * @param minOverlap minimal number of co-rated items required for neighbors
+     * @param index index built for {@code dataModel}, may be shared by several neighborhoods
+     */
+    public InvertedIndexUserNeighborhood(int n,
+                                         double minSimilarity,
+                                         int minOverlap,
+                                         UserSimilarity userSimilarity,
+                                         DataModel dataModel,
+                                         ItemUserIndex index) throws TasteException {
+        Preconditions.checkArgument(n >= 1, "n must be at least 1");
+        Preconditions.checkArgument(minOverlap >= 1, "minOverlap must be at least 1");
+        int numUsers = dataModel.getNumUsers();
+        this.n = n > numUsers ? numUsers : n;
+        this.minSimilarity = minSimilarity;
+        this.minOverlap = minOverlap;
+        this.userSimilarity = Preconditions.checkNotNull(userSimilarity);
+        this.dataModel = Preconditions.checkNotNull(dataModel);
+        this.index = Preconditions.checkNotNull(index);
+        this.candidates = ThreadLocal.withInitial(() -> new Candidates(index.getNumUsers(), this.n));
+    }
+
+    @Override
+    public long[] getUserNeighborhood(long userID) throws TasteException {
+        TopNeighbors neighbors = rankNeighbors(userID);
+        return neighbors.size() == 0 ? NO_IDS : neighbors.getIDs(neighbors.size());
+    }
+
+    /**
+     * Ranks neighbors of the user. The result is reused by the next call in the same thread.
+     */
+    TopNeighbors rankNeighbors(long userID) throws TasteException {
+        Candidates scratch = candidates.get();
+        TopNeighbors neighbors = scratch.neighbors;
+        neighbors.clear();
+        int user = index.userIndex(userID);
+        if (user < 0) {
+            // NearestNUserNeighborhood skips every candidate when the user is unknown
+            return neighbors.sort();
+        }
+
+        int[] overlaps = scratch.overlaps;
+        int[] touched = scratch.touched;
+        int touchedCount = 0;
+        int[] userItems = index.getUserItems();
+        int[] itemUsers = index.getItemUsers();
+        for (int i = index.getUserItemsStart(user); i < index.getUserItemsEnd(user); i++) {
+            int item = userItems[i];
+            for (int j = index.getItemUsersStart(item); j < index.getItemUsersEnd(item); j++) {
+                int other = itemUsers[j];
+                if (overlaps[other]++ == 0) {
+                    touched[touchedCount++] = other;
+                }
+            }
+        }
+
+        for (int i = 0; i < touchedCount; i++) {
+            int other = touched[i];
+            if (other != user && overlaps[other] >= minOverlap) {
+                long otherID = index.getUserID(other);
+                double similarity = userSimilarity.userSimilarity(userID, otherID);
+                if (similarity >= minSimilarity) {
+                    neighbors.offer(otherID, similarity);
+                }
+            }
+            overlaps[other] = 0;
+        }
+        return neighbors.sort();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, dataModel);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, userSimilarity);
+    }
+
+    @Override
+    public String toString() {
+        return "InvertedIndexUserNeighborhood";
+    }
+
+    private static final class Candidates {
+        private final int[] overlaps;
+        private final int[] touched;
+        private final TopNeighbors neighbors;
+
+        private Candidates(int numUsers, int n) {
+            this.overlaps = new int[numUsers];
+            this.touched = new int[numUsers];
+            this.neighbors = new TopNeighbors(n);
+        }
+    }
+}
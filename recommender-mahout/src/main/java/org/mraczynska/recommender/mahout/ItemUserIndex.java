@@ -0,0 +1,94 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.util.Arrays;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Inverted index of a {@link DataModel}: for every item the users who rated it, and for every user the items
+ * they rated, both as compressed rows of int indices. Users and items are numbered by {@link IDDictionary}s, in
+ * ascending ID order.
+ */
+public final class ItemUserIndex {
+
+    private final IDDictionary users;
+    private final int[] userOffsets;
+    private final int[] userItems;
+    private final int[] itemOffsets;
+    private final int[] itemUsers;
+
+    public ItemUserIndex(DataModel dataModel) throws TasteException {
+        users = IDDictionary.ofUsers(dataModel);
+        IDDictionary items = IDDictionary.ofItems(dataModel);
+        int numUsers = users.size();
+        int numItems = items.size();
+
+        userOffsets = new int[numUsers + 1];
+        for (int user = 0; user < numUsers; user++) {
+            userOffsets[user + 1] = userOffsets[user] + dataModel.getPreferencesFromUser(users.id(user)).length();
+        }
+        userItems = new int[userOffsets[numUsers]];
+        itemOffsets = new int[numItems + 1];
+        for (int user = 0; user < numUsers; user++) {
+            PreferenceArray prefs = dataModel.getPreferencesFromUser(users.id(user));
+            for (int i = 0; i < prefs.length(); i++) {
+                int item = items.index(prefs.getItemID(i));
+                userItems[userOffsets[user] + i] = item;
+                itemOffsets[item + 1]++;
+            }
+        }
+        for (int item = 0; item < numItems; item++) {
+            itemOffsets[item + 1] += itemOffsets[item];
+        }
+        itemUsers = new int[userItems.length];
+        int[] next = Arrays.copyOf(itemOffsets, numItems);
+        for (int user = 0; user < numUsers; user++) {
+            for (int i = userOffsets[user]; i < userOffsets[user + 1]; i++) {
+                itemUsers[next[userItems[i]]++] = user;
+            }
+        }
+    }
+
+    public int getNumUsers() {
+        return users.size();
+    }
+
+    /**
+     * @return index of the user or -1 if there is no such user
+     */
+    public int userIndex(long userID) {
+        return users.index(userID);
+    }
+
+    public long getUserID(int user) {
+        return users.id(user);
+    }
+
+    int[] getUserItems() {
+        return userItems;
+    }
+
+    int getUserItemsStart(int user) {
+        return userOffsets[user];
+    }
+
+    int getUserItemsEnd(int user) {
+        return userOffsets[user + 1];
+    }
+
+    int[] getItemUsers() {
+        return itemUsers;
+    }
+
+    int getItemUsersStart(int item) {
+        return itemOffsets[item];
+    }
+
+    int getItemUsersEnd(int item) {
+        return itemOffsets[item + 1];
+    }
+}
@@ -0,0 +1,384 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.UncenteredCosineSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Approximate nearest n users neighborhood found by locality-sensitive hashing. Every user gets a signature of
+ * {@code numBands * rowsPerBand} hashes; users whose signatures agree on all rows of at least one band are candidates,
+ * and candidates are ranked by the exact similarity, as in {@link InvertedIndexUserNeighborhood}. Signatures are
+ * MinHash of the set of rated items for set similarities (Tanimoto, log-likelihood, or data without preference
+ * values) and random-hyperplane SimHash of the rating vector for the others, centered on the user's mean unless the
+ * similarity is an uncentered cosine.
+ * <p>
+ * More rows per band give fewer and closer candidates, more bands give higher recall; the neighborhood is exact
+ * when every user sharing an item is a candidate. {@link NeighborhoodRecall} measures recall and speedup.
+ */
+public final class LshUserNeighborhood implements UserNeighborhood {
+
+    private static final Logger log = LoggerFactory.getLogger(LshUserNeighborhood.class);
+
+    public static final int DEFAULT_BANDS = 16;
+    public static final int DEFAULT_ROWS_PER_BAND = 4;
+
+    private static final long DEFAULT_SEED = 0x5DEECE66DL;
+    private static final long[] NO_IDS = new long[0];
+
+    public enum Family {
+        MIN_HASH, SIM_HASH
+    }
+
+    private final int n;
+    private final int numBands;
+    private final int rowsPerBand;
+    private final long seed;
+    private final UserSimilarity userSimilarity;
+    private final DataModel dataModel;
+    private final Family family;
+    private final boolean centered;
+    private final ThreadLocal<Scratch> scratch;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+    private volatile Tables tables;
+
+    public LshUserNeighborhood(int n, UserSimilarity userSimilarity, DataModel dataModel) throws TasteException {
+        this(n, userSimilarity, dataModel, DEFAULT_BANDS, DEFAULT_ROWS_PER_BAND, DEFAULT_SEED);
+    }
+
+    /**
+     * @param n neighborhood size; capped at the number of users in the data model
+     * @param rowsPerBand hashes that must agree within a band, at most 64
+     */
+    public LshUserNeighborhood(int n,
+                               UserSimilarity userSimilarity,
+                               DataModel dataModel,
+                               int numBands,
+                               int rowsPerBand,
+                               long seed) throws TasteException {
+        Preconditions.checkArgument(n >= 1, "n must be at least 1");
+        Preconditions.checkArgument(numBands >= 1, "numBands must be at least 1");
+        Preconditions.checkArgument(rowsPerBand >= 1 && rowsPerBand <= 64, "rowsPerBand must be between 1 and 64");
+        int numUsers = dataModel.getNumUsers();
+        this.n = n > numUsers ? numUsers : n;
+        this.numBands = numBands;
+        this.rowsPerBand = rowsPerBand;
+        this.seed = seed;
+        this.userSimilarity = Preconditions.checkNotNull(userSimilarity);
+        this.dataModel = Preconditions.checkNotNull(dataModel);
+        this.family = familyOf(userSimilarity, dataModel);
+        this.centered = !(userSimilarity instanceof UncenteredCosineSimilarity
+                || userSimilarity instanceof PrimitiveUncenteredCosineSimilarity);
+        this.tables = buildTables();
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(tables.users.size(), this.n));
+    }
+
+    static Family familyOf(UserSimilarity similarity, DataModel dataModel) {
+        if (similarity instanceof TanimotoCoefficientSimilarity || similarity instanceof LogLikelihoodSimilarity
+                || similarity instanceof AbstractBitmapUserSimilarity || !dataModel.hasPreferenceValues()) {
+            return Family.MIN_HASH;
+        }
+        return Family.SIM_HASH;
+    }
+
+    public Family getFamily() {
+        return family;
+    }
+
+    /**
+     * @return average number of candidates scored by the exact similarity per lookup
+     */
+    public double getAverageCandidates() {
+        long numQueries = queries.sum();
+        return numQueries == 0 ? Double.NaN : (double) candidates.sum() / numQueries;
+    }
+
+    @Override
+    public long[] getUserNeighborhood(long userID) throws TasteException {
+        TopNeighbors neighbors = rankNeighbors(userID);
+        return neighbors.size() == 0 ? NO_IDS : neighbors.getIDs(neighbors.size());
+    }
+
+    /**
+     * Ranks candidates of the user. The result is reused by the next call in the same thread.
+     */
+    TopNeighbors rankNeighbors(long userID) throws TasteException {
+        Tables tables = this.tables;
+        Scratch scratch = this.scratch.get();
+        if (scratch.stamps.length != tables.users.size()) {
+            // tables were rebuilt by refresh() for another number of users
+            scratch = new Scratch(tables.users.size(), n);
+            this.scratch.set(scratch);
+        }
+        TopNeighbors neighbors = scratch.neighbors;
+        neighbors.clear();
+        int user = tables.users.index(userID);
+        if (user < 0) {
+            return neighbors.sort();
+        }
+
+        int stamp = scratch.nextStamp();
+        int[] stamps = scratch.stamps;
+        int numCandidates = 0;
+        for (int band = 0; band < numBands; band++) {
+            long[] sortedKeys = tables.sortedKeys[band];
+            int[] sortedUsers = tables.sortedUsers[band];
+            long key = tables.userKeys[band][user];
+            for (int i = lowerBound(sortedKeys, key); i < sortedKeys.length && sortedKeys[i] == key; i++) {
+                int other = sortedUsers[i];
+                if (other != user && stamps[other] != stamp) {
+                    stamps[other] = stamp;
+                    numCandidates++;
+                    long otherID = tables.users.id(other);
+                    neighbors.offer(otherID, userSimilarity.userSimilarity(userID, otherID));
+                }
+            }
+        }
+        queries.increment();
+        candidates.add(numCandidates);
+        return neighbors.sort();
+    }
+
+    private Tables buildTables() throws TasteException {
+        long start = System.currentTimeMillis();
+        UserRatingVectors vectors = userSimilarity instanceof AbstractPrimitiveUserSimilarity
+                ? ((AbstractPrimitiveUserSimilarity) userSimilarity).getVectors()
+                : new UserRatingVectors(dataModel);
+        int numUsers = vectors.getNumUsers();
+        long[][] userKeys = new long[numBands][numUsers];
+        IntStream.range(0, numUsers).parallel().forEach(user -> {
+            long[] keys = family == Family.MIN_HASH ? minHashKeys(vectors, user) : simHashKeys(vectors, user);
+            for (int band = 0; band < numBands; band++) {
+                userKeys[band][user] = keys[band];
+            }
+        });
+
+        long[][] sortedKeys = new long[numBands][];
+        int[][] sortedUsers = new int[numBands][];
+        IntStream.range(0, numBands).parallel().forEach(band -> {
+            long[] keys = userKeys[band].clone();
+            Arrays.sort(keys);
+            // users are placed in ascending order after the first position of their key, so buckets stay sorted
+            int[] users = new int[numUsers];
+            int[] filled = new int[numUsers];
+            for (int user = 0; user < numUsers; user++) {
+                int first = lowerBound(keys, userKeys[band][user]);
+                users[first + filled[first]++] = user;
+            }
+            sortedKeys[band] = keys;
+            sortedUsers[band] = users;
+        });
+        log.info("Built {} LSH tables of {} rows for {} users in {} ms", numBands, rowsPerBand, numUsers,
+                System.currentTimeMillis() - start);
+        return new Tables(vectors.getUserDictionary(), userKeys, sortedKeys, sortedUsers);
+    }
+
+    /**
+     * @return key of every band: hash of the minima of {@code rowsPerBand} item hash functions
+     */
+    private long[] minHashKeys(UserRatingVectors vectors, int user) {
+        int numHashes = numBands * rowsPerBand;
+        long[] minima = new long[numHashes];
+        Arrays.fill(minima, Long.MAX_VALUE);
+        for (int item : vectors.getItems(user)) {
+            for (int h = 0; h < numHashes; h++) {
+                long hash = mix(seed ^ ((long) h << 32 | item));
+                if (hash < minima[h]) {
+                    minima[h] = hash;
+                }
+            }
+        }
+        long[] keys = new long[numBands];
+        for (int band = 0; band < numBands; band++) {
+            long key = 0L;
+            for (int row = 0; row < rowsPerBand; row++) {
+                key = mix(key ^ minima[band * rowsPerBand + row]);
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    /**
+     * @return key of every band: {@code rowsPerBand} signs of projections on random hyperplanes, whose coordinates
+     * (+1 or -1 per item) are bits of item hashes, so no hyperplane is stored
+     */
+    private long[] simHashKeys(UserRatingVectors vectors, int user) {
+        int numBits = numBands * rowsPerBand;
+        double[] projections = new double[numBits];
+        int[] items = vectors.getItems(user);
+        float[] values = vectors.getValues(user);
+        double mean = centered ? vectors.getMean(user) : 0.0;
+        for (int i = 0; i < items.length; i++) {
+            double value = values[i] - mean;
+            for (int word = 0; word * 64 < numBits; word++) {
+                long hash = mix(seed ^ ((long) word << 32 | items[i]));
+                int bits = Math.min(64, numBits - word * 64);
+                for (int bit = 0; bit < bits; bit++) {
+                    projections[word * 64 + bit] += (hash >>> bit & 1L) != 0 ? value : -value;
+                }
+            }
+        }
+        long[] keys = new long[numBands];
+        for (int band = 0; band < numBands; band++) {
+            long key = 0L;
+            for (int row = 0; row < rowsPerBand; row++) {
+                if (projections[band * rowsPerBand + row] > 0.0) {
+                    key |= 1L << row;
+                }
+            }
+            keys[band] = key;
+        }
+        return keys;
+    }
+
+    /**
+     * Finalizer of SplitMix64.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int lowerBound(long[] sorted, long key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, dataModel);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, userSimilarity);
+        try {
+            tables = buildTables();
+        } catch (TasteException te) {
+            throw new IllegalStateException(te);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LshUserNeighborhood[" + family + ", bands:" + numBands + ", rows:" + rowsPerBand + ']';
+    }
+
+    /**
+     * LSH settings given instead of a similarity class name, as {@code lsh:CLASS} or {@code lsh:BANDSxROWS:CLASS},
+     * e.g. {@code lsh:16x4:org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity}.
+     */
+    public static final class Parameters {
+
+        private static final String PREFIX = "lsh:";
+
+        private final int numBands;
+        private final int rowsPerBand;
+        private final String similarityClassName;
+
+        Parameters(int numBands, int rowsPerBand, String similarityClassName) {
+            this.numBands = numBands;
+            this.rowsPerBand = rowsPerBand;
+            this.similarityClassName = similarityClassName;
+        }
+
+        /**
+         * @return parameters, or null if {@code similarityName} is a plain class name
+         */
+        public static Parameters parse(String similarityName) {
+            if (!similarityName.startsWith(PREFIX)) {
+                return null;
+            }
+            String rest = similarityName.substring(PREFIX.length());
+            int colon = rest.indexOf(':');
+            if (colon < 0) {
+                return new Parameters(DEFAULT_BANDS, DEFAULT_ROWS_PER_BAND, rest);
+            }
+            String[] shape = rest.substring(0, colon).split("x");
+            if (shape.length != 2) {
+                throw new IllegalArgumentException(String.format(
+                        "'%s' should be lsh:BANDSxROWS:SIMILARITY_CLASS", similarityName));
+            }
+            return new Parameters(Integer.parseInt(shape[0].trim()), Integer.parseInt(shape[1].trim()),
+                    rest.substring(colon + 1));
+        }
+
+        public int getNumBands() {
+            return numBands;
+        }
+
+        public int getRowsPerBand() {
+            return rowsPerBand;
+        }
+
+        public String getSimilarityClassName() {
+            return similarityClassName;
+        }
+
+        public LshUserNeighborhood build(int n, UserSimilarity similarity, DataModel dataModel) throws TasteException {
+            return new LshUserNeighborhood(n, similarity, dataModel, numBands, rowsPerBand, DEFAULT_SEED);
+        }
+
+        @Override
+        public String toString() {
+            return PREFIX + numBands + 'x' + rowsPerBand + ':' + similarityClassName;
+        }
+    }
+
+    private static final class Tables {
+        private final IDDictionary users;
+        private final long[][] userKeys;
+        private final long[][] sortedKeys;
+        private final int[][] sortedUsers;
+
+        private Tables(IDDictionary users, long[][] userKeys, long[][] sortedKeys, int[][] sortedUsers) {
+            this.users = users;
+            this.userKeys = userKeys;
+            this.sortedKeys = sortedKeys;
+            this.sortedUsers = sortedUsers;
+        }
+    }
+
+    private static final class Scratch {
+        private final int[] stamps;
+        private final TopNeighbors neighbors;
+        private int stamp;
+
+        private Scratch(int numUsers, int n) {
+            this.stamps = new int[numUsers];
+            this.neighbors = new TopNeighbors(n);
+        }
+
+        private int nextStamp() {
+            if (++stamp == 0) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+            return stamp;
+        }
+    }
+}
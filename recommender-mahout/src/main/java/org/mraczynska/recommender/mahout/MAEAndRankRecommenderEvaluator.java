@@ -2,6 +2,7 @@ package org.mraczynska.recommender.mahout;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
@@ -19,7 +20,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -34,11 +35,9 @@ public class MAEAndRankRecommenderEvaluator /*implements RecommenderEvaluator*/
     private float maxPreference;
     private float minPreference;
 
-    private RunningAverage runningMAE;
-    private RunningAverage runningDCG;
-    private RunningAverage runningNDCG;
-    private int noEstimatesCount = 0;
-    private double avgEstimateBaseOnCount;
+    private EvaluationMetrics metrics = new EvaluationMetrics();
+    private EvaluationExecutor executor = new EvaluationExecutor();
+    private RecommenderStats stats;
 
     protected MAEAndRankRecommenderEvaluator() {
         random = RandomUtils.getRandom();
@@ -70,55 +69,151 @@ public class MAEAndRankRecommenderEvaluator /*implements RecommenderEvaluator*/
     public double evaluate(RecommenderBuilder recommenderBuilder,
                            DataModel trainingDataModel,
                            DataModel testDataModel) throws TasteException {
-        Preconditions.checkNotNull(recommenderBuilder);
+        return evaluate(recommenderBuilder, prepareFold(trainingDataModel, testDataModel));
+    }
+
+    /**
+     * Prepares a fold without copying any preferences: recommenders are built on the training model as it is and
+     * test preferences are the preference arrays of the test model, for users present in the training model.
+     */
+    public EvaluationFold prepareFold(DataModel trainingDataModel, DataModel testDataModel) throws TasteException {
+        Preconditions.checkNotNull(trainingDataModel);
+        Preconditions.checkNotNull(testDataModel);
+
+        IDDictionary trainingUsers = IDDictionary.ofUsers(trainingDataModel);
+        IDDictionary.Builder testUsers = new IDDictionary.Builder();
+        List<PreferenceArray> testPrefs = new ArrayList<>(testDataModel.getNumUsers());
+        LongPrimitiveIterator testIt = testDataModel.getUserIDs();
+        while (testIt.hasNext()) {
+            long userID = testIt.nextLong();
+            if (trainingUsers.contains(userID)) {
+                PreferenceArray prefs = testDataModel.getPreferencesFromUser(userID);
+                if (prefs.length() > 0) {
+                    testUsers.add(userID);
+                    testPrefs.add(prefs);
+                }
+            }
+        }
+
+        return new EvaluationFold(trainingDataModel, testUsers.build(), testPrefs.toArray(new PreferenceArray[0]));
+    }
+
+    /**
+     * Copies training and test preferences into new arrays and a new training model, for training models which
+     * should not be shared with recommenders (e.g. ones that may be refreshed during evaluation).
+     */
+    public EvaluationFold copyFold(DataModel trainingDataModel, DataModel testDataModel) throws TasteException {
         Preconditions.checkNotNull(trainingDataModel);
         Preconditions.checkNotNull(testDataModel);
 
         int numUsers = trainingDataModel.getNumUsers();
         FastByIDMap<PreferenceArray> trainingPrefs = new FastByIDMap<>(numUsers);
-        FastByIDMap<PreferenceArray> testPrefs = new FastByIDMap<>(numUsers);
+        IDDictionary.Builder testUsers = new IDDictionary.Builder();
+        List<PreferenceArray> testPrefs = new ArrayList<>(numUsers);
 
         LongPrimitiveIterator it = trainingDataModel.getUserIDs();
         while (it.hasNext()) {
             long userID = it.nextLong();
-            readOneUserFromModelToPrefMap(trainingPrefs, userID, trainingDataModel);
-            readOneUserFromModelToPrefMap(testPrefs, userID, testDataModel);
+            PreferenceArray prefs = copyPreferences(userID, trainingDataModel);
+            if (prefs != null) {
+                trainingPrefs.put(userID, prefs);
+            }
+            prefs = copyPreferences(userID, testDataModel);
+            if (prefs != null) {
+                testUsers.add(userID);
+                testPrefs.add(prefs);
+            }
         }
 
-        DataModel trainingModel = new GenericDataModel(trainingPrefs);
-
-        Recommender recommender = recommenderBuilder.buildRecommender(trainingModel);
+        return new EvaluationFold(new GenericDataModel(trainingPrefs), testUsers.build(),
+                testPrefs.toArray(new PreferenceArray[0]));
+    }
 
-        double result = getEvaluation(testPrefs, recommender);
+    public double evaluate(RecommenderBuilder recommenderBuilder, EvaluationFold fold) throws TasteException {
+        Preconditions.checkNotNull(recommenderBuilder);
+        Preconditions.checkNotNull(fold);
+
+        Recommender recommender = recommenderBuilder.buildRecommender(fold.getTrainingModel());
+
+        stats = recommender instanceof MyGenericUserBasedRecommender
+                ? ((MyGenericUserBasedRecommender) recommender).getStats()
+                : null;
+        double result = getEvaluation(fold, recommender);
+        if (stats != null) {
+            log.info("Estimate latency p50/p99/p999 per item: {} ms, per user: {} ms, recommend: {} ms, "
+                            + "neighborhood lookup: {} ms",
+                    formatMillis(stats.getEstimateNanos()), formatMillis(stats.getUserEstimateNanos()),
+                    formatMillis(stats.getRecommendNanos()), formatMillis(stats.getNeighborhoodNanos()));
+        }
         return result;
+    }
 
-//        if (!(recommender instanceof MyGenericUserBasedRecommender)) {
-//            throw new AssertionError("error, recommender should be instanceof MyGenericUserBasedRecommender");
-//        }
-//        MyGenericUserBasedRecommender myRecommender = (MyGenericUserBasedRecommender) recommender;
-//
-//        double result = getEvaluation(testPrefs, recommender);
-//
-//        avgEstimateBaseOnCount = myRecommender.getAvgEstimateBaseOnCount();
-        //return result;
-
+    private static String formatMillis(StripedHistogram nanos) {
+        double[] values = nanos.getValuesAtPercentiles(50.0, 99.0, 99.9);
+        return String.format("%.3f/%.3f/%.3f", RecommenderStats.nanosToMillis(values[0]),
+                RecommenderStats.nanosToMillis(values[1]), RecommenderStats.nanosToMillis(values[2]));
     }
 
     public Map<String, Double> evaluateAllMetrics(RecommenderBuilder recommenderBuilder,
                                                   DataModel trainingDataModel,
                                                   DataModel testDataModel) throws TasteException {
-        evaluate(recommenderBuilder, trainingDataModel, testDataModel);
-        return ImmutableMap.of(
-                "MAE.ByRating", computeMAE(),
-                "Predict.DCG", computeDCGRankError(),
-                "Predict.nDCG", computeNDCGRankError(),
-                "NoEstimates", (double)noEstimatesCount,
-                "avgEstimateBaseOnCount", avgEstimateBaseOnCount);
+        return evaluateAllMetrics(recommenderBuilder, prepareFold(trainingDataModel, testDataModel));
     }
 
-    private void readOneUserFromModelToPrefMap(FastByIDMap<PreferenceArray> preferencesMap,
-                                               long userID,
-                                               DataModel dataModel) throws TasteException {
+    public Map<String, Double> evaluateAllMetrics(RecommenderBuilder recommenderBuilder,
+                                                  EvaluationFold fold) throws TasteException {
+        evaluate(recommenderBuilder, fold);
+        return getMetrics();
+    }
+
+    /**
+     * Besides accuracy and ranking metrics, gives statistics of the recommender when it collects them (see
+     * {@link RecommenderStats}): the number of neighbors estimates were based on and latencies in milliseconds;
+     * they are NaN for other recommenders. Latencies of a kind of call the evaluation did not make are NaN too:
+     * "Latency.Estimate" is per {@code estimatePreference} call, "Latency.UserEstimate" per
+     * {@code estimatePreferences} call and "Latency.Recommend" per {@code recommend} call.
+     */
+    Map<String, Double> getMetrics() {
+        StripedHistogram neighbors = stats == null ? null : stats.getNeighborsPerEstimate();
+        double[] neighborsPercentiles = valuesAtPercentiles(neighbors, 50.0, 99.0);
+        ImmutableMap.Builder<String, Double> builder = ImmutableMap.<String, Double>builder()
+                .put("MAE.ByRating", computeMAE())
+                .put("RMSE.ByRating", computeRMSE())
+                .put("Predict.DCG", computeDCGRankError())
+                .put("Predict.nDCG", computeNDCGRankError())
+                .put("NoEstimates", (double) metrics.noEstimates)
+                .put("avgEstimateBaseOnCount", neighbors == null ? Double.NaN : neighbors.getMean())
+                .put("EstimateBaseOnCount.p50", neighborsPercentiles[0])
+                .put("EstimateBaseOnCount.p99", neighborsPercentiles[1]);
+        putLatencyPercentiles(builder, "Latency.Estimate", stats == null ? null : stats.getEstimateNanos());
+        putLatencyPercentiles(builder, "Latency.UserEstimate", stats == null ? null : stats.getUserEstimateNanos());
+        putLatencyPercentiles(builder, "Latency.Recommend", stats == null ? null : stats.getRecommendNanos());
+        putLatencyPercentiles(builder, "Latency.Neighborhood", stats == null ? null : stats.getNeighborhoodNanos());
+        return builder.build();
+    }
+
+    private static void putLatencyPercentiles(ImmutableMap.Builder<String, Double> builder,
+                                              String prefix,
+                                              StripedHistogram nanos) {
+        double[] values = valuesAtPercentiles(nanos, 50.0, 99.0, 99.9);
+        builder.put(prefix + ".p50", RecommenderStats.nanosToMillis(values[0]))
+                .put(prefix + ".p99", RecommenderStats.nanosToMillis(values[1]))
+                .put(prefix + ".p999", RecommenderStats.nanosToMillis(values[2]));
+    }
+
+    private static double[] valuesAtPercentiles(StripedHistogram histogram, double... percentiles) {
+        if (histogram == null) {
+            double[] values = new double[percentiles.length];
+            Arrays.fill(values, Double.NaN);
+            return values;
+        }
+        return histogram.getValuesAtPercentiles(percentiles);
+    }
+
+    /**
+     * @return copy of preferences of the user, null if the user has none in the model
+     */
+    private PreferenceArray copyPreferences(long userID, DataModel dataModel) throws TasteException {
 
         List<Preference> oneUserPrefs = new ArrayList<>();
         try {
@@ -128,12 +223,10 @@ public class MAEAndRankRecommenderEvaluator /*implements RecommenderEvaluator*/
                 Preference newPref = new GenericPreference(userID, prefs.getItemID(i), prefs.getValue(i));
                 oneUserPrefs.add(newPref);
             }
-            if (!oneUserPrefs.isEmpty()) {
-                preferencesMap.put(userID, new GenericUserPreferenceArray(oneUserPrefs));
-            }
         } catch (NoSuchUserException e) {
 //            System.out.println(e.getMessage());
         }
+        return oneUserPrefs.isEmpty() ? null : new GenericUserPreferenceArray(oneUserPrefs);
     }
 
     private float capEstimatedPreference(float estimate) {
@@ -146,18 +239,22 @@ public class MAEAndRankRecommenderEvaluator /*implements RecommenderEvaluator*/
         return estimate;
     }
 
-    private double getEvaluation(FastByIDMap<PreferenceArray> testPrefs, Recommender recommender)
+    private double getEvaluation(EvaluationFold fold, Recommender recommender)
             throws TasteException {
         reset();
-        Collection<Callable<Void>> estimateCallables = new ArrayList<>();
-        AtomicInteger noEstimateCounter = new AtomicInteger();
-        for (Map.Entry<Long,PreferenceArray> entry : testPrefs.entrySet()) {
-            estimateCallables.add(
-                    new PreferenceEstimateCallable(recommender, entry.getKey(), entry.getValue(), noEstimateCounter));
+        int[] profileSizes = new int[fold.getNumTestUsers()];
+        for (int user = 0; user < profileSizes.length; user++) {
+            profileSizes[user] = fold.getTestPrefs(user).length();
         }
-        log.info("Beginning evaluation of {} users", estimateCallables.size());
-        RunningAverageAndStdDev timing = new FullRunningAverageAndStdDev();
-        execute(estimateCallables, noEstimateCounter, timing);
+        // a batch estimator finds the neighborhood and scans neighbors' profiles once per call, so every slice of a
+        // split user would repeat that work; only per-item estimators, whose work grows with the profile, are split
+        boolean splitUsers = !(recommender instanceof BatchPreferenceEstimator);
+        // every unit collects its own metrics, merged in the order of the plan
+        Map<Integer, SplitUser> splitUserEstimates = new HashMap<>();
+        Iterator<Callable<EvaluationMetrics>> estimateCallables = Iterators.transform(
+                SkewAwareScheduler.schedule(profileSizes, splitUsers).iterator(),
+                unit -> newEstimateCallable(recommender, fold, unit, splitUserEstimates));
+        executor.execute(estimateCallables, fold.getNumTestUsers(), fold.getNumTestPrefs(), metrics::merge);
 
 
         double mae = computeMAE();
@@ -172,65 +269,106 @@ public class MAEAndRankRecommenderEvaluator /*implements RecommenderEvaluator*/
 //        log.info("Evaluation result, NDCG: {}", nDcg);
 //        System.out.println("Evaluation result, nDCG: " + nDcg);
 
-        noEstimatesCount = noEstimateCounter.get();
-
         return mae;
     }
 
-    protected static void execute(Collection<Callable<Void>> callables,
-                                  AtomicInteger noEstimateCounter,
-                                  RunningAverageAndStdDev timing) throws TasteException {
-
-        Collection<Callable<Void>> wrappedCallables = wrapWithStatsCallables(callables, noEstimateCounter, timing);
-        int numProcessors = Runtime.getRuntime().availableProcessors();
-        ExecutorService executor = Executors.newFixedThreadPool(numProcessors);
-        log.info("Starting timing of {} tasks in {} threads", wrappedCallables.size(), numProcessors);
-        try {
-            List<Future<Void>> futures = executor.invokeAll(wrappedCallables);
-            // Go look for exceptions here, really
-            for (Future<Void> future : futures) {
-                future.get();
-            }
-
-        } catch (InterruptedException ie) {
-            throw new TasteException(ie);
-        } catch (ExecutionException ee) {
-            throw new TasteException(ee.getCause());
+    private Callable<EvaluationMetrics> newEstimateCallable(Recommender recommender,
+                                                            EvaluationFold fold,
+                                                            SkewAwareScheduler.WorkUnit unit,
+                                                            Map<Integer, SplitUser> splitUsers) {
+        if (!unit.isSlice()) {
+            return new PreferenceEstimateCallable(recommender, fold, unit.getUsers());
         }
-
-        executor.shutdown();
-        try {
-            executor.awaitTermination(10, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            throw new TasteException(e.getCause());
+        int user = unit.getUsers()[0];
+        // slices of one user are consecutive, so the user is forgotten after the last one
+        SplitUser splitUser = unit.isLastSlice() ? splitUsers.remove(user) : splitUsers.get(user);
+        if (splitUser == null) {
+            splitUser = new SplitUser(fold.getTestUsers().id(user), fold.getTestPrefs(user), unit.getNumSlices());
+            if (!unit.isLastSlice()) {
+                splitUsers.put(user, splitUser);
+            }
         }
+        int profileSize = splitUser.prefs.length();
+        return new SliceEstimateCallable(recommender, splitUser, unit.getFrom(profileSize), unit.getTo(profileSize));
     }
 
-    private static Collection<Callable<Void>> wrapWithStatsCallables(Iterable<Callable<Void>> callables,
-                                                                     AtomicInteger noEstimateCounter,
-                                                                     RunningAverageAndStdDev timing) {
-        Collection<Callable<Void>> wrapped = new ArrayList<>();
-        int count = 0;
-        for (Callable<Void> callable : callables) {
-            boolean logStats = count++ % 1000 == 0; // log every 1000 or so iterations
-            wrapped.add(new StatsCallable(callable, logStats, timing, noEstimateCounter));
-        }
-        return wrapped;
+    /**
+     * @return executor running evaluations, e.g. to follow their progress or cancel them
+     */
+    public EvaluationExecutor getExecutor() {
+        return executor;
     }
 
+    public void setExecutor(EvaluationExecutor executor) {
+        this.executor = Preconditions.checkNotNull(executor);
+    }
 
     protected void reset() {
-        runningMAE = new FullRunningAverage();
-        runningDCG = new FullRunningAverage();
-        runningNDCG = new FullRunningAverage();
-        noEstimatesCount = 0;
+        metrics = new EvaluationMetrics();
+    }
+
+    /**
+     * Replaces collected metrics with ones collected outside of this evaluator.
+     */
+    void setMetrics(EvaluationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Replaces recommender statistics with ones collected outside of this evaluator; null if there are none.
+     */
+    void setStats(RecommenderStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Collects all metrics of one test user into {@code target}. Estimates are given in the order of preferences in
+     * {@code prefs}.
+     *
+     * @return number of preferences which could not be estimated
+     */
+    int processEstimatesOfOneUser(PreferenceArray prefs, float[] estimatedPreferences, EvaluationMetrics target) {
+        Map<Long, Float> allEstimatedPreferencesOfCurrentUser = new HashMap<>();
+        Map<Long, Float> allRealPreferencesOfCurrentUser = new HashMap<>();
+        int noEstimates = 0;
+
+        for (int i = 0; i < prefs.length(); i++) {
+            float estimatedPreference = estimatedPreferences[i];
+            if (Float.isNaN(estimatedPreference)) {
+                noEstimates++;
+            } else {
+                long itemID = prefs.getItemID(i);
+                float realPreference = prefs.getValue(i);
+                estimatedPreference = capEstimatedPreference(estimatedPreference);
+
+                processOneEstimate(estimatedPreference, realPreference, target);
+
+                allEstimatedPreferencesOfCurrentUser.put(itemID, estimatedPreference);
+                allRealPreferencesOfCurrentUser.put(itemID, realPreference);
+            }
+        }
+
+        processAllEstimatesOfOneUser(allEstimatedPreferencesOfCurrentUser, allRealPreferencesOfCurrentUser, true, target);
+        target.noEstimates += noEstimates;
+        return noEstimates;
     }
 
     protected void processOneEstimate(float estimatedPreference, Preference realPref) {
-        runningMAE.addDatum(Math.abs(realPref.getValue() - estimatedPreference));
+        processOneEstimate(estimatedPreference, realPref.getValue(), metrics);
+    }
+
+    private static void processOneEstimate(float estimatedPreference, float realPreference, EvaluationMetrics target) {
+        target.absoluteErrors.addDatum(Math.abs(realPreference - estimatedPreference));
     }
 
     protected void processAllEstimatesOfOneUser(Map<Long, Float> estimatedPreferences, Map<Long, Float> realPreferences, boolean alsoNDCG) {
+        processAllEstimatesOfOneUser(estimatedPreferences, realPreferences, alsoNDCG, metrics);
+    }
+
+    private static void processAllEstimatesOfOneUser(Map<Long, Float> estimatedPreferences,
+                                                     Map<Long, Float> realPreferences,
+                                                     boolean alsoNDCG,
+                                                     EvaluationMetrics target) {
         if(estimatedPreferences.isEmpty()) {
             return;
         }
@@ -249,7 +387,7 @@ public class MAEAndRankRecommenderEvaluator /*implements RecommenderEvaluator*/
             dcg += realRate/log2(i+1);
             i++;
         }
-        runningDCG.addDatum(dcg);
+        target.dcg.addDatum(dcg);
         if(alsoNDCG) {
             List<Long> sortedItemsByReal = realPreferences.entrySet().stream()
                     .sorted((a, b) -> Float.compare(b.getValue(), a.getValue())) //descending
@@ -266,77 +404,178 @@ public class MAEAndRankRecommenderEvaluator /*implements RecommenderEvaluator*/
             if (idealDcg != 0.0) {
                 // w razie wypadku gdy idealdcg jest 0.0 bo wszystkie preferencje wynoszą 0.0
                 nDcg = dcg / idealDcg;
-                runningNDCG.addDatum(nDcg);
+                target.ndcg.addDatum(nDcg);
             }
         }
 
     }
 
-    private double log2(int x) {
+    private static double log2(int x) {
         //log2(x)=log2(e)*loge(x)
         return 1.442695 * Math.log(x);
     }
 
 
     private double computeMAE() {
-        return runningMAE.getAverage();
+        return metrics.absoluteErrors.getAverage();
+    }
+
+    private double computeRMSE() {
+        return metrics.absoluteErrors.getRootMeanSquare();
     }
 
     double computeDCGRankError() {
-        return runningDCG.getAverage();
+        return metrics.dcg.getAverage();
     }
 
-    double computeNDCGRankError() { return runningNDCG.getAverage(); }
+    double computeNDCGRankError() { return metrics.ndcg.getAverage(); }
+
+    /**
+     * @return estimates of preferences in {@code prefs} from position {@code from} (inclusive) to {@code to}
+     * (exclusive)
+     */
+    private static float[] estimatePreferences(Recommender recommender,
+                                               long testUserID,
+                                               PreferenceArray prefs,
+                                               int from,
+                                               int to) throws TasteException {
+        if (recommender instanceof BatchPreferenceEstimator) {
+            return estimateAllPreferences((BatchPreferenceEstimator) recommender, testUserID, prefs, from, to);
+        } else {
+            return estimateEachPreference(recommender, testUserID, prefs, from, to);
+        }
+    }
 
-    public final class PreferenceEstimateCallable implements Callable<Void> {
+    private static float[] estimateAllPreferences(BatchPreferenceEstimator estimator,
+                                                  long testUserID,
+                                                  PreferenceArray prefs,
+                                                  int from,
+                                                  int to) throws TasteException {
+        long[] itemIDs = new long[to - from];
+        for (int i = from; i < to; i++) {
+            itemIDs[i - from] = prefs.getItemID(i);
+        }
+        try {
+            return estimator.estimatePreferences(testUserID, itemIDs);
+        } catch (NoSuchUserException nsue) {
+            log.info("User exists in test data but not training data: {}", testUserID);
+            float[] estimatedPreferences = new float[itemIDs.length];
+            Arrays.fill(estimatedPreferences, Float.NaN);
+            return estimatedPreferences;
+        }
+    }
+
+    private static float[] estimateEachPreference(Recommender recommender,
+                                                  long testUserID,
+                                                  PreferenceArray prefs,
+                                                  int from,
+                                                  int to) throws TasteException {
+        float[] estimatedPreferences = new float[to - from];
+
+        for (int i = from; i < to; i++) {
+            long itemID = prefs.getItemID(i);
+            float estimatedPreference = Float.NaN;
+            try {
+                estimatedPreference = recommender.estimatePreference(testUserID, itemID);
+            } catch (NoSuchUserException nsue) {
+                // It's possible that an item exists in the test data but not training data in which case
+                // NSEE will be thrown. Just ignore it and move on.
+                log.info("User exists in test data but not training data: {}", testUserID);
+            } catch (NoSuchItemException nsie) {
+                log.info("Item exists in test data but not training data: {}", itemID);
+            }
+            estimatedPreferences[i - from] = estimatedPreference;
+        }
+        return estimatedPreferences;
+    }
+
+    /**
+     * Estimates test preferences of a group of users, one user after another, and returns metrics of the group.
+     */
+    public final class PreferenceEstimateCallable implements Callable<EvaluationMetrics> {
 
         private final Recommender recommender;
-        private final long testUserID;
-        private final PreferenceArray prefs;
-        private final AtomicInteger noEstimateCounter;
+        private final EvaluationFold fold;
+        private final int[] users;
 
-        public PreferenceEstimateCallable(Recommender recommender,
-                                          long testUserID,
-                                          PreferenceArray prefs,
-                                          AtomicInteger noEstimateCounter) {
+        /**
+         * @param users indices of test users of the fold
+         */
+        PreferenceEstimateCallable(Recommender recommender, EvaluationFold fold, int[] users) {
             this.recommender = recommender;
-            this.testUserID = testUserID;
-            this.prefs = prefs;
-            this.noEstimateCounter = noEstimateCounter;
+            this.fold = fold;
+            this.users = users;
         }
 
         @Override
-        public Void call() throws TasteException {
-            Map<Long, Float> allEstimatedPreferencesOfCurrentUser = new HashMap<>();
-            Map<Long, Float> allRealPreferencesOfCurrentUser = new HashMap<>();
-
-            for (Preference realPref : prefs) {
-                float estimatedPreference = Float.NaN;
-                try {
-                    estimatedPreference = recommender.estimatePreference(testUserID, realPref.getItemID());
-                } catch (NoSuchUserException nsue) {
-                    // It's possible that an item exists in the test data but not training data in which case
-                    // NSEE will be thrown. Just ignore it and move on.
-                    log.info("User exists in test data but not training data: {}", testUserID);
-                } catch (NoSuchItemException nsie) {
-                    log.info("Item exists in test data but not training data: {}", realPref.getItemID());
+        public EvaluationMetrics call() throws TasteException {
+            EvaluationMetrics groupMetrics = new EvaluationMetrics();
+            for (int user : users) {
+                if (executor.isCancelled()) {
+                    break;
                 }
-                if (Float.isNaN(estimatedPreference)) {
-                    noEstimateCounter.incrementAndGet();
-                } else {
-                    estimatedPreference = capEstimatedPreference(estimatedPreference);
+                PreferenceArray prefs = fold.getTestPrefs(user);
+                float[] estimatedPreferences = estimatePreferences(recommender, fold.getTestUsers().id(user), prefs, 0,
+                        prefs.length());
+                int noEstimates = processEstimatesOfOneUser(prefs, estimatedPreferences, groupMetrics);
+                executor.userEvaluated(prefs.length(), noEstimates);
+            }
+            return groupMetrics;
+        }
+    }
 
-                    processOneEstimate(estimatedPreference, realPref);
+    /**
+     * Test preferences of a user estimated in slices, in parallel. Estimates of the slices are collected in one array
+     * and the slice which finishes last computes metrics of the whole user.
+     */
+    private static final class SplitUser {
 
-                    allEstimatedPreferencesOfCurrentUser.put(realPref.getItemID(), estimatedPreference);
-                    allRealPreferencesOfCurrentUser.put(realPref.getItemID(), realPref.getValue());
-                }
-            }
+        private final long userID;
+        private final PreferenceArray prefs;
+        private final float[] estimatedPreferences;
+        private final AtomicInteger remainingSlices;
 
-            processAllEstimatesOfOneUser(allEstimatedPreferencesOfCurrentUser, allRealPreferencesOfCurrentUser, true);
+        private SplitUser(long userID, PreferenceArray prefs, int numSlices) {
+            this.userID = userID;
+            this.prefs = prefs;
+            this.estimatedPreferences = new float[prefs.length()];
+            this.remainingSlices = new AtomicInteger(numSlices);
+        }
+    }
+
+    /**
+     * Estimates one slice of test preferences of a {@link SplitUser}. Metrics of the user are returned by the slice
+     * which finishes last; other slices return empty metrics, so merging them in plan order gives the same result
+     * whichever slice is last.
+     */
+    private final class SliceEstimateCallable implements Callable<EvaluationMetrics> {
+
+        private final Recommender recommender;
+        private final SplitUser splitUser;
+        private final int from;
+        private final int to;
 
-            return null;
+        private SliceEstimateCallable(Recommender recommender, SplitUser splitUser, int from, int to) {
+            this.recommender = recommender;
+            this.splitUser = splitUser;
+            this.from = from;
+            this.to = to;
         }
 
+        @Override
+        public EvaluationMetrics call() throws TasteException {
+            EvaluationMetrics userMetrics = new EvaluationMetrics();
+            if (executor.isCancelled()) {
+                return userMetrics;
+            }
+            float[] estimatedPreferences = estimatePreferences(recommender, splitUser.userID, splitUser.prefs, from, to);
+            System.arraycopy(estimatedPreferences, 0, splitUser.estimatedPreferences, from, to - from);
+            // decrementing after writing the slice makes all slices visible to the last one
+            if (splitUser.remainingSlices.decrementAndGet() == 0) {
+                int noEstimates = processEstimatesOfOneUser(splitUser.prefs, splitUser.estimatedPreferences, userMetrics);
+                executor.userEvaluated(splitUser.prefs.length(), noEstimates);
+            }
+            return userMetrics;
+        }
     }
 }
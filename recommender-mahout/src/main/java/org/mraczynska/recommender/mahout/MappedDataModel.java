@@ -0,0 +1,264 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+import static org.mraczynska.recommender.mahout.BinaryRatingsFile.*;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Read-only {@code DataModel} over a memory-mapped {@link BinaryRatingsFile}. Only user and item IDs are copied on
+ * load, into {@link IDDictionary}s for lookups; preference arrays are views of the mapped rows, so several JVMs
+ * evaluating the same fold share one copy of the data in the page cache.
+ */
+public class MappedDataModel extends AbstractDataModel {
+
+    private final File dataFile;
+    private final int valueType;
+    private final LongBuffer userIDs;
+    private final LongBuffer itemIDs;
+    private final IDDictionary users;
+    private final IDDictionary items;
+    private final IntBuffer userOffsets;
+    private final IntBuffer userItems;
+    private final ByteBuffer userValues;
+    private final IntBuffer itemOffsets;
+    private final IntBuffer itemUsers;
+    private final ByteBuffer itemValues;
+
+    public MappedDataModel(File dataFile) throws IOException {
+        this(dataFile, false);
+    }
+
+    public MappedDataModel(File dataFile, boolean ignoreRatings) throws IOException {
+        this.dataFile = dataFile;
+        ByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "r")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(String.format("'%s' is not a binary ratings file", dataFile));
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(String.format("Unsupported binary ratings version %d in '%s'", buffer.getInt(4), dataFile));
+        }
+        int storedValueType = buffer.getInt(8);
+        int numUsers = buffer.getInt(12);
+        int numItems = buffer.getInt(16);
+        int numPrefs = buffer.getInt(20);
+        long[] offsets = sectionOffsets(numUsers, numItems, numPrefs, storedValueType);
+        if (offsets[END] != buffer.capacity()) {
+            throw new IOException(String.format("Binary ratings file '%s' is truncated", dataFile));
+        }
+
+        valueType = ignoreRatings ? VALUES_NONE : storedValueType;
+        if (valueType != VALUES_NONE) {
+            setMinPreference(buffer.getFloat(24));
+            setMaxPreference(buffer.getFloat(28));
+        }
+        userIDs = (LongBuffer) section(buffer, offsets[USER_IDS]).asLongBuffer().limit(numUsers);
+        itemIDs = (LongBuffer) section(buffer, offsets[ITEM_IDS]).asLongBuffer().limit(numItems);
+        users = IDDictionary.sorted(userIDs);
+        items = IDDictionary.sorted(itemIDs);
+        userOffsets = section(buffer, offsets[USER_OFFSETS]).asIntBuffer();
+        userItems = section(buffer, offsets[USER_ITEMS]).asIntBuffer();
+        userValues = section(buffer, offsets[USER_VALUES]);
+        itemOffsets = section(buffer, offsets[ITEM_OFFSETS]).asIntBuffer();
+        itemUsers = section(buffer, offsets[ITEM_USERS]).asIntBuffer();
+        itemValues = section(buffer, offsets[ITEM_VALUES]);
+    }
+
+    private static int indexOf(IntBuffer indices, int from, int to, int index) {
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midIndex = indices.get(mid);
+            if (midIndex < index) {
+                low = mid + 1;
+            } else if (midIndex > index) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int userIndex(long userID) throws NoSuchUserException {
+        int user = users.index(userID);
+        if (user < 0) {
+            throw new NoSuchUserException(userID);
+        }
+        return user;
+    }
+
+    private int itemIndex(long itemID) throws NoSuchItemException {
+        int item = items.index(itemID);
+        if (item < 0) {
+            throw new NoSuchItemException(itemID);
+        }
+        return item;
+    }
+
+    /**
+     * @return ID of the item (in a user row) or user (in an item row) at the given position
+     */
+    long otherID(boolean userRow, int position) {
+        return userRow ? itemIDs.get(userItems.get(position)) : userIDs.get(itemUsers.get(position));
+    }
+
+    float value(boolean userRow, int position) {
+        ByteBuffer values = userRow ? userValues : itemValues;
+        switch (valueType) {
+            case VALUES_BYTE:
+                return values.get(position);
+            case VALUES_FLOAT:
+                return values.getFloat(position << 2);
+            default:
+                return 1.0f;
+        }
+    }
+
+    boolean rowContains(boolean userRow, int from, int to, long otherID) {
+        int other = (userRow ? items : users).index(otherID);
+        return other >= 0 && indexOf(userRow ? userItems : itemUsers, from, to, other) >= 0;
+    }
+
+    @Override
+    public LongPrimitiveIterator getUserIDs() {
+        return users.iterator();
+    }
+
+    @Override
+    public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+        int user = userIndex(userID);
+        return new MappedPreferenceArray(this, true, userID, userOffsets.get(user), userOffsets.get(user + 1));
+    }
+
+    @Override
+    public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
+        int user = userIndex(userID);
+        int from = userOffsets.get(user);
+        int to = userOffsets.get(user + 1);
+        FastIDSet result = new FastIDSet(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(itemIDs.get(userItems.get(i)));
+        }
+        return result;
+    }
+
+    @Override
+    public LongPrimitiveIterator getItemIDs() {
+        return items.iterator();
+    }
+
+    @Override
+    public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+        int item = itemIndex(itemID);
+        return new MappedPreferenceArray(this, false, itemID, itemOffsets.get(item), itemOffsets.get(item + 1));
+    }
+
+    @Override
+    public Float getPreferenceValue(long userID, long itemID) throws TasteException {
+        int user = userIndex(userID);
+        int item = items.index(itemID);
+        if (item < 0) {
+            return null;
+        }
+        int position = indexOf(userItems, userOffsets.get(user), userOffsets.get(user + 1), item);
+        return position < 0 ? null : value(true, position);
+    }
+
+    @Override
+    public Long getPreferenceTime(long userID, long itemID) {
+        return null;
+    }
+
+    @Override
+    public int getNumItems() {
+        return itemIDs.limit();
+    }
+
+    @Override
+    public int getNumUsers() {
+        return userIDs.limit();
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID) {
+        int item = items.index(itemID);
+        return item < 0 ? 0 : itemOffsets.get(item + 1) - itemOffsets.get(item);
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) {
+        int item1 = items.index(itemID1);
+        int item2 = items.index(itemID2);
+        if (item1 < 0 || item2 < 0) {
+            return 0;
+        }
+        int i = itemOffsets.get(item1);
+        int end1 = itemOffsets.get(item1 + 1);
+        int j = itemOffsets.get(item2);
+        int end2 = itemOffsets.get(item2 + 1);
+        int count = 0;
+        while (i < end1 && j < end2) {
+            int user1 = itemUsers.get(i);
+            int user2 = itemUsers.get(j);
+            if (user1 == user2) {
+                count++;
+            }
+            if (user1 <= user2) {
+                i++;
+            }
+            if (user2 <= user1) {
+                j++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasPreferenceValues() {
+        return valueType != VALUES_NONE;
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        // mapped file is immutable
+    }
+
+    @Override
+    public String toString() {
+        return "MappedDataModel[" + dataFile + ']';
+    }
+}
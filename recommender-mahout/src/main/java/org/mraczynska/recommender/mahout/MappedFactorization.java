@@ -0,0 +1,154 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+
+import java.nio.DoubleBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * {@link Factorization} served from a file mapped by {@link FactorStore}: users and items are numbered by
+ * {@link IDDictionary}s and the features of index {@code i} are doubles {@code i * numFeatures} to
+ * {@code (i + 1) * numFeatures - 1} of the mapped buffers. {@code getUserFeatures} and {@code getItemFeatures} copy
+ * one row, so nothing is read before it is used; {@code allUserFeatures} and {@code allItemFeatures} copy all rows.
+ */
+final class MappedFactorization extends Factorization {
+
+    private final IDDictionary users;
+    private final IDDictionary items;
+    private final DoubleBuffer userFeatures;
+    private final DoubleBuffer itemFeatures;
+    private final int numFeatures;
+
+    MappedFactorization(IDDictionary users,
+                        IDDictionary items,
+                        DoubleBuffer userFeatures,
+                        DoubleBuffer itemFeatures,
+                        int numFeatures) {
+        // the mappings and arrays of the superclass are not used
+        super(new FastByIDMap<>(), new FastByIDMap<>(), new double[0][], new double[0][]);
+        this.users = users;
+        this.items = items;
+        this.userFeatures = userFeatures;
+        this.itemFeatures = itemFeatures;
+        this.numFeatures = numFeatures;
+    }
+
+    private double[] row(DoubleBuffer features, int index) {
+        double[] row = new double[numFeatures];
+        int offset = index * numFeatures;
+        // absolute gets, so concurrent readers do not share a position
+        for (int f = 0; f < numFeatures; f++) {
+            row[f] = features.get(offset + f);
+        }
+        return row;
+    }
+
+    private double[][] rows(DoubleBuffer features, int size) {
+        double[][] rows = new double[size][];
+        for (int index = 0; index < size; index++) {
+            rows[index] = row(features, index);
+        }
+        return rows;
+    }
+
+    private static List<Map.Entry<Long, Integer>> mappings(IDDictionary dictionary) {
+        List<Map.Entry<Long, Integer>> mappings = new ArrayList<>(dictionary.size());
+        for (int index = 0; index < dictionary.size(); index++) {
+            mappings.add(new AbstractMap.SimpleImmutableEntry<>(dictionary.id(index), index));
+        }
+        return mappings;
+    }
+
+    @Override
+    public double[][] allUserFeatures() {
+        return rows(userFeatures, users.size());
+    }
+
+    @Override
+    public double[] getUserFeatures(long userID) throws NoSuchUserException {
+        return row(userFeatures, userIndex(userID));
+    }
+
+    @Override
+    public double[][] allItemFeatures() {
+        return rows(itemFeatures, items.size());
+    }
+
+    @Override
+    public double[] getItemFeatures(long itemID) throws NoSuchItemException {
+        return row(itemFeatures, itemIndex(itemID));
+    }
+
+    @Override
+    public int userIndex(long userID) throws NoSuchUserException {
+        int index = users.index(userID);
+        if (index < 0) {
+            throw new NoSuchUserException(userID);
+        }
+        return index;
+    }
+
+    @Override
+    public Iterable<Map.Entry<Long, Integer>> getUserIDMappings() {
+        return mappings(users);
+    }
+
+    @Override
+    public LongPrimitiveIterator getUserIDMappingKeys() {
+        return users.iterator();
+    }
+
+    @Override
+    public int itemIndex(long itemID) throws NoSuchItemException {
+        int index = items.index(itemID);
+        if (index < 0) {
+            throw new NoSuchItemException(itemID);
+        }
+        return index;
+    }
+
+    @Override
+    public Iterable<Map.Entry<Long, Integer>> getItemIDMappings() {
+        return mappings(items);
+    }
+
+    @Override
+    public LongPrimitiveIterator getItemIDMappingKeys() {
+        return items.iterator();
+    }
+
+    @Override
+    public int numFeatures() {
+        return numFeatures;
+    }
+
+    @Override
+    public int numUsers() {
+        return users.size();
+    }
+
+    @Override
+    public int numItems() {
+        return items.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        // fields of the superclass are empty, so its comparison would find every mapped factorization equal
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+}
@@ -0,0 +1,160 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Read-only view of one row of a {@link MappedDataModel}: preferences of one user (ordered by item ID) or of one
+ * item (ordered by user ID). Rows are already sorted, so {@code sortByUser} and {@code sortByItem} do nothing;
+ * {@link #clone()} gives a regular, modifiable array.
+ */
+final class MappedPreferenceArray implements PreferenceArray {
+
+    private final MappedDataModel dataModel;
+    private final boolean byUser;
+    private final long id;
+    private final int start;
+    private final int length;
+
+    MappedPreferenceArray(MappedDataModel dataModel, boolean byUser, long id, int start, int end) {
+        this.dataModel = dataModel;
+        this.byUser = byUser;
+        this.id = id;
+        this.start = start;
+        this.length = end - start;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public Preference get(int i) {
+        return new GenericPreference(getUserID(i), getItemID(i), getValue(i));
+    }
+
+    @Override
+    public long getUserID(int i) {
+        return byUser ? id : dataModel.otherID(false, start + i);
+    }
+
+    @Override
+    public long getItemID(int i) {
+        return byUser ? dataModel.otherID(true, start + i) : id;
+    }
+
+    /**
+     * @return IDs of items for a user row, IDs of users for an item row
+     */
+    @Override
+    public long[] getIDs() {
+        long[] ids = new long[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = dataModel.otherID(byUser, start + i);
+        }
+        return ids;
+    }
+
+    @Override
+    public float getValue(int i) {
+        return dataModel.value(byUser, start + i);
+    }
+
+    @Override
+    public PreferenceArray clone() {
+        PreferenceArray copy = byUser ? new GenericUserPreferenceArray(length) : new GenericItemPreferenceArray(length);
+        for (int i = 0; i < length; i++) {
+            copy.setUserID(i, getUserID(i));
+            copy.setItemID(i, getItemID(i));
+            copy.setValue(i, getValue(i));
+        }
+        return copy;
+    }
+
+    @Override
+    public void sortByUser() {
+    }
+
+    @Override
+    public void sortByItem() {
+    }
+
+    @Override
+    public void sortByValue() {
+        throw readOnly();
+    }
+
+    @Override
+    public void sortByValueReversed() {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean hasPrefWithUserID(long userID) {
+        return byUser ? id == userID : dataModel.rowContains(false, start, start + length, userID);
+    }
+
+    @Override
+    public boolean hasPrefWithItemID(long itemID) {
+        return byUser ? dataModel.rowContains(true, start, start + length, itemID) : id == itemID;
+    }
+
+    @Override
+    public void set(int i, Preference pref) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setUserID(int i, long userID) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setItemID(int i, long itemID) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setValue(int i, float value) {
+        throw readOnly();
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Preferences of MappedDataModel are read-only, clone() them first");
+    }
+
+    @Override
+    public Iterator<Preference> iterator() {
+        return new Iterator<Preference>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < length;
+            }
+
+            @Override
+            public Preference next() {
+                if (i >= length) {
+                    throw new NoSuchElementException();
+                }
+                return get(i++);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return (byUser ? "MappedUserPreferenceArray[userID:" : "MappedItemPreferenceArray[itemID:") + id
+                + ",length:" + length + ']';
+    }
+}
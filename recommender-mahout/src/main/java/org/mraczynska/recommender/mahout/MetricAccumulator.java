@@ -0,0 +1,41 @@
+package org.mraczynska.recommender.mahout;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Count, sum and sum of squares of a metric, for its mean and root mean square. Each evaluation task fills its own
+ * accumulator and accumulators are merged in a fixed order at the end, so no locking is needed and the result does
+ * not depend on the number of threads.
+ */
+final class MetricAccumulator {
+
+    private long count;
+    private double sum;
+    private double sumOfSquares;
+
+    void addDatum(double datum) {
+        count++;
+        sum += datum;
+        sumOfSquares += datum * datum;
+    }
+
+    void merge(MetricAccumulator other) {
+        count += other.count;
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+    }
+
+    /**
+     * @return mean of the data, NaN if there is none
+     */
+    double getAverage() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * @return square root of the mean square of the data, NaN if there is none
+     */
+    double getRootMeanSquare() {
+        return count == 0 ? Double.NaN : Math.sqrt(sumOfSquares / count);
+    }
+}
@@ -0,0 +1,285 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.recommender.EstimatedPreferenceCapper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Evaluates user-based k-NN for several neighborhood sizes in one pass. Neighbors of each test user are ranked once,
+ * up to the largest size, and predictions for every size are read from running weighted sums over that ranking.
+ * Predictions are the same as {@link MyGenericUserBasedRecommender} with {@code NearestNUserNeighborhood} would give;
+ * candidates are found through an {@link InvertedIndexUserNeighborhood}, or taken from a
+ * {@link PrecomputedUserSimilarity} whose lists are long enough. With LSH parameters, neighbors are ranked by an
+ * approximate {@link LshUserNeighborhood} instead.
+ */
+public final class MultiNeighborhoodSizeEvaluator {
+
+    private static final Logger log = LoggerFactory.getLogger(MultiNeighborhoodSizeEvaluator.class);
+
+    private final int[] neighborhoodSizes;
+    private final EvaluationExecutor executor;
+
+    /**
+     * @param neighborhoodSizes neighborhood sizes in ascending order
+     */
+    public MultiNeighborhoodSizeEvaluator(int[] neighborhoodSizes) {
+        this(neighborhoodSizes, new EvaluationExecutor());
+    }
+
+    public MultiNeighborhoodSizeEvaluator(int[] neighborhoodSizes, EvaluationExecutor executor) {
+        Preconditions.checkArgument(neighborhoodSizes.length > 0, "no neighborhood sizes given");
+        for (int i = 0; i < neighborhoodSizes.length; i++) {
+            Preconditions.checkArgument(neighborhoodSizes[i] >= 1, "neighborhood size must be at least 1");
+            Preconditions.checkArgument(i == 0 || neighborhoodSizes[i - 1] < neighborhoodSizes[i],
+                    "neighborhood sizes must be ascending");
+        }
+        this.neighborhoodSizes = neighborhoodSizes.clone();
+        this.executor = Preconditions.checkNotNull(executor);
+    }
+
+    /**
+     * @return metrics (as in {@link MAEAndRankRecommenderEvaluator#evaluateAllMetrics}) for each neighborhood size
+     */
+    public Map<Integer, Map<String, Double>> evaluate(UserSimilarity similarity, EvaluationFold fold) throws TasteException {
+        return evaluate(similarity, fold, null);
+    }
+
+    /**
+     * @param lsh parameters of an approximate neighborhood, or null for exact neighborhoods
+     */
+    public Map<Integer, Map<String, Double>> evaluate(UserSimilarity similarity,
+                                                      EvaluationFold fold,
+                                                      LshUserNeighborhood.Parameters lsh) throws TasteException {
+        Preconditions.checkNotNull(similarity);
+        Preconditions.checkNotNull(fold);
+
+        DataModel trainingModel = fold.getTrainingModel();
+        int numUsers = trainingModel.getNumUsers();
+        // NearestNUserNeighborhood caps its size at the number of users
+        int[] effectiveSizes = new int[neighborhoodSizes.length];
+        for (int i = 0; i < neighborhoodSizes.length; i++) {
+            effectiveSizes[i] = Math.min(neighborhoodSizes[i], numUsers);
+        }
+
+        MAEAndRankRecommenderEvaluator evaluator = new MAEAndRankRecommenderEvaluator();
+
+        int maxSize = effectiveSizes[effectiveSizes.length - 1];
+        NeighborRanking neighborhood;
+        if (lsh != null) {
+            neighborhood = lsh.build(maxSize, similarity, trainingModel)::rankNeighbors;
+        } else if (similarity instanceof PrecomputedUserSimilarity
+                && ((PrecomputedUserSimilarity) similarity).getMaxNeighbors() >= Math.min(maxSize, numUsers - 1)) {
+            neighborhood = ((PrecomputedUserSimilarity) similarity)::rankNeighbors;
+        } else {
+            neighborhood = new InvertedIndexUserNeighborhood(maxSize, similarity, trainingModel)::rankNeighbors;
+        }
+        RecommenderStats[] stats = new RecommenderStats[neighborhoodSizes.length];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new RecommenderStats();
+        }
+        SizesEstimator estimator = new SizesEstimator(trainingModel, neighborhood, effectiveSizes, stats);
+        // as in MAEAndRankRecommenderEvaluator, every unit of work collects its own metrics for each size; users are
+        // not split, as all estimates of a user come from one ranking of neighbors
+        int[] profileSizes = new int[fold.getNumTestUsers()];
+        for (int user = 0; user < profileSizes.length; user++) {
+            profileSizes[user] = fold.getTestPrefs(user).length();
+        }
+        EvaluationMetrics[] merged = new EvaluationMetrics[neighborhoodSizes.length];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = new EvaluationMetrics();
+        }
+        Iterator<Callable<EvaluationMetrics[]>> callables = Iterators.transform(
+                SkewAwareScheduler.schedule(profileSizes, false).iterator(),
+                unit -> () -> {
+                    EvaluationMetrics[] metrics = new EvaluationMetrics[neighborhoodSizes.length];
+                    for (int i = 0; i < metrics.length; i++) {
+                        metrics[i] = new EvaluationMetrics();
+                    }
+                    for (int user : unit.getUsers()) {
+                        if (executor.isCancelled()) {
+                            break;
+                        }
+                        PreferenceArray prefs = fold.getTestPrefs(user);
+                        float[][] estimates = estimator.estimate(fold.getTestUsers().id(user), prefs);
+                        // progress reports the largest count of any size, usually that of the smallest one
+                        int noEstimates = 0;
+                        for (int i = 0; i < metrics.length; i++) {
+                            noEstimates = Math.max(noEstimates,
+                                    evaluator.processEstimatesOfOneUser(prefs, estimates[i], metrics[i]));
+                        }
+                        executor.userEvaluated(prefs.length(), noEstimates);
+                    }
+                    return metrics;
+                });
+        log.info("Beginning evaluation for {} neighborhood sizes", neighborhoodSizes.length);
+        executor.execute(callables, fold.getNumTestUsers(), fold.getNumTestPrefs(),
+                metrics -> {
+                    for (int i = 0; i < merged.length; i++) {
+                        merged[i].merge(metrics[i]);
+                    }
+                });
+
+        Map<Integer, Map<String, Double>> result = new LinkedHashMap<>();
+        for (int i = 0; i < neighborhoodSizes.length; i++) {
+            evaluator.setMetrics(merged[i]);
+            evaluator.setStats(stats[i]);
+            result.put(neighborhoodSizes[i], evaluator.getMetrics());
+        }
+        return result;
+    }
+
+    /**
+     * Ranks neighbors of a user, from the most similar one, at least up to the largest neighborhood size.
+     */
+    private interface NeighborRanking {
+        TopNeighbors rankNeighbors(long userID) throws TasteException;
+    }
+
+    private static final class SizesEstimator {
+
+        private final DataModel dataModel;
+        private final NeighborRanking neighborhood;
+        private final int[] sizes;
+        private final EstimatedPreferenceCapper capper;
+        private final RecommenderStats[] stats;
+
+        private SizesEstimator(DataModel dataModel,
+                               NeighborRanking neighborhood,
+                               int[] sizes,
+                               RecommenderStats[] stats) {
+            this.dataModel = dataModel;
+            this.neighborhood = neighborhood;
+            this.sizes = sizes;
+            this.capper = buildCapper(dataModel);
+            this.stats = stats;
+        }
+
+        private static EstimatedPreferenceCapper buildCapper(DataModel dataModel) {
+            if (Float.isNaN(dataModel.getMinPreference()) && Float.isNaN(dataModel.getMaxPreference())) {
+                return null;
+            } else {
+                return new EstimatedPreferenceCapper(dataModel);
+            }
+        }
+
+        /**
+         * @return estimates of preferences in {@code prefs}, one array per neighborhood size
+         */
+        float[][] estimate(long theUserID, PreferenceArray prefs) throws TasteException {
+            // one pass serves every size, so its latency is recorded for each of them
+            long start = System.nanoTime();
+            try {
+                return doEstimate(theUserID, prefs);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                for (RecommenderStats sizeStats : stats) {
+                    sizeStats.getUserEstimateNanos().record(nanos);
+                }
+            }
+        }
+
+        private float[][] doEstimate(long theUserID, PreferenceArray prefs) throws TasteException {
+            int numItems = prefs.length();
+            float[][] estimates = new float[sizes.length][numItems];
+            for (float[] row : estimates) {
+                Arrays.fill(row, Float.NaN);
+            }
+
+            long[] sortedItemIDs = new long[numItems];
+            float[] actualPrefs = new float[numItems];
+            try {
+                for (int i = 0; i < numItems; i++) {
+                    sortedItemIDs[i] = prefs.getItemID(i);
+                    // as GenericUserBasedRecommender.estimatePreference, known preferences are returned as they are
+                    Float actualPref = dataModel.getPreferenceValue(theUserID, sortedItemIDs[i]);
+                    actualPrefs[i] = actualPref == null ? Float.NaN : actualPref;
+                }
+            } catch (NoSuchUserException nsue) {
+                log.info("User exists in test data but not training data: {}", theUserID);
+                return estimates;
+            }
+            Arrays.sort(sortedItemIDs);
+
+            long rankingStart = System.nanoTime();
+            TopNeighbors neighbors = neighborhood.rankNeighbors(theUserID);
+            long rankingNanos = System.nanoTime() - rankingStart;
+            for (RecommenderStats sizeStats : stats) {
+                sizeStats.getNeighborhoodNanos().record(rankingNanos);
+            }
+            // as in MyGenericUserBasedRecommender, estimates without any neighbors are not counted
+            RecommenderStats[] countStats = neighbors.size() > 0 ? stats : new RecommenderStats[stats.length];
+
+            double[] preference = new double[numItems];
+            double[] totalSimilarity = new double[numItems];
+            int[] count = new int[numItems];
+            int sizeIndex = 0;
+            for (int rank = 0; rank < neighbors.size() && sizeIndex < sizes.length; rank++) {
+                double theSimilarity = neighbors.getSimilarity(rank);
+                PreferenceArray neighborPrefs = dataModel.getPreferencesFromUser(neighbors.getID(rank));
+                for (int i = 0; i < neighborPrefs.length(); i++) {
+                    int slot = Arrays.binarySearch(sortedItemIDs, neighborPrefs.getItemID(i));
+                    if (slot >= 0) {
+                        preference[slot] += theSimilarity * neighborPrefs.getValue(i);
+                        totalSimilarity[slot] += theSimilarity;
+                        count[slot]++;
+                    }
+                }
+                while (sizeIndex < sizes.length && sizes[sizeIndex] == rank + 1) {
+                    fillEstimates(estimates[sizeIndex], countStats[sizeIndex], prefs, sortedItemIDs, actualPrefs, preference, totalSimilarity, count);
+                    sizeIndex++;
+                }
+            }
+            // sizes larger than the number of ranked neighbors use the whole ranking
+            while (sizeIndex < sizes.length) {
+                fillEstimates(estimates[sizeIndex], countStats[sizeIndex], prefs, sortedItemIDs, actualPrefs, preference, totalSimilarity, count);
+                sizeIndex++;
+            }
+            return estimates;
+        }
+
+        /**
+         * @param sizeStats statistics to record numbers of neighbors in, or null
+         */
+        private void fillEstimates(float[] estimates,
+                                   RecommenderStats sizeStats,
+                                   PreferenceArray prefs,
+                                   long[] sortedItemIDs,
+                                   float[] actualPrefs,
+                                   double[] preference,
+                                   double[] totalSimilarity,
+                                   int[] count) {
+            for (int i = 0; i < estimates.length; i++) {
+                if (!Float.isNaN(actualPrefs[i])) {
+                    estimates[i] = actualPrefs[i];
+                    continue;
+                }
+                int slot = Arrays.binarySearch(sortedItemIDs, prefs.getItemID(i));
+                if (sizeStats != null) {
+                    sizeStats.getNeighborsPerEstimate().record(count[slot]);
+                }
+                // see MyGenericUserBasedRecommender.doEstimatePreference()
+                if (count[slot] <= 1) {
+                    estimates[i] = Float.NaN;
+                } else {
+                    float estimate = (float) (preference[slot] / totalSimilarity[slot]);
+                    if (capper != null) {
+                        estimate = capper.capEstimate(estimate);
+                    }
+                    estimates[i] = estimate;
+                }
+            }
+        }
+    }
+}
@@ -1,28 +1,47 @@
 package org.mraczynska.recommender.mahout;
 
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.recommender.EstimatedPreferenceCapper;
 import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
+import org.apache.mahout.cf.taste.impl.recommender.TopItems;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Author: Marta Raczyńska
  */
-public class MyGenericUserBasedRecommender extends GenericUserBasedRecommender {
+public class MyGenericUserBasedRecommender extends GenericUserBasedRecommender implements BatchPreferenceEstimator {
+    private final UserNeighborhood neighborhood;
     private final UserSimilarity similarity;
     private EstimatedPreferenceCapper capper;
-    private final List<Integer> estimateBaseOnCount;
+    private final RecommenderStats stats;
 
     public MyGenericUserBasedRecommender(DataModel dataModel, UserNeighborhood neighborhood, UserSimilarity similarity) {
+        this(dataModel, new TimedUserNeighborhood(neighborhood, new RecommenderStats()), similarity);
+    }
+
+    /**
+     * The neighborhood is timed already when passed to the superclass, so lookups made there are recorded too.
+     */
+    private MyGenericUserBasedRecommender(DataModel dataModel, TimedUserNeighborhood neighborhood, UserSimilarity similarity) {
         super(dataModel, neighborhood, similarity);
+        this.neighborhood = neighborhood;
         this.similarity = similarity;
         this.capper = buildCapper();
-        this.estimateBaseOnCount = new ArrayList<>();
+        this.stats = neighborhood.stats;
     }
 
     private EstimatedPreferenceCapper buildCapper() {
@@ -34,6 +53,16 @@ public class MyGenericUserBasedRecommender extends GenericUserBasedRecommender {
         }
     }
 
+    @Override
+    public float estimatePreference(long userID, long itemID) throws TasteException {
+        long start = System.nanoTime();
+        try {
+            return super.estimatePreference(userID, itemID);
+        } finally {
+            stats.getEstimateNanos().record(System.nanoTime() - start);
+        }
+    }
+
     @Override
     protected float doEstimatePreference(long theUserID, long[] theNeighborhood, long itemID) throws TasteException {
         if (theNeighborhood.length == 0) {
@@ -58,7 +87,7 @@ public class MyGenericUserBasedRecommender extends GenericUserBasedRecommender {
             }
         }
 
-        estimateBaseOnCount.add(count);
+        stats.getNeighborsPerEstimate().record(count);
 
         // Throw out the estimate if it was based on no data points, of course, but also if based on
         // just one. This is a bit of a band-aid on the 'stock' item-based algorithm for the moment.
@@ -75,14 +104,164 @@ public class MyGenericUserBasedRecommender extends GenericUserBasedRecommender {
         return estimate;
     }
 
+    /**
+     * Same estimates as {@link #estimatePreference(long, long)} for every item, but the neighborhood and its
+     * similarities are computed once and neighbors' preferences are visited once for all items.
+     */
+    @Override
+    public float[] estimatePreferences(long userID, long[] itemIDs) throws TasteException {
+        long start = System.nanoTime();
+        try {
+            return doEstimatePreferences(userID, itemIDs);
+        } finally {
+            stats.getUserEstimateNanos().record(System.nanoTime() - start);
+        }
+    }
+
+    private float[] doEstimatePreferences(long userID, long[] itemIDs) throws TasteException {
+        DataModel dataModel = getDataModel();
+        float[] result = new float[itemIDs.length];
+        long[] unknownItemIDs = new long[itemIDs.length];
+        int unknownCount = 0;
+        for (int i = 0; i < itemIDs.length; i++) {
+            Float actualPref = dataModel.getPreferenceValue(userID, itemIDs[i]);
+            if (actualPref != null) {
+                result[i] = actualPref;
+            } else {
+                result[i] = Float.NaN;
+                unknownItemIDs[unknownCount++] = itemIDs[i];
+            }
+        }
+        if (unknownCount == 0) {
+            return result;
+        }
+
+        long[] sortedItemIDs = Arrays.copyOf(unknownItemIDs, unknownCount);
+        Arrays.sort(sortedItemIDs);
+        float[] estimates = doEstimatePreferences(userID, neighborhood.getUserNeighborhood(userID), sortedItemIDs);
+        for (int i = 0; i < itemIDs.length; i++) {
+            if (Float.isNaN(result[i])) {
+                result[i] = estimates[Arrays.binarySearch(sortedItemIDs, itemIDs[i])];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer, boolean includeKnownItems)
+            throws TasteException {
+        long start = System.nanoTime();
+        try {
+            return doRecommend(userID, howMany, rescorer, includeKnownItems);
+        } finally {
+            stats.getRecommendNanos().record(System.nanoTime() - start);
+        }
+    }
+
+    private List<RecommendedItem> doRecommend(long userID, int howMany, IDRescorer rescorer, boolean includeKnownItems)
+            throws TasteException {
+        Preconditions.checkArgument(howMany >= 1, "howMany must be at least 1");
+
+        long[] theNeighborhood = neighborhood.getUserNeighborhood(userID);
+        if (theNeighborhood.length == 0) {
+            return Collections.emptyList();
+        }
+
+        FastIDSet allItemIDs = getAllOtherItems(theNeighborhood, userID, includeKnownItems);
+        long[] sortedItemIDs = new long[allItemIDs.size()];
+        LongPrimitiveIterator it = allItemIDs.iterator();
+        for (int i = 0; it.hasNext(); i++) {
+            sortedItemIDs[i] = it.nextLong();
+        }
+        Arrays.sort(sortedItemIDs);
+        float[] estimates = doEstimatePreferences(userID, theNeighborhood, sortedItemIDs);
+
+        TopItems.Estimator<Long> estimator = itemID -> estimates[Arrays.binarySearch(sortedItemIDs, itemID)];
+        return TopItems.getTopItems(howMany, allItemIDs.iterator(), rescorer, estimator);
+    }
+
+    /**
+     * Batch version of {@link #doEstimatePreference(long, long[], long)}.
+     *
+     * @param sortedItemIDs items to estimate, in ascending order
+     */
+    protected float[] doEstimatePreferences(long theUserID, long[] theNeighborhood, long[] sortedItemIDs) throws TasteException {
+        float[] estimates = new float[sortedItemIDs.length];
+        if (theNeighborhood.length == 0) {
+            Arrays.fill(estimates, Float.NaN);
+            return estimates;
+        }
+        DataModel dataModel = getDataModel();
+        double[] preference = new double[sortedItemIDs.length];
+        double[] totalSimilarity = new double[sortedItemIDs.length];
+        int[] count = new int[sortedItemIDs.length];
+        for (long userID : theNeighborhood) {
+            if (userID != theUserID) {
+                double theSimilarity = similarity.userSimilarity(theUserID, userID);
+                if (!Double.isNaN(theSimilarity)) {
+                    PreferenceArray prefs = dataModel.getPreferencesFromUser(userID);
+                    for (int i = 0; i < prefs.length(); i++) {
+                        int index = Arrays.binarySearch(sortedItemIDs, prefs.getItemID(i));
+                        if (index >= 0) {
+                            preference[index] += theSimilarity * prefs.getValue(i);
+                            totalSimilarity[index] += theSimilarity;
+                            count[index]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < estimates.length; i++) {
+            stats.getNeighborsPerEstimate().record(count[i]);
+            // see doEstimatePreference() for why estimates based on one neighbor are thrown out
+            if (count[i] <= 1) {
+                estimates[i] = Float.NaN;
+            } else {
+                float estimate = (float) (preference[i] / totalSimilarity[i]);
+                if (capper != null) {
+                    estimate = capper.capEstimate(estimate);
+                }
+                estimates[i] = estimate;
+            }
+        }
+        return estimates;
+    }
+
+    public RecommenderStats getStats() {
+        return stats;
+    }
+
     public double getAvgEstimateBaseOnCount() {
-//        System.out.println(estimateBaseOnCount);
-        long sum = 0;
-        for (int i : estimateBaseOnCount) {
-            sum += i;
-        }
-        return 1.0*sum/estimateBaseOnCount.size();
-//        return estimateBaseOnCount.stream().collect(Collectors.averagingInt(x -> x));
-//        return estimateBaseOnCount.stream().mapToInt(x -> x).average().orElse(0.0);
+        return stats.getNeighborsPerEstimate().getMean();
+    }
+
+    /**
+     * Records latency of every neighborhood lookup in {@link RecommenderStats#getNeighborhoodNanos()}.
+     */
+    private static final class TimedUserNeighborhood implements UserNeighborhood {
+
+        private final UserNeighborhood neighborhood;
+        private final RecommenderStats stats;
+
+        private TimedUserNeighborhood(UserNeighborhood neighborhood, RecommenderStats stats) {
+            this.neighborhood = neighborhood;
+            this.stats = stats;
+        }
+
+        @Override
+        public long[] getUserNeighborhood(long userID) throws TasteException {
+            long start = System.nanoTime();
+            try {
+                return neighborhood.getUserNeighborhood(userID);
+            } finally {
+                stats.getNeighborhoodNanos().record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void refresh(Collection<Refreshable> alreadyRefreshed) {
+            neighborhood.refresh(alreadyRefreshed);
+        }
     }
 }
@@ -0,0 +1,265 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Directory of {@link PrecomputedUserSimilarity} lists kept between runs. A file is keyed by the similarity, the fold
+ * and a fingerprint of the training data, and is memory-mapped read-only by every later run (or by concurrent runs,
+ * which share the pages), so lists are computed once per dataset instead of once per JVM. Little-endian layout,
+ * every section 8-byte aligned, as in {@link BinaryRatingsFile}:
+ * <pre>
+ * header       magic, version, users, maxNeighbors, entries (int), fingerprint (long)
+ * userIDs      long[users], ascending
+ * offsets      int[users + 1]
+ * neighbors    int[entries], neighbor indices of each user list, ascending
+ * similarities double[entries]
+ * rankOrders   int[entries], positions in each user list from the most similar neighbor
+ * </pre>
+ */
+public final class NeighborListStore {
+
+    static final int MAGIC = 0x4E42524C;
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int USER_IDS = 0;
+    static final int OFFSETS = 1;
+    static final int NEIGHBORS = 2;
+    static final int SIMILARITIES = 3;
+    static final int RANK_ORDERS = 4;
+    static final int END = 5;
+
+    private final File directory;
+
+    public NeighborListStore(File directory) {
+        this.directory = Preconditions.checkNotNull(directory);
+    }
+
+    /**
+     * Maps stored lists of at least {@code maxNeighbors} neighbors, or computes them with
+     * {@link AllPairsSimilarityEngine} and stores them first.
+     *
+     * @param fold number of the fold {@code dataModel} comes from, part of the file name only
+     */
+    public PrecomputedUserSimilarity load(UserSimilarity similarity,
+                                          DataModel dataModel,
+                                          int fold,
+                                          int maxNeighbors) throws TasteException {
+        return loadAll(Collections.singletonList(similarity), dataModel, fold, maxNeighbors).get(0);
+    }
+
+    /**
+     * As {@link #load}, for several similarities of one fold; lists missing from the store are computed together by
+     * {@link AllPairsSimilarityEngine#computeAll}.
+     *
+     * @return lists of every similarity, in the order of {@code similarities}
+     */
+    public List<PrecomputedUserSimilarity> loadAll(List<? extends UserSimilarity> similarities,
+                                                   DataModel dataModel,
+                                                   int fold,
+                                                   int maxNeighbors) throws TasteException {
+        long fingerprint = fingerprint(dataModel);
+        PrecomputedUserSimilarity[] result = new PrecomputedUserSimilarity[similarities.size()];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < result.length; i++) {
+            File file = file(similarities.get(i), fold, fingerprint);
+            if (file.isFile()) {
+                PrecomputedUserSimilarity stored = read(file, similarities.get(i), dataModel, fingerprint);
+                if (stored.getMaxNeighbors() >= maxNeighbors) {
+                    result[i] = stored;
+                    continue;
+                }
+            }
+            missing.add(i);
+        }
+        if (!missing.isEmpty()) {
+            List<UserSimilarity> toCompute = new ArrayList<>();
+            for (int i : missing) {
+                toCompute.add(similarities.get(i));
+            }
+            List<PrecomputedUserSimilarity> computed = AllPairsSimilarityEngine.computeAll(toCompute, dataModel, maxNeighbors);
+            for (int m = 0; m < missing.size(); m++) {
+                int i = missing.get(m);
+                File file = file(similarities.get(i), fold, fingerprint);
+                store(computed.get(m), maxNeighbors, fingerprint, file);
+                result[i] = read(file, similarities.get(i), dataModel, fingerprint);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    private File file(UserSimilarity similarity, int fold, long fingerprint) {
+        return new File(directory, String.format("%s-fold%d-%016x.nbr",
+                similarity.getClass().getSimpleName(), fold, fingerprint));
+    }
+
+    private void store(PrecomputedUserSimilarity computed, int maxNeighbors, long fingerprint, File file)
+            throws TasteException {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create directory " + directory);
+            }
+            // written aside and moved, so runs sharing the directory never map a partly written file
+            File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+            try {
+                write(computed.getLists(), maxNeighbors, fingerprint, temporary);
+                Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary.toPath());
+            }
+        } catch (IOException ioe) {
+            throw new TasteException(String.format("Cannot store neighbor lists in %s", file), ioe);
+        }
+    }
+
+    /**
+     * @return 64-bit hash of all user IDs, item IDs and preference values of the model
+     */
+    static long fingerprint(DataModel dataModel) throws TasteException {
+        long[] userIDs = new long[dataModel.getNumUsers()];
+        LongPrimitiveIterator it = dataModel.getUserIDs();
+        for (int i = 0; it.hasNext(); i++) {
+            userIDs[i] = it.nextLong();
+        }
+        Arrays.sort(userIDs);
+        long hash = mix(userIDs.length);
+        for (long userID : userIDs) {
+            PreferenceArray prefs = dataModel.getPreferencesFromUser(userID);
+            hash = mix(hash ^ userID);
+            // sum of per-preference hashes does not depend on the order of preferences
+            long prefsHash = 0L;
+            for (int i = 0; i < prefs.length(); i++) {
+                prefsHash += mix(prefs.getItemID(i) * 31 + Float.floatToIntBits(prefs.getValue(i)));
+            }
+            hash = mix(hash ^ prefsHash);
+        }
+        return hash;
+    }
+
+    /**
+     * Finalizer of SplitMix64.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    static long[] sectionOffsets(int numUsers, int numEntries) {
+        long[] sizes = {
+                8L * numUsers,
+                4L * (numUsers + 1),
+                4L * numEntries,
+                8L * numEntries,
+                4L * numEntries
+        };
+        long[] offsets = new long[END + 1];
+        long offset = HEADER_SIZE;
+        for (int i = 0; i < sizes.length; i++) {
+            offsets[i] = offset;
+            offset = (offset + sizes[i] + 7) & ~7L;
+        }
+        offsets[END] = offset;
+        return offsets;
+    }
+
+    static void write(PrecomputedUserSimilarity.Lists lists, int maxNeighbors, long fingerprint, File output)
+            throws IOException {
+        int numUsers = lists.getNumUsers();
+        int numEntries = lists.getOffsets().get(numUsers);
+        long[] offsets = sectionOffsets(numUsers, numEntries);
+        if (offsets[END] > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Neighbor lists too big for one mapped file: %d bytes", offsets[END]));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+            file.setLength(0);
+            file.setLength(offsets[END]);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, offsets[END]);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(numUsers)
+                    .putInt(maxNeighbors)
+                    .putInt(numEntries)
+                    .putInt(0)
+                    .putLong(fingerprint);
+            BinaryRatingsFile.section(buffer, offsets[USER_IDS]).asLongBuffer().put(lists.getUserIDs());
+            BinaryRatingsFile.section(buffer, offsets[OFFSETS]).asIntBuffer().put(lists.getOffsets());
+            BinaryRatingsFile.section(buffer, offsets[NEIGHBORS]).asIntBuffer().put(lists.getNeighbors());
+            BinaryRatingsFile.section(buffer, offsets[SIMILARITIES]).asDoubleBuffer().put(lists.getSimilarities());
+            BinaryRatingsFile.section(buffer, offsets[RANK_ORDERS]).asIntBuffer().put(lists.getRankOrders());
+            buffer.force();
+        }
+    }
+
+    private static PrecomputedUserSimilarity read(File input,
+                                                  UserSimilarity similarity,
+                                                  DataModel dataModel,
+                                                  long fingerprint) throws TasteException {
+        try {
+            return map(input, similarity, dataModel, fingerprint);
+        } catch (IOException ioe) {
+            throw new TasteException(String.format("Cannot map neighbor lists from %s", input), ioe);
+        }
+    }
+
+    static PrecomputedUserSimilarity map(File input,
+                                         UserSimilarity similarity,
+                                         DataModel dataModel,
+                                         long fingerprint) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+            // the mapping stays valid after the file is closed
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException(String.format("%s is not a neighbor list file of version %d", input, VERSION));
+        }
+        int numUsers = buffer.getInt(8);
+        int maxNeighbors = buffer.getInt(12);
+        int numEntries = buffer.getInt(16);
+        if (buffer.getLong(24) != fingerprint) {
+            throw new IOException(String.format("%s was computed for other data", input));
+        }
+        long[] offsets = sectionOffsets(numUsers, numEntries);
+        if (buffer.limit() < offsets[END]) {
+            throw new IOException(String.format("%s is truncated", input));
+        }
+        PrecomputedUserSimilarity.Lists lists = new PrecomputedUserSimilarity.Lists(
+                limit(BinaryRatingsFile.section(buffer, offsets[USER_IDS]).asLongBuffer(), numUsers),
+                limit(BinaryRatingsFile.section(buffer, offsets[OFFSETS]).asIntBuffer(), numUsers + 1),
+                limit(BinaryRatingsFile.section(buffer, offsets[NEIGHBORS]).asIntBuffer(), numEntries),
+                limit(BinaryRatingsFile.section(buffer, offsets[SIMILARITIES]).asDoubleBuffer(), numEntries),
+                limit(BinaryRatingsFile.section(buffer, offsets[RANK_ORDERS]).asIntBuffer(), numEntries));
+        return new PrecomputedUserSimilarity(similarity, dataModel, maxNeighbors, lists);
+    }
+
+    private static <B extends Buffer> B limit(B buffer, int size) {
+        buffer.limit(size);
+        return buffer;
+    }
+}
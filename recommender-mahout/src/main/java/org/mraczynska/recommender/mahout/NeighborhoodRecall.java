@@ -0,0 +1,96 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+
+import java.util.Arrays;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Recall of an approximate neighborhood against the exact one and the speedup of its lookups, measured on evenly
+ * spaced users of a data model. Lookups run in one thread, alternately, so both see the same machine state.
+ */
+public final class NeighborhoodRecall {
+
+    private final int numUsers;
+    private final double recall;
+    private final long approximateNanos;
+    private final long exactNanos;
+
+    private NeighborhoodRecall(int numUsers, double recall, long approximateNanos, long exactNanos) {
+        this.numUsers = numUsers;
+        this.recall = recall;
+        this.approximateNanos = approximateNanos;
+        this.exactNanos = exactNanos;
+    }
+
+    /**
+     * @param maxUsers number of users to measure on, at most
+     */
+    public static NeighborhoodRecall measure(UserNeighborhood approximate,
+                                             UserNeighborhood exact,
+                                             DataModel dataModel,
+                                             int maxUsers) throws TasteException {
+        int step = Math.max(1, dataModel.getNumUsers() / maxUsers);
+        long found = 0L;
+        long expected = 0L;
+        long approximateNanos = 0L;
+        long exactNanos = 0L;
+        int numUsers = 0;
+        LongPrimitiveIterator it = dataModel.getUserIDs();
+        for (int i = 0; it.hasNext() && numUsers < maxUsers; i++) {
+            long userID = it.nextLong();
+            if (i % step != 0) {
+                continue;
+            }
+            long start = System.nanoTime();
+            long[] exactNeighbors = exact.getUserNeighborhood(userID);
+            long middle = System.nanoTime();
+            long[] approximateNeighbors = approximate.getUserNeighborhood(userID);
+            long end = System.nanoTime();
+            exactNanos += middle - start;
+            approximateNanos += end - middle;
+
+            long[] sortedExact = exactNeighbors.clone();
+            Arrays.sort(sortedExact);
+            for (long neighborID : approximateNeighbors) {
+                if (Arrays.binarySearch(sortedExact, neighborID) >= 0) {
+                    found++;
+                }
+            }
+            expected += exactNeighbors.length;
+            numUsers++;
+        }
+        return new NeighborhoodRecall(numUsers, expected == 0 ? Double.NaN : (double) found / expected,
+                approximateNanos, exactNanos);
+    }
+
+    public int getNumUsers() {
+        return numUsers;
+    }
+
+    /**
+     * @return fraction of exact neighbors found, over all measured users
+     */
+    public double getRecall() {
+        return recall;
+    }
+
+    public double getApproximateMillis() {
+        return RecommenderStats.nanosToMillis(approximateNanos);
+    }
+
+    public double getExactMillis() {
+        return RecommenderStats.nanosToMillis(exactNanos);
+    }
+
+    /**
+     * @return time of exact lookups divided by time of approximate ones
+     */
+    public double getSpeedup() {
+        return approximateNanos == 0 ? Double.NaN : (double) exactNanos / approximateNanos;
+    }
+}
@@ -0,0 +1,398 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Loads a ratings CSV file with a header line, as {@code MovieLensDataModel} used to do by rewriting it to a temporary
+ * file for {@code FileDataModel}, but without the intermediate file. The file is memory-mapped and split into byte
+ * ranges at line boundaries, which are parsed in parallel; preferences of each user are then assembled in parallel.
+ * <p>
+ * Lines follow {@code FileDataModel} rules after the old conversion: fields are separated by ',', ';' or tab,
+ * empty lines, comments ('#') and lines with an empty field ({@code ",,"}) or ending with {@code "0"} (a zero
+ * rating, quotes included) are skipped, a later rating of the same item replaces the earlier one and a line with an
+ * empty rating removes it. Timestamps are not read. With {@code ignoreRatings}, or when the first line has no rating,
+ * a boolean model is built.
+ */
+public final class ParallelRatingsLoader {
+
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final byte[] ZERO_RATING = {'"', '0', '"'};
+
+    private ParallelRatingsLoader() {
+    }
+
+    public static DataModel load(File ratingsFile, boolean ignoreRatings) throws IOException {
+        if (!ratingsFile.exists()) {
+            throw new FileNotFoundException(ratingsFile.toString());
+        }
+        ByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(ratingsFile, "r")) {
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Ratings file '%s' is too big to be mapped", ratingsFile));
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+
+        // the first line is a header
+        int size = buffer.capacity();
+        int dataStart = skipLine(buffer, 0, size);
+        int numChunks = (int) Math.max(1, Math.min(4L * Runtime.getRuntime().availableProcessors(),
+                (size - dataStart) / MIN_CHUNK_SIZE));
+        int[] bounds = new int[numChunks + 1];
+        bounds[0] = dataStart;
+        for (int i = 1; i < numChunks; i++) {
+            int position = dataStart + (int) ((long) (size - dataStart) * i / numChunks);
+            bounds[i] = Math.max(bounds[i - 1], buffer.get(position - 1) == '\n' ? position : skipLine(buffer, position, size));
+        }
+        bounds[numChunks] = size;
+
+        List<Chunk> chunks = IntStream.range(0, numChunks).parallel()
+                .mapToObj(i -> parse(buffer, bounds[i], bounds[i + 1], ignoreRatings))
+                .collect(Collectors.toList());
+
+        boolean hasPrefValues = false;
+        for (Chunk chunk : chunks) {
+            if (chunk.size > 0) {
+                hasPrefValues = chunk.firstHasValue;
+                break;
+            }
+        }
+        Chunk all = Chunk.concat(chunks);
+        return hasPrefValues ? new GenericDataModel(toPreferences(all)) : new GenericBooleanPrefDataModel(toItemIDSets(all));
+    }
+
+    /**
+     * @return position after the end of the line containing {@code position}
+     */
+    private static int skipLine(ByteBuffer buffer, int position, int size) {
+        while (position < size && buffer.get(position) != '\n') {
+            position++;
+        }
+        return Math.min(position + 1, size);
+    }
+
+    private static Chunk parse(ByteBuffer buffer, int from, int to, boolean ignoreRatings) {
+        Chunk chunk = new Chunk(Math.max(16, (to - from) / 12));
+        int[] fieldStarts = new int[4];
+        int[] fieldEnds = new int[4];
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = lineStart;
+            while (lineEnd < to && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            parseLine(buffer, lineStart, lineEnd, ignoreRatings, fieldStarts, fieldEnds, chunk);
+            lineStart = next;
+        }
+        return chunk;
+    }
+
+    private static void parseLine(ByteBuffer buffer,
+                                  int start,
+                                  int end,
+                                  boolean ignoreRatings,
+                                  int[] fieldStarts,
+                                  int[] fieldEnds,
+                                  Chunk chunk) {
+        if (start == end || buffer.get(start) == '#' || endsWith(buffer, start, end, ZERO_RATING)) {
+            return;
+        }
+        int numFields = 0;
+        int fieldStart = start;
+        boolean previousDelimiter = false;
+        for (int i = start; i <= end; i++) {
+            boolean delimiter = i == end || isDelimiter(buffer.get(i));
+            if (delimiter && i < end) {
+                if (previousDelimiter) {
+                    // an empty field in the middle of the line, e.g. a deleted ID
+                    return;
+                }
+                previousDelimiter = true;
+            } else {
+                previousDelimiter = false;
+            }
+            if (delimiter) {
+                if (numFields < fieldStarts.length) {
+                    fieldStarts[numFields] = fieldStart;
+                    fieldEnds[numFields] = i;
+                }
+                numFields++;
+                fieldStart = i + 1;
+            }
+        }
+        if (ignoreRatings) {
+            // as the old conversion: drop the last field
+            numFields--;
+        }
+        if (numFields < 2) {
+            throw new IllegalArgumentException("Line has no user and item: "
+                    + new String(bytes(buffer, start, end), StandardCharsets.UTF_8));
+        }
+        long userID = parseLong(buffer, fieldStarts[0], fieldEnds[0]);
+        long itemID = parseLong(buffer, fieldStarts[1], fieldEnds[1]);
+        boolean hasValue = numFields >= 3 && fieldEnds[2] > fieldStarts[2];
+        float value;
+        if (hasValue) {
+            value = parseFloat(buffer, fieldStarts[2], fieldEnds[2]);
+        } else if (numFields == 3) {
+            // "userID,itemID," removes the preference
+            value = Float.NaN;
+        } else {
+            value = 1.0f;
+        }
+        chunk.add(userID, itemID, value, hasValue);
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return b == ',' || b == ';' || b == '\t';
+    }
+
+    private static boolean endsWith(ByteBuffer buffer, int start, int end, byte[] suffix) {
+        if (end - start < suffix.length) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; i++) {
+            if (buffer.get(end - suffix.length + i) != suffix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long parseLong(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = end > start && buffer.get(start) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return Long.parseLong(new String(bytes(buffer, start, end), StandardCharsets.UTF_8));
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(new String(bytes(buffer, start, end), StandardCharsets.UTF_8));
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Integer ratings are parsed directly, anything else falls back to {@link Float#parseFloat}.
+     */
+    static float parseFloat(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = buffer.get(start) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i < end && end - i <= 7) {
+            int result = 0;
+            for (; i < end; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                result = result * 10 + digit;
+            }
+            if (i == end) {
+                return negative ? -result : result;
+            }
+        }
+        return Float.parseFloat(new String(bytes(buffer, start, end), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return bytes;
+    }
+
+    private static FastByIDMap<PreferenceArray> toPreferences(Chunk all) {
+        UserGroups groups = new UserGroups(all);
+        PreferenceArray[] arrays = new PreferenceArray[groups.users.size()];
+        IntStream.range(0, arrays.length).parallel().forEach(user -> arrays[user] = toPreferenceArray(all, groups, user));
+        FastByIDMap<PreferenceArray> result = new FastByIDMap<>(arrays.length);
+        for (int user = 0; user < arrays.length; user++) {
+            if (arrays[user] != null) {
+                result.put(groups.users.id(user), arrays[user]);
+            }
+        }
+        return result;
+    }
+
+    private static PreferenceArray toPreferenceArray(Chunk all, UserGroups groups, int user) {
+        int from = groups.offsets[user];
+        int to = groups.offsets[user + 1];
+        long userID = groups.users.id(user);
+        long[] itemIDs = new long[to - from];
+        boolean removals = false;
+        for (int i = from; i < to; i++) {
+            int record = groups.records[i];
+            itemIDs[i - from] = all.itemIDs[record];
+            removals |= Float.isNaN(all.values[record]);
+        }
+        Arrays.sort(itemIDs);
+        boolean duplicates = false;
+        for (int i = 1; i < itemIDs.length; i++) {
+            duplicates |= itemIDs[i - 1] == itemIDs[i];
+        }
+
+        if (!removals && !duplicates) {
+            PreferenceArray prefs = new GenericUserPreferenceArray(to - from);
+            prefs.setUserID(0, userID);
+            for (int i = from; i < to; i++) {
+                int record = groups.records[i];
+                prefs.setItemID(i - from, all.itemIDs[record]);
+                prefs.setValue(i - from, all.values[record]);
+            }
+            return prefs;
+        }
+
+        // replay the lines of the user in file order
+        FastByIDMap<Float> values = new FastByIDMap<>(to - from);
+        for (int i = from; i < to; i++) {
+            int record = groups.records[i];
+            if (Float.isNaN(all.values[record])) {
+                values.remove(all.itemIDs[record]);
+            } else {
+                values.put(all.itemIDs[record], all.values[record]);
+            }
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        PreferenceArray prefs = new GenericUserPreferenceArray(values.size());
+        prefs.setUserID(0, userID);
+        int i = 0;
+        for (Map.Entry<Long, Float> entry : values.entrySet()) {
+            prefs.setItemID(i, entry.getKey());
+            prefs.setValue(i++, entry.getValue());
+        }
+        return prefs;
+    }
+
+    private static FastByIDMap<FastIDSet> toItemIDSets(Chunk all) {
+        FastByIDMap<FastIDSet> result = new FastByIDMap<>();
+        for (int i = 0; i < all.size; i++) {
+            FastIDSet itemIDs = result.get(all.userIDs[i]);
+            if (itemIDs == null) {
+                itemIDs = new FastIDSet(2);
+                result.put(all.userIDs[i], itemIDs);
+            }
+            itemIDs.add(all.itemIDs[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Parsed lines of one byte range, in file order; NaN value marks a removal.
+     */
+    private static final class Chunk {
+        private long[] userIDs;
+        private long[] itemIDs;
+        private float[] values;
+        private int size;
+        private boolean firstHasValue;
+
+        private Chunk(int capacity) {
+            userIDs = new long[capacity];
+            itemIDs = new long[capacity];
+            values = new float[capacity];
+        }
+
+        private void add(long userID, long itemID, float value, boolean hasValue) {
+            if (size == userIDs.length) {
+                int capacity = size * 2;
+                userIDs = Arrays.copyOf(userIDs, capacity);
+                itemIDs = Arrays.copyOf(itemIDs, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            if (size == 0) {
+                firstHasValue = hasValue;
+            }
+            userIDs[size] = userID;
+            itemIDs[size] = itemID;
+            values[size++] = value;
+        }
+
+        private static Chunk concat(List<Chunk> chunks) {
+            int size = 0;
+            for (Chunk chunk : chunks) {
+                size += chunk.size;
+            }
+            Chunk all = new Chunk(size);
+            for (Chunk chunk : chunks) {
+                System.arraycopy(chunk.userIDs, 0, all.userIDs, all.size, chunk.size);
+                System.arraycopy(chunk.itemIDs, 0, all.itemIDs, all.size, chunk.size);
+                System.arraycopy(chunk.values, 0, all.values, all.size, chunk.size);
+                all.size += chunk.size;
+            }
+            return all;
+        }
+    }
+
+    /**
+     * Records of every user, grouped by user and in file order within a user. Users are numbered in the order they
+     * first appear in the file.
+     */
+    private static final class UserGroups {
+        private final IDDictionary users;
+        private final int[] offsets;
+        private final int[] records;
+
+        private UserGroups(Chunk all) {
+            IDDictionary.Builder builder = new IDDictionary.Builder();
+            int[] userOfRecord = new int[all.size];
+            int[] counts = new int[16];
+            for (int i = 0; i < all.size; i++) {
+                int user = builder.add(all.userIDs[i]);
+                if (user == counts.length) {
+                    counts = Arrays.copyOf(counts, user * 2);
+                }
+                userOfRecord[i] = user;
+                counts[user]++;
+            }
+            users = builder.build();
+            int numUsers = users.size();
+            offsets = new int[numUsers + 1];
+            for (int user = 0; user < numUsers; user++) {
+                offsets[user + 1] = offsets[user] + counts[user];
+            }
+            records = new int[all.size];
+            int[] next = Arrays.copyOf(offsets, numUsers);
+            for (int i = 0; i < all.size; i++) {
+                records[next[userOfRecord[i]]++] = i;
+            }
+        }
+    }
+}
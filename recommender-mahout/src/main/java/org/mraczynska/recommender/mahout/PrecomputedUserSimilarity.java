@@ -0,0 +1,275 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Collection;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Top {@code maxNeighbors} most similar users of every user, computed in one job by {@link AllPairsSimilarityEngine}.
+ * Similarities of users in the lists are looked up, other pairs are delegated to the similarity the lists were
+ * computed with. {@link #getNeighborhood(int)} gives neighborhoods of any size up to {@code maxNeighbors}, the same as
+ * {@code NearestNUserNeighborhood} with that similarity would.
+ * <p>
+ * Lists take 16 bytes per neighbor, so they fit neighborhoods of up to a few thousand users for MovieLens-1M. They
+ * can be kept in a {@link NeighborListStore} and mapped by later runs. Lookups allocate nothing, except for the
+ * arrays returned by neighborhoods.
+ */
+public final class PrecomputedUserSimilarity implements UserSimilarity {
+
+    private static final long[] NO_IDS = new long[0];
+
+    private final UserSimilarity similarity;
+    private final DataModel dataModel;
+    private final int maxNeighbors;
+    private volatile Lists lists;
+    private final ThreadLocal<TopNeighbors> rankings;
+
+    PrecomputedUserSimilarity(UserSimilarity similarity, DataModel dataModel, int maxNeighbors, Lists lists) {
+        this.similarity = similarity;
+        this.dataModel = dataModel;
+        this.maxNeighbors = maxNeighbors;
+        this.lists = lists;
+        this.rankings = ThreadLocal.withInitial(() -> new TopNeighbors(maxNeighbors));
+    }
+
+    public int getMaxNeighbors() {
+        return maxNeighbors;
+    }
+
+    Lists getLists() {
+        return lists;
+    }
+
+    /**
+     * @param n neighborhood size, at most {@link #getMaxNeighbors()}
+     */
+    public UserNeighborhood getNeighborhood(int n) {
+        Preconditions.checkArgument(n >= 1 && n <= maxNeighbors, "n must be between 1 and %s", maxNeighbors);
+        return new Neighborhood(n);
+    }
+
+    @Override
+    public double userSimilarity(long userID1, long userID2) throws TasteException {
+        Lists lists = this.lists;
+        int user = lists.userIndex(userID1);
+        int other = lists.userIndex(userID2);
+        if (user >= 0 && other >= 0) {
+            int position = lists.position(user, other);
+            if (position >= 0) {
+                return lists.similarities.get(position);
+            }
+        }
+        return similarity.userSimilarity(userID1, userID2);
+    }
+
+    /**
+     * Ranks neighbors of the user, as {@link InvertedIndexUserNeighborhood#rankNeighbors} with {@code maxNeighbors}
+     * would. The result is reused by the next call in the same thread.
+     */
+    TopNeighbors rankNeighbors(long userID) {
+        Lists lists = this.lists;
+        TopNeighbors ranking = rankings.get();
+        ranking.clear();
+        int user = lists.userIndex(userID);
+        if (user >= 0) {
+            for (int rank = 0; rank < lists.length(user); rank++) {
+                int position = lists.rankedPosition(user, rank);
+                ranking.addRanked(lists.users.id(lists.neighbors.get(position)), lists.similarities.get(position));
+            }
+        }
+        return ranking.sort();
+    }
+
+    @Override
+    public void setPreferenceInferrer(PreferenceInferrer inferrer) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Refreshes the similarity the lists were computed with and computes the lists again.
+     */
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, similarity);
+        try {
+            lists = AllPairsSimilarityEngine.compute(similarity, dataModel, maxNeighbors).lists;
+        } catch (TasteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PrecomputedUserSimilarity[similarity:" + similarity + ", maxNeighbors:" + maxNeighbors + ']';
+    }
+
+    /**
+     * Similarity lists of all users in CSR form, users numbered in ascending ID order. The list of each user is sorted
+     * by neighbor index, for lookups, and {@code rankOrders} gives positions in the list from the most to the least
+     * similar neighbor. Buffers are either wrapped arrays or views of a mapped {@link NeighborListStore} file; user IDs
+     * are also copied into an {@link IDDictionary}, for lookups.
+     */
+    static final class Lists {
+
+        private final LongBuffer userIDs;
+        private final IDDictionary users;
+        private final IntBuffer offsets;
+        private final IntBuffer neighbors;
+        private final DoubleBuffer similarities;
+        private final IntBuffer rankOrders;
+
+        Lists(LongBuffer userIDs, IntBuffer offsets, IntBuffer neighbors, DoubleBuffer similarities, IntBuffer rankOrders) {
+            this(IDDictionary.sorted(userIDs), userIDs, offsets, neighbors, similarities, rankOrders);
+        }
+
+        private Lists(IDDictionary users,
+                      LongBuffer userIDs,
+                      IntBuffer offsets,
+                      IntBuffer neighbors,
+                      DoubleBuffer similarities,
+                      IntBuffer rankOrders) {
+            this.userIDs = userIDs;
+            this.users = users;
+            this.offsets = offsets;
+            this.neighbors = neighbors;
+            this.similarities = similarities;
+            this.rankOrders = rankOrders;
+        }
+
+        /**
+         * Rows are released as they are copied, so the arrays hold nulls afterwards and rows and lists together take
+         * little more than the lists.
+         *
+         * @param neighbors neighbor indices of each user, ascending
+         * @param rankOrders positions in the list of each user, from the most similar neighbor
+         */
+        static Lists fromRows(IDDictionary users, int[][] neighbors, double[][] similarities, int[][] rankOrders) {
+            int numUsers = users.size();
+            int[] offsets = new int[numUsers + 1];
+            for (int user = 0; user < numUsers; user++) {
+                offsets[user + 1] = offsets[user] + neighbors[user].length;
+            }
+            int size = offsets[numUsers];
+            int[] allNeighbors = new int[size];
+            double[] allSimilarities = new double[size];
+            int[] allRankOrders = new int[size];
+            for (int user = 0; user < numUsers; user++) {
+                System.arraycopy(neighbors[user], 0, allNeighbors, offsets[user], neighbors[user].length);
+                System.arraycopy(similarities[user], 0, allSimilarities, offsets[user], similarities[user].length);
+                System.arraycopy(rankOrders[user], 0, allRankOrders, offsets[user], rankOrders[user].length);
+                neighbors[user] = null;
+                similarities[user] = null;
+                rankOrders[user] = null;
+            }
+            return new Lists(users, users.asBuffer(), IntBuffer.wrap(offsets), IntBuffer.wrap(allNeighbors),
+                    DoubleBuffer.wrap(allSimilarities), IntBuffer.wrap(allRankOrders));
+        }
+
+        int getNumUsers() {
+            return userIDs.limit();
+        }
+
+        int userIndex(long userID) {
+            return users.index(userID);
+        }
+
+        int length(int user) {
+            return offsets.get(user + 1) - offsets.get(user);
+        }
+
+        /**
+         * @return position of neighbor {@code other} in the list of {@code user}, -1 if it is not there
+         */
+        int position(int user, int other) {
+            int low = offsets.get(user);
+            int high = offsets.get(user + 1) - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int neighbor = neighbors.get(middle);
+                if (neighbor < other) {
+                    low = middle + 1;
+                } else if (neighbor > other) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return position of the neighbor of the given rank (0 for the most similar one)
+         */
+        int rankedPosition(int user, int rank) {
+            int start = offsets.get(user);
+            return start + rankOrders.get(start + rank);
+        }
+
+        LongBuffer getUserIDs() {
+            return userIDs.duplicate();
+        }
+
+        IntBuffer getOffsets() {
+            return offsets.duplicate();
+        }
+
+        IntBuffer getNeighbors() {
+            return neighbors.duplicate();
+        }
+
+        DoubleBuffer getSimilarities() {
+            return similarities.duplicate();
+        }
+
+        IntBuffer getRankOrders() {
+            return rankOrders.duplicate();
+        }
+    }
+
+    private final class Neighborhood implements UserNeighborhood {
+
+        private final int n;
+
+        private Neighborhood(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public long[] getUserNeighborhood(long userID) {
+            Lists lists = PrecomputedUserSimilarity.this.lists;
+            int user = lists.userIndex(userID);
+            if (user < 0) {
+                return NO_IDS;
+            }
+            long[] result = new long[Math.min(n, lists.length(user))];
+            for (int rank = 0; rank < result.length; rank++) {
+                result[rank] = lists.users.id(lists.neighbors.get(lists.rankedPosition(user, rank)));
+            }
+            return result;
+        }
+
+        @Override
+        public void refresh(Collection<Refreshable> alreadyRefreshed) {
+            alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+            RefreshHelper.maybeRefresh(alreadyRefreshed, PrecomputedUserSimilarity.this);
+        }
+
+        @Override
+        public String toString() {
+            return "PrecomputedUserSimilarity.Neighborhood[n:" + n + ']';
+        }
+    }
+}
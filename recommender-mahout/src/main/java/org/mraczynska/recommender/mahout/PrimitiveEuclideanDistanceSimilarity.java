@@ -0,0 +1,25 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Drop-in replacement of Mahout's {@code EuclideanDistanceSimilarity} (unweighted).
+ */
+public final class PrimitiveEuclideanDistanceSimilarity extends AbstractPrimitiveUserSimilarity {
+
+    public PrimitiveEuclideanDistanceSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel, false);
+    }
+
+    public PrimitiveEuclideanDistanceSimilarity(UserRatingVectors vectors) {
+        super(vectors, false);
+    }
+
+    @Override
+    protected double computeResult(int n, double sumXY, double sumX2, double sumY2, double sumXYdiff2) {
+        return 1.0 / (1.0 + Math.sqrt(sumXYdiff2) / Math.sqrt(n));
+    }
+}
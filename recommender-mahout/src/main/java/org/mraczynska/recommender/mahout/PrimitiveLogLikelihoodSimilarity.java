@@ -0,0 +1,32 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.math.stats.LogLikelihood;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Drop-in replacement of Mahout's {@code LogLikelihoodSimilarity}.
+ */
+public final class PrimitiveLogLikelihoodSimilarity extends AbstractBitmapUserSimilarity {
+
+    public PrimitiveLogLikelihoodSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel);
+    }
+
+    public PrimitiveLogLikelihoodSimilarity(UserItemBitmaps bitmaps) {
+        super(bitmaps);
+    }
+
+    @Override
+    protected double computeResult(int size1, int size2, int intersectionSize, int numItems) {
+        if (intersectionSize == 0) {
+            return Double.NaN;
+        }
+        long k11 = intersectionSize;
+        double logLikelihood = LogLikelihood.logLikelihoodRatio(k11, size2 - k11, size1 - k11,
+                (long) numItems - size1 - size2 + k11);
+        return 1.0 - 1.0 / (1.0 + logLikelihood);
+    }
+}
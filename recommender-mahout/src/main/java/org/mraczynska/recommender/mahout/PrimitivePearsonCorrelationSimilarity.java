@@ -0,0 +1,38 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Drop-in replacement of Mahout's {@code PearsonCorrelationSimilarity} (unweighted).
+ */
+public final class PrimitivePearsonCorrelationSimilarity extends AbstractPrimitiveUserSimilarity {
+
+    public PrimitivePearsonCorrelationSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel, true);
+    }
+
+    public PrimitivePearsonCorrelationSimilarity(UserRatingVectors vectors) {
+        super(vectors, true);
+    }
+
+    @Override
+    protected boolean isUndefinedFor(UserRatingVectors vectors, int user) {
+        // all ratings of the user are the same, so they are the same on every co-rated subset too
+        return vectors.getCenteredNorm(user) == 0.0;
+    }
+
+    @Override
+    protected double computeResult(int n, double sumXY, double sumX2, double sumY2, double sumXYdiff2) {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        double denominator = Math.sqrt(sumX2) * Math.sqrt(sumY2);
+        if (denominator == 0.0) {
+            return Double.NaN;
+        }
+        return sumXY / denominator;
+    }
+}
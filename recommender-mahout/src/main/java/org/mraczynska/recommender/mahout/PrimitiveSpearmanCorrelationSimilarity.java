@@ -0,0 +1,165 @@
+package org.mraczynska.recommender.mahout;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Drop-in replacement of Mahout's {@code SpearmanCorrelationSimilarity}. Mahout sorts copies of both users'
+ * preferences by value for every pair and ranks co-rated items in that order. The order of a user's items by value
+ * does not depend on the other user, so it is computed once per user, with ties broken by the very same sort of
+ * the user's preferences, and a pair costs a merge-join over items plus ranking of the co-rated items' positions.
+ * Results are exactly Mahout's.
+ */
+public final class PrimitiveSpearmanCorrelationSimilarity implements UserSimilarity {
+
+    private final DataModel dataModel;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+    private volatile Ranks ranks;
+
+    public PrimitiveSpearmanCorrelationSimilarity(DataModel dataModel) throws TasteException {
+        this.dataModel = Preconditions.checkNotNull(dataModel);
+        this.ranks = new Ranks(dataModel, new UserRatingVectors(dataModel));
+    }
+
+    /**
+     * Shares already built vectors of {@code dataModel}, e.g. with other similarities of one fold.
+     */
+    public PrimitiveSpearmanCorrelationSimilarity(DataModel dataModel, UserRatingVectors vectors) throws TasteException {
+        this.dataModel = Preconditions.checkNotNull(dataModel);
+        this.ranks = new Ranks(dataModel, Preconditions.checkNotNull(vectors));
+    }
+
+    public UserRatingVectors getVectors() {
+        return ranks.vectors;
+    }
+
+    @Override
+    public double userSimilarity(long userID1, long userID2) throws TasteException {
+        Ranks ranks = this.ranks;
+        UserRatingVectors vectors = ranks.vectors;
+        int user1 = vectors.userIndex(userID1);
+        int user2 = vectors.userIndex(userID2);
+        int[] xItems = vectors.getItems(user1);
+        int[] yItems = vectors.getItems(user2);
+        if (xItems.length <= 1 || yItems.length <= 1) {
+            return Double.NaN;
+        }
+        int[] xOrder = ranks.valueOrders[user1];
+        int[] yOrder = ranks.valueOrders[user2];
+
+        Scratch scratch = this.scratch.get().ensureCapacity(Math.min(xItems.length, yItems.length));
+        long[] xKeys = scratch.xKeys;
+        long[] yKeys = scratch.yKeys;
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < xItems.length && j < yItems.length) {
+            if (xItems[i] < yItems[j]) {
+                i++;
+            } else if (xItems[i] > yItems[j]) {
+                j++;
+            } else {
+                // position in the user's value order in the high bits, index of the co-rated item in the low bits
+                xKeys[count] = (long) xOrder[i] << 32 | count;
+                yKeys[count] = (long) yOrder[j] << 32 | count;
+                count++;
+                i++;
+                j++;
+            }
+        }
+        if (count <= 1) {
+            return Double.NaN;
+        }
+
+        // co-rated items are ranked from 1 in the value order of each user, as in Mahout
+        int[] xRanks = scratch.xRanks;
+        int[] yRanks = scratch.yRanks;
+        Arrays.sort(xKeys, 0, count);
+        Arrays.sort(yKeys, 0, count);
+        for (int rank = 0; rank < count; rank++) {
+            xRanks[(int) xKeys[rank]] = rank + 1;
+            yRanks[(int) yKeys[rank]] = rank + 1;
+        }
+        double sumXYRankDiff2 = 0.0;
+        for (int k = 0; k < count; k++) {
+            double diff = xRanks[k] - yRanks[k];
+            sumXYRankDiff2 += diff * diff;
+        }
+        // int arithmetic on purpose: Mahout's denominator overflows the same way for more than 1290 co-rated items
+        return 1.0 - 6.0 * sumXYRankDiff2 / (count * (count * count - 1));
+    }
+
+    @Override
+    public void setPreferenceInferrer(PreferenceInferrer inferrer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        alreadyRefreshed = RefreshHelper.buildRefreshed(alreadyRefreshed);
+        RefreshHelper.maybeRefresh(alreadyRefreshed, dataModel);
+        try {
+            ranks = new Ranks(dataModel, new UserRatingVectors(dataModel));
+        } catch (TasteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PrimitiveSpearmanCorrelationSimilarity[users:" + ranks.vectors.getNumUsers() + ']';
+    }
+
+    /**
+     * Position of every rated item (in {@link UserRatingVectors} order) in the user's preferences sorted by value.
+     */
+    private static final class Ranks {
+        private final UserRatingVectors vectors;
+        private final int[][] valueOrders;
+
+        private Ranks(DataModel dataModel, UserRatingVectors vectors) throws TasteException {
+            this.vectors = vectors;
+            this.valueOrders = new int[vectors.getNumUsers()][];
+            for (int user = 0; user < valueOrders.length; user++) {
+                int[] items = vectors.getItems(user);
+                PreferenceArray byValue = dataModel.getPreferencesFromUser(vectors.getUserID(user)).clone();
+                byValue.sortByValue();
+                int[] order = new int[items.length];
+                for (int position = 0; position < byValue.length(); position++) {
+                    int item = vectors.itemIndex(byValue.getItemID(position));
+                    order[Arrays.binarySearch(items, item)] = position;
+                }
+                valueOrders[user] = order;
+            }
+        }
+    }
+
+    private static final class Scratch {
+        private long[] xKeys = new long[0];
+        private long[] yKeys = new long[0];
+        private int[] xRanks = new int[0];
+        private int[] yRanks = new int[0];
+
+        private Scratch ensureCapacity(int capacity) {
+            if (xKeys.length < capacity) {
+                int size = Math.max(capacity, 2 * xKeys.length);
+                xKeys = new long[size];
+                yKeys = new long[size];
+                xRanks = new int[size];
+                yRanks = new int[size];
+            }
+            return this;
+        }
+    }
+}
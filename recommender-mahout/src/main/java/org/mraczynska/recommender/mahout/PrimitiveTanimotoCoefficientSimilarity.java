@@ -0,0 +1,34 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Drop-in replacement of Mahout's {@code TanimotoCoefficientSimilarity}.
+ */
+public final class PrimitiveTanimotoCoefficientSimilarity extends AbstractBitmapUserSimilarity {
+
+    public PrimitiveTanimotoCoefficientSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel);
+    }
+
+    public PrimitiveTanimotoCoefficientSimilarity(UserItemBitmaps bitmaps) {
+        super(bitmaps);
+    }
+
+    @Override
+    protected double computeResult(int size1, int size2, int intersectionSize, int numItems) {
+        if (size1 == 0 && size2 == 0) {
+            return Double.NaN;
+        }
+        if (size1 == 0 || size2 == 0) {
+            return 0.0;
+        }
+        if (intersectionSize == 0) {
+            return Double.NaN;
+        }
+        return (double) intersectionSize / (double) (size1 + size2 - intersectionSize);
+    }
+}
@@ -0,0 +1,38 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Drop-in replacement of Mahout's {@code UncenteredCosineSimilarity} (unweighted).
+ */
+public final class PrimitiveUncenteredCosineSimilarity extends AbstractPrimitiveUserSimilarity {
+
+    public PrimitiveUncenteredCosineSimilarity(DataModel dataModel) throws TasteException {
+        super(dataModel, false);
+    }
+
+    public PrimitiveUncenteredCosineSimilarity(UserRatingVectors vectors) {
+        super(vectors, false);
+    }
+
+    @Override
+    protected boolean isUndefinedFor(UserRatingVectors vectors, int user) {
+        // only zero ratings
+        return vectors.getNorm(user) == 0.0;
+    }
+
+    @Override
+    protected double computeResult(int n, double sumXY, double sumX2, double sumY2, double sumXYdiff2) {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        double denominator = Math.sqrt(sumX2) * Math.sqrt(sumY2);
+        if (denominator == 0.0) {
+            return Double.NaN;
+        }
+        return sumXY / denominator;
+    }
+}
@@ -0,0 +1,330 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Read-only, compact in-heap {@code DataModel} for explicit ratings. Users and items are numbered by
+ * {@link IDDictionary}s; preferences are kept twice, as in {@link MappedDataModel}:
+ * <ul>
+ * <li>rows by user: item indices, ascending, as varint-encoded gaps (one byte for gaps below 128), and values,</li>
+ * <li>rows by item: user indices, ascending, as ints, and values, for item lookups and
+ * {@link #getPreferenceValue}.</li>
+ * </ul>
+ * Values take one byte each when the rating domain allows it (see {@link QuantizedValues}), e.g. MovieLens 1-5 or
+ * Book-Crossing 1-10, so a preference takes about 7 bytes instead of more than 24 in {@code GenericDataModel}.
+ * User rows are decoded when their preferences are requested; {@link #decodeItems} decodes a row into a reused array
+ * for loops over all users, as {@link UserRatingVectors} does.
+ */
+public class QuantizedDataModel extends AbstractDataModel {
+
+    private final IDDictionary users;
+    private final IDDictionary items;
+    private final int[] userStarts;
+    private final int[] userItemBytes;
+    private final byte[] encodedUserItems;
+    private final QuantizedValues userValues;
+    private final int[] itemStarts;
+    private final int[] itemUsers;
+    private final QuantizedValues itemValues;
+    private final boolean hasPreferenceValues;
+
+    /**
+     * Reads a ratings file with a header line; see {@link ParallelRatingsLoader}. The parsed model is discarded once
+     * its preferences are encoded.
+     */
+    public QuantizedDataModel(File ratingsFile, boolean ignoreRatings) throws IOException, TasteException {
+        this(ParallelRatingsLoader.load(ratingsFile, ignoreRatings));
+    }
+
+    public QuantizedDataModel(DataModel dataModel) throws TasteException {
+        users = IDDictionary.ofUsers(dataModel);
+        items = IDDictionary.ofItems(dataModel);
+        hasPreferenceValues = dataModel.hasPreferenceValues();
+        int numUsers = users.size();
+        int numItems = items.size();
+
+        userStarts = new int[numUsers + 1];
+        PreferenceArray[] rows = new PreferenceArray[numUsers];
+        for (int user = 0; user < numUsers; user++) {
+            rows[user] = dataModel.getPreferencesFromUser(users.id(user));
+            userStarts[user + 1] = userStarts[user] + rows[user].length();
+        }
+        int numPrefs = userStarts[numUsers];
+
+        userItemBytes = new int[numUsers + 1];
+        byte[] encoded = new byte[numPrefs + 16];
+        int[] userItems = new int[numPrefs];
+        float[] values = new float[numPrefs];
+        int[] itemCounts = new int[numItems + 1];
+        int size = 0;
+        for (int user = 0; user < numUsers; user++) {
+            PreferenceArray prefs = rows[user];
+            long[] keys = new long[prefs.length()];
+            for (int i = 0; i < keys.length; i++) {
+                // item index in the high bits, position in the low bits, so one sort orders items and values
+                keys[i] = ((long) items.index(prefs.getItemID(i)) << 32) | i;
+            }
+            Arrays.sort(keys);
+            int previous = -1;
+            for (int i = 0; i < keys.length; i++) {
+                int item = (int) (keys[i] >>> 32);
+                if (encoded.length - size < 5) {
+                    encoded = Arrays.copyOf(encoded, encoded.length + Math.max(encoded.length >> 1, 16));
+                }
+                size = writeVarint(encoded, size, item - previous - 1);
+                previous = item;
+                userItems[userStarts[user] + i] = item;
+                values[userStarts[user] + i] = prefs.getValue((int) keys[i]);
+                itemCounts[item + 1]++;
+            }
+            userItemBytes[user + 1] = size;
+            rows[user] = null;
+        }
+        encodedUserItems = Arrays.copyOf(encoded, size);
+        userValues = hasPreferenceValues ? QuantizedValues.of(values) : QuantizedValues.NONE;
+
+        // rows by item, filled in ascending user order
+        itemStarts = itemCounts;
+        for (int item = 0; item < numItems; item++) {
+            itemStarts[item + 1] += itemStarts[item];
+        }
+        itemUsers = new int[numPrefs];
+        int[] userPositions = new int[numPrefs];
+        int[] next = Arrays.copyOf(itemStarts, numItems);
+        for (int user = 0; user < numUsers; user++) {
+            for (int position = userStarts[user]; position < userStarts[user + 1]; position++) {
+                int itemPosition = next[userItems[position]]++;
+                itemUsers[itemPosition] = user;
+                userPositions[itemPosition] = position;
+            }
+        }
+        itemValues = userValues.permute(userPositions);
+
+        if (hasPreferenceValues && numPrefs > 0) {
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (float value : values) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            setMinPreference(min);
+            setMaxPreference(max);
+        }
+    }
+
+    private static int writeVarint(byte[] target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Decodes item indices of a user row.
+     *
+     * @param target array of at least {@link #getRowLength} elements
+     * @return number of items
+     */
+    int decodeItems(int user, int[] target) {
+        int position = userItemBytes[user];
+        int end = userItemBytes[user + 1];
+        int count = 0;
+        int item = -1;
+        while (position < end) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encodedUserItems[position++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            item += gap + 1;
+            target[count++] = item;
+        }
+        return count;
+    }
+
+    int getRowLength(int user) {
+        return userStarts[user + 1] - userStarts[user];
+    }
+
+    /**
+     * @return value of preference {@code i} of the user row
+     */
+    float getUserValue(int user, int i) {
+        return userValues.get(userStarts[user] + i);
+    }
+
+    IDDictionary getUserDictionary() {
+        return users;
+    }
+
+    IDDictionary getItemDictionary() {
+        return items;
+    }
+
+    private int userIndex(long userID) throws NoSuchUserException {
+        int user = users.index(userID);
+        if (user < 0) {
+            throw new NoSuchUserException(userID);
+        }
+        return user;
+    }
+
+    private int itemIndex(long itemID) throws NoSuchItemException {
+        int item = items.index(itemID);
+        if (item < 0) {
+            throw new NoSuchItemException(itemID);
+        }
+        return item;
+    }
+
+    @Override
+    public LongPrimitiveIterator getUserIDs() {
+        return users.iterator();
+    }
+
+    @Override
+    public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+        int user = userIndex(userID);
+        int[] rowItems = new int[getRowLength(user)];
+        decodeItems(user, rowItems);
+        return new QuantizedPreferenceArray(true, userID, items, rowItems, 0, userValues, userStarts[user],
+                rowItems.length);
+    }
+
+    @Override
+    public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
+        int user = userIndex(userID);
+        int[] rowItems = new int[getRowLength(user)];
+        decodeItems(user, rowItems);
+        FastIDSet result = new FastIDSet(rowItems.length);
+        for (int item : rowItems) {
+            result.add(items.id(item));
+        }
+        return result;
+    }
+
+    @Override
+    public LongPrimitiveIterator getItemIDs() {
+        return items.iterator();
+    }
+
+    @Override
+    public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+        int item = itemIndex(itemID);
+        return new QuantizedPreferenceArray(false, itemID, users, itemUsers, itemStarts[item], itemValues,
+                itemStarts[item], itemStarts[item + 1] - itemStarts[item]);
+    }
+
+    @Override
+    public Float getPreferenceValue(long userID, long itemID) throws TasteException {
+        int user = userIndex(userID);
+        int item = items.index(itemID);
+        if (item < 0) {
+            return null;
+        }
+        int position = Arrays.binarySearch(itemUsers, itemStarts[item], itemStarts[item + 1], user);
+        return position < 0 ? null : itemValues.get(position);
+    }
+
+    @Override
+    public Long getPreferenceTime(long userID, long itemID) {
+        return null;
+    }
+
+    @Override
+    public int getNumItems() {
+        return items.size();
+    }
+
+    @Override
+    public int getNumUsers() {
+        return users.size();
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID) {
+        int item = items.index(itemID);
+        return item < 0 ? 0 : itemStarts[item + 1] - itemStarts[item];
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) {
+        int item1 = items.index(itemID1);
+        int item2 = items.index(itemID2);
+        if (item1 < 0 || item2 < 0) {
+            return 0;
+        }
+        int i = itemStarts[item1];
+        int end1 = itemStarts[item1 + 1];
+        int j = itemStarts[item2];
+        int end2 = itemStarts[item2 + 1];
+        int count = 0;
+        while (i < end1 && j < end2) {
+            int user1 = itemUsers[i];
+            int user2 = itemUsers[j];
+            if (user1 == user2) {
+                count++;
+            }
+            if (user1 <= user2) {
+                i++;
+            }
+            if (user2 <= user1) {
+                j++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasPreferenceValues() {
+        return hasPreferenceValues;
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        // nothing to reload
+    }
+
+    /**
+     * @return bytes taken by preferences, without the ID dictionaries
+     */
+    public long getPreferencesSizeInBytes() {
+        return encodedUserItems.length + 4L * (userStarts.length + userItemBytes.length + itemStarts.length)
+                + 4L * itemUsers.length + userValues.sizeInBytes() + itemValues.sizeInBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "QuantizedDataModel[users:" + users.size() + ",items:" + items.size() + ",values:" + userValues + ']';
+    }
+}
@@ -0,0 +1,188 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Read-only view of one row of a {@link QuantizedDataModel}: preferences of one user (ordered by item ID) or of one
+ * item (ordered by user ID). Rows are already sorted, so {@code sortByUser} and {@code sortByItem} do nothing;
+ * {@link #clone()} gives a regular, modifiable array.
+ */
+final class QuantizedPreferenceArray implements PreferenceArray {
+
+    private final boolean byUser;
+    private final long id;
+    private final IDDictionary others;
+    private final int[] indices;
+    private final int indexStart;
+    private final QuantizedValues values;
+    private final int valueStart;
+    private final int length;
+
+    /**
+     * @param others dictionary of items for a user row, of users for an item row
+     * @param indices ascending indices of {@code others}, from {@code indexStart}
+     * @param values values of the row, from {@code valueStart}
+     */
+    QuantizedPreferenceArray(boolean byUser, long id, IDDictionary others, int[] indices, int indexStart,
+                             QuantizedValues values, int valueStart, int length) {
+        this.byUser = byUser;
+        this.id = id;
+        this.others = others;
+        this.indices = indices;
+        this.indexStart = indexStart;
+        this.values = values;
+        this.valueStart = valueStart;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public Preference get(int i) {
+        return new GenericPreference(getUserID(i), getItemID(i), getValue(i));
+    }
+
+    @Override
+    public long getUserID(int i) {
+        return byUser ? id : otherID(i);
+    }
+
+    @Override
+    public long getItemID(int i) {
+        return byUser ? otherID(i) : id;
+    }
+
+    private long otherID(int i) {
+        if (i < 0 || i >= length) {
+            throw new ArrayIndexOutOfBoundsException(i);
+        }
+        return others.id(indices[indexStart + i]);
+    }
+
+    /**
+     * @return IDs of items for a user row, IDs of users for an item row
+     */
+    @Override
+    public long[] getIDs() {
+        long[] ids = new long[length];
+        for (int i = 0; i < length; i++) {
+            ids[i] = others.id(indices[indexStart + i]);
+        }
+        return ids;
+    }
+
+    @Override
+    public float getValue(int i) {
+        if (i < 0 || i >= length) {
+            throw new ArrayIndexOutOfBoundsException(i);
+        }
+        return values.get(valueStart + i);
+    }
+
+    @Override
+    public PreferenceArray clone() {
+        PreferenceArray copy = byUser ? new GenericUserPreferenceArray(length) : new GenericItemPreferenceArray(length);
+        for (int i = 0; i < length; i++) {
+            copy.setUserID(i, getUserID(i));
+            copy.setItemID(i, getItemID(i));
+            copy.setValue(i, getValue(i));
+        }
+        return copy;
+    }
+
+    @Override
+    public void sortByUser() {
+    }
+
+    @Override
+    public void sortByItem() {
+    }
+
+    @Override
+    public void sortByValue() {
+        throw readOnly();
+    }
+
+    @Override
+    public void sortByValueReversed() {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean hasPrefWithUserID(long userID) {
+        return byUser ? id == userID : rowContains(userID);
+    }
+
+    @Override
+    public boolean hasPrefWithItemID(long itemID) {
+        return byUser ? rowContains(itemID) : id == itemID;
+    }
+
+    private boolean rowContains(long otherID) {
+        int index = others.index(otherID);
+        return index >= 0 && Arrays.binarySearch(indices, indexStart, indexStart + length, index) >= 0;
+    }
+
+    @Override
+    public void set(int i, Preference pref) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setUserID(int i, long userID) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setItemID(int i, long itemID) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setValue(int i, float value) {
+        throw readOnly();
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Preferences of QuantizedDataModel are read-only, clone() them first");
+    }
+
+    @Override
+    public Iterator<Preference> iterator() {
+        return new Iterator<Preference>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < length;
+            }
+
+            @Override
+            public Preference next() {
+                if (i >= length) {
+                    throw new NoSuchElementException();
+                }
+                return get(i++);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return (byUser ? "QuantizedUserPreferenceArray[userID:" : "QuantizedItemPreferenceArray[itemID:") + id
+                + ",length:" + length + ']';
+    }
+}
@@ -0,0 +1,104 @@
+package org.mraczynska.recommender.mahout;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Preference values of a {@link QuantizedDataModel}, by position. The rating domain is detected when values are
+ * stored: when every value is {@code offset + scale * q} for an integer {@code q} in 0..255 (checked in float
+ * arithmetic, so decoded values are exactly the stored ones), values take one byte each; otherwise they are kept as
+ * floats. Boolean data has no values and every value is 1.
+ */
+final class QuantizedValues {
+
+    private static final float[] SCALES = {1.0f, 0.5f, 0.25f, 0.2f, 0.1f};
+
+    static final QuantizedValues NONE = new QuantizedValues(null, null, 0.0f, 0.0f);
+
+    private final byte[] bytes;
+    private final float[] floats;
+    private final float offset;
+    private final float scale;
+
+    private QuantizedValues(byte[] bytes, float[] floats, float offset, float scale) {
+        this.bytes = bytes;
+        this.floats = floats;
+        this.offset = offset;
+        this.scale = scale;
+    }
+
+    /**
+     * @param values all values, kept as they are when they cannot be quantized
+     */
+    static QuantizedValues of(float[] values) {
+        float min = Float.POSITIVE_INFINITY;
+        for (float value : values) {
+            min = Math.min(min, value);
+        }
+        for (float scale : SCALES) {
+            byte[] bytes = quantize(values, min, scale);
+            if (bytes != null) {
+                return new QuantizedValues(bytes, null, min, scale);
+            }
+        }
+        return new QuantizedValues(null, values, 0.0f, 0.0f);
+    }
+
+    private static byte[] quantize(float[] values, float offset, float scale) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            long q = Math.round((values[i] - offset) / (double) scale);
+            if (q < 0 || q > 255 || offset + scale * q != values[i]) {
+                return null;
+            }
+            bytes[i] = (byte) q;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the same values in another order: value {@code i} of the result is value {@code positions[i]}
+     */
+    QuantizedValues permute(int[] positions) {
+        if (bytes != null) {
+            byte[] permuted = new byte[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                permuted[i] = bytes[positions[i]];
+            }
+            return new QuantizedValues(permuted, null, offset, scale);
+        }
+        if (floats != null) {
+            float[] permuted = new float[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                permuted[i] = floats[positions[i]];
+            }
+            return new QuantizedValues(null, permuted, offset, scale);
+        }
+        return NONE;
+    }
+
+    float get(int position) {
+        if (bytes != null) {
+            return offset + scale * (bytes[position] & 0xFF);
+        }
+        return floats == null ? 1.0f : floats[position];
+    }
+
+    boolean isQuantized() {
+        return bytes != null;
+    }
+
+    /**
+     * @return bytes taken by the values
+     */
+    long sizeInBytes() {
+        return bytes != null ? bytes.length : floats != null ? 4L * floats.length : 0L;
+    }
+
+    @Override
+    public String toString() {
+        if (bytes != null) {
+            return String.format("bytes[offset:%s,scale:%s]", offset, scale);
+        }
+        return floats != null ? "floats" : "none";
+    }
+}
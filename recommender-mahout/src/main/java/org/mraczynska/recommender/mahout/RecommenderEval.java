@@ -1,5 +1,6 @@
 package org.mraczynska.recommender.mahout;
 
+import com.google.common.collect.Iterators;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.eval.IRStatistics;
 import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
@@ -7,8 +8,8 @@ import org.apache.mahout.cf.taste.eval.RecommenderIRStatsEvaluator;
 import org.apache.mahout.cf.taste.example.kddcup.track1.svd.ParallelArraysSGDFactorizer;
 import org.apache.mahout.cf.taste.impl.eval.GenericRecommenderIRStatsEvaluator;
 import org.apache.mahout.cf.taste.impl.neighborhood.CachingUserNeighborhood;
-import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
 import org.apache.mahout.cf.taste.impl.recommender.svd.ALSWRFactorizer;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorizer;
 import org.apache.mahout.cf.taste.impl.recommender.svd.ParallelSGDFactorizer;
 import org.apache.mahout.cf.taste.impl.recommender.svd.RatingSGDFactorizer;
 import org.apache.mahout.cf.taste.impl.recommender.svd.SVDRecommender;
@@ -21,9 +22,9 @@ import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static org.apache.mahout.cf.taste.impl.eval.GenericRecommenderIRStatsEvaluator.CHOOSE_THRESHOLD;
 
@@ -33,31 +34,58 @@ import static org.apache.mahout.cf.taste.impl.eval.GenericRecommenderIRStatsEval
 public class RecommenderEval {
 
     public static void main(String[] args) throws Exception {
+        if (args.length == 2 && Task.SWEEP.name().equalsIgnoreCase(args[0])) {
+            GridSweep.run(SweepGrid.load(readDataFile(args[1])));
+            return;
+        }
         validateArgsCount(args);
 
         Task task = Task.valueOf(args[0].toUpperCase());
 
         System.out.println(new Date());
 
+        // k-NN neighborhood size may be given as a comma separated list, e.g. "750,1000,1500"
+        final int[] neighborhoodSizes = "svd".equalsIgnoreCase(args[3]) ? null : parseNeighborhoodSizes(args[4]);
+        if (neighborhoodSizes != null && args[3].contains(",")) {
+            // several similarities are evaluated on one fold, with lists of all of them computed in one pass
+            if (task != Task.EVALUATION) {
+                System.out.println("Several similarity classes can be given for evaluation only");
+                System.exit(-1);
+            }
+            DataModel trainingDataModel = instantiateModel(args[2], readDataFile(args[5]));
+            DataModel testDataModel = instantiateModel(args[2], readDataFile(args[6]));
+            System.out.println(multiSimilarityEvaluationTask(trainingDataModel, testDataModel,
+                    Arrays.asList(args[3].split(",")), neighborhoodSizes));
+            System.out.println(new Date());
+            return;
+        }
+        if ("svd".equalsIgnoreCase(args[3]) && args[6].contains(",")) {
+            // several iteration counts are evaluated in one training run
+            if (task != Task.EVALUATION) {
+                System.out.println("Several iteration counts can be given for evaluation only");
+                System.exit(-1);
+            }
+            DataModel trainingDataModel = instantiateModel(args[2], readDataFile(args[7]));
+            DataModel testDataModel = instantiateModel(args[2], readDataFile(args[8]));
+            System.out.println(checkpointedEvaluationTask(trainingDataModel, testDataModel, args[4],
+                    Integer.valueOf(args[5]), parseNeighborhoodSizes(args[6])));
+            System.out.println(new Date());
+            return;
+        }
+        // similarity may be given as "lsh:CLASS" or "lsh:BANDSxROWS:CLASS" for approximate neighborhoods
+        final LshUserNeighborhood.Parameters lsh = "svd".equalsIgnoreCase(args[3]) ? null : LshUserNeighborhood.Parameters.parse(args[3]);
+        final String similarityClassName = lsh == null ? args[3] : lsh.getSimilarityClassName();
+        // SVD factorizations may be kept in a directory given after all other parameters
+        final int factorStoreArg = task.isEvaluation() ? 9 : 7;
+        final FactorStore factorStore = "svd".equalsIgnoreCase(args[3]) && args.length > factorStoreArg
+                ? new FactorStore(new File(args[factorStoreArg])) : null;
+
         RecommenderBuilder recBuilder = (DataModel dataModel) -> {
             if("svd".equalsIgnoreCase(args[3])) {
-                switch (args[4]) {
-                    case "ParallelArraysSGDFactorizer":
-                        return new SVDRecommender(dataModel, new ParallelArraysSGDFactorizer(dataModel, Integer.valueOf(args[5]), Integer.valueOf(args[6])));
-                    case "ParallelSGDFactorizer":
-                        return new SVDRecommender(dataModel, new ParallelSGDFactorizer(dataModel, Integer.valueOf(args[5]), 0.1, Integer.valueOf(args[6])));
-                    case "RatingSGDFactorizer":
-                        return new SVDRecommender(dataModel, new RatingSGDFactorizer(dataModel, Integer.valueOf(args[5]), Integer.valueOf(args[6])));
-                    case "ALSWRFactorizer":
-                        return new SVDRecommender(dataModel, new ALSWRFactorizer(dataModel, Integer.valueOf(args[5]), 0.1, Integer.valueOf(args[6])));
-                    default:
-                        throw new RuntimeException(String.format("'%s' given as 4th parameter. When 3rd parameter is 'svd' then 4th should be algorithm name", args[4]));
-                }
+                return buildSVDRecommender(dataModel, args[4], Integer.valueOf(args[5]), Integer.valueOf(args[6]), factorStore);
             } else {
-                UserSimilarity similarity = instantiateUserSimilarity(args[3], dataModel);
-                UserNeighborhood neighborhood = new CachingUserNeighborhood(
-                        new NearestNUserNeighborhood(Integer.parseInt(args[4]), similarity, dataModel), dataModel); //k testing
-                return new MyGenericUserBasedRecommender(dataModel, neighborhood, similarity);
+                UserSimilarity similarity = instantiateUserSimilarity(similarityClassName, dataModel);
+                return buildUserBasedRecommender(dataModel, similarity, neighborhoodSizes[neighborhoodSizes.length - 1], lsh);
             }
         };
 
@@ -74,7 +102,15 @@ public class RecommenderEval {
             }
             DataModel trainingDataModel = instantiateModel(args[2], readDataFile(trainingFilePath));
             DataModel testDataModel = instantiateModel(args[2], readDataFile(testFilePath));
-            evalResult = evaluationTask(trainingDataModel, testDataModel, recBuilder);
+            if (neighborhoodSizes != null && neighborhoodSizes.length > 1) {
+                evalResult = multiNeighborhoodSizeEvaluationTask(trainingDataModel, testDataModel, similarityClassName, neighborhoodSizes, lsh);
+            } else {
+                evalResult = evaluationTask(trainingDataModel, testDataModel, recBuilder);
+            }
+            if (lsh != null) {
+                evalResult += "\n" + lshRecallTask(lsh, instantiateUserSimilarity(similarityClassName, trainingDataModel),
+                        trainingDataModel, neighborhoodSizes[neighborhoodSizes.length - 1]);
+            }
         }
 
 
@@ -104,6 +140,73 @@ public class RecommenderEval {
         System.out.println(new Date());
     }
 
+    /**
+     * @param factorStore store of trained factorizations, training is skipped when it has one; null to always train
+     */
+    static Recommender buildSVDRecommender(DataModel dataModel, String factorizerName, int numFeatures, int numIterations,
+                                           FactorStore factorStore) throws TasteException {
+        return buildSVDRecommender(dataModel, buildFactorizer(dataModel, factorizerName, numFeatures, numIterations),
+                svdConfiguration(factorizerName, numFeatures, numIterations), factorStore);
+    }
+
+    /**
+     * @param configuration key of the factorization in {@code factorStore}, see {@link #svdConfiguration}
+     */
+    static Recommender buildSVDRecommender(DataModel dataModel, Factorizer factorizer, String configuration,
+                                           FactorStore factorStore) throws TasteException {
+        if (factorStore == null) {
+            return new SVDRecommender(dataModel, factorizer);
+        }
+        return new SVDRecommender(dataModel, factorizer, factorStore.persistenceStrategy(dataModel, configuration));
+    }
+
+    static String svdConfiguration(String factorizerName, int numFeatures, int numIterations) {
+        return String.format("%s-f%d-i%d", factorizerName, numFeatures, numIterations);
+    }
+
+    static Factorizer buildFactorizer(DataModel dataModel, String factorizerName, int numFeatures, int numIterations) throws TasteException {
+        switch (factorizerName) {
+            case "ParallelArraysSGDFactorizer":
+                return new ParallelArraysSGDFactorizer(dataModel, numFeatures, numIterations);
+            case "ParallelSGDFactorizer":
+                return new ParallelSGDFactorizer(dataModel, numFeatures, 0.1, numIterations);
+            case "RatingSGDFactorizer":
+                return new RatingSGDFactorizer(dataModel, numFeatures, numIterations);
+            case "ALSWRFactorizer":
+                return new ALSWRFactorizer(dataModel, numFeatures, 0.1, numIterations);
+            case "ConjugateGradientALSFactorizer":
+                return new ConjugateGradientALSFactorizer(dataModel, numFeatures, 0.1, numIterations);
+            case "HogwildSGDFactorizer":
+                return new HogwildSGDFactorizer(dataModel, numFeatures, numIterations);
+            default:
+                throw new RuntimeException(String.format("'%s' given as 4th parameter. When 3rd parameter is 'svd' then 4th should be algorithm name", factorizerName));
+        }
+    }
+
+    static Recommender buildUserBasedRecommender(DataModel dataModel, UserSimilarity similarity, int neighborhoodSize) throws TasteException {
+        return buildUserBasedRecommender(dataModel, similarity, neighborhoodSize, null);
+    }
+
+    /**
+     * @param lsh parameters of an approximate neighborhood, or null for the exact one
+     */
+    static Recommender buildUserBasedRecommender(DataModel dataModel,
+                                                 UserSimilarity similarity,
+                                                 int neighborhoodSize,
+                                                 LshUserNeighborhood.Parameters lsh) throws TasteException {
+        UserNeighborhood neighborhood;
+        if (lsh != null) {
+            neighborhood = new CachingUserNeighborhood(lsh.build(neighborhoodSize, similarity, dataModel), dataModel);
+        } else if (similarity instanceof PrecomputedUserSimilarity
+                && neighborhoodSize <= ((PrecomputedUserSimilarity) similarity).getMaxNeighbors()) {
+            neighborhood = ((PrecomputedUserSimilarity) similarity).getNeighborhood(neighborhoodSize);
+        } else {
+            neighborhood = new CachingUserNeighborhood(
+                    new InvertedIndexUserNeighborhood(neighborhoodSize, similarity, dataModel), dataModel); //k testing
+        }
+        return new MyGenericUserBasedRecommender(dataModel, neighborhood, similarity);
+    }
+
     private static List<Long> getUsers(DataModel model, boolean shuffle) throws TasteException {
         final List<Long> users = new ArrayList<>();
         model.getUserIDs().forEachRemaining(users::add);
@@ -112,36 +215,81 @@ public class RecommenderEval {
         return users;
     }
 
-    private static String generateRecommendationsForAllUsers(List<Long> users, Recommender recommender, boolean print, boolean parallel) {
+    private static String generateRecommendationsForAllUsers(List<Long> users, Recommender recommender, boolean print, boolean parallel) throws TasteException {
 
         long start = System.currentTimeMillis();
 
-        Stream<Long> usersStream = users.stream();
-        if (parallel) usersStream = usersStream.parallel();
-        usersStream.forEach(id ->
-        {
-            try {
-                if (print) {
-                    List<RecommendedItem> recommendedItems = recommender.recommend(id, 10, false);
-                    String items = recommendedItems.stream()
-                            .map(x -> String.format("('%d', %.3f)", x.getItemID(), x.getValue()))
-                            .collect(Collectors.joining(", "));
-                    System.out.println(String.format("%d [%s]", id, items));
-                } else {
-                    recommender.recommend(id, 10, false);
+        if (parallel) {
+            String[] lines = recommendInParallel(users, recommender, print);
+            if (print) {
+                Arrays.stream(lines).filter(Objects::nonNull).forEach(System.out::println);
+            }
+        } else {
+            for (long id : users) {
+                String line = recommendOneUser(id, recommender, print);
+                if (line != null) {
+                    System.out.println(line);
                 }
-            } catch (TasteException e) {
-                e.printStackTrace();
             }
-        });
+        }
 
         long end = System.currentTimeMillis();
 
         //[sec]
-        return String.format("RECOMMENDATION time=%f", (end - start)/1000.0);
+        String result = String.format("RECOMMENDATION time=%f", (end - start)/1000.0);
+        if (recommender instanceof MyGenericUserBasedRecommender) {
+            double[] nanos = ((MyGenericUserBasedRecommender) recommender).getStats().getRecommendNanos()
+                    .getValuesAtPercentiles(50.0, 99.0, 99.9);
+            result += String.format(" recommend p50/p99/p999=%f/%f/%f ms", RecommenderStats.nanosToMillis(nanos[0]),
+                    RecommenderStats.nanosToMillis(nanos[1]), RecommenderStats.nanosToMillis(nanos[2]));
+        }
+        return result;
+    }
+
+    /**
+     * Recommends to users with the largest profiles first, so that they do not finish long after all the others.
+     *
+     * @return lines to print, in the order of {@code users}
+     */
+    private static String[] recommendInParallel(List<Long> users, Recommender recommender, boolean print) throws TasteException {
+        DataModel model = recommender.getDataModel();
+        int[] profileSizes = new int[users.size()];
+        for (int i = 0; i < profileSizes.length; i++) {
+            profileSizes[i] = model.getPreferencesFromUser(users.get(i)).length();
+        }
+        String[] lines = new String[users.size()];
+        EvaluationExecutor executor = new EvaluationExecutor("recommendation");
+        Iterator<Callable<Void>> tasks = Iterators.transform(SkewAwareScheduler.schedule(profileSizes, false).iterator(),
+                unit -> () -> {
+                    for (int user : unit.getUsers()) {
+                        lines[user] = recommendOneUser(users.get(user), recommender, print);
+                        executor.userProcessed();
+                    }
+                    return null;
+                });
+        executor.execute(tasks, users.size(), 0, result -> { });
+        return lines;
     }
 
-    private static File readDataFile(String inputFilePath) {
+    /**
+     * @return line with recommendations to print, or null if not printing
+     */
+    private static String recommendOneUser(long id, Recommender recommender, boolean print) {
+        try {
+            List<RecommendedItem> recommendedItems = recommender.recommend(id, 10, false);
+            if (print) {
+                String items = recommendedItems.stream()
+                        .map(x -> String.format("('%d', %.3f)", x.getItemID(), x.getValue()))
+                        .collect(Collectors.joining(", "));
+                return String.format("%d [%s]", id, items);
+            }
+        } catch (TasteException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    static File readDataFile(String inputFilePath) {
         File inputFile = new File(inputFilePath);
         if (!inputFile.exists()) {
             System.out.println("Input file doesn't exist!: " + inputFilePath);
@@ -155,6 +303,7 @@ public class RecommenderEval {
         if (args.length < 3) {
             System.out.println("Insufficient number of arguments given");
             System.out.println("Usage: recommender.jar DATA_FILE DATA_MODEL_CLASS SIMILARITY_MEASURE_CLASS");
+            System.out.println("   or: recommender.jar sweep GRID_FILE");
             System.exit(-1);
         }
     }
@@ -172,7 +321,7 @@ public class RecommenderEval {
     }
 
 
-    private static DataModel instantiateModel(String modelClassName, File inputFile) {
+    static DataModel instantiateModel(String modelClassName, File inputFile) {
         try {
             return (DataModel) Class.forName(modelClassName)
                     .getConstructor(File.class, boolean.class)
@@ -199,7 +348,7 @@ public class RecommenderEval {
         return null;
     }
 
-    private static UserSimilarity instantiateUserSimilarity(String similarityClassName, DataModel dataModel) {
+    static UserSimilarity instantiateUserSimilarity(String similarityClassName, DataModel dataModel) {
         try {
             return (UserSimilarity) Class.forName(similarityClassName).getConstructor(DataModel.class).newInstance(dataModel);
         } catch (InstantiationException | IllegalAccessException e) {
@@ -224,11 +373,149 @@ public class RecommenderEval {
         return null;
     }
 
+    /**
+     * Instantiates similarities of one data model. Primitive similarities share one {@link UserRatingVectors}, so
+     * they take memory once and {@link AllPairsSimilarityEngine#computeAll} computes them in one pass.
+     */
+    static List<UserSimilarity> instantiateUserSimilarities(List<String> similarityClassNames, DataModel dataModel) throws TasteException {
+        UserRatingVectors vectors = null;
+        List<UserSimilarity> similarities = new ArrayList<>();
+        for (String similarityClassName : similarityClassNames) {
+            String name = similarityClassName.trim();
+            boolean usesVectors = name.equals(PrimitivePearsonCorrelationSimilarity.class.getName())
+                    || name.equals(PrimitiveUncenteredCosineSimilarity.class.getName())
+                    || name.equals(PrimitiveEuclideanDistanceSimilarity.class.getName())
+                    || name.equals(PrimitiveSpearmanCorrelationSimilarity.class.getName());
+            if (usesVectors && vectors == null) {
+                vectors = new UserRatingVectors(dataModel);
+            }
+            if (name.equals(PrimitivePearsonCorrelationSimilarity.class.getName())) {
+                similarities.add(new PrimitivePearsonCorrelationSimilarity(vectors));
+            } else if (name.equals(PrimitiveUncenteredCosineSimilarity.class.getName())) {
+                similarities.add(new PrimitiveUncenteredCosineSimilarity(vectors));
+            } else if (name.equals(PrimitiveEuclideanDistanceSimilarity.class.getName())) {
+                similarities.add(new PrimitiveEuclideanDistanceSimilarity(vectors));
+            } else if (name.equals(PrimitiveSpearmanCorrelationSimilarity.class.getName())) {
+                similarities.add(new PrimitiveSpearmanCorrelationSimilarity(dataModel, vectors));
+            } else {
+                similarities.add(instantiateUserSimilarity(name, dataModel));
+            }
+        }
+        return similarities;
+    }
+
     private static String evaluationTask(DataModel trainingDataModel, DataModel testDataModel, RecommenderBuilder recBuilder) throws TasteException {
         MAEAndRankRecommenderEvaluator recEvaluator = new MAEAndRankRecommenderEvaluator();
         Map<String, Double> metrics = recEvaluator.evaluateAllMetrics(recBuilder, trainingDataModel, testDataModel);
-        return String.format("EVALUATION MAE=%s, DCG=%s, nDCG=%s, NoEstimates=%s, avgEstimateBaseOnCount=%s",
-                metrics.get("MAE.ByRating"), metrics.get("Predict.DCG"), metrics.get("Predict.nDCG"), metrics.get("NoEstimates"), metrics.get("avgEstimateBaseOnCount"));
+        return String.format("EVALUATION MAE=%s, DCG=%s, nDCG=%s, NoEstimates=%s, avgEstimateBaseOnCount=%s, %s",
+                metrics.get("MAE.ByRating"), metrics.get("Predict.DCG"), metrics.get("Predict.nDCG"), metrics.get("NoEstimates"), metrics.get("avgEstimateBaseOnCount"),
+                formatPercentiles(metrics));
+    }
+
+    private static String multiNeighborhoodSizeEvaluationTask(DataModel trainingDataModel,
+                                                              DataModel testDataModel,
+                                                              String similarityClassName,
+                                                              int[] neighborhoodSizes,
+                                                              LshUserNeighborhood.Parameters lsh) throws TasteException {
+        EvaluationFold fold = new MAEAndRankRecommenderEvaluator().prepareFold(trainingDataModel, testDataModel);
+        UserSimilarity similarity = instantiateUserSimilarity(similarityClassName, fold.getTrainingModel());
+        Map<Integer, Map<String, Double>> metricsBySize =
+                new MultiNeighborhoodSizeEvaluator(neighborhoodSizes).evaluate(similarity, fold, lsh);
+        return metricsBySize.entrySet().stream()
+                .map(entry -> String.format("EVALUATION k=%d MAE=%s, DCG=%s, nDCG=%s, NoEstimates=%s, avgEstimateBaseOnCount=%s, %s",
+                        entry.getKey(), entry.getValue().get("MAE.ByRating"), entry.getValue().get("Predict.DCG"),
+                        entry.getValue().get("Predict.nDCG"), entry.getValue().get("NoEstimates"),
+                        entry.getValue().get("avgEstimateBaseOnCount"), formatPercentiles(entry.getValue())))
+                .collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * Evaluates every similarity for every neighborhood size. Lists of all similarities, up to the largest size, are
+     * computed in one pass by {@link AllPairsSimilarityEngine#computeAll} and each similarity is then evaluated on
+     * its own lists.
+     */
+    private static String multiSimilarityEvaluationTask(DataModel trainingDataModel,
+                                                        DataModel testDataModel,
+                                                        List<String> similarityClassNames,
+                                                        int[] neighborhoodSizes) throws TasteException {
+        EvaluationFold fold = new MAEAndRankRecommenderEvaluator().prepareFold(trainingDataModel, testDataModel);
+        long start = System.currentTimeMillis();
+        List<PrecomputedUserSimilarity> similarities = AllPairsSimilarityEngine.computeAll(
+                instantiateUserSimilarities(similarityClassNames, fold.getTrainingModel()),
+                fold.getTrainingModel(), neighborhoodSizes[neighborhoodSizes.length - 1]);
+        long end = System.currentTimeMillis();
+        StringBuilder result = new StringBuilder(String.format("PRECOMPUTING time=%f", (end - start) / 1000.0));
+        for (int s = 0; s < similarities.size(); s++) {
+            Map<Integer, Map<String, Double>> metricsBySize =
+                    new MultiNeighborhoodSizeEvaluator(neighborhoodSizes).evaluate(similarities.get(s), fold);
+            for (Map.Entry<Integer, Map<String, Double>> entry : metricsBySize.entrySet()) {
+                result.append(String.format("\nEVALUATION similarity=%s k=%d MAE=%s, DCG=%s, nDCG=%s, NoEstimates=%s, avgEstimateBaseOnCount=%s, %s",
+                        similarityClassNames.get(s), entry.getKey(), entry.getValue().get("MAE.ByRating"),
+                        entry.getValue().get("Predict.DCG"), entry.getValue().get("Predict.nDCG"),
+                        entry.getValue().get("NoEstimates"), entry.getValue().get("avgEstimateBaseOnCount"),
+                        formatPercentiles(entry.getValue())));
+            }
+        }
+        return result.toString();
+    }
+
+    private static String checkpointedEvaluationTask(DataModel trainingDataModel,
+                                                     DataModel testDataModel,
+                                                     String factorizerName,
+                                                     int numFeatures,
+                                                     int[] iterationCounts) throws TasteException {
+        EvaluationFold fold = new MAEAndRankRecommenderEvaluator().prepareFold(trainingDataModel, testDataModel);
+        Factorizer factorizer = buildFactorizer(fold.getTrainingModel(), factorizerName, numFeatures,
+                iterationCounts[iterationCounts.length - 1]);
+        if (!(factorizer instanceof CheckpointedFactorizer)) {
+            throw new RuntimeException(String.format("'%s' cannot be evaluated at several iteration counts in one run", factorizerName));
+        }
+        Map<Integer, Map<String, Double>> metricsByIterations = new CheckpointedSVDEvaluator(iterationCounts, false)
+                .evaluate(dataModel -> (CheckpointedFactorizer) factorizer, fold);
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<Integer, Map<String, Double>> entry : metricsByIterations.entrySet()) {
+            result.append(String.format("%sEVALUATION factorizer=%s features=%d iterations=%d MAE=%s, DCG=%s, nDCG=%s, NoEstimates=%s, training time=%f",
+                    result.length() == 0 ? "" : "\n", factorizerName, numFeatures, entry.getKey(),
+                    entry.getValue().get("MAE.ByRating"), entry.getValue().get("Predict.DCG"),
+                    entry.getValue().get("Predict.nDCG"), entry.getValue().get("NoEstimates"),
+                    entry.getValue().get(CheckpointedSVDEvaluator.TRAINING_TIME)));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Compares the LSH neighborhood of the largest size with the exact one on up to 1000 users.
+     */
+    static String lshRecallTask(LshUserNeighborhood.Parameters lsh,
+                                UserSimilarity similarity,
+                                DataModel dataModel,
+                                int neighborhoodSize) throws TasteException {
+        long start = System.currentTimeMillis();
+        LshUserNeighborhood approximate = lsh.build(neighborhoodSize, similarity, dataModel);
+        long end = System.currentTimeMillis();
+        NeighborhoodRecall recall = NeighborhoodRecall.measure(approximate,
+                new InvertedIndexUserNeighborhood(neighborhoodSize, similarity, dataModel), dataModel, 1000);
+        return String.format("LSH %s family=%s k=%d users=%d recall=%f speedup=%f candidates=%f exact=%f ms approximate=%f ms build time=%f",
+                lsh, approximate.getFamily(), neighborhoodSize, recall.getNumUsers(), recall.getRecall(), recall.getSpeedup(),
+                approximate.getAverageCandidates(), recall.getExactMillis(), recall.getApproximateMillis(), (end - start) / 1000.0);
+    }
+
+    private static String formatPercentiles(Map<String, Double> metrics) {
+        return String.format("estimateBaseOnCount p50/p99=%s/%s, estimate p50/p99/p999=%s/%s/%s ms, userEstimate p50/p99/p999=%s/%s/%s ms, recommend p50/p99/p999=%s/%s/%s ms, neighborhood p50/p99/p999=%s/%s/%s ms",
+                metrics.get("EstimateBaseOnCount.p50"), metrics.get("EstimateBaseOnCount.p99"),
+                metrics.get("Latency.Estimate.p50"), metrics.get("Latency.Estimate.p99"), metrics.get("Latency.Estimate.p999"),
+                metrics.get("Latency.UserEstimate.p50"), metrics.get("Latency.UserEstimate.p99"), metrics.get("Latency.UserEstimate.p999"),
+                metrics.get("Latency.Recommend.p50"), metrics.get("Latency.Recommend.p99"), metrics.get("Latency.Recommend.p999"),
+                metrics.get("Latency.Neighborhood.p50"), metrics.get("Latency.Neighborhood.p99"), metrics.get("Latency.Neighborhood.p999"));
+    }
+
+    static int[] parseNeighborhoodSizes(String neighborhoodSizes) {
+        return Arrays.stream(neighborhoodSizes.split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .sorted()
+                .distinct()
+                .toArray();
     }
 
     private static void get100RecommendationsPerUserId(Long userId, DataModel model, RecommenderBuilder recBuilder) throws TasteException {
@@ -0,0 +1,53 @@
+package org.mraczynska.recommender.mahout;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Instrumentation of a recommender: latency histograms of estimating one preference, of estimating preferences of a
+ * user in one call, of recommending and of neighborhood lookups (in nanoseconds), and a histogram of the number of
+ * neighbors each estimate was based on.
+ * Recording is lock-free and allocation-free, see {@link StripedHistogram}.
+ */
+public final class RecommenderStats {
+
+    private final StripedHistogram estimateNanos = new StripedHistogram();
+    private final StripedHistogram userEstimateNanos = new StripedHistogram();
+    private final StripedHistogram recommendNanos = new StripedHistogram();
+    private final StripedHistogram neighborhoodNanos = new StripedHistogram();
+    private final StripedHistogram neighborsPerEstimate = new StripedHistogram();
+
+    /**
+     * @return latencies of {@code estimatePreference} calls, one value per item
+     */
+    public StripedHistogram getEstimateNanos() {
+        return estimateNanos;
+    }
+
+    /**
+     * @return latencies of {@code estimatePreferences} calls, one value per user whatever the number of items
+     */
+    public StripedHistogram getUserEstimateNanos() {
+        return userEstimateNanos;
+    }
+
+    public StripedHistogram getRecommendNanos() {
+        return recommendNanos;
+    }
+
+    public StripedHistogram getNeighborhoodNanos() {
+        return neighborhoodNanos;
+    }
+
+    /**
+     * @return numbers of neighbors who rated the item, one value per estimated preference
+     */
+    public StripedHistogram getNeighborsPerEstimate() {
+        return neighborsPerEstimate;
+    }
+
+    static double nanosToMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
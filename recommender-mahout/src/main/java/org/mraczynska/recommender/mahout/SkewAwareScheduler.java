@@ -0,0 +1,149 @@
+package org.mraczynska.recommender.mahout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Plans parallel work over users whose profiles differ in size by orders of magnitude, so that one heavy user does not
+ * keep a single thread busy long after the others have finished. Work of a user is estimated as profile size times
+ * neighborhood size; the neighborhood size is the same for every user of a run, so plans are made from profile sizes.
+ * <p>
+ * Users are dispatched from the heaviest one. Light users are grouped into units of about {@code 1/TARGET_UNITS} of
+ * the total work and users heavier than that may be split into slices of their profile, whose partial results are
+ * merged before per-user metrics are computed. Plans depend only on profile sizes, not on the number of threads, so
+ * results merged in plan order are the same for any number of threads.
+ * <p>
+ * Splitting pays off only when the work of a user is per estimate, as with one {@code estimatePreference} call per
+ * item. A {@link BatchPreferenceEstimator}, such as the default {@link MyGenericUserBasedRecommender}, finds the
+ * neighborhood and scans the neighbors' profiles once per call, so its users are not split: slices sharing one
+ * neighborhood would only split the scan, while the neighborhood search, the bulk of the work of a heavy user, would
+ * still run in one task and keep the other slices waiting. Such a user is dispatched first, so it overlaps with the
+ * light ones, but its neighborhood search still runs on one core; that kNN case is not covered by splitting.
+ */
+final class SkewAwareScheduler {
+
+    /**
+     * Total work is divided into about this many units.
+     */
+    static final int TARGET_UNITS = 256;
+
+    /**
+     * Profiles are never split into slices smaller than this.
+     */
+    static final int MIN_SLICE_SIZE = 16;
+
+    private SkewAwareScheduler() {
+    }
+
+    /**
+     * @return work of a user relative to the (common) neighborhood size
+     */
+    private static long cost(int profileSize) {
+        return Math.max(1, profileSize);
+    }
+
+    /**
+     * @param profileSizes size of the profile of each user, users are referred to by their index in this array
+     * @param splitUsers whether users heavier than one unit are split into slices of their profiles
+     * @return units of work, from the heaviest users to the lightest ones
+     */
+    static List<WorkUnit> schedule(int[] profileSizes, boolean splitUsers) {
+        int numUsers = profileSizes.length;
+        if (numUsers == 0) {
+            return Collections.emptyList();
+        }
+        Integer[] order = new Integer[numUsers];
+        long totalCost = 0;
+        for (int user = 0; user < numUsers; user++) {
+            order[user] = user;
+            totalCost += cost(profileSizes[user]);
+        }
+        // the heaviest first; ties in the original order, so plans are deterministic
+        Arrays.sort(order, (a, b) -> profileSizes[a] != profileSizes[b]
+                ? Integer.compare(profileSizes[b], profileSizes[a])
+                : Integer.compare(a, b));
+        long unitCost = Math.max(1, (totalCost + TARGET_UNITS - 1) / TARGET_UNITS);
+
+        List<WorkUnit> units = new ArrayList<>();
+        int[] group = new int[numUsers];
+        int groupSize = 0;
+        long groupCost = 0;
+        for (int user : order) {
+            long cost = cost(profileSizes[user]);
+            int numSlices = splitUsers ? numSlices(profileSizes[user], cost, unitCost) : 1;
+            if (numSlices > 1) {
+                for (int slice = 0; slice < numSlices; slice++) {
+                    units.add(new WorkUnit(new int[]{user}, slice, numSlices));
+                }
+                continue;
+            }
+            group[groupSize++] = user;
+            groupCost += cost;
+            if (groupCost >= unitCost) {
+                units.add(new WorkUnit(Arrays.copyOf(group, groupSize), 0, 1));
+                groupSize = 0;
+                groupCost = 0;
+            }
+        }
+        if (groupSize > 0) {
+            units.add(new WorkUnit(Arrays.copyOf(group, groupSize), 0, 1));
+        }
+        return units;
+    }
+
+    private static int numSlices(int profileSize, long cost, long unitCost) {
+        long byCost = (cost + unitCost - 1) / unitCost;
+        return (int) Math.max(1, Math.min(byCost, profileSize / MIN_SLICE_SIZE));
+    }
+
+    /**
+     * Either a group of whole users or one slice of the profile of a single user. Slices of one user are consecutive
+     * units of a plan.
+     */
+    static final class WorkUnit {
+
+        private final int[] users;
+        private final int slice;
+        private final int numSlices;
+
+        private WorkUnit(int[] users, int slice, int numSlices) {
+            this.users = users;
+            this.slice = slice;
+            this.numSlices = numSlices;
+        }
+
+        int[] getUsers() {
+            return users;
+        }
+
+        boolean isSlice() {
+            return numSlices > 1;
+        }
+
+        int getNumSlices() {
+            return numSlices;
+        }
+
+        boolean isLastSlice() {
+            return slice == numSlices - 1;
+        }
+
+        /**
+         * @return first position of the profile in this slice
+         */
+        int getFrom(int profileSize) {
+            return (int) ((long) profileSize * slice / numSlices);
+        }
+
+        /**
+         * @return position after the last position of the profile in this slice
+         */
+        int getTo(int profileSize) {
+            return (int) ((long) profileSize * (slice + 1) / numSlices);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.mraczynska.recommender.mahout;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Lock-free histogram of non-negative long values (latencies in nanoseconds, counts), safe to record from many
+ * threads. Buckets are fixed and log-linear, as in HdrHistogram: values below 64 have a bucket each and larger values
+ * fall into one of 32 buckets per power of two, so percentiles are accurate to about 3% over the whole range of long.
+ * <p>
+ * Every thread records into one of a few stripes chosen by its ID, so threads of a pool rarely update the same
+ * counters; stripes are summed only when the histogram is read. Recording allocates nothing.
+ */
+public final class StripedHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int SUM_INDEX = NUM_BUCKETS;
+    private static final int MAX_STRIPES = 16;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+
+    public StripedHistogram() {
+        int numStripes = Math.min(MAX_STRIPES, Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1);
+        stripes = new AtomicLongArray[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new AtomicLongArray(NUM_BUCKETS + 1);
+        }
+        stripeMask = numStripes - 1;
+    }
+
+    /**
+     * Records a value; negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+        stripe.incrementAndGet(bucketIndex(value));
+        stripe.addAndGet(SUM_INDEX, value);
+    }
+
+    static int bucketIndex(long value) {
+        int shift = Math.max(0, Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    static long bucketLowerBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        return (long) ((bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return value in the middle of the bucket
+     */
+    private static double bucketValue(int bucket) {
+        long lower = bucketLowerBound(bucket);
+        long width = bucket < 2 * SUB_BUCKETS ? 1 : 1L << ((bucket >>> SUB_BUCKET_BITS) - 1);
+        return lower + (width - 1) / 2.0;
+    }
+
+    private long[] bucketCounts() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                counts[bucket] += stripe.get(bucket);
+            }
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long bucketCount : bucketCounts()) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return exact mean of recorded values, NaN if nothing was recorded
+     */
+    public double getMean() {
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            sum += stripe.get(SUM_INDEX);
+        }
+        long count = getCount();
+        return count == 0 ? Double.NaN : (double) sum / count;
+    }
+
+    /**
+     * @param percentile percentile from 0 to 100, e.g. 99.9
+     * @return value below or at which the given percentage of recorded values lie, NaN if nothing was recorded
+     */
+    public double getValueAtPercentile(double percentile) {
+        return getValuesAtPercentiles(percentile)[0];
+    }
+
+    /**
+     * Same as {@link #getValueAtPercentile} for several percentiles, from one reading of the stripes.
+     */
+    public double[] getValuesAtPercentiles(double... percentiles) {
+        long[] counts = bucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        double[] values = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            if (total == 0) {
+                values[i] = Double.NaN;
+                continue;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentiles[i] / 100.0 * total));
+            long seen = 0;
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    values[i] = bucketValue(bucket);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,282 @@
+package org.mraczynska.recommender.mahout;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Declarative description of an experiment grid, read from a properties file:
+ * <pre>
+ * model=org.mraczynska.recommender.mahout.MovieLensDataModel
+ * training=./MovieLens1M%d_training.csv
+ * test=./MovieLens1M%d_test.csv
+ * folds=0-9
+ * similarities=org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity,...
+ * neighborhoods=750,1000,1500
+ * factorizers=RatingSGDFactorizer,ALSWRFactorizer
+ * features=10,20
+ * iterations=80,90
+ * singlePassNeighborhoods=true
+ * precomputedSimilarities=false
+ * neighborListStore=./neighbors
+ * factorStore=./factors
+ * checkpointedIterations=false
+ * earlyStopping=false
+ * warmStart=false
+ * crossFoldWarmStart=false
+ * targetRmse=0.85
+ * </pre>
+ * Fold file patterns are formatted with the fold number. k-NN and SVD parts are both optional. With
+ * {@code singlePassNeighborhoods} (the default) all neighborhood sizes of a similarity are evaluated in one pass
+ * by {@link MultiNeighborhoodSizeEvaluator}. With {@code precomputedSimilarities} top similarity lists of all users,
+ * up to the largest neighborhood size, are computed by {@link AllPairsSimilarityEngine} before a similarity is
+ * evaluated. A {@code neighborListStore} directory implies {@code precomputedSimilarities}: lists are kept there by
+ * {@link NeighborListStore} and mapped by later sweeps over the same folds. Likewise, SVD factorizations are kept in a
+ * {@code factorStore} directory by {@link FactorStore}, so that later sweeps train only configurations not seen before.
+ * With {@code checkpointedIterations}, factorizers which support it ({@link CheckpointedFactorizer}) are trained once
+ * per number of features, up to the largest number of iterations, and evaluated at every number of iterations by
+ * {@link CheckpointedSVDEvaluator}; with {@code earlyStopping} too, training stops once MAE on a validation split held
+ * out from the training data stops improving.
+ * With {@code warmStart}, which needs a {@code factorStore}, a {@link WarmStartFactorizer} starts from the stored
+ * factorization of the most related run on the same training data instead of random factors; such rows are marked
+ * "warmStart" in the parameters column. {@code crossFoldWarmStart} also lets a run start from factors of other folds.
+ * This is for measuring training speed only: another fold's training data holds this fold's test ratings, so
+ * evaluation metrics of such runs are optimistic. Training time, training RMSE and the time to reach
+ * {@code targetRmse} are printed for every factorization such a factorizer trains.
+ */
+public final class SweepGrid {
+
+    private final String modelClassName;
+    private final String trainingFilePattern;
+    private final String testFilePattern;
+    private final List<Integer> folds;
+    private final List<String> similarityClassNames;
+    private final List<Integer> neighborhoodSizes;
+    private final List<String> factorizerNames;
+    private final List<Integer> numFeatures;
+    private final List<Integer> numIterations;
+    private final boolean singlePassNeighborhoods;
+    private final boolean precomputedSimilarities;
+    private final File neighborListStore;
+    private final File factorStore;
+    private final boolean checkpointedIterations;
+    private final boolean earlyStopping;
+    private final boolean warmStart;
+    private final boolean crossFoldWarmStart;
+    private final Double targetRmse;
+
+    SweepGrid(String modelClassName,
+              String trainingFilePattern,
+              String testFilePattern,
+              List<Integer> folds,
+              List<String> similarityClassNames,
+              List<Integer> neighborhoodSizes,
+              List<String> factorizerNames,
+              List<Integer> numFeatures,
+              List<Integer> numIterations,
+              boolean singlePassNeighborhoods,
+              boolean precomputedSimilarities,
+              File neighborListStore,
+              File factorStore,
+              boolean checkpointedIterations,
+              boolean earlyStopping,
+              boolean warmStart,
+              boolean crossFoldWarmStart,
+              Double targetRmse) {
+        if (warmStart && factorStore == null) {
+            throw new IllegalArgumentException("Grid file has 'warmStart' but no 'factorStore' to start from");
+        }
+        if (crossFoldWarmStart && !warmStart) {
+            throw new IllegalArgumentException("Grid file has 'crossFoldWarmStart' but no 'warmStart'");
+        }
+        this.modelClassName = modelClassName;
+        this.trainingFilePattern = trainingFilePattern;
+        this.testFilePattern = testFilePattern;
+        this.folds = folds;
+        this.similarityClassNames = similarityClassNames;
+        this.neighborhoodSizes = neighborhoodSizes;
+        this.factorizerNames = factorizerNames;
+        this.numFeatures = numFeatures;
+        this.numIterations = numIterations;
+        this.singlePassNeighborhoods = singlePassNeighborhoods;
+        this.precomputedSimilarities = precomputedSimilarities || neighborListStore != null;
+        this.neighborListStore = neighborListStore;
+        this.factorStore = factorStore;
+        this.checkpointedIterations = checkpointedIterations;
+        this.earlyStopping = earlyStopping;
+        this.warmStart = warmStart;
+        this.crossFoldWarmStart = crossFoldWarmStart;
+        this.targetRmse = targetRmse;
+    }
+
+    public static SweepGrid load(File gridFile) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(gridFile)) {
+            properties.load(in);
+        }
+        return new SweepGrid(
+                required(properties, "model"),
+                required(properties, "training"),
+                required(properties, "test"),
+                parseIntegers(required(properties, "folds")),
+                parseStrings(properties.getProperty("similarities")),
+                parseIntegers(properties.getProperty("neighborhoods")),
+                parseStrings(properties.getProperty("factorizers")),
+                parseIntegers(properties.getProperty("features")),
+                parseIntegers(properties.getProperty("iterations")),
+                Boolean.parseBoolean(properties.getProperty("singlePassNeighborhoods", "true").trim()),
+                Boolean.parseBoolean(properties.getProperty("precomputedSimilarities", "false").trim()),
+                parseFile(properties.getProperty("neighborListStore")),
+                parseFile(properties.getProperty("factorStore")),
+                Boolean.parseBoolean(properties.getProperty("checkpointedIterations", "false").trim()),
+                Boolean.parseBoolean(properties.getProperty("earlyStopping", "false").trim()),
+                Boolean.parseBoolean(properties.getProperty("warmStart", "false").trim()),
+                Boolean.parseBoolean(properties.getProperty("crossFoldWarmStart", "false").trim()),
+                parseDouble(properties.getProperty("targetRmse")));
+    }
+
+    private static String required(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException(String.format("Grid file has no '%s' entry", key));
+        }
+        return value.trim();
+    }
+
+    private static List<String> parseStrings(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>();
+        for (String token : value.split(",")) {
+            if (!token.trim().isEmpty()) {
+                result.add(token.trim());
+            }
+        }
+        return result;
+    }
+
+    private static File parseFile(String value) {
+        return value == null || value.trim().isEmpty() ? null : new File(value.trim());
+    }
+
+    private static Double parseDouble(String value) {
+        return value == null || value.trim().isEmpty() ? null : Double.valueOf(value.trim());
+    }
+
+    /**
+     * Parses comma separated numbers, where "a-b" stands for every number from a to b inclusive.
+     */
+    private static List<Integer> parseIntegers(String value) {
+        List<Integer> result = new ArrayList<>();
+        for (String token : parseStrings(value)) {
+            int dash = token.indexOf('-', 1);
+            if (dash > 0) {
+                int from = Integer.parseInt(token.substring(0, dash).trim());
+                int to = Integer.parseInt(token.substring(dash + 1).trim());
+                for (int i = from; i <= to; i++) {
+                    result.add(i);
+                }
+            } else {
+                result.add(Integer.parseInt(token));
+            }
+        }
+        return result;
+    }
+
+    public String getModelClassName() {
+        return modelClassName;
+    }
+
+    public String getTrainingFile(int fold) {
+        return String.format(trainingFilePattern, fold);
+    }
+
+    public String getTestFile(int fold) {
+        return String.format(testFilePattern, fold);
+    }
+
+    public List<Integer> getFolds() {
+        return folds;
+    }
+
+    public List<String> getSimilarityClassNames() {
+        return similarityClassNames;
+    }
+
+    public List<Integer> getNeighborhoodSizes() {
+        return neighborhoodSizes;
+    }
+
+    public List<String> getFactorizerNames() {
+        return factorizerNames;
+    }
+
+    public List<Integer> getNumFeatures() {
+        return numFeatures;
+    }
+
+    public List<Integer> getNumIterations() {
+        return numIterations;
+    }
+
+    public boolean isSinglePassNeighborhoods() {
+        return singlePassNeighborhoods;
+    }
+
+    public boolean isPrecomputedSimilarities() {
+        return precomputedSimilarities;
+    }
+
+    /**
+     * @return directory of stored similarity lists, or null if lists are not stored
+     */
+    public File getNeighborListStore() {
+        return neighborListStore;
+    }
+
+    /**
+     * @return directory of stored SVD factorizations, or null if factorizations are not stored
+     */
+    public File getFactorStore() {
+        return factorStore;
+    }
+
+    public boolean isCheckpointedIterations() {
+        return checkpointedIterations;
+    }
+
+    public boolean isEarlyStopping() {
+        return earlyStopping;
+    }
+
+    public boolean isWarmStart() {
+        return warmStart;
+    }
+
+    /**
+     * @return whether warm starts may use factors trained on other folds, which makes evaluation metrics optimistic
+     */
+    public boolean isCrossFoldWarmStart() {
+        return crossFoldWarmStart;
+    }
+
+    /**
+     * @return training RMSE the time to reach is printed for, or null
+     */
+    public Double getTargetRmse() {
+        return targetRmse;
+    }
+
+    public int getConfigurationsPerFold() {
+        return similarityClassNames.size() * neighborhoodSizes.size()
+                + factorizerNames.size() * numFeatures.size() * numIterations.size();
+    }
+}
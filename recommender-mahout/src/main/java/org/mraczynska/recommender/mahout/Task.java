@@ -7,7 +7,8 @@ public enum Task {
     EVALUATION(true, false, false),
     RECOMMENDATION(false, true, false),
     F1(false, false, true),
-    ALL(true, true, true);
+    ALL(true, true, true),
+    SWEEP(false, false, false);
 
     private final boolean evaluation;
     private final boolean recommendation;
@@ -0,0 +1,140 @@
+package org.mraczynska.recommender.mahout;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Bounded selection of the most similar users, kept in primitive arrays. Users are ordered by similarity
+ * (descending) and then by ID (ascending), which is the order {@code NearestNUserNeighborhood} produces when
+ * user IDs are visited in ascending order, so the first k entries of a ranking for n &gt;= k are exactly the
+ * neighborhood of size k.
+ */
+final class TopNeighbors {
+
+    private final int capacity;
+    private final long[] ids;
+    private final double[] similarities;
+    private int size;
+    private boolean sorted;
+
+    TopNeighbors(int capacity) {
+        this.capacity = capacity;
+        this.ids = new long[capacity];
+        this.similarities = new double[capacity];
+    }
+
+    void clear() {
+        size = 0;
+        sorted = false;
+    }
+
+    /**
+     * Offers a candidate; NaN similarities are ignored.
+     */
+    void offer(long id, double similarity) {
+        if (Double.isNaN(similarity) || capacity == 0) {
+            return;
+        }
+        if (size < capacity) {
+            ids[size] = id;
+            similarities[size] = similarity;
+            siftUp(size++);
+        } else if (isWorse(ids[0], similarities[0], id, similarity)) {
+            ids[0] = id;
+            similarities[0] = similarity;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Appends a neighbor ranked after all neighbors added so far, e.g. when copying a ranking computed earlier. Can
+     * only follow {@link #clear()} or other calls of this method.
+     */
+    void addRanked(long id, double similarity) {
+        ids[size] = id;
+        similarities[size] = similarity;
+        size++;
+        sorted = true;
+    }
+
+    /**
+     * Sorts collected neighbors from the most to the least similar. No more candidates can be offered afterwards.
+     */
+    TopNeighbors sort() {
+        if (!sorted) {
+            // heap sort: the worst neighbor goes to the end of the array
+            for (int last = size - 1; last > 0; last--) {
+                swap(0, last);
+                siftDown(0, last);
+            }
+            sorted = true;
+        }
+        return this;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getID(int rank) {
+        return ids[rank];
+    }
+
+    double getSimilarity(int rank) {
+        return similarities[rank];
+    }
+
+    long[] getIDs(int howMany) {
+        long[] result = new long[Math.min(howMany, size)];
+        System.arraycopy(ids, 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * @return true if neighbor (id1, similarity1) is ranked after neighbor (id2, similarity2)
+     */
+    static boolean isWorse(long id1, double similarity1, long id2, double similarity2) {
+        if (similarity1 != similarity2) {
+            return similarity1 < similarity2;
+        }
+        return id1 > id2;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isWorse(ids[index], similarities[index], ids[parent], similarities[parent])) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, int heapSize) {
+        while (true) {
+            int left = 2 * index + 1;
+            if (left >= heapSize) {
+                break;
+            }
+            int worst = left;
+            int right = left + 1;
+            if (right < heapSize && isWorse(ids[right], similarities[right], ids[left], similarities[left])) {
+                worst = right;
+            }
+            if (!isWorse(ids[worst], similarities[worst], ids[index], similarities[index])) {
+                break;
+            }
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        double similarity = similarities[i];
+        similarities[i] = similarities[j];
+        similarities[j] = similarity;
+    }
+}
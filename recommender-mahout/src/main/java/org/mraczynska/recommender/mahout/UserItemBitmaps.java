@@ -0,0 +1,296 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Sets of items rated by every user, without values, as compressed bitmaps in the style of Roaring: item indices
+ * (items numbered in ascending item ID order by an {@link IDDictionary}) are split into chunks of
+ * {@value #CHUNK_SIZE}, and every non-empty chunk is kept either as a sorted array of 12-bit offsets or, when that
+ * would be larger, as a bitmap of {@value #WORDS} words. Chunks are smaller than Roaring's 2^16, so that heavy users
+ * of catalogs of a few thousand items get bitmaps too. Intersections are merges of arrays, bit lookups, or popcounts
+ * of ANDed words. Bitmaps of a {@link BitmapBooleanDataModel} are the model itself, so similarities of such a model
+ * take no memory of their own.
+ */
+public final class UserItemBitmaps {
+
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int WORDS = CHUNK_SIZE / 64;
+    /**
+     * Arrays of more offsets would take more memory than a bitmap.
+     */
+    static final int MAX_ARRAY_SIZE = WORDS * 4;
+
+    private final IDDictionary users;
+    private final IDDictionary items;
+    private final int numItems;
+    private final Bitmap[] bitmaps;
+
+    public UserItemBitmaps(DataModel dataModel) throws TasteException {
+        users = IDDictionary.ofUsers(dataModel);
+        items = IDDictionary.ofItems(dataModel);
+        numItems = items.size();
+        bitmaps = new Bitmap[users.size()];
+        PreferenceArray[] prefs = new PreferenceArray[users.size()];
+        for (int user = 0; user < prefs.length; user++) {
+            prefs[user] = dataModel.getPreferencesFromUser(users.id(user));
+        }
+        IntStream.range(0, prefs.length).parallel().forEach(user -> {
+            int[] userItems = new int[prefs[user].length()];
+            for (int i = 0; i < userItems.length; i++) {
+                userItems[i] = items.index(prefs[user].getItemID(i));
+            }
+            Arrays.sort(userItems);
+            bitmaps[user] = new Bitmap(userItems);
+        });
+    }
+
+    /**
+     * @throws NoSuchUserException if there is no such user, as {@code DataModel.getItemIDsFromUser} would
+     */
+    public int userIndex(long userID) throws NoSuchUserException {
+        int user = users.index(userID);
+        if (user < 0) {
+            throw new NoSuchUserException(userID);
+        }
+        return user;
+    }
+
+    public int getNumUsers() {
+        return users.size();
+    }
+
+    public int getNumItems() {
+        return numItems;
+    }
+
+    /**
+     * @return number of items rated by the user
+     */
+    public int getSize(int user) {
+        return bitmaps[user].size;
+    }
+
+    public int intersectionSize(int user1, int user2) {
+        return bitmaps[user1].intersectionSize(bitmaps[user2]);
+    }
+
+    IDDictionary getUserDictionary() {
+        return users;
+    }
+
+    IDDictionary getItemDictionary() {
+        return items;
+    }
+
+    Bitmap getBitmap(int user) {
+        return bitmaps[user];
+    }
+
+    /**
+     * @return bitmaps of users of every item, by item index
+     */
+    Bitmap[] transpose() {
+        int[] starts = new int[numItems + 1];
+        int[] row = new int[64];
+        for (Bitmap bitmap : bitmaps) {
+            row = bitmap.decode(row);
+            for (int i = 0; i < bitmap.size; i++) {
+                starts[row[i] + 1]++;
+            }
+        }
+        for (int item = 0; item < numItems; item++) {
+            starts[item + 1] += starts[item];
+        }
+        // users of every item, in ascending user order
+        int[] itemUsers = new int[starts[numItems]];
+        int[] next = Arrays.copyOf(starts, numItems);
+        for (int user = 0; user < bitmaps.length; user++) {
+            row = bitmaps[user].decode(row);
+            for (int i = 0; i < bitmaps[user].size; i++) {
+                itemUsers[next[row[i]]++] = user;
+            }
+        }
+        Bitmap[] columns = new Bitmap[numItems];
+        IntStream.range(0, numItems).parallel().forEach(item ->
+                columns[item] = new Bitmap(Arrays.copyOfRange(itemUsers, starts[item], starts[item + 1])));
+        return columns;
+    }
+
+    /**
+     * @return bytes taken by the bitmaps, without the ID dictionaries
+     */
+    long sizeInBytes() {
+        long size = 0;
+        for (Bitmap bitmap : bitmaps) {
+            size += bitmap.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Items of one user. Chunk {@code keys[c]} is kept in {@code arrays[c]} or, when that is null, in
+     * {@code words[c]}.
+     */
+    static final class Bitmap {
+
+        private final int size;
+        private final int[] keys;
+        private final char[][] arrays;
+        private final long[][] words;
+
+        /**
+         * @param items item indices, ascending and distinct
+         */
+        Bitmap(int[] items) {
+            size = items.length;
+            int numChunks = 0;
+            for (int i = 0; i < items.length; i++) {
+                if (i == 0 || items[i] >>> CHUNK_BITS != items[i - 1] >>> CHUNK_BITS) {
+                    numChunks++;
+                }
+            }
+            keys = new int[numChunks];
+            arrays = new char[numChunks][];
+            words = new long[numChunks][];
+            int from = 0;
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                int key = items[from] >>> CHUNK_BITS;
+                int to = from;
+                while (to < items.length && items[to] >>> CHUNK_BITS == key) {
+                    to++;
+                }
+                keys[chunk] = key;
+                if (to - from <= MAX_ARRAY_SIZE) {
+                    char[] offsets = new char[to - from];
+                    for (int i = from; i < to; i++) {
+                        offsets[i - from] = (char) (items[i] & (CHUNK_SIZE - 1));
+                    }
+                    arrays[chunk] = offsets;
+                } else {
+                    long[] bits = new long[WORDS];
+                    for (int i = from; i < to; i++) {
+                        int offset = items[i] & (CHUNK_SIZE - 1);
+                        bits[offset >>> 6] |= 1L << offset;
+                    }
+                    words[chunk] = bits;
+                }
+                from = to;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param target array to decode into, replaced by a larger one if too small
+         * @return array with the indices, ascending, in its first {@link #size()} elements
+         */
+        int[] decode(int[] target) {
+            int[] result = target.length >= size ? target : new int[Math.max(size, 2 * target.length)];
+            int count = 0;
+            for (int chunk = 0; chunk < keys.length; chunk++) {
+                int base = keys[chunk] << CHUNK_BITS;
+                if (arrays[chunk] != null) {
+                    for (char offset : arrays[chunk]) {
+                        result[count++] = base | offset;
+                    }
+                } else {
+                    long[] bits = words[chunk];
+                    for (int w = 0; w < WORDS; w++) {
+                        long word = bits[w];
+                        while (word != 0) {
+                            result[count++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+                            word &= word - 1;
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        boolean contains(int index) {
+            int chunk = Arrays.binarySearch(keys, index >>> CHUNK_BITS);
+            if (chunk < 0) {
+                return false;
+            }
+            int offset = index & (CHUNK_SIZE - 1);
+            if (arrays[chunk] != null) {
+                return Arrays.binarySearch(arrays[chunk], (char) offset) >= 0;
+            }
+            return (words[chunk][offset >>> 6] & (1L << offset)) != 0;
+        }
+
+        long sizeInBytes() {
+            long bytes = 4L * keys.length;
+            for (int chunk = 0; chunk < keys.length; chunk++) {
+                bytes += arrays[chunk] != null ? 2L * arrays[chunk].length : 8L * WORDS;
+            }
+            return bytes;
+        }
+
+        int intersectionSize(Bitmap other) {
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < keys.length && j < other.keys.length) {
+                if (keys[i] < other.keys[j]) {
+                    i++;
+                } else if (keys[i] > other.keys[j]) {
+                    j++;
+                } else {
+                    count += intersectionSize(arrays[i], words[i], other.arrays[j], other.words[j]);
+                    i++;
+                    j++;
+                }
+            }
+            return count;
+        }
+
+        private static int intersectionSize(char[] array1, long[] words1, char[] array2, long[] words2) {
+            if (array1 == null && array2 == null) {
+                int count = 0;
+                for (int w = 0; w < WORDS; w++) {
+                    count += Long.bitCount(words1[w] & words2[w]);
+                }
+                return count;
+            } else if (array1 == null) {
+                return intersectionSize(array2, words1);
+            } else if (array2 == null) {
+                return intersectionSize(array1, words2);
+            }
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < array1.length && j < array2.length) {
+                if (array1[i] < array2[j]) {
+                    i++;
+                } else if (array1[i] > array2[j]) {
+                    j++;
+                } else {
+                    count++;
+                    i++;
+                    j++;
+                }
+            }
+            return count;
+        }
+
+        private static int intersectionSize(char[] array, long[] words) {
+            int count = 0;
+            for (char offset : array) {
+                count += (int) (words[offset >>> 6] >>> offset) & 1;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.util.Arrays;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Ratings of every user kept as primitive arrays: item indices sorted ascending (items are numbered in ascending
+ * item ID order, so the order is the same as in {@code PreferenceArray}s sorted by item) with their values, plus
+ * precomputed mean, norm and centered norm of each user's ratings. Users and items are numbered by
+ * {@link IDDictionary}s.
+ */
+public final class UserRatingVectors {
+
+    private final IDDictionary users;
+    private final IDDictionary itemDictionary;
+    private final int[][] items;
+    private final float[][] values;
+    private final double[] means;
+    private final double[] norms;
+    private final double[] centeredNorms;
+
+    public UserRatingVectors(DataModel dataModel) throws TasteException {
+        QuantizedDataModel quantized = dataModel instanceof QuantizedDataModel ? (QuantizedDataModel) dataModel : null;
+        users = quantized != null ? quantized.getUserDictionary() : IDDictionary.ofUsers(dataModel);
+        itemDictionary = quantized != null ? quantized.getItemDictionary() : IDDictionary.ofItems(dataModel);
+        int numUsers = users.size();
+        items = new int[numUsers][];
+        values = new float[numUsers][];
+        means = new double[numUsers];
+        norms = new double[numUsers];
+        centeredNorms = new double[numUsers];
+
+        for (int user = 0; user < numUsers; user++) {
+            int[] userItems;
+            float[] userValues;
+            if (quantized != null) {
+                // rows are stored by ascending item index already
+                userItems = new int[quantized.getRowLength(user)];
+                userValues = new float[userItems.length];
+                quantized.decodeItems(user, userItems);
+                for (int i = 0; i < userValues.length; i++) {
+                    userValues[i] = quantized.getUserValue(user, i);
+                }
+            } else {
+                PreferenceArray prefs = dataModel.getPreferencesFromUser(users.id(user));
+                long[] keys = new long[prefs.length()];
+                for (int i = 0; i < keys.length; i++) {
+                    // item index in the high bits, position in the low bits, so one sort orders both arrays
+                    keys[i] = ((long) itemIndex(prefs.getItemID(i)) << 32) | i;
+                }
+                Arrays.sort(keys);
+                userItems = new int[keys.length];
+                userValues = new float[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    userItems[i] = (int) (keys[i] >>> 32);
+                    userValues[i] = prefs.getValue((int) keys[i]);
+                }
+            }
+            int length = userItems.length;
+            double sum = 0.0;
+            double sum2 = 0.0;
+            for (int i = 0; i < length; i++) {
+                sum += userValues[i];
+                sum2 += (double) userValues[i] * userValues[i];
+            }
+            double mean = length == 0 ? Double.NaN : sum / length;
+            double centeredSum2 = 0.0;
+            for (float value : userValues) {
+                double diff = value - mean;
+                centeredSum2 += diff * diff;
+            }
+            items[user] = userItems;
+            values[user] = userValues;
+            means[user] = mean;
+            norms[user] = Math.sqrt(sum2);
+            centeredNorms[user] = Math.sqrt(centeredSum2);
+        }
+    }
+
+    /**
+     * @return index of the item, negative if there is no such item
+     */
+    int itemIndex(long itemID) {
+        return itemDictionary.index(itemID);
+    }
+
+    /**
+     * @return index of the user, as used by all other methods
+     * @throws NoSuchUserException if there is no such user, as {@code DataModel.getPreferencesFromUser} would
+     */
+    public int userIndex(long userID) throws NoSuchUserException {
+        int index = users.index(userID);
+        if (index < 0) {
+            throw new NoSuchUserException(userID);
+        }
+        return index;
+    }
+
+    public IDDictionary getUserDictionary() {
+        return users;
+    }
+
+    public IDDictionary getItemDictionary() {
+        return itemDictionary;
+    }
+
+    public int getNumUsers() {
+        return users.size();
+    }
+
+    public int getNumItems() {
+        return itemDictionary.size();
+    }
+
+    public long getUserID(int user) {
+        return users.id(user);
+    }
+
+    public long getItemID(int item) {
+        return itemDictionary.id(item);
+    }
+
+    public int[] getItems(int user) {
+        return items[user];
+    }
+
+    public float[] getValues(int user) {
+        return values[user];
+    }
+
+    public double getMean(int user) {
+        return means[user];
+    }
+
+    public double getNorm(int user) {
+        return norms[user];
+    }
+
+    public double getCenteredNorm(int user) {
+        return centeredNorms[user];
+    }
+}
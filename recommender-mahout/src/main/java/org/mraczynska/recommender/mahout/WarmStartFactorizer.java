@@ -0,0 +1,33 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorizer;
+
+/**
+ * Author: Marta Raczyńska
+ *
+ * Factorizer which can start from factors of a related run, e.g. of another fold or another number of features,
+ * instead of random ones, and reports wall time and training RMSE of every iteration, so that warm and cold starts
+ * can be compared by the time they take to reach the same RMSE.
+ */
+public interface WarmStartFactorizer extends Factorizer {
+
+    /**
+     * Sets factors the next {@code factorize()} starts from. The factorization must come from the same factorizer
+     * class, e.g. from a {@link FactorStore}. Users and items it does not know start as in a cold start; features are
+     * truncated or padded with cold-start values when their number differs.
+     *
+     * @param initial factorization to start from, null for a cold start
+     */
+    void setInitialFactorization(Factorization initial);
+
+    /**
+     * @return wall time of every iteration run by the last {@code factorize()}, in seconds
+     */
+    double[] getIterationSeconds();
+
+    /**
+     * @return training RMSE of every iteration run by the last {@code factorize()}
+     */
+    double[] getIterationRmse();
+}
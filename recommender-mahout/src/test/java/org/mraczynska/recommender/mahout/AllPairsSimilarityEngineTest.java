@@ -0,0 +1,103 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class AllPairsSimilarityEngineTest {
+
+    private DataModel dataModel;
+
+    @Before
+    public void setUp() {
+        dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(3L), 120, 40);
+    }
+
+    @Test
+    public void shouldGiveSameNeighborhoodsAndSimilaritiesAsPairwiseComputation() throws Exception {
+        UserSimilarity[] similarities = {
+                new PrimitivePearsonCorrelationSimilarity(dataModel),
+                new PrimitiveUncenteredCosineSimilarity(dataModel),
+                new PrimitiveEuclideanDistanceSimilarity(dataModel),
+                new TanimotoCoefficientSimilarity(dataModel)
+        };
+        for (UserSimilarity similarity : similarities) {
+            // blocks much smaller than the number of users, so rows are multiplied in many blocks
+            PrecomputedUserSimilarity precomputed = AllPairsSimilarityEngine.compute(similarity, dataModel, 40, 7);
+            for (int n : new int[]{1, 5, 40}) {
+                UserNeighborhood expected = new NearestNUserNeighborhood(n, similarity, dataModel);
+                UserNeighborhood actual = precomputed.getNeighborhood(n);
+                LongPrimitiveIterator it = dataModel.getUserIDs();
+                while (it.hasNext()) {
+                    long userID = it.nextLong();
+                    long[] neighbors = actual.getUserNeighborhood(userID);
+                    assertThat(similarity + " n=" + n + " user=" + userID,
+                            neighbors, is(expected.getUserNeighborhood(userID)));
+                    for (long neighborID : neighbors) {
+                        assertThat(precomputed.userSimilarity(userID, neighborID),
+                                is(similarity.userSimilarity(userID, neighborID)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldGiveSameListsInOnePassAsOneByOne() throws Exception {
+        UserRatingVectors vectors = new UserRatingVectors(dataModel);
+        List<UserSimilarity> similarities = Arrays.asList(
+                new PrimitivePearsonCorrelationSimilarity(vectors),
+                new PrimitiveUncenteredCosineSimilarity(vectors),
+                new PrimitiveEuclideanDistanceSimilarity(vectors),
+                new PrimitiveSpearmanCorrelationSimilarity(dataModel, vectors),
+                new TanimotoCoefficientSimilarity(dataModel));
+        List<PrecomputedUserSimilarity> together = AllPairsSimilarityEngine.computeAll(similarities, dataModel, 10, 7);
+        assertThat(together.size(), is(similarities.size()));
+        for (int s = 0; s < similarities.size(); s++) {
+            PrecomputedUserSimilarity alone = AllPairsSimilarityEngine.compute(similarities.get(s), dataModel, 10, 7);
+            LongPrimitiveIterator it = dataModel.getUserIDs();
+            while (it.hasNext()) {
+                long userID = it.nextLong();
+                long[] neighbors = together.get(s).getNeighborhood(10).getUserNeighborhood(userID);
+                assertThat(similarities.get(s) + " user=" + userID,
+                        neighbors, is(alone.getNeighborhood(10).getUserNeighborhood(userID)));
+                for (long neighborID : neighbors) {
+                    assertThat(together.get(s).userSimilarity(userID, neighborID),
+                            is(alone.userSimilarity(userID, neighborID)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldDelegatePairsOutsideLists() throws Exception {
+        UserSimilarity similarity = new PrimitivePearsonCorrelationSimilarity(dataModel);
+        PrecomputedUserSimilarity precomputed = AllPairsSimilarityEngine.compute(similarity, dataModel, 1);
+        long userID = dataModel.getUserIDs().nextLong();
+        LongPrimitiveIterator it = dataModel.getUserIDs();
+        while (it.hasNext()) {
+            long otherID = it.nextLong();
+            if (otherID != userID) {
+                assertThat(Double.doubleToLongBits(precomputed.userSimilarity(userID, otherID)),
+                        is(Double.doubleToLongBits(similarity.userSimilarity(userID, otherID))));
+            }
+        }
+        assertThat(precomputed.getNeighborhood(1).getUserNeighborhood(1L).length, is(0));
+    }
+}
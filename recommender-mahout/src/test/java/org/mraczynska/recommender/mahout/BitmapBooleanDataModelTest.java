@@ -0,0 +1,153 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class BitmapBooleanDataModelTest {
+
+    private DataModel expected;
+    private BitmapBooleanDataModel actual;
+    private long numPrefs;
+
+    @Before
+    public void setUp() throws Exception {
+        // items span two chunks; even users are dense enough for bitmap chunks, odd ones get arrays
+        Random random = new Random(13L);
+        FastByIDMap<FastIDSet> data = new FastByIDMap<>();
+        for (int user = 0; user < 40; user++) {
+            FastIDSet userItems = new FastIDSet();
+            for (int item = 0; item < 6000; item++) {
+                if (random.nextInt(user % 2 == 0 ? 3 : 200) == 0) {
+                    userItems.add(9780000000000L + 17L * item);
+                }
+            }
+            userItems.add(9780000000000L + 17L * random.nextInt(6000));
+            data.put(100L + 3L * user, userItems);
+            numPrefs += userItems.size();
+        }
+        expected = new GenericBooleanPrefDataModel(data);
+        actual = new BitmapBooleanDataModel(expected);
+    }
+
+    @Test
+    public void shouldServeSamePreferencesAsGenericBooleanPrefDataModel() throws Exception {
+        assertThat(actual.hasPreferenceValues(), is(false));
+        assertThat(actual.getNumUsers(), is(expected.getNumUsers()));
+        assertThat(actual.getNumItems(), is(expected.getNumItems()));
+        // boolean preference arrays of Mahout are not sorted, so rows are compared as sets
+        LongPrimitiveIterator users = expected.getUserIDs();
+        LongPrimitiveIterator actualUsers = actual.getUserIDs();
+        while (users.hasNext()) {
+            long userID = users.nextLong();
+            assertThat(actualUsers.nextLong(), is(userID));
+            FastIDSet userItems = expected.getItemIDsFromUser(userID);
+            assertThat(sorted(actual.getItemIDsFromUser(userID)), is(sorted(userItems)));
+            assertThat(sorted(itemIDs(actual.getPreferencesFromUser(userID))), is(sorted(userItems)));
+            for (long itemID : userItems) {
+                assertThat(actual.getPreferenceValue(userID, itemID), is(1.0f));
+                assertThat(actual.getPreferenceValue(userID, itemID + 1), is(nullValue()));
+            }
+        }
+        LongPrimitiveIterator items = expected.getItemIDs();
+        LongPrimitiveIterator actualItems = actual.getItemIDs();
+        long[] someItemIDs = new long[50];
+        for (int i = 0; items.hasNext(); i++) {
+            long itemID = items.nextLong();
+            assertThat(actualItems.nextLong(), is(itemID));
+            PreferenceArray itemPrefs = actual.getPreferencesForItem(itemID);
+            FastIDSet itemUsers = new FastIDSet();
+            for (int p = 0; p < itemPrefs.length(); p++) {
+                assertThat(itemPrefs.getItemID(p), is(itemID));
+                itemUsers.add(itemPrefs.getUserID(p));
+            }
+            assertThat(sorted(itemUsers), is(sorted(userIDs(expected.getPreferencesForItem(itemID)))));
+            assertThat(actual.getNumUsersWithPreferenceFor(itemID), is(expected.getNumUsersWithPreferenceFor(itemID)));
+            someItemIDs[i % someItemIDs.length] = itemID;
+        }
+        for (long itemID1 : someItemIDs) {
+            for (long itemID2 : someItemIDs) {
+                assertThat(actual.getNumUsersWithPreferenceFor(itemID1, itemID2),
+                        is(expected.getNumUsersWithPreferenceFor(itemID1, itemID2)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldTakeLessThanFiveBytesPerPreference() {
+        assertThat(actual.getPreferencesSizeInBytes(), lessThan(5L * numPrefs));
+    }
+
+    @Test
+    public void similaritiesShouldShareBitmapsOfTheModel() throws Exception {
+        PrimitiveTanimotoCoefficientSimilarity tanimoto = new PrimitiveTanimotoCoefficientSimilarity(actual);
+        PrimitiveLogLikelihoodSimilarity logLikelihood = new PrimitiveLogLikelihoodSimilarity(actual);
+
+        assertThat(tanimoto.getBitmaps(), is(sameInstance(actual.getUserItemBitmaps())));
+        assertThat(logLikelihood.getBitmaps(), is(sameInstance(actual.getUserItemBitmaps())));
+        TanimotoCoefficientSimilarity expectedTanimoto = new TanimotoCoefficientSimilarity(expected);
+        LogLikelihoodSimilarity expectedLogLikelihood = new LogLikelihoodSimilarity(expected);
+        for (long userID1 = 100L; userID1 < 220L; userID1 += 3) {
+            for (long userID2 = 100L; userID2 < 220L; userID2 += 3) {
+                assertSameSimilarity(tanimoto.userSimilarity(userID1, userID2),
+                        expectedTanimoto.userSimilarity(userID1, userID2));
+                assertSameSimilarity(logLikelihood.userSimilarity(userID1, userID2),
+                        expectedLogLikelihood.userSimilarity(userID1, userID2));
+            }
+        }
+    }
+
+    private static void assertSameSimilarity(double actual, double expected) {
+        if (Double.isNaN(expected)) {
+            assertThat(Double.isNaN(actual), is(true));
+        } else {
+            assertThat(actual, closeTo(expected, 1e-12));
+        }
+    }
+
+    /**
+     * FastIDSet.equals() compares hash tables, which differ between sets of the same IDs
+     */
+    private static long[] sorted(FastIDSet ids) {
+        long[] result = ids.toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static FastIDSet itemIDs(PreferenceArray prefs) {
+        FastIDSet result = new FastIDSet();
+        for (int i = 0; i < prefs.length(); i++) {
+            result.add(prefs.getItemID(i));
+        }
+        return result;
+    }
+
+    private static FastIDSet userIDs(PreferenceArray prefs) {
+        FastIDSet result = new FastIDSet();
+        for (int i = 0; i < prefs.length(); i++) {
+            result.add(prefs.getUserID(i));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.SVDRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class CheckpointedSVDEvaluatorTest {
+
+    private final DataModel trainingDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(1L), 100, 150);
+    private final DataModel testDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(2L), 100, 150);
+
+    @Test
+    public void shouldGiveSameMetricsAsSeparateTrainingRuns() throws Exception {
+        MAEAndRankRecommenderEvaluator evaluator = new MAEAndRankRecommenderEvaluator();
+        EvaluationFold fold = evaluator.prepareFold(trainingDataModel, testDataModel);
+
+        Map<Integer, Map<String, Double>> checkpointed = new CheckpointedSVDEvaluator(new int[]{2, 5}, false)
+                .evaluate(dataModel -> new ConjugateGradientALSFactorizer(dataModel, 4, 0.1, 5), fold);
+
+        assertThat(checkpointed.keySet(), contains(2, 5));
+        for (int iterations : new int[]{2, 5}) {
+            Map<String, Double> separate = evaluator.evaluateAllMetrics(dataModel -> new SVDRecommender(dataModel,
+                    new ConjugateGradientALSFactorizer(dataModel, 4, 0.1, iterations)), fold);
+            for (String metric : Arrays.asList("MAE.ByRating", "Predict.DCG", "Predict.nDCG", "NoEstimates")) {
+                assertThat(checkpointed.get(iterations).get(metric), is(separate.get(metric)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldStopWhenValidationMAEStopsImproving() throws Exception {
+        EvaluationFold fold = new MAEAndRankRecommenderEvaluator().prepareFold(trainingDataModel, testDataModel);
+        ConstantFactorizer[] factorizer = new ConstantFactorizer[1];
+
+        // estimates of every checkpoint are constant: 1, 3 (closest to ratings 1-5), 5, 3 and 3
+        Map<Integer, Map<String, Double>> checkpointed = new CheckpointedSVDEvaluator(new int[]{1, 2, 3, 4, 5}, true)
+                .evaluate(dataModel -> factorizer[0] = new ConstantFactorizer(dataModel, 1.0, 3.0, 5.0, 3.0, 3.0), fold);
+
+        assertThat(checkpointed.keySet(), contains(1, 2, 3));
+        assertThat(factorizer[0].iterationsRun, is(4));
+        // trained without the validation split
+        assertThat(numRatings(factorizer[0].dataModel), lessThan(numRatings(trainingDataModel)));
+        assertThat(checkpointed.get(2).get(CheckpointedSVDEvaluator.VALIDATION_MAE),
+                lessThan(checkpointed.get(3).get(CheckpointedSVDEvaluator.VALIDATION_MAE)));
+    }
+
+    @Test
+    public void validationFold_splitsEveryProfileKeepingOneTrainingRating() throws Exception {
+        EvaluationFold validation = CheckpointedSVDEvaluator.validationFold(trainingDataModel);
+
+        DataModel remaining = validation.getTrainingModel();
+        assertThat(remaining.getNumUsers(), is(trainingDataModel.getNumUsers()));
+        long numRatings = 0;
+        for (int user = 0; user < validation.getNumTestUsers(); user++) {
+            long userID = validation.getTestUsers().id(user);
+            FastIDSet heldOut = new FastIDSet();
+            PreferenceArray prefs = validation.getTestPrefs(user);
+            for (int i = 0; i < prefs.length(); i++) {
+                heldOut.add(prefs.getItemID(i));
+                assertThat(prefs.getValue(i), is(trainingDataModel.getPreferenceValue(userID, prefs.getItemID(i))));
+            }
+            assertThat(heldOut.intersectionSize(remaining.getItemIDsFromUser(userID)), is(0));
+            assertThat(remaining.getItemIDsFromUser(userID).size() + heldOut.size(),
+                    is(trainingDataModel.getItemIDsFromUser(userID).size()));
+            numRatings += heldOut.size();
+        }
+        assertThat(numRatings, greaterThan(0L));
+    }
+
+    private static long numRatings(DataModel dataModel) throws TasteException {
+        long count = 0;
+        LongPrimitiveIterator it = dataModel.getUserIDs();
+        while (it.hasNext()) {
+            count += dataModel.getPreferencesFromUser(it.nextLong()).length();
+        }
+        return count;
+    }
+
+    private static final class ConstantFactorizer implements CheckpointedFactorizer {
+
+        private final DataModel dataModel;
+        private final double[] estimates;
+        private int iterationsRun;
+
+        private ConstantFactorizer(DataModel dataModel, double... estimates) {
+            this.dataModel = dataModel;
+            this.estimates = estimates;
+        }
+
+        @Override
+        public int getNumIterations() {
+            return estimates.length;
+        }
+
+        @Override
+        public Factorization factorize() throws TasteException {
+            return factorize(new int[0], null);
+        }
+
+        @Override
+        public Factorization factorize(int[] checkpoints, Listener listener)
+                throws TasteException {
+            for (int iteration = 1; iteration <= estimates.length; iteration++) {
+                iterationsRun = iteration;
+                if (Arrays.binarySearch(checkpoints, iteration) >= 0
+                        && !listener.checkpoint(iteration, constant(estimates[iteration - 1]))) {
+                    break;
+                }
+            }
+            return constant(estimates[iterationsRun - 1]);
+        }
+
+        private Factorization constant(double estimate) throws TasteException {
+            IDDictionary users = IDDictionary.ofUsers(dataModel);
+            IDDictionary items = IDDictionary.ofItems(dataModel);
+            double[][] userFeatures = new double[users.size()][1];
+            double[][] itemFeatures = new double[items.size()][1];
+            for (double[] row : userFeatures) {
+                row[0] = estimate;
+            }
+            for (double[] row : itemFeatures) {
+                row[0] = 1.0;
+            }
+            return new Factorization(users.asMapping(), items.asMapping(), userFeatures, itemFeatures);
+        }
+
+        @Override
+        public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.svd.ALSWRFactorizer;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class ConjugateGradientALSFactorizerTest {
+
+    @Test
+    public void shouldReachTrainingErrorOfALSWR() throws Exception {
+        DataModel dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(5L), 200, 80);
+        ConjugateGradientALSFactorizer factorizer = new ConjugateGradientALSFactorizer(dataModel, 5, 0.1, 10);
+        Factorization factorization = factorizer.factorize();
+
+        double[] rmse = factorizer.getIterationRmse();
+        assertThat(rmse.length, is(10));
+        assertThat(factorizer.getIterationSeconds().length, is(10));
+        assertThat(rmse[9], lessThan(rmse[0]));
+        assertThat(trainingRmse(dataModel, factorization), closeTo(rmse[9], 1e-9));
+
+        double alswrRmse = trainingRmse(dataModel, new ALSWRFactorizer(dataModel, 5, 0.1, 10).factorize());
+        assertThat(rmse[9], lessThan(alswrRmse * 1.05));
+    }
+
+    private static double trainingRmse(DataModel dataModel, Factorization factorization) throws Exception {
+        double squaredErrors = 0.0;
+        int count = 0;
+        LongPrimitiveIterator users = dataModel.getUserIDs();
+        while (users.hasNext()) {
+            PreferenceArray prefs = dataModel.getPreferencesFromUser(users.nextLong());
+            for (int i = 0; i < prefs.length(); i++) {
+                double[] userFeatures = factorization.getUserFeatures(prefs.getUserID(i));
+                double[] itemFeatures = factorization.getItemFeatures(prefs.getItemID(i));
+                double error = prefs.getValue(i);
+                for (int f = 0; f < userFeatures.length; f++) {
+                    error -= userFeatures[f] * itemFeatures[f];
+                }
+                squaredErrors += error * error;
+                count++;
+            }
+        }
+        return Math.sqrt(squaredErrors / count);
+    }
+}
@@ -0,0 +1,103 @@
+package org.mraczynska.recommender.mahout;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.fail;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class EvaluationExecutorTest {
+
+    @Test
+    public void shouldPassResultsInOrderWithBoundedTasksInFlight() throws Exception {
+        EvaluationExecutor executor = new EvaluationExecutor(3);
+        List<Integer> results = new ArrayList<>();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        executor.execute(tasks(200, results, maxInFlight, executor, -1), 200, 400, results::add);
+
+        assertThat(results.size(), is(200));
+        for (int i = 0; i < results.size(); i++) {
+            assertThat(results.get(i), is(i));
+        }
+        assertThat(maxInFlight.get(), lessThanOrEqualTo(4 * 3));
+        assertThat(executor.getEvaluatedUsers(), is(200L));
+        assertThat(executor.getEvaluatedEstimates(), is(400L));
+    }
+
+    @Test
+    public void shouldStopWhenCancelled() throws Exception {
+        EvaluationExecutor executor = new EvaluationExecutor(2);
+        List<Integer> results = new ArrayList<>();
+
+        try {
+            executor.execute(tasks(1000, results, new AtomicInteger(), executor, 50), 1000, 2000, results::add);
+            fail("evaluation should be cancelled");
+        } catch (CancellationException expected) {
+            assertThat(executor.getEvaluatedUsers(), lessThan(1000L));
+        }
+    }
+
+    @Test
+    public void shouldStayCancelledForLaterRuns() throws Exception {
+        EvaluationExecutor executor = new EvaluationExecutor(2);
+        List<Integer> results = new ArrayList<>();
+        executor.cancel();
+
+        for (int run = 0; run < 2; run++) {
+            try {
+                executor.execute(tasks(10, results, new AtomicInteger(), executor, -1), 10, 20, results::add);
+                fail("cancelled executor should not run");
+            } catch (CancellationException expected) {
+                assertThat(results.size(), is(0));
+                assertThat(executor.getEvaluatedUsers(), is(0L));
+            }
+        }
+    }
+
+    /**
+     * Tasks returning their own index, after a short sleep; the task with index {@code cancelAt} cancels the executor.
+     */
+    private static Iterator<Callable<Integer>> tasks(int count,
+                                                     List<Integer> results,
+                                                     AtomicInteger maxInFlight,
+                                                     EvaluationExecutor executor,
+                                                     int cancelAt) {
+        return new Iterator<Callable<Integer>>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public Callable<Integer> next() {
+                int index = next++;
+                // tasks created but not yet consumed, including this one
+                maxInFlight.accumulateAndGet(next - results.size(), Math::max);
+                return () -> {
+                    Thread.sleep((index * 7) % 5);
+                    if (index == cancelAt) {
+                        executor.cancel();
+                    }
+                    executor.userEvaluated(2, 0);
+                    return index;
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,145 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorizer;
+import org.apache.mahout.cf.taste.impl.recommender.svd.PersistenceStrategy;
+import org.apache.mahout.cf.taste.impl.recommender.svd.RatingSGDFactorizer;
+import org.apache.mahout.cf.taste.impl.recommender.svd.SVDRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collection;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class FactorStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldServeStoredFactorizationWithoutTraining() throws Exception {
+        DataModel dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(5L), 60, 40);
+        FactorStore store = new FactorStore(folder.getRoot());
+        Recommender trained = new SVDRecommender(dataModel, new RatingSGDFactorizer(dataModel, 4, 5),
+                store.persistenceStrategy(dataModel, "RatingSGDFactorizer-f4-i5"));
+        assertThat(folder.getRoot().listFiles(), arrayWithSize(1));
+
+        Recommender stored = new SVDRecommender(dataModel, new FailingFactorizer(),
+                store.persistenceStrategy(dataModel, "RatingSGDFactorizer-f4-i5"));
+        LongPrimitiveIterator users = dataModel.getUserIDs();
+        while (users.hasNext()) {
+            long userID = users.nextLong();
+            LongPrimitiveIterator items = dataModel.getItemIDs();
+            while (items.hasNext()) {
+                long itemID = items.nextLong();
+                assertThat(stored.estimatePreference(userID, itemID), is(trained.estimatePreference(userID, itemID)));
+            }
+            assertThat(stored.recommend(userID, 5), is(trained.recommend(userID, 5)));
+        }
+    }
+
+    @Test
+    public void shouldNotFindFactorizationOfOtherDataOrConfiguration() throws Exception {
+        DataModel dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(5L), 60, 40);
+        FactorStore store = new FactorStore(folder.getRoot());
+        Factorization factorization = new RatingSGDFactorizer(dataModel, 4, 5).factorize();
+        store.persistenceStrategy(dataModel, "RatingSGDFactorizer-f4-i5").maybePersist(factorization);
+
+        DataModel otherData = PrimitiveUserSimilarityTest.randomDataModel(new Random(6L), 60, 40);
+        assertThat(store.persistenceStrategy(otherData, "RatingSGDFactorizer-f4-i5").load(), is(nullValue()));
+        assertThat(store.persistenceStrategy(dataModel, "RatingSGDFactorizer-f8-i5").load(), is(nullValue()));
+        PersistenceStrategy same = store.persistenceStrategy(dataModel, "RatingSGDFactorizer-f4-i5");
+        Factorization mapped = same.load();
+        assertThat(mapped.numUsers(), is(factorization.numUsers()));
+        assertThat(mapped.numItems(), is(factorization.numItems()));
+        assertThat(mapped.getItemFeatures(50000L), is(factorization.getItemFeatures(50000L)));
+    }
+
+    @Test
+    public void shouldWarmStartFromRelatedRun() throws Exception {
+        DataModel dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(5L), 60, 40);
+        FactorStore store = new FactorStore(folder.getRoot());
+        ConjugateGradientALSFactorizer trained = new ConjugateGradientALSFactorizer(dataModel, 4, 0.1, 10);
+        store.persistenceStrategy(dataModel, RecommenderEval.svdConfiguration("ConjugateGradientALSFactorizer", 4, 10))
+                .maybePersist(trained.factorize());
+
+        ConjugateGradientALSFactorizer cold = new ConjugateGradientALSFactorizer(dataModel, 6, 0.1, 2);
+        cold.factorize();
+        ConjugateGradientALSFactorizer warm = new ConjugateGradientALSFactorizer(dataModel, 6, 0.1, 2);
+        assertThat(store.warmStart(warm, dataModel, "ConjugateGradientALSFactorizer", 6, 2, false), is("f4-i10"));
+        warm.factorize();
+        assertThat(warm.getIterationRmse()[0], lessThan(cold.getIterationRmse()[0]));
+
+        assertThat(store.warmStart(new HogwildSGDFactorizer(dataModel, 6, 2), dataModel, "HogwildSGDFactorizer", 6, 2,
+                false), is(nullValue()));
+    }
+
+    @Test
+    public void shouldWarmStartOnlyFromColdRunsWithOtherNumbersOfFeatures() throws Exception {
+        DataModel dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(5L), 60, 40);
+        FactorStore store = new FactorStore(folder.getRoot());
+        Factorization factorization = new ConjugateGradientALSFactorizer(dataModel, 4, 0.1, 2).factorize();
+        store.persistenceStrategy(dataModel, RecommenderEval.svdConfiguration("ConjugateGradientALSFactorizer", 6, 10))
+                .maybePersist(new ConjugateGradientALSFactorizer(dataModel, 6, 0.1, 2).factorize());
+        store.persistenceStrategy(dataModel, RecommenderEval.svdConfiguration("ConjugateGradientALSFactorizer", 4, 5))
+                .maybePersist(factorization);
+        store.persistenceStrategy(dataModel, RecommenderEval.svdConfiguration("ConjugateGradientALSFactorizer", 4, 50))
+                .maybePersist(factorization);
+        String warmStarted = FactorStore.warmStartConfiguration(
+                RecommenderEval.svdConfiguration("ConjugateGradientALSFactorizer", 4, 20), "f4-i5");
+        store.persistenceStrategy(dataModel, warmStarted).maybePersist(factorization);
+
+        assertThat(store.contains(dataModel, warmStarted), is(true));
+        assertThat(store.contains(dataModel, RecommenderEval.svdConfiguration("ConjugateGradientALSFactorizer", 4, 20)),
+                is(false));
+        // not from the other runs with 6 features, nor from the warm-started run of 20 iterations
+        ConjugateGradientALSFactorizer factorizer = new ConjugateGradientALSFactorizer(dataModel, 6, 0.1, 20);
+        assertThat(store.warmStart(factorizer, dataModel, "ConjugateGradientALSFactorizer", 6, 20, false), is("f4-i5"));
+        assertThat(store.warmStart(factorizer, dataModel, "ConjugateGradientALSFactorizer", 6, 40, false), is("f4-i50"));
+        assertThat(store.warmStart(factorizer, dataModel, "ConjugateGradientALSFactorizer", 4, 20, false),
+                is("f6-i10"));
+    }
+
+    @Test
+    public void shouldWarmStartFromOtherTrainingDataOnlyWhenAsked() throws Exception {
+        DataModel otherFold = PrimitiveUserSimilarityTest.randomDataModel(new Random(5L), 60, 40);
+        DataModel dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(6L), 60, 40);
+        FactorStore store = new FactorStore(folder.getRoot());
+        store.persistenceStrategy(otherFold, RecommenderEval.svdConfiguration("ConjugateGradientALSFactorizer", 4, 10))
+                .maybePersist(new ConjugateGradientALSFactorizer(otherFold, 4, 0.1, 10).factorize());
+
+        ConjugateGradientALSFactorizer factorizer = new ConjugateGradientALSFactorizer(dataModel, 6, 0.1, 2);
+        assertThat(store.warmStart(factorizer, dataModel, "ConjugateGradientALSFactorizer", 6, 2, false),
+                is(nullValue()));
+        assertThat(store.warmStart(factorizer, dataModel, "ConjugateGradientALSFactorizer", 6, 2, true),
+                startsWith("f4-i10-"));
+    }
+
+    private static final class FailingFactorizer implements Factorizer {
+
+        @Override
+        public Factorization factorize() {
+            throw new AssertionError("stored factorization should be used");
+        }
+
+        @Override
+        public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.svd.SVDRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class HogwildSGDFactorizerTest {
+
+    @Test
+    public void shouldReduceTrainingErrorEveryEpoch() throws Exception {
+        DataModel dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(5L), 300, 100);
+        HogwildSGDFactorizer factorizer = new HogwildSGDFactorizer(dataModel, 8, 15, 0.02f, 0.95f, 0.02f, 0.005f, 1L);
+        SVDRecommender recommender = new SVDRecommender(dataModel, factorizer);
+
+        double[] rmse = factorizer.getEpochRmse();
+        assertThat(rmse.length, is(15));
+        assertThat(factorizer.getEpochSeconds().length, is(15));
+        for (int epoch = 1; epoch < rmse.length; epoch++) {
+            assertThat(rmse[epoch], lessThan(rmse[epoch - 1]));
+        }
+
+        // RMSE of the trained model, estimated through the folded mean and bias features
+        double squaredErrors = 0.0;
+        int count = 0;
+        LongPrimitiveIterator users = dataModel.getUserIDs();
+        while (users.hasNext()) {
+            PreferenceArray prefs = dataModel.getPreferencesFromUser(users.nextLong());
+            for (int i = 0; i < prefs.length(); i++) {
+                double error = prefs.getValue(i) - recommender.estimatePreference(prefs.getUserID(i), prefs.getItemID(i));
+                squaredErrors += error * error;
+                count++;
+            }
+        }
+        assertThat(Math.sqrt(squaredErrors / count), lessThan(rmse[rmse.length - 1]));
+    }
+}
@@ -0,0 +1,60 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class IDDictionaryTest {
+
+    @Test
+    public void sorted_numbersDistinctIDsInAscendingOrder() {
+        FastIDSet ids = new FastIDSet();
+        Random random = new Random(7L);
+        while (ids.size() < 1000) {
+            // ISBN-like, sparse IDs
+            ids.add(9780000000000L + random.nextInt(1_000_000_000));
+        }
+
+        IDDictionary dictionary = IDDictionary.sorted(ids.iterator(), ids.size());
+
+        assertThat(dictionary.size(), is(1000));
+        for (int index = 0; index < dictionary.size(); index++) {
+            assertThat(dictionary.index(dictionary.id(index)), is(index));
+            if (index > 0) {
+                assertThat(dictionary.id(index - 1) < dictionary.id(index), is(true));
+            }
+        }
+        assertThat(dictionary.index(42L), is(-1));
+        assertThat(dictionary.contains(dictionary.id(0) - 1), is(false));
+    }
+
+    @Test
+    public void builder_numbersIDsInOrderOfFirstAddition() {
+        IDDictionary.Builder builder = new IDDictionary.Builder();
+        for (int round = 0; round < 2; round++) {
+            for (long id = 1000; id > 0; id--) {
+                assertThat(builder.add(id * 31), is((int) (1000 - id)));
+            }
+        }
+
+        IDDictionary dictionary = builder.build();
+
+        assertThat(dictionary.size(), is(1000));
+        assertThat(dictionary.id(0), is(31000L));
+        assertThat(dictionary.index(31L), is(999));
+        assertThat(dictionary.index(32L), is(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsDuplicateIDs() {
+        new IDDictionary(new long[]{1L, 2L, 1L});
+    }
+}
@@ -0,0 +1,109 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.similarity.EuclideanDistanceSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.UncenteredCosineSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class InvertedIndexUserNeighborhoodTest {
+
+    private DataModel dataModel;
+
+    @Before
+    public void setUp() {
+        // sparse data: most pairs of users have no co-rated items
+        Random random = new Random(7L);
+        FastByIDMap<PreferenceArray> prefs = new FastByIDMap<>();
+        for (int user = 0; user < 300; user++) {
+            int numPrefs = 2 + random.nextInt(12);
+            long userID = 100L + 3L * user;
+            PreferenceArray userPrefs = new GenericUserPreferenceArray(numPrefs);
+            userPrefs.setUserID(0, userID);
+            for (int i = 0; i < numPrefs; i++) {
+                // items of every user are distinct, popular items get low numbers
+                userPrefs.setItemID(i, 20L * i + (long) (random.nextDouble() * random.nextDouble() * 20));
+                userPrefs.setValue(i, 1 + random.nextInt(5));
+            }
+            prefs.put(userID, userPrefs);
+        }
+        dataModel = new GenericDataModel(prefs);
+    }
+
+    @Test
+    public void shouldFindSameNeighborsAsNearestNUserNeighborhood() throws Exception {
+        UserSimilarity[] similarities = {
+                new PearsonCorrelationSimilarity(dataModel),
+                new UncenteredCosineSimilarity(dataModel),
+                new EuclideanDistanceSimilarity(dataModel),
+                new TanimotoCoefficientSimilarity(dataModel),
+                new LogLikelihoodSimilarity(dataModel),
+                new PrimitivePearsonCorrelationSimilarity(dataModel)
+        };
+        for (UserSimilarity similarity : similarities) {
+            for (int n : new int[]{1, 5, 40, 1000}) {
+                UserNeighborhood expected = new NearestNUserNeighborhood(n, similarity, dataModel);
+                UserNeighborhood actual = new InvertedIndexUserNeighborhood(n, similarity, dataModel);
+                LongPrimitiveIterator it = dataModel.getUserIDs();
+                while (it.hasNext()) {
+                    long userID = it.nextLong();
+                    assertThat(similarity + " n=" + n + " user=" + userID,
+                            actual.getUserNeighborhood(userID), is(expected.getUserNeighborhood(userID)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldReturnNoNeighborsForUnknownUser() throws Exception {
+        UserSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+        UserNeighborhood expected = new NearestNUserNeighborhood(10, similarity, dataModel);
+        UserNeighborhood actual = new InvertedIndexUserNeighborhood(10, similarity, dataModel);
+
+        assertThat(actual.getUserNeighborhood(1L), is(expected.getUserNeighborhood(1L)));
+    }
+
+    @Test
+    public void shouldSkipUsersBelowMinOverlap() throws Exception {
+        UserSimilarity similarity = new TanimotoCoefficientSimilarity(dataModel);
+        InvertedIndexUserNeighborhood neighborhood = new InvertedIndexUserNeighborhood(1000,
+                Double.NEGATIVE_INFINITY, 3, similarity, dataModel);
+        LongPrimitiveIterator it = dataModel.getUserIDs();
+        while (it.hasNext()) {
+            long userID = it.nextLong();
+            for (long neighborID : neighborhood.getUserNeighborhood(userID)) {
+                assertThat(overlap(userID, neighborID) >= 3, is(true));
+            }
+        }
+    }
+
+    private int overlap(long userID1, long userID2) throws Exception {
+        int overlap = 0;
+        for (long itemID : dataModel.getItemIDsFromUser(userID1)) {
+            if (dataModel.getItemIDsFromUser(userID2).contains(itemID)) {
+                overlap++;
+            }
+        }
+        return overlap;
+    }
+}
@@ -0,0 +1,73 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class LshUserNeighborhoodTest {
+
+    private DataModel dataModel;
+
+    @Before
+    public void setUp() {
+        dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(11L), 150, 40);
+    }
+
+    @Test
+    public void shouldBeExactWhenEveryUserIsCandidate() throws Exception {
+        UserSimilarity[] similarities = {
+                new PearsonCorrelationSimilarity(dataModel),
+                new PrimitivePearsonCorrelationSimilarity(dataModel),
+                new TanimotoCoefficientSimilarity(dataModel)
+        };
+        for (UserSimilarity similarity : similarities) {
+            // with one row per band a pair of users is missed with probability (1 - p)^64, p = 1/2 for SimHash of
+            // dissimilar users and p = Jaccard coefficient (about 1/7 for this data) for MinHash
+            LshUserNeighborhood lsh = new LshUserNeighborhood(20, similarity, dataModel, 64, 1, 1L);
+            UserNeighborhood expected = new NearestNUserNeighborhood(20, similarity, dataModel);
+            LongPrimitiveIterator it = dataModel.getUserIDs();
+            while (it.hasNext()) {
+                long userID = it.nextLong();
+                assertThat(similarity + " user=" + userID,
+                        lsh.getUserNeighborhood(userID), is(expected.getUserNeighborhood(userID)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldTradeRecallForFewerCandidates() throws Exception {
+        UserSimilarity similarity = new PrimitivePearsonCorrelationSimilarity(dataModel);
+        assertThat(LshUserNeighborhood.familyOf(similarity, dataModel), is(LshUserNeighborhood.Family.SIM_HASH));
+        assertThat(LshUserNeighborhood.familyOf(new TanimotoCoefficientSimilarity(dataModel), dataModel),
+                is(LshUserNeighborhood.Family.MIN_HASH));
+
+        LshUserNeighborhood.Parameters parameters = LshUserNeighborhood.Parameters.parse(
+                "lsh:4x6:" + PrimitivePearsonCorrelationSimilarity.class.getName());
+        assertThat(parameters.getNumBands(), is(4));
+        assertThat(parameters.getRowsPerBand(), is(6));
+        LshUserNeighborhood lsh = parameters.build(20, similarity, dataModel);
+        NeighborhoodRecall recall = NeighborhoodRecall.measure(lsh,
+                new InvertedIndexUserNeighborhood(20, similarity, dataModel), dataModel, 1000);
+        assertThat(recall.getNumUsers(), is(150));
+        assertThat(recall.getRecall(), greaterThan(0.0));
+        assertThat(recall.getRecall(), lessThan(1.0));
+        assertThat(lsh.getAverageCandidates(), lessThan(50.0));
+    }
+}
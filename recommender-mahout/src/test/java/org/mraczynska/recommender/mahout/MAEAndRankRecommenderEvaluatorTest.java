@@ -1,12 +1,27 @@
 package org.mraczynska.recommender.mahout;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.number.IsCloseTo.closeTo;
 
 
@@ -77,4 +92,129 @@ public class MAEAndRankRecommenderEvaluatorTest {
         assertThat(dcg, closeTo(9.60287, 0.0001));
         assertThat(ndcg, closeTo(0.9309, 0.0001));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void evaluateAllMetrics_sameAsSerialComputation() throws Exception {
+        DataModel trainingDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(1L), 100, 150);
+        DataModel testDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(2L), 100, 150);
+        RecommenderBuilder recBuilder = dataModel -> RecommenderEval.buildUserBasedRecommender(
+                dataModel, new PearsonCorrelationSimilarity(dataModel), 20);
+
+        Map<String, Double> metrics = sut.evaluateAllMetrics(recBuilder, trainingDataModel, testDataModel);
+
+        Recommender recommender = recBuilder.buildRecommender(trainingDataModel);
+        double sumOfErrors = 0.0;
+        double sumOfSquares = 0.0;
+        int count = 0;
+        int noEstimates = 0;
+        LongPrimitiveIterator it = testDataModel.getUserIDs();
+        while (it.hasNext()) {
+            long userID = it.nextLong();
+            PreferenceArray prefs = testDataModel.getPreferencesFromUser(userID);
+            for (int i = 0; i < prefs.length(); i++) {
+                float estimate = recommender.estimatePreference(userID, prefs.getItemID(i));
+                if (Float.isNaN(estimate)) {
+                    noEstimates++;
+                } else {
+                    double error = Math.abs(prefs.getValue(i) - estimate);
+                    sumOfErrors += error;
+                    sumOfSquares += error * error;
+                    count++;
+                }
+            }
+        }
+        assertThat(metrics.get("MAE.ByRating"), closeTo(sumOfErrors / count, 1e-9));
+        assertThat(metrics.get("RMSE.ByRating"), closeTo(Math.sqrt(sumOfSquares / count), 1e-9));
+        assertThat(metrics.get("NoEstimates"), is((double) noEstimates));
+        // everything but latencies is the same in every run
+        assertThat(withoutLatencies(sut.evaluateAllMetrics(recBuilder, trainingDataModel, testDataModel)),
+                is(withoutLatencies(metrics)));
+    }
+
+    private static Map<String, Double> withoutLatencies(Map<String, Double> metrics) {
+        return Maps.filterKeys(metrics, key -> !key.startsWith("Latency."));
+    }
+
+    @Test
+    public void evaluateAllMetrics_usersSplitIntoSlices_sameAsWholeUsers() throws Exception {
+        DataModel trainingDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(1L), 100, 400);
+        DataModel testDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(2L), 100, 400);
+        // estimates one item at a time, so heavy users are split
+        RecommenderBuilder recBuilder = dataModel -> {
+            UserSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+            return new GenericUserBasedRecommender(dataModel, new NearestNUserNeighborhood(20, similarity, dataModel),
+                    similarity);
+        };
+
+        Map<String, Double> metrics = sut.evaluateAllMetrics(recBuilder, trainingDataModel, testDataModel);
+
+        Recommender recommender = recBuilder.buildRecommender(trainingDataModel);
+        EvaluationMetrics wholeUserMetrics = new EvaluationMetrics();
+        LongPrimitiveIterator it = testDataModel.getUserIDs();
+        while (it.hasNext()) {
+            long userID = it.nextLong();
+            PreferenceArray prefs = testDataModel.getPreferencesFromUser(userID);
+            float[] estimates = new float[prefs.length()];
+            for (int i = 0; i < prefs.length(); i++) {
+                estimates[i] = recommender.estimatePreference(userID, prefs.getItemID(i));
+            }
+            sut.processEstimatesOfOneUser(prefs, estimates, wholeUserMetrics);
+        }
+        sut.setMetrics(wholeUserMetrics);
+        Map<String, Double> expected = sut.getMetrics();
+        assertThat(metrics.keySet(), is(expected.keySet()));
+        for (Map.Entry<String, Double> entry : expected.entrySet()) {
+            // statistics of neighbors are NaN, as Mahout's recommender keeps none
+            if (entry.getValue().isNaN()) {
+                assertThat(entry.getKey(), metrics.get(entry.getKey()).isNaN(), is(true));
+            } else {
+                assertThat(entry.getKey(), metrics.get(entry.getKey()), closeTo(entry.getValue(), 1e-9));
+            }
+        }
+    }
+
+    @Test
+    public void evaluateAllMetrics_batchEstimator_oneCallPerUser() throws Exception {
+        DataModel trainingDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(1L), 100, 400);
+        DataModel testDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(2L), 100, 400);
+        AtomicInteger calls = new AtomicInteger();
+        RecommenderBuilder recBuilder = dataModel -> {
+            UserSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+            return new MyGenericUserBasedRecommender(dataModel, new NearestNUserNeighborhood(20, similarity, dataModel),
+                    similarity) {
+                @Override
+                public float[] estimatePreferences(long userID, long[] itemIDs) throws TasteException {
+                    calls.incrementAndGet();
+                    return super.estimatePreferences(userID, itemIDs);
+                }
+            };
+        };
+
+        EvaluationFold fold = sut.prepareFold(trainingDataModel, testDataModel);
+        sut.evaluateAllMetrics(recBuilder, fold);
+
+        // heavy users would be split into slices if estimates were made one item at a time
+        assertThat(calls.get(), is(fold.getNumTestUsers()));
+    }
+
+    @Test
+    public void prepareFold_sameTestPreferencesAsCopiedFold() throws Exception {
+        DataModel trainingDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(1L), 30, 50);
+        DataModel testDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(2L), 40, 50);
+
+        EvaluationFold fold = sut.prepareFold(trainingDataModel, testDataModel);
+        EvaluationFold copiedFold = sut.copyFold(trainingDataModel, testDataModel);
+
+        assertThat(fold.getTrainingModel(), is(trainingDataModel));
+        assertThat(fold.getNumTestUsers(), is(copiedFold.getNumTestUsers()));
+        assertThat(fold.getNumTestPrefs(), is(copiedFold.getNumTestPrefs()));
+        for (int copiedUser = 0; copiedUser < copiedFold.getNumTestUsers(); copiedUser++) {
+            PreferenceArray copiedPrefs = copiedFold.getTestPrefs(copiedUser);
+            PreferenceArray prefs = fold.getTestPrefs(fold.getTestUsers().index(copiedFold.getTestUsers().id(copiedUser)));
+            assertThat(prefs.getIDs(), is(copiedPrefs.getIDs()));
+            for (int i = 0; i < prefs.length(); i++) {
+                assertThat(prefs.getValue(i), is(copiedPrefs.getValue(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class MappedDataModelTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldServeSamePreferencesAsConvertedModel() throws Exception {
+        DataModel expected = PrimitiveUserSimilarityTest.randomDataModel(new Random(11L), 40, 120);
+        DataModel actual = writeAndMap(expected);
+
+        assertSameModel(expected, actual);
+        PearsonCorrelationSimilarity expectedSimilarity = new PearsonCorrelationSimilarity(expected);
+        PearsonCorrelationSimilarity actualSimilarity = new PearsonCorrelationSimilarity(actual);
+        for (int user1 = 0; user1 < 40; user1++) {
+            for (int user2 = 0; user2 < 40; user2++) {
+                long userID1 = 1000L + 7L * user1;
+                long userID2 = 1000L + 7L * user2;
+                assertThat(actualSimilarity.userSimilarity(userID1, userID2),
+                        is(expectedSimilarity.userSimilarity(userID1, userID2)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldKeepFractionalRatings() throws Exception {
+        FastByIDMap<PreferenceArray> prefs = new FastByIDMap<>();
+        PreferenceArray userPrefs = new GenericUserPreferenceArray(3);
+        userPrefs.setUserID(0, 5L);
+        userPrefs.setItemID(0, 30L);
+        userPrefs.setValue(0, 3.5f);
+        userPrefs.setItemID(1, 10L);
+        userPrefs.setValue(1, -1.25f);
+        userPrefs.setItemID(2, 20L);
+        userPrefs.setValue(2, 1000f);
+        prefs.put(5L, userPrefs);
+        DataModel expected = new GenericDataModel(prefs);
+        DataModel actual = writeAndMap(expected);
+
+        assertSameModel(expected, actual);
+        assertThat(actual.getPreferenceValue(5L, 10L), is(-1.25f));
+        assertThat(actual.getPreferenceValue(5L, 15L), is(nullValue()));
+    }
+
+    @Test(expected = NoSuchUserException.class)
+    public void shouldThrowForUnknownUser() throws Exception {
+        writeAndMap(PrimitiveUserSimilarityTest.randomDataModel(new Random(3L), 5, 10)).getPreferencesFromUser(1L);
+    }
+
+    private DataModel writeAndMap(DataModel dataModel) throws Exception {
+        File file = folder.newFile("ratings.bin");
+        BinaryRatingsFile.write(dataModel, file);
+        return new MappedDataModel(file);
+    }
+
+    static void assertSameModel(DataModel expected, DataModel actual) throws Exception {
+        assertThat(actual.getNumUsers(), is(expected.getNumUsers()));
+        assertThat(actual.getNumItems(), is(expected.getNumItems()));
+        assertThat(actual.getMinPreference(), is(expected.getMinPreference()));
+        assertThat(actual.getMaxPreference(), is(expected.getMaxPreference()));
+        LongPrimitiveIterator users = expected.getUserIDs();
+        LongPrimitiveIterator actualUsers = actual.getUserIDs();
+        while (users.hasNext()) {
+            long userID = users.nextLong();
+            assertThat(actualUsers.nextLong(), is(userID));
+            assertSameArray(expected.getPreferencesFromUser(userID), actual.getPreferencesFromUser(userID));
+            assertThat(actual.getItemIDsFromUser(userID), is(expected.getItemIDsFromUser(userID)));
+        }
+        LongPrimitiveIterator items = expected.getItemIDs();
+        LongPrimitiveIterator actualItems = actual.getItemIDs();
+        while (items.hasNext()) {
+            long itemID = items.nextLong();
+            assertThat(actualItems.nextLong(), is(itemID));
+            assertSameArray(expected.getPreferencesForItem(itemID), actual.getPreferencesForItem(itemID));
+            assertThat(actual.getNumUsersWithPreferenceFor(itemID), is(expected.getNumUsersWithPreferenceFor(itemID)));
+            LongPrimitiveIterator others = expected.getItemIDs();
+            while (others.hasNext()) {
+                long otherID = others.nextLong();
+                assertThat(actual.getNumUsersWithPreferenceFor(itemID, otherID),
+                        is(expected.getNumUsersWithPreferenceFor(itemID, otherID)));
+            }
+        }
+    }
+
+    private static void assertSameArray(PreferenceArray expected, PreferenceArray actual) {
+        assertThat(actual.length(), is(expected.length()));
+        assertThat(actual.getIDs(), is(expected.getIDs()));
+        for (int i = 0; i < expected.length(); i++) {
+            assertThat(actual.getUserID(i), is(expected.getUserID(i)));
+            assertThat(actual.getItemID(i), is(expected.getItemID(i)));
+            assertThat(actual.getValue(i), is(expected.getValue(i)));
+            assertThat(actual.hasPrefWithItemID(expected.getItemID(i)), is(true));
+            assertThat(actual.hasPrefWithUserID(expected.getUserID(i)), is(true));
+        }
+        PreferenceArray copy = actual.clone();
+        copy.sortByValue();
+        assertThat(copy.length(), is(expected.length()));
+    }
+}
@@ -0,0 +1,52 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.UncenteredCosineSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class MultiNeighborhoodSizeEvaluatorTest {
+
+    private static final int[] NEIGHBORHOOD_SIZES = {1, 3, 10, 40, 200};
+
+    private final DataModel trainingDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(3L), 80, 120);
+    private final DataModel testDataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(4L), 80, 120);
+
+    @Test
+    public void shouldGiveSameMetricsAsSeparateEvaluations() throws Exception {
+        MAEAndRankRecommenderEvaluator evaluator = new MAEAndRankRecommenderEvaluator();
+        EvaluationFold fold = evaluator.prepareFold(trainingDataModel, testDataModel);
+        // Pearson is NaN for users who gave one rating to everything
+        for (UserSimilarity similarity : Arrays.<UserSimilarity>asList(new PearsonCorrelationSimilarity(trainingDataModel),
+                new UncenteredCosineSimilarity(trainingDataModel))) {
+            Map<Integer, Map<String, Double>> singlePass =
+                    new MultiNeighborhoodSizeEvaluator(NEIGHBORHOOD_SIZES).evaluate(similarity, fold);
+
+            assertThat(singlePass.keySet(), contains(1, 3, 10, 40, 200));
+            for (int neighborhoodSize : NEIGHBORHOOD_SIZES) {
+                Map<String, Double> separate = evaluator.evaluateAllMetrics(dataModel -> new MyGenericUserBasedRecommender(
+                        dataModel, new NearestNUserNeighborhood(neighborhoodSize, similarity, dataModel), similarity), fold);
+                for (String metric : Arrays.asList("MAE.ByRating", "Predict.DCG", "Predict.nDCG", "avgEstimateBaseOnCount")) {
+                    assertThat(similarity + " k=" + neighborhoodSize + " " + metric,
+                            singlePass.get(neighborhoodSize).get(metric), closeTo(separate.get(metric), 1e-6));
+                }
+                assertThat(singlePass.get(neighborhoodSize).get("NoEstimates"), is(separate.get("NoEstimates")));
+            }
+        }
+    }
+}
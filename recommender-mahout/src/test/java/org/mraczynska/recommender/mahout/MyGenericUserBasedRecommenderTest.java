@@ -0,0 +1,124 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class MyGenericUserBasedRecommenderTest {
+
+    private static final long UNKNOWN_ITEM_ID = 1L;
+
+    private DataModel dataModel;
+    private long[] itemIDs;
+    private MyGenericUserBasedRecommender recommender;
+
+    @Before
+    public void setUp() throws TasteException {
+        dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(11L), 60, 300);
+        // Pearson is NaN for users who gave one rating to everything, who are kept in neighborhoods below
+        UserSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+        recommender = new MyGenericUserBasedRecommender(dataModel, new FirstUsersNeighborhood(dataModel, 12), similarity);
+        itemIDs = new long[dataModel.getNumItems() + 1];
+        LongPrimitiveIterator it = dataModel.getItemIDs();
+        for (int i = 0; it.hasNext(); i++) {
+            itemIDs[i] = it.nextLong();
+        }
+        itemIDs[itemIDs.length - 1] = UNKNOWN_ITEM_ID;
+    }
+
+    @Test
+    public void estimatePreferences_shouldGiveSameEstimatesAsEstimatePreference() throws TasteException {
+        int numEstimates = 0;
+        int numNaN = 0;
+        LongPrimitiveIterator it = dataModel.getUserIDs();
+        while (it.hasNext()) {
+            long userID = it.nextLong();
+            float[] estimates = recommender.estimatePreferences(userID, itemIDs);
+            for (int i = 0; i < itemIDs.length; i++) {
+                assertThat(estimates[i], is(recommender.estimatePreference(userID, itemIDs[i])));
+                if (Float.isNaN(estimates[i])) {
+                    numNaN++;
+                } else {
+                    numEstimates++;
+                }
+            }
+        }
+        // both estimates and items without (enough) neighbor ratings are covered
+        assertThat(numEstimates, greaterThan(0));
+        assertThat(numNaN, greaterThan(0));
+    }
+
+    @Test
+    public void recommend_shouldGiveSameItemsAsGenericUserBasedRecommender() throws TasteException {
+        MyGenericUserBasedRecommender batch = recommender;
+        // the superclass recommends with one doEstimatePreference() call per item
+        Recommender perItem = new GenericUserBasedRecommender(dataModel, new FirstUsersNeighborhood(dataModel, 12),
+                new PearsonCorrelationSimilarity(dataModel)) {
+            @Override
+            protected float doEstimatePreference(long theUserID, long[] theNeighborhood, long itemID)
+                    throws TasteException {
+                return batch.doEstimatePreference(theUserID, theNeighborhood, itemID);
+            }
+        };
+        LongPrimitiveIterator it = dataModel.getUserIDs();
+        while (it.hasNext()) {
+            long userID = it.nextLong();
+            for (boolean includeKnownItems : new boolean[]{false, true}) {
+                List<RecommendedItem> expected = perItem.recommend(userID, 10, null, includeKnownItems);
+                List<RecommendedItem> actual = batch.recommend(userID, 10, null, includeKnownItems);
+                assertThat(actual.size(), is(expected.size()));
+                for (int i = 0; i < expected.size(); i++) {
+                    assertThat(actual.get(i).getItemID(), is(expected.get(i).getItemID()));
+                    assertThat(actual.get(i).getValue(), is(expected.get(i).getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Neighborhood of the first users by ID, whatever their similarity, the user itself included.
+     */
+    private static final class FirstUsersNeighborhood implements UserNeighborhood {
+
+        private final long[] userIDs;
+
+        private FirstUsersNeighborhood(DataModel dataModel, int size) throws TasteException {
+            userIDs = new long[size];
+            LongPrimitiveIterator it = dataModel.getUserIDs();
+            for (int i = 0; i < size; i++) {
+                userIDs[i] = it.nextLong();
+            }
+        }
+
+        @Override
+        public long[] getUserNeighborhood(long userID) {
+            return Arrays.copyOf(userIDs, userIDs.length);
+        }
+
+        @Override
+        public void refresh(Collection<Refreshable> alreadyRefreshed) {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class NeighborListStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DataModel dataModel;
+
+    @Before
+    public void setUp() {
+        dataModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(5L), 80, 30);
+    }
+
+    @Test
+    public void shouldMapStoredListsEqualToComputedOnes() throws Exception {
+        UserSimilarity similarity = new PrimitivePearsonCorrelationSimilarity(dataModel);
+        PrecomputedUserSimilarity computed = AllPairsSimilarityEngine.compute(similarity, dataModel, 20);
+        NeighborListStore store = new NeighborListStore(folder.getRoot());
+        store.load(similarity, dataModel, 3, 20);
+        File[] files = folder.getRoot().listFiles();
+        assertThat(files, arrayWithSize(1));
+        long written = files[0].lastModified();
+
+        PrecomputedUserSimilarity stored = store.load(similarity, dataModel, 3, 10);
+        assertThat(stored.getMaxNeighbors(), is(20));
+        assertThat(files[0].lastModified(), is(written));
+        LongPrimitiveIterator it = dataModel.getUserIDs();
+        while (it.hasNext()) {
+            long userID = it.nextLong();
+            long[] neighbors = stored.getNeighborhood(20).getUserNeighborhood(userID);
+            assertThat(neighbors, is(computed.getNeighborhood(20).getUserNeighborhood(userID)));
+            for (long neighborID : neighbors) {
+                assertThat(stored.userSimilarity(userID, neighborID), is(computed.userSimilarity(userID, neighborID)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldRecomputeForLongerListsOrOtherData() throws Exception {
+        UserSimilarity similarity = new PrimitivePearsonCorrelationSimilarity(dataModel);
+        NeighborListStore store = new NeighborListStore(folder.getRoot());
+        store.load(similarity, dataModel, 0, 5);
+        assertThat(store.load(similarity, dataModel, 0, 15).getMaxNeighbors(), is(15));
+        assertThat(folder.getRoot().listFiles(), arrayWithSize(1));
+
+        DataModel otherModel = PrimitiveUserSimilarityTest.randomDataModel(new Random(6L), 80, 30);
+        assertThat(NeighborListStore.fingerprint(otherModel), is(not(NeighborListStore.fingerprint(dataModel))));
+        store.load(new PrimitivePearsonCorrelationSimilarity(otherModel), otherModel, 0, 5);
+        assertThat(folder.getRoot().listFiles(), arrayWithSize(2));
+    }
+}
@@ -0,0 +1,80 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class ParallelRatingsLoaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldLoadSamePreferencesAsFileDataModel() throws Exception {
+        File ratings = write("ratings.csv", "userId,movieId,rating\r\n"
+                + "1,10,4\r\n"
+                + "1,20,3\r\n"
+                + "\r\n"
+                + "# comment\n"
+                + "2,10,5\n"
+                + "2,30,-2.5\n"
+                + "1,10,2\n"
+                + "3;40;1\n"
+                + "3,,5\n"
+                + "4,50,\"0\"\n"
+                + "2,30,\n"
+                + "5,60,1");
+        // what the old conversion wrote for FileDataModel
+        File converted = write("converted.csv", "1,10,4\n1,20,3\n2,10,5\n2,30,-2.5\n1,10,2\n3,40,1\n2,30,\n5,60,1\n");
+
+        assertSameModel(new FileDataModel(converted), ParallelRatingsLoader.load(ratings, false));
+    }
+
+    @Test
+    public void shouldDropRatingsWhenIgnored() throws Exception {
+        File ratings = write("ratings.csv", "userId,movieId,rating\n1,10,4\n1,20,3\n2,10,5\n");
+        File converted = write("converted.csv", "1,10\n1,20\n2,10\n");
+
+        DataModel dataModel = ParallelRatingsLoader.load(ratings, true);
+
+        assertThat(dataModel.hasPreferenceValues(), is(false));
+        assertSameModel(new FileDataModel(converted), dataModel);
+    }
+
+    private File write(String name, String content) throws Exception {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void assertSameModel(DataModel expected, DataModel actual) throws Exception {
+        assertThat(actual.getNumUsers(), is(expected.getNumUsers()));
+        assertThat(actual.getNumItems(), is(expected.getNumItems()));
+        assertThat(actual.hasPreferenceValues(), is(expected.hasPreferenceValues()));
+        LongPrimitiveIterator users = expected.getUserIDs();
+        while (users.hasNext()) {
+            long userID = users.nextLong();
+            PreferenceArray expectedPrefs = expected.getPreferencesFromUser(userID);
+            PreferenceArray actualPrefs = actual.getPreferencesFromUser(userID);
+            assertThat(actualPrefs.getIDs(), is(expectedPrefs.getIDs()));
+            for (int i = 0; i < expectedPrefs.length(); i++) {
+                assertThat(actualPrefs.getValue(i), is(expectedPrefs.getValue(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.similarity.EuclideanDistanceSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.SpearmanCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.UncenteredCosineSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class PrimitiveUserSimilarityTest {
+
+    private DataModel dataModel;
+
+    @Before
+    public void setUp() {
+        dataModel = randomDataModel(new Random(42L), 60, 200);
+    }
+
+    static DataModel randomDataModel(Random random, int numUsers, int numItems) {
+        FastByIDMap<PreferenceArray> prefs = new FastByIDMap<>();
+        for (int user = 0; user < numUsers; user++) {
+            List<Integer> items = new ArrayList<>();
+            for (int item = 0; item < numItems; item++) {
+                if (random.nextInt(4) == 0) {
+                    items.add(item);
+                }
+            }
+            if (items.isEmpty()) {
+                items.add(random.nextInt(numItems));
+            }
+            // every tenth user gives the same rating to everything
+            float constantRating = 1 + random.nextInt(5);
+            long userID = 1000L + 7L * user;
+            PreferenceArray userPrefs = new GenericUserPreferenceArray(items.size());
+            userPrefs.setUserID(0, userID);
+            for (int i = 0; i < items.size(); i++) {
+                userPrefs.setItemID(i, 50000L + 13L * items.get(i));
+                userPrefs.setValue(i, user % 10 == 0 ? constantRating : 1 + random.nextInt(5));
+            }
+            prefs.put(userID, userPrefs);
+        }
+        return new GenericDataModel(prefs);
+    }
+
+    @Test
+    public void pearson_sameAsMahout() throws Exception {
+        assertSameSimilarities(new PearsonCorrelationSimilarity(dataModel), new PrimitivePearsonCorrelationSimilarity(dataModel));
+    }
+
+    @Test
+    public void uncenteredCosine_sameAsMahout() throws Exception {
+        assertSameSimilarities(new UncenteredCosineSimilarity(dataModel), new PrimitiveUncenteredCosineSimilarity(dataModel));
+    }
+
+    @Test
+    public void euclidean_sameAsMahout() throws Exception {
+        assertSameSimilarities(new EuclideanDistanceSimilarity(dataModel), new PrimitiveEuclideanDistanceSimilarity(dataModel));
+    }
+
+    @Test
+    public void spearman_sameAsMahout() throws Exception {
+        // ratings from 1 to 5 give many ties, ranked in the order of Mahout's sort
+        assertSameSimilarities(new SpearmanCorrelationSimilarity(dataModel), new PrimitiveSpearmanCorrelationSimilarity(dataModel));
+    }
+
+    @Test
+    public void tanimoto_sameAsMahout() throws Exception {
+        assertSameSimilarities(new TanimotoCoefficientSimilarity(dataModel), new PrimitiveTanimotoCoefficientSimilarity(dataModel));
+    }
+
+    @Test
+    public void logLikelihood_sameAsMahout() throws Exception {
+        assertSameSimilarities(new LogLikelihoodSimilarity(dataModel), new PrimitiveLogLikelihoodSimilarity(dataModel));
+    }
+
+    @Test
+    public void bitmaps_denseAndBooleanData() throws Exception {
+        // about 1500 items per user over two chunks, so chunks are kept as bitmaps, next to sparse users' arrays
+        DataModel denseModel = randomDataModel(new Random(43L), 60, 6000);
+        PreferenceArray sparsePrefs = new GenericUserPreferenceArray(3);
+        sparsePrefs.setUserID(0, 1000L + 7L * 60);
+        for (int i = 0; i < 3; i++) {
+            sparsePrefs.setItemID(i, 50000L + 13L * 2000L * i);
+        }
+        FastByIDMap<PreferenceArray> prefs = new FastByIDMap<>();
+        LongPrimitiveIterator it = denseModel.getUserIDs();
+        while (it.hasNext()) {
+            long userID = it.nextLong();
+            prefs.put(userID, denseModel.getPreferencesFromUser(userID));
+        }
+        prefs.put(sparsePrefs.getUserID(0), sparsePrefs);
+        DataModel booleanModel = new GenericBooleanPrefDataModel(GenericBooleanPrefDataModel.toDataMap(new GenericDataModel(prefs)));
+        dataModel = booleanModel;
+        assertSameSimilarities(new TanimotoCoefficientSimilarity(booleanModel), new PrimitiveTanimotoCoefficientSimilarity(booleanModel));
+        assertSameSimilarities(new LogLikelihoodSimilarity(booleanModel), new PrimitiveLogLikelihoodSimilarity(booleanModel));
+        UserItemBitmaps bitmaps = new UserItemBitmaps(booleanModel);
+        int sparseUser = bitmaps.userIndex(sparsePrefs.getUserID(0));
+        for (int user = 0; user < bitmaps.getNumUsers(); user++) {
+            assertThat(bitmaps.intersectionSize(user, sparseUser), is(bitmaps.intersectionSize(sparseUser, user)));
+        }
+    }
+
+    @Test
+    public void userVectors_statisticsOfAllRatings() throws Exception {
+        UserRatingVectors vectors = new UserRatingVectors(dataModel);
+        int user = vectors.userIndex(1007L);
+        PreferenceArray prefs = dataModel.getPreferencesFromUser(1007L);
+        double sum = 0.0;
+        double sum2 = 0.0;
+        for (int i = 0; i < prefs.length(); i++) {
+            sum += prefs.getValue(i);
+            sum2 += prefs.getValue(i) * prefs.getValue(i);
+        }
+        assertThat(vectors.getItems(user).length, is(prefs.length()));
+        assertThat(vectors.getMean(user), is(sum / prefs.length()));
+        assertThat(vectors.getNorm(user), is(Math.sqrt(sum2)));
+    }
+
+    private void assertSameSimilarities(UserSimilarity expected, UserSimilarity actual) throws Exception {
+        int numUsers = dataModel.getNumUsers();
+        for (int user1 = 0; user1 < numUsers; user1++) {
+            for (int user2 = 0; user2 < numUsers; user2++) {
+                long userID1 = 1000L + 7L * user1;
+                long userID2 = 1000L + 7L * user2;
+                assertThat(actual.userSimilarity(userID1, userID2), is(expected.userSimilarity(userID1, userID2)));
+            }
+        }
+    }
+}
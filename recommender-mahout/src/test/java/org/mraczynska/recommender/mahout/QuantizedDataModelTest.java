@@ -0,0 +1,109 @@
+package org.mraczynska.recommender.mahout;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class QuantizedDataModelTest {
+
+    @Test
+    public void shouldServeSamePreferencesAsSourceModel() throws Exception {
+        DataModel expected = PrimitiveUserSimilarityTest.randomDataModel(new Random(11L), 40, 120);
+        QuantizedDataModel actual = new QuantizedDataModel(expected);
+
+        MappedDataModelTest.assertSameModel(expected, actual);
+        assertThat(actual.toString(), is("QuantizedDataModel[users:40,items:120,values:bytes[offset:1.0,scale:1.0]]"));
+        UserRatingVectors expectedVectors = new UserRatingVectors(expected);
+        UserRatingVectors actualVectors = new UserRatingVectors(actual);
+        for (int user = 0; user < 40; user++) {
+            assertThat(actualVectors.getItems(user), is(expectedVectors.getItems(user)));
+            assertThat(actualVectors.getValues(user), is(expectedVectors.getValues(user)));
+        }
+    }
+
+    @Test
+    public void shouldQuantizeHalfStepsOverSparseItems() throws Exception {
+        Random random = new Random(5L);
+        FastByIDMap<PreferenceArray> prefs = new FastByIDMap<>();
+        for (long userID = 1; userID <= 20; userID++) {
+            // few items out of many, so gaps between item indices need more than one byte
+            FastIDSet items = new FastIDSet();
+            while (items.size() < 8) {
+                items.add(9780000000000L + random.nextInt(5000));
+            }
+            PreferenceArray userPrefs = new GenericUserPreferenceArray(items.size());
+            userPrefs.setUserID(0, userID);
+            int i = 0;
+            for (long itemID : items) {
+                userPrefs.setItemID(i, itemID);
+                userPrefs.setValue(i++, 0.5f * (1 + random.nextInt(10)));
+            }
+            prefs.put(userID, userPrefs);
+        }
+        DataModel expected = new GenericDataModel(prefs);
+        QuantizedDataModel actual = new QuantizedDataModel(expected);
+
+        MappedDataModelTest.assertSameModel(expected, actual);
+        assertThat(actual.toString().endsWith("values:bytes[offset:0.5,scale:0.5]]"), is(true));
+    }
+
+    @Test
+    public void shouldKeepFractionalRatingsAsFloats() throws Exception {
+        FastByIDMap<PreferenceArray> prefs = new FastByIDMap<>();
+        PreferenceArray userPrefs = new GenericUserPreferenceArray(3);
+        userPrefs.setUserID(0, 5L);
+        userPrefs.setItemID(0, 30L);
+        userPrefs.setValue(0, 3.5f);
+        userPrefs.setItemID(1, 10L);
+        userPrefs.setValue(1, -1.25f);
+        userPrefs.setItemID(2, 20L);
+        userPrefs.setValue(2, 1000f);
+        prefs.put(5L, userPrefs);
+        DataModel expected = new GenericDataModel(prefs);
+        QuantizedDataModel actual = new QuantizedDataModel(expected);
+
+        MappedDataModelTest.assertSameModel(expected, actual);
+        assertThat(actual.toString().endsWith("values:floats]"), is(true));
+        assertThat(actual.getPreferenceValue(5L, 10L), is(-1.25f));
+        assertThat(actual.getPreferenceValue(5L, 15L), is(nullValue()));
+    }
+
+    @Test
+    public void shouldServeBooleanModelWithoutValues() throws Exception {
+        DataModel expected = new GenericBooleanPrefDataModel(GenericBooleanPrefDataModel.toDataMap(
+                PrimitiveUserSimilarityTest.randomDataModel(new Random(3L), 30, 60)));
+        QuantizedDataModel actual = new QuantizedDataModel(expected);
+
+        // boolean preference arrays of Mahout are not sorted, so rows are compared as sets
+        assertThat(actual.hasPreferenceValues(), is(false));
+        assertThat(actual.getNumUsers(), is(expected.getNumUsers()));
+        assertThat(actual.getNumItems(), is(expected.getNumItems()));
+        LongPrimitiveIterator users = expected.getUserIDs();
+        while (users.hasNext()) {
+            long userID = users.nextLong();
+            assertThat(actual.getItemIDsFromUser(userID), is(expected.getItemIDsFromUser(userID)));
+            for (long itemID : actual.getItemIDsFromUser(userID)) {
+                assertThat(actual.getPreferenceValue(userID, itemID), is(1.0f));
+                assertThat(actual.getNumUsersWithPreferenceFor(itemID),
+                        is(expected.getNumUsersWithPreferenceFor(itemID)));
+            }
+        }
+        assertThat(actual.getPreferencesSizeInBytes() < 8L * 30 * 60, is(true));
+    }
+}
@@ -0,0 +1,84 @@
+package org.mraczynska.recommender.mahout;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class SkewAwareSchedulerTest {
+
+    private static final int[] PROFILE_SIZES = skewedProfileSizes();
+
+    private static int[] skewedProfileSizes() {
+        int[] sizes = new int[2000];
+        for (int user = 0; user < sizes.length; user++) {
+            sizes[user] = 1 + user % 3;
+        }
+        sizes[500] = 5000;
+        sizes[1500] = 800;
+        return sizes;
+    }
+
+    @Test
+    public void shouldDispatchHeaviestUsersFirstAndSplitThem() {
+        List<SkewAwareScheduler.WorkUnit> units = SkewAwareScheduler.schedule(PROFILE_SIZES, true);
+
+        int position = 0;
+        for (int user : new int[]{500, 1500}) {
+            SkewAwareScheduler.WorkUnit first = units.get(position);
+            assertThat(first.getUsers(), is(new int[]{user}));
+            assertThat(first.getNumSlices(), greaterThan(1));
+            // slices are consecutive and cover the whole profile
+            int from = 0;
+            for (int slice = 0; slice < first.getNumSlices(); slice++) {
+                SkewAwareScheduler.WorkUnit unit = units.get(position++);
+                assertThat(unit.getUsers(), is(new int[]{user}));
+                assertThat(unit.getFrom(PROFILE_SIZES[user]), is(from));
+                assertThat(unit.getTo(PROFILE_SIZES[user]) - from, greaterThan(0));
+                from = unit.getTo(PROFILE_SIZES[user]);
+                assertThat(unit.isLastSlice(), is(slice == first.getNumSlices() - 1));
+            }
+            assertThat(from, is(PROFILE_SIZES[user]));
+        }
+        assertEveryUserOnce(units);
+    }
+
+    @Test
+    public void shouldKeepUsersWholeWhenNotSplitting() {
+        List<SkewAwareScheduler.WorkUnit> units = SkewAwareScheduler.schedule(PROFILE_SIZES, false);
+
+        assertThat(units.get(0).getUsers(), is(new int[]{500}));
+        assertThat(units.get(1).getUsers(), is(new int[]{1500}));
+        int previousSize = Integer.MAX_VALUE;
+        for (SkewAwareScheduler.WorkUnit unit : units) {
+            assertThat(unit.isSlice(), is(false));
+            for (int user : unit.getUsers()) {
+                assertThat(PROFILE_SIZES[user], lessThanOrEqualTo(previousSize));
+                previousSize = PROFILE_SIZES[user];
+            }
+        }
+        assertEveryUserOnce(units);
+    }
+
+    private static void assertEveryUserOnce(List<SkewAwareScheduler.WorkUnit> units) {
+        int[] seen = new int[PROFILE_SIZES.length];
+        for (SkewAwareScheduler.WorkUnit unit : units) {
+            if (!unit.isSlice() || unit.isLastSlice()) {
+                for (int user : unit.getUsers()) {
+                    seen[user]++;
+                }
+            }
+        }
+        for (int count : seen) {
+            assertThat(count, is(1));
+        }
+    }
+}
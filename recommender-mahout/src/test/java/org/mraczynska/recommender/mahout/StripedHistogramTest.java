@@ -0,0 +1,58 @@
+package org.mraczynska.recommender.mahout;
+
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.number.IsCloseTo.closeTo;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class StripedHistogramTest {
+
+    @Test
+    public void bucketsShouldCoverAllValuesInOrder() {
+        int previous = -1;
+        for (long value : new long[]{0, 1, 63, 64, 65, 127, 128, 1000, 1L << 40, Long.MAX_VALUE}) {
+            int bucket = StripedHistogram.bucketIndex(value);
+            assertThat(bucket >= previous, is(true));
+            assertThat(StripedHistogram.bucketLowerBound(bucket) <= value, is(true));
+            previous = bucket;
+        }
+        assertThat(StripedHistogram.bucketIndex(Long.MAX_VALUE), is(StripedHistogram.NUM_BUCKETS - 1));
+        for (int bucket = 1; bucket < StripedHistogram.NUM_BUCKETS; bucket++) {
+            long lowerBound = StripedHistogram.bucketLowerBound(bucket);
+            assertThat(StripedHistogram.bucketIndex(lowerBound), is(bucket));
+            assertThat(StripedHistogram.bucketIndex(lowerBound - 1), is(bucket - 1));
+        }
+    }
+
+    @Test
+    public void shouldGivePercentilesWithinBucketPrecision() {
+        StripedHistogram histogram = new StripedHistogram();
+        // values 1..100000 recorded from many threads
+        IntStream.rangeClosed(1, 100000).parallel().forEach(histogram::record);
+
+        assertThat(histogram.getCount(), is(100000L));
+        assertThat(histogram.getMean(), is(50000.5));
+        double[] values = histogram.getValuesAtPercentiles(50.0, 99.0, 99.9);
+        assertThat(values[0], closeTo(50000, 50000 * 0.03));
+        assertThat(values[1], closeTo(99000, 99000 * 0.03));
+        assertThat(values[2], closeTo(99900, 99900 * 0.03));
+    }
+
+    @Test
+    public void smallValuesShouldBeExact() {
+        StripedHistogram histogram = new StripedHistogram();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(i);
+        }
+        assertThat(histogram.getValueAtPercentile(50.0), is(4.0));
+        assertThat(histogram.getValueAtPercentile(100.0), is(9.0));
+        assertThat(Double.isNaN(new StripedHistogram().getValueAtPercentile(50.0)), is(true));
+    }
+}
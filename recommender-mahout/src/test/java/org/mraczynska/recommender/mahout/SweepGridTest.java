@@ -0,0 +1,104 @@
+package org.mraczynska.recommender.mahout;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+
+/**
+ * Author: Marta Raczyńska
+ */
+public class SweepGridTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void load_shouldParseRangesAndSingleValues() throws Exception {
+        SweepGrid grid = load("folds=0-2, 5",
+                "similarities=PrimitivePearsonCorrelationSimilarity",
+                "neighborhoods=10,50 , 100",
+                "features=8-8",
+                "iterations=20");
+
+        assertThat(grid.getFolds(), contains(0, 1, 2, 5));
+        assertThat(grid.getNeighborhoodSizes(), contains(10, 50, 100));
+        assertThat(grid.getNumFeatures(), contains(8));
+        assertThat(grid.getNumIterations(), contains(20));
+        assertThat(grid.getTrainingFile(2), is("train2.csv"));
+        assertThat(grid.getTestFile(2), is("test2.csv"));
+        assertThat(grid.getTargetRmse(), is(nullValue()));
+    }
+
+    @Test
+    public void load_shouldLeaveMissingListsEmpty() throws Exception {
+        SweepGrid grid = load("folds=3");
+
+        assertThat(grid.getFolds(), contains(3));
+        assertThat(grid.getSimilarityClassNames(), is(empty()));
+        assertThat(grid.getNeighborhoodSizes(), is(empty()));
+        assertThat(grid.getFactorizerNames(), is(empty()));
+        assertThat(grid.getConfigurationsPerFold(), is(0));
+    }
+
+    @Test
+    public void getConfigurationsPerFold_shouldCountNeighborhoodAndFactorizationConfigurations() throws Exception {
+        SweepGrid grid = load("folds=0-4",
+                "similarities=PrimitivePearsonCorrelationSimilarity,PrimitiveUncenteredCosineSimilarity",
+                "neighborhoods=10,20,30",
+                "factorizers=HogwildSGDFactorizer,ALSWRFactorizer",
+                "features=10,20",
+                "iterations=5-9");
+
+        // folds do not count: 2 * 3 neighborhood configurations and 2 * 2 * 5 factorizations
+        assertThat(grid.getConfigurationsPerFold(), is(6 + 20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void load_shouldRejectWarmStartWithoutFactorStore() throws Exception {
+        load("folds=0", "factorizers=HogwildSGDFactorizer", "features=10", "iterations=10", "warmStart=true");
+    }
+
+    @Test
+    public void load_shouldAcceptWarmStartWithFactorStore() throws Exception {
+        SweepGrid grid = load("folds=0", "warmStart=true", "factorStore=" + folder.getRoot().getPath().replace('\\', '/'));
+
+        assertThat(grid.isWarmStart(), is(true));
+        assertThat(grid.isCrossFoldWarmStart(), is(false));
+    }
+
+    @Test
+    public void load_neighborListStoreShouldImplyPrecomputedSimilarities() throws Exception {
+        assertThat(load("folds=0").isPrecomputedSimilarities(), is(false));
+        assertThat(load("folds=0", "precomputedSimilarities=true").isPrecomputedSimilarities(), is(true));
+
+        SweepGrid grid = load("folds=0", "precomputedSimilarities=false", "neighborListStore=lists");
+        assertThat(grid.isPrecomputedSimilarities(), is(true));
+        assertThat(grid.getNeighborListStore(), is(new File("lists")));
+    }
+
+    private SweepGrid load(String... entries) throws IOException {
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "model=org.apache.mahout.cf.taste.impl.model.GenericDataModel",
+                "training=train%d.csv",
+                "test=test%d.csv"));
+        lines.addAll(Arrays.asList(entries));
+        File gridFile = folder.newFile();
+        Files.write(gridFile.toPath(), lines, StandardCharsets.ISO_8859_1);
+        return SweepGrid.load(gridFile);
+    }
+}